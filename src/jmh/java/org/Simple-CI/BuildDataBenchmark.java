@@ -0,0 +1,36 @@
+package org.Simple-CI;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the JSON serialization of a build, by the size of its log.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BuildDataBenchmark {
+
+    @Param({"0", "1000", "50000"})
+    public int logLines;
+
+    private BuildData build;
+
+    @Setup
+    public void setUp() {
+        build = CIDataBaseBenchmark.build(CIDataBaseBenchmark.sha(1), 1500000000000L, logLines);
+    }
+
+    @Benchmark
+    public String toJson() {
+        return build.toString();
+    }
+}
@@ -0,0 +1,101 @@
+package org.Simple-CI;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the log store with plain text and with compressed logs: storing the log of a finished build
+ * and reading 100 lines from a random place of a stored log, with the cache turned off. The write benchmark
+ * reports the size of the stored log as storedBytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BuildLogStoreBenchmark {
+
+    @Param({"false", "true"})
+    public boolean compress;
+
+    @Param({"10000", "200000"})
+    public int logLines;
+
+    private File folder;
+    private BuildLogStore store;
+    private List<String> log;
+    private final Random random = new Random(42);
+
+    /**
+     * Size of the log stored by the write benchmark, reported next to its time
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class StoredSize {
+        public long storedBytes;
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("ci-bench-logs").toFile();
+        store = new BuildLogStore(folder, 0, compress);
+        log = gradleLog(logLines);
+        store.write("stored", log);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        CIDataBaseBenchmark.delete(folder);
+    }
+
+    @Benchmark
+    public void write(StoredSize size) throws IOException {
+        store.write("written", log);
+        size.storedBytes = store.storedSize("written");
+    }
+
+    @Benchmark
+    public List<String> readRange() {
+        return store.readLines("stored", random.nextInt(logLines), 100);
+    }
+
+    /**
+     * A log that looks like gradle output: task lines, test results and stack traces.
+     */
+    static List<String> gradleLog(int lines) {
+        Random random = new Random(1);
+        List<String> log = new ArrayList<>(lines);
+        for (int i = 0; i < lines; i++) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    log.add("> Task :module" + random.nextInt(20) + ":compileJava UP-TO-DATE");
+                    break;
+                case 1:
+                    log.add("org.example.Test" + random.nextInt(500) + " > test" + random.nextInt(50) + " PASSED");
+                    break;
+                case 2:
+                    log.add("\tat org.example.module" + random.nextInt(20) + ".Class" + random.nextInt(100)
+                            + ".method(Class.java:" + random.nextInt(1000) + ")");
+                    break;
+                default:
+                    log.add("BUILD SUCCESSFUL in " + random.nextInt(100) + "s " + random.nextInt(200)
+                            + " actionable tasks: " + random.nextInt(200) + " executed");
+            }
+        }
+        return log;
+    }
+}
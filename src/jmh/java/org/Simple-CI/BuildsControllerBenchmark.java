@@ -0,0 +1,76 @@
+package org.Simple-CI;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.ui.ExtendedModelMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the /builds page model, the first page and a page from the middle of the whole history
+ * and the builds of one commit. Template rendering is not included.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BuildsControllerBenchmark {
+
+    @Param({"1000", "10000"})
+    public int history;
+
+    private final BuildsController controller = new BuildsController();
+    private File folder;
+    private CIDataBase previous;
+    private String deepPage;
+    private String sha;
+
+    @Setup
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("ci-bench-builds").toFile();
+        previous = CiApplication.CIDB;
+        CiApplication.CIDB = CIDataBaseBenchmark.fill(new CIDataBase(folder.getPath()), history);
+        controller.appName = "bench";
+        // the cursor of the build in the middle of the history, see CIDataBaseBenchmark.fill
+        int middle = history / 2;
+        deepPage = CIDataBaseBenchmark.sha(middle % CIDataBaseBenchmark.SHAS) + "-"
+                + (1500000000000L + middle * 60000L);
+        sha = CIDataBaseBenchmark.sha(7);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        CiApplication.CIDB = previous;
+        CIDataBaseBenchmark.delete(folder);
+    }
+
+    @Benchmark
+    public ExtendedModelMap firstPage() {
+        ExtendedModelMap model = new ExtendedModelMap();
+        controller.builds("", "", "", "", "", model);
+        return model;
+    }
+
+    @Benchmark
+    public ExtendedModelMap deepPage() {
+        ExtendedModelMap model = new ExtendedModelMap();
+        controller.builds(deepPage, "", "", "", "", model);
+        return model;
+    }
+
+    @Benchmark
+    public ExtendedModelMap commitPage() {
+        ExtendedModelMap model = new ExtendedModelMap();
+        controller.builds("", sha, "", "", "", model);
+        return model;
+    }
+}
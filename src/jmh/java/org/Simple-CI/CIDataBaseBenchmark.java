@@ -0,0 +1,115 @@
+package org.Simple-CI;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks of the database operations on the build path and the web pages:
+ * storing a finished build, alone and from concurrent builders sharing fsyncs, and looking up the builds of a
+ * commit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CIDataBaseBenchmark {
+
+    static final int SHAS = 1000;
+
+    @Param({"1000", "10000"})
+    public int history;
+
+    private File folder;
+    private CIDataBase db;
+    private String sha;
+    private final AtomicLong time = new AtomicLong();
+
+    @Setup
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("ci-bench-db").toFile();
+        db = fill(new CIDataBase(folder.getPath()), history);
+        sha = sha(history / 2 % SHAS);
+        time.set(System.currentTimeMillis());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        delete(folder);
+    }
+
+    /**
+     * Stores a finished build with a log of 100 lines.
+     */
+    @Benchmark
+    public boolean writeBuild() throws IOException {
+        long created = time.incrementAndGet();
+        BuildData build = build(sha((int) (created % SHAS)), created, 100);
+        return db.writeBuild(build);
+    }
+
+    /**
+     * Stores finished builds from eight threads, whose writes are synced to the disk together.
+     */
+    @Benchmark
+    @Threads(8)
+    public boolean writeBuildConcurrently() throws IOException {
+        return writeBuild();
+    }
+
+    @Benchmark
+    public ArrayList<BuildData> readAllBuild() {
+        return db.readAllBuild(sha);
+    }
+
+    /**
+     * Writes builds spread over {@link #SHAS} commits into a database.
+     */
+    static CIDataBase fill(CIDataBase db, int builds) throws IOException {
+        long start = 1500000000000L;
+        for (int i = 0; i < builds; i++)
+            db.writeBuild(build(sha(i % SHAS), start + i * 60000L, 10));
+        return db;
+    }
+
+    static BuildData build(String sha, long created, int logLines) {
+        BuildData build = new BuildData("owner/repo" + (sha.hashCode() & 7), new Date(created), sha);
+        build.setDateStart(new Date(created + 1000));
+        build.setDateFinish(new Date(created + 60000));
+        build.setBuildStatus(BuildStatus.success);
+        build.setMessage("Build finished");
+        List<String> log = new ArrayList<>(logLines);
+        for (int i = 0; i < logLines; i++)
+            log.add("> Task :compileJava line " + i + " of the gradle output");
+        build.setBuildLog(log);
+        return build;
+    }
+
+    static String sha(int i) {
+        return String.format("%040x", i);
+    }
+
+    static void delete(File folder) throws IOException {
+        try (Stream<Path> paths = Files.walk(folder.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
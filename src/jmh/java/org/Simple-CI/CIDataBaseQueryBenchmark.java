@@ -0,0 +1,69 @@
+package org.Simple-CI;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the index lookups of the web pages and the API while the history grows: the builds of a commit,
+ * a page of the newest builds and a page of the builds of a repository. The latency should stay flat, not grow
+ * with the history. Only the indexes are filled, the journal stays empty.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CIDataBaseQueryBenchmark {
+
+    static final int REPOS = 1000;
+
+    @Param({"10000", "100000", "1000000"})
+    public int history;
+
+    private File folder;
+    private CIDataBase db;
+    private final Random random = new Random(42);
+
+    @Setup
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("ci-bench-query").toFile();
+        db = new CIDataBase(folder.getPath());
+        // four builds per commit
+        for (int i = 0; i < history; i++)
+            db.addToIndex(new BuildData("owner/repo" + (i % REPOS), new Date(i), CIDataBaseBenchmark.sha(i / 4)));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        CIDataBaseBenchmark.delete(folder);
+    }
+
+    @Benchmark
+    public ArrayList<BuildData> readAllBuild() {
+        return db.readAllBuild(CIDataBaseBenchmark.sha(random.nextInt(history / 4)));
+    }
+
+    @Benchmark
+    public ArrayList<BuildData> getLatestBuilds() {
+        return db.getLatestBuilds(new Date(random.nextInt(history)), 50);
+    }
+
+    @Benchmark
+    public List<BuildData> queryRepo() {
+        return db.query(new BuildQuery().repo("owner/repo" + random.nextInt(REPOS)).limit(50)).getBuilds();
+    }
+}
@@ -0,0 +1,79 @@
+package org.Simple-CI;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the startup of a database with a long history, once replaying every journal record and once from
+ * the snapshot. The history is written in the former one file per commit format, a hundred builds per commit, and
+ * moved into the journal when the database is opened the first time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CIDataBaseStartupBenchmark {
+
+    static final int BUILDS_PER_SHA = 100;
+
+    @Param({"500000"})
+    public int history;
+
+    File folder;
+
+    /**
+     * Removes the snapshot before every start, so that the whole journal is replayed.
+     */
+    @State(Scope.Benchmark)
+    public static class WithoutSnapshot {
+        @Setup(Level.Invocation)
+        public void deleteSnapshot(CIDataBaseStartupBenchmark benchmark) {
+            new File(benchmark.folder, "snapshot.bin").delete();
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("ci-bench-startup").toFile();
+        for (int f = 0; f < history / BUILDS_PER_SHA; f++) {
+            String sha = CIDataBaseBenchmark.sha(f);
+            try (BufferedWriter bw = Files.newBufferedWriter(new File(folder, sha).toPath())) {
+                for (int b = 0; b < BUILDS_PER_SHA; b++) {
+                    long time = 1549380803000L + f * BUILDS_PER_SHA + b;
+                    bw.write("#build\nrepoFullName=owner/repo" + (f % 100) + "\ndateCreated=" + time + "\nsha=" + sha
+                            + "\ndateStart=" + time + "\ndateFinish=" + (time + 1)
+                            + "\nbuildStatus=success\nmessage=Build Success\n#end\n");
+                }
+            }
+        }
+        new CIDataBase(folder.getPath());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        CIDataBaseBenchmark.delete(folder);
+    }
+
+    @Benchmark
+    public CIDataBase openFromJournal(WithoutSnapshot withoutSnapshot) {
+        return new CIDataBase(folder.getPath());
+    }
+
+    @Benchmark
+    public CIDataBase openFromSnapshot() {
+        return new CIDataBase(folder.getPath());
+    }
+}
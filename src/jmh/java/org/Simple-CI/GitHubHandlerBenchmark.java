@@ -0,0 +1,46 @@
+package org.Simple-CI;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.Message;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the whole webhook handling step, parsing and building the routed message,
+ * on the payloads of {@link WebhookParseBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GitHubHandlerBenchmark {
+
+    @Param({"push", "pull_request"})
+    public String event;
+
+    @Param({"1", "200"})
+    public int commits;
+
+    private final GitHubHandler handler = new GitHubHandler();
+    private Message<String> msg;
+
+    @Setup
+    public void setUp() {
+        String payload = event.equals("push")
+                ? WebhookParseBenchmark.pushPayload(commits)
+                : WebhookParseBenchmark.pullRequestPayload(commits);
+        msg = MessageBuilder.withPayload(payload).build();
+    }
+
+    @Benchmark
+    public Message<?> getJSON() {
+        return handler.getJSON(msg);
+    }
+}
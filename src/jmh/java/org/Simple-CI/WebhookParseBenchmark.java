@@ -0,0 +1,156 @@
+package org.Simple-CI;
+
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares reading the build fields of a webhook payload with a full {@link JSONObject} tree against
+ * the streaming {@link GitHubEvent} parser. Run with the gc profiler to compare allocation per payload.
+ * The payloads have the shape and size of github push and pull_request events: a push with 200 commits
+ * and their file lists is around 300KB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WebhookParseBenchmark {
+
+    @Param({"push", "pull_request"})
+    public String event;
+
+    @Param({"1", "200"})
+    public int commits;
+
+    private String payload;
+
+    @Setup
+    public void setUp() {
+        payload = event.equals("push") ? pushPayload(commits) : pullRequestPayload(commits);
+    }
+
+    /**
+     * The fields read the way GitHubHandler.getJSON read them before the streaming parser.
+     */
+    @Benchmark
+    public String jsonTokener() throws Exception {
+        JSONObject json = new JSONObject(new JSONTokener(payload));
+        if (json.has("pull_request")) {
+            JSONObject head = json.getJSONObject("pull_request").getJSONObject("head");
+            return json.getString("action") + head.getString("sha") + head.getString("ref")
+                    + head.getJSONObject("repo").getString("full_name");
+        }
+        return json.getString("after") + json.getString("ref")
+                + json.getJSONObject("repository").getString("full_name");
+    }
+
+    @Benchmark
+    public String streaming() {
+        GitHubEvent parsed = GitHubEvent.parse(payload);
+        if (parsed.isPullRequest())
+            return parsed.getAction() + parsed.getHeadSha() + parsed.getHeadRef() + parsed.getHeadRepoFullName();
+        return parsed.getAfter() + parsed.getRef() + parsed.getRepoFullName();
+    }
+
+    static String pushPayload(int commits) {
+        StringBuilder sb = new StringBuilder(1600 * commits + 4096);
+        sb.append("{\"ref\":\"refs/heads/master\",\"before\":\"").append(sha(0)).append("\",\"after\":\"")
+                .append(sha(commits)).append("\",\"created\":false,\"deleted\":false,\"forced\":false,")
+                .append("\"base_ref\":null,\"compare\":\"https://github.com/owner/repo/compare/a...b\",\"commits\":[");
+        for (int i = 1; i <= commits; i++) {
+            if (i > 1)
+                sb.append(',');
+            commit(sb, i);
+        }
+        sb.append("],\"head_commit\":");
+        commit(sb, commits);
+        sb.append(",\"repository\":");
+        repository(sb, "owner/repo");
+        sb.append(",\"pusher\":{\"name\":\"user\",\"email\":\"user@example.com\"},\"sender\":");
+        user(sb, "user");
+        return sb.append('}').toString();
+    }
+
+    static String pullRequestPayload(int commits) {
+        StringBuilder sb = new StringBuilder(8192 + 300 * commits);
+        sb.append("{\"action\":\"opened\",\"number\":42,\"pull_request\":{")
+                .append("\"url\":\"https://api.github.com/repos/owner/repo/pulls/42\",\"id\":1,\"state\":\"open\",")
+                .append("\"title\":\"Change\",\"user\":");
+        user(sb, "user");
+        sb.append(",\"body\":\"");
+        for (int i = 0; i < commits; i++)
+            sb.append("A line of the description of the pull request, ").append(i).append("\\n");
+        sb.append("\",\"labels\":[],\"head\":{\"label\":\"user:feature\",\"ref\":\"feature\",\"sha\":\"")
+                .append(sha(commits)).append("\",\"user\":");
+        user(sb, "user");
+        sb.append(",\"repo\":");
+        repository(sb, "user/repo");
+        sb.append("},\"base\":{\"label\":\"owner:master\",\"ref\":\"master\",\"sha\":\"").append(sha(0))
+                .append("\",\"user\":");
+        user(sb, "owner");
+        sb.append(",\"repo\":");
+        repository(sb, "owner/repo");
+        sb.append("},\"merged\":false,\"commits\":").append(commits).append(",\"additions\":10,\"deletions\":2},")
+                .append("\"repository\":");
+        repository(sb, "owner/repo");
+        sb.append(",\"sender\":");
+        user(sb, "user");
+        return sb.append('}').toString();
+    }
+
+    private static void commit(StringBuilder sb, int i) {
+        sb.append("{\"id\":\"").append(sha(i)).append("\",\"tree_id\":\"").append(sha(i + 1000000))
+                .append("\",\"distinct\":true,\"message\":\"Commit number ").append(i)
+                .append(" with a message of usual length\",\"timestamp\":\"2019-02-01T12:00:00+01:00\",")
+                .append("\"url\":\"https://github.com/owner/repo/commit/").append(sha(i)).append("\",")
+                .append("\"author\":{\"name\":\"User\",\"email\":\"user@example.com\",\"username\":\"user\"},")
+                .append("\"committer\":{\"name\":\"User\",\"email\":\"user@example.com\",\"username\":\"user\"},")
+                .append("\"added\":[");
+        files(sb, i, 5);
+        sb.append("],\"removed\":[");
+        files(sb, i, 2);
+        sb.append("],\"modified\":[");
+        files(sb, i, 12);
+        sb.append("]}");
+    }
+
+    private static void files(StringBuilder sb, int commit, int count) {
+        for (int i = 0; i < count; i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append("\"src/main/java/org/example/module").append(commit % 7).append("/File").append(i).append(".java\"");
+        }
+    }
+
+    private static void repository(StringBuilder sb, String fullName) {
+        String name = fullName.substring(fullName.indexOf('/') + 1);
+        sb.append("{\"id\":123456,\"node_id\":\"MDEwOlJlcG9zaXRvcnkx\",\"name\":\"").append(name)
+                .append("\",\"full_name\":\"").append(fullName).append("\",\"private\":false,\"owner\":");
+        user(sb, fullName.substring(0, fullName.indexOf('/')));
+        sb.append(",\"html_url\":\"https://github.com/").append(fullName).append("\",\"description\":\"A repository\",")
+                .append("\"fork\":false,\"url\":\"https://api.github.com/repos/").append(fullName).append("\",")
+                .append("\"clone_url\":\"https://github.com/").append(fullName).append(".git\",")
+                .append("\"size\":1024,\"stargazers_count\":3,\"watchers_count\":3,\"language\":\"Java\",")
+                .append("\"has_issues\":true,\"forks_count\":1,\"open_issues_count\":2,\"default_branch\":\"master\"}");
+    }
+
+    private static void user(StringBuilder sb, String login) {
+        sb.append("{\"login\":\"").append(login).append("\",\"id\":1,\"node_id\":\"MDQ6VXNlcjE=\",")
+                .append("\"avatar_url\":\"https://avatars.githubusercontent.com/u/1?v=4\",")
+                .append("\"url\":\"https://api.github.com/users/").append(login).append("\",")
+                .append("\"html_url\":\"https://github.com/").append(login).append("\",")
+                .append("\"type\":\"User\",\"site_admin\":false}");
+    }
+
+    private static String sha(int i) {
+        return String.format("%040x", i);
+    }
+}
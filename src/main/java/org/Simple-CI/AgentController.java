@@ -0,0 +1,89 @@
+package org.Simple-CI;
+
+import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+
+/**
+ * This is a spring controller class responsible for the requests of remote {@link BuildAgent}s, which lease builds
+ * from the {@link BuildCoordinator}, send heartbeats with the output of their build and report its result.
+ * The endpoints answer 404 Not Found unless ci.agents.enabled is set, and 403 Forbidden without ci.agents.token.
+ */
+@Controller
+public class AgentController {
+
+    /**
+     * Header with the secret of the agents
+     */
+    public static final String TOKEN_HEADER = "X-CI-Agent-Token";
+
+    @Autowired
+    private BuildCoordinator coordinator;
+
+    /**
+     * This function is responsible for handling requests sent to /agents/lease url of the webserver.
+     * The request waits up to ci.agents.leaseWaitMillis for a build.
+     * @return the job of the agent, or 204 No Content if no build is waiting
+     */
+    @PostMapping(value = "/agents/lease", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> lease(@RequestHeader(name = TOKEN_HEADER, required = false) String token,
+                                        @RequestParam(name = "agent") String agent) throws InterruptedException {
+        ResponseEntity<String> denied = deny(token);
+        if (denied != null)
+            return denied;
+        JSONObject job = coordinator.lease(agent, coordinator.getLeaseWaitMillis());
+        if (job == null)
+            return ResponseEntity.noContent().build();
+        return ResponseEntity.ok(job.toString());
+    }
+
+    /**
+     * This function is responsible for handling requests sent to /agents/heartbeat url of the webserver.
+     * The body holds the new lines of the log.
+     * @return {"cancel": bool}, or 410 Gone if the lease is lost
+     */
+    @PostMapping(value = "/agents/heartbeat", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> heartbeat(@RequestHeader(name = TOKEN_HEADER, required = false) String token,
+                                            @RequestParam(name = "lease") String lease,
+                                            @RequestBody(required = false) String output) {
+        ResponseEntity<String> denied = deny(token);
+        if (denied != null)
+            return denied;
+        JSONObject answer = coordinator.heartbeat(lease, output == null ? "" : output);
+        if (answer.optBoolean("lost"))
+            return ResponseEntity.status(HttpStatus.GONE).body(answer.toString());
+        return ResponseEntity.ok(answer.toString());
+    }
+
+    /**
+     * This function is responsible for handling requests sent to /agents/complete url of the webserver.
+     * The body holds the result of the build, {"status", "message", "url", "timings"}.
+     * @return 200 OK, or 410 Gone if the lease is lost
+     */
+    @PostMapping(value = "/agents/complete")
+    public ResponseEntity<String> complete(@RequestHeader(name = TOKEN_HEADER, required = false) String token,
+                                           @RequestParam(name = "lease") String lease,
+                                           @RequestBody String result) {
+        ResponseEntity<String> denied = deny(token);
+        if (denied != null)
+            return denied;
+        if (!coordinator.complete(lease, new JSONObject(result)))
+            return ResponseEntity.status(HttpStatus.GONE).body("lease " + lease + " is lost");
+        return ResponseEntity.ok("");
+    }
+
+    private ResponseEntity<String> deny(String token) {
+        if (!coordinator.isEnabled())
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        if (!coordinator.isAuthorized(token))
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        return null;
+    }
+}
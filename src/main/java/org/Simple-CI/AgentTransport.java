@@ -0,0 +1,39 @@
+package org.Simple-CI;
+
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * How a {@link BuildAgent} reaches the {@link BuildCoordinator}: over HTTP with {@link HttpAgentTransport}, or with
+ * {@link LocalAgentTransport} as a stand-in that calls a coordinator in the same JVM.
+ */
+public interface AgentTransport extends Closeable {
+
+    /**
+     * Leases the next waiting build, waits a while if none is waiting
+     * @param agentId id of the agent
+     * @return job, {"lease", "repo", "sha", "created", "branch", "traceId"}, null if no build is waiting
+     * @throws IOException if the coordinator could not be reached
+     */
+    JSONObject lease(String agentId) throws IOException;
+
+    /**
+     * Renews a lease and sends the new output of the build
+     * @param leaseId lease of the build
+     * @param output new whole lines of the log, may be empty
+     * @return {"cancel": true} if the build must be cancelled, {"lost": true} if the lease is lost
+     * @throws IOException if the coordinator could not be reached
+     */
+    JSONObject heartbeat(String leaseId, String output) throws IOException;
+
+    /**
+     * Reports the result of a build
+     * @param leaseId lease of the build
+     * @param result {"status", "message", "url", "timings"}
+     * @return false if the lease is lost
+     * @throws IOException if the coordinator could not be reached
+     */
+    boolean complete(String leaseId, JSONObject result) throws IOException;
+}
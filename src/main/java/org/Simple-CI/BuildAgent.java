@@ -0,0 +1,292 @@
+package org.Simple-CI;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.Message;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * A build agent, runs builds leased from the {@link BuildCoordinator} of a server on its own machine.
+ * Every slot leases one build at a time and runs it with a {@link Builder}, whose log goes to a local log store.
+ * While the build runs, its new log lines are sent to the coordinator with a heartbeat every heartbeatMillis,
+ * the answer of a heartbeat cancels the build or reports that its lease is lost.
+ * Start an agent with: java -cp simple-ci.jar org.Simple-CI.BuildAgent server-url [agent-id] [slots],
+ * the secret of the agents is read from the CI_AGENT_TOKEN environment variable.
+ */
+public class BuildAgent implements Closeable {
+
+    private static final int MAX_CHUNK = 64 * 1024;
+
+    private final Logger log = LoggerFactory.getLogger(BuildAgent.class);
+    private final String agentId;
+    private final AgentTransport transport;
+    private final int slots;
+    private final long heartbeatMillis;
+    private final BuildLogStore logStore;
+    private final BuildProcesses processes;
+    private final Function<Message<String>, Message<String>> runner;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService heartbeats;
+    private final AtomicLong completed = new AtomicLong();
+    private volatile boolean running = true;
+
+    /**
+     * Create an agent, {@link #start()} starts leasing builds.
+     * @param agentId id of the agent, shown in the build logs
+     * @param transport connection to the coordinator
+     * @param slots number of builds the agent runs at the same time
+     * @param heartbeatMillis time between two heartbeats of a build, below ci.agents.leaseTimeoutMillis
+     * @param logStore local store the runner writes the build logs to
+     * @param processes registry the runner registers its builds in, heartbeats cancel them there
+     * @param runner runs a build like {@link Builder#build(Message)}
+     */
+    public BuildAgent(String agentId, AgentTransport transport, int slots, long heartbeatMillis,
+                      BuildLogStore logStore, BuildProcesses processes,
+                      Function<Message<String>, Message<String>> runner) {
+        this.agentId = agentId;
+        this.transport = transport;
+        this.slots = Math.max(1, slots);
+        this.heartbeatMillis = heartbeatMillis;
+        this.logStore = logStore;
+        this.processes = processes;
+        this.runner = runner;
+        AtomicInteger threads = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(this.slots,
+                r -> new Thread(r, "build-agent-" + threads.incrementAndGet()));
+        this.heartbeats = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "build-agent-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Starts leasing builds on every slot
+     */
+    public void start() {
+        for (int i = 0; i < slots; i++)
+            workers.execute(this::work);
+    }
+
+    /**
+     * Getter for the number of builds the agent reported
+     * @return completed builds
+     */
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * Stops leasing builds, running builds are abandoned and leased again by other agents
+     */
+    @Override
+    public void close() {
+        running = false;
+        workers.shutdownNow();
+        heartbeats.shutdownNow();
+        try {
+            transport.close();
+        } catch (IOException e) {
+            log.info("Could not close transport: " + e);
+        }
+    }
+
+    private void work() {
+        while (running && !Thread.currentThread().isInterrupted()) {
+            JSONObject job;
+            try {
+                job = transport.lease(agentId);
+            } catch (IOException | RuntimeException e) {
+                if (!running)
+                    return;
+                log.info("Could not lease a build: " + e);
+                if (!sleep(heartbeatMillis))
+                    return;
+                continue;
+            }
+            if (job != null && running)
+                execute(job);
+        }
+    }
+
+    /**
+     * Runs a leased build, then sends the rest of its log and its result
+     * @param job leased build
+     */
+    private void execute(JSONObject job) {
+        String leaseId = job.getString("lease");
+        BuildData buildData = new BuildData(job.getString("repo"), new Date(job.getLong("created")),
+                job.getString("sha"));
+        String branch = job.optString("branch", "");
+        buildData.setBranch(branch);
+        String buildId = buildData.getBuildId();
+        log.info("Leased build " + buildId);
+        Shipment shipment = new Shipment(leaseId, buildId);
+        ScheduledFuture<?> beat = heartbeats.scheduleWithFixedDelay(shipment::ship,
+                heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+        MessageBuilder<String> msg = MessageBuilder.withPayload("")
+                .setHeader("buildData", buildData)
+                .setHeader("branch", branch);
+        if (job.has("traceId"))
+            msg.setHeader(PipelineMetrics.TRACE_HEADER, job.getString("traceId"));
+        String url = "";
+        try {
+            Message<String> built = runner.apply(msg.build());
+            Object builtUrl = built.getHeaders().get("url");
+            url = builtUrl == null ? "" : builtUrl.toString();
+        } catch (RuntimeException e) {
+            log.error("Build " + buildId + " failed", e);
+            buildData.setBuildStatus(BuildStatus.error);
+            buildData.setMessage(e.getClass().getSimpleName() + ". See log");
+        } finally {
+            beat.cancel(false);
+        }
+        shipment.ship();
+        logStore.delete(buildId);
+        if (shipment.lost)
+            return;
+        BuildStatus status = buildData.getBuildStatus() == null ? BuildStatus.error : buildData.getBuildStatus();
+        JSONObject result = new JSONObject()
+                .put("status", status.name())
+                .put("message", buildData.getMessage() == null ? "" : buildData.getMessage())
+                .put("url", url)
+                .put("timings", new JSONObject(buildData.getTimings()));
+        for (int attempt = 0; attempt < 3 && running; attempt++) {
+            try {
+                if (transport.complete(leaseId, result))
+                    completed.incrementAndGet();
+                else
+                    log.info("Lease of build " + buildId + " was lost, its result is dropped");
+                return;
+            } catch (IOException | RuntimeException e) {
+                log.info("Could not report build " + buildId + ": " + e);
+                if (!sleep(heartbeatMillis))
+                    return;
+            }
+        }
+    }
+
+    private static boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Sends the log of a running build with the heartbeats, from the byte offset the last heartbeat ended at
+     */
+    private class Shipment {
+        private final String leaseId;
+        private final String buildId;
+        private long offset;
+        private volatile boolean lost;
+
+        Shipment(String leaseId, String buildId) {
+            this.leaseId = leaseId;
+            this.buildId = buildId;
+        }
+
+        /**
+         * Sends all new lines of the log, at least one heartbeat
+         */
+        synchronized void ship() {
+            while (!lost) {
+                byte[] chunk;
+                try {
+                    chunk = logStore.readFrom(buildId, offset, MAX_CHUNK);
+                } catch (IOException e) {
+                    chunk = new byte[0];
+                }
+                JSONObject answer;
+                try {
+                    answer = transport.heartbeat(leaseId, new String(chunk, StandardCharsets.UTF_8));
+                } catch (IOException | RuntimeException e) {
+                    log.info("Heartbeat of build " + buildId + " failed: " + e);
+                    return;
+                }
+                offset += chunk.length;
+                if (answer.optBoolean("lost")) {
+                    log.info("Lease of build " + buildId + " was lost, cancelling it");
+                    lost = true;
+                    processes.cancel(buildId);
+                } else if (answer.optBoolean("cancel")) {
+                    processes.cancel(buildId);
+                }
+                if (chunk.length == 0)
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Starts an agent that builds in the working directory. Like on the server the builds check out from a mirror
+     * cache, reuse results of identical trees and run gradle with a shared user home and daemons, configured with
+     * the ci.* properties of application.properties given as system properties, e.g. -Dci.mirror.maxBytes=...
+     * @param args server url, optional agent id (pid@host by default), optional number of slots (1 by default)
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("usage: BuildAgent server-url [agent-id] [slots]");
+            System.exit(2);
+        }
+        String agentId = args.length > 1 ? args[1] : ManagementFactory.getRuntimeMXBean().getName();
+        int slots = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        String token = System.getenv("CI_AGENT_TOKEN");
+        BuildLogStore logStore = new BuildLogStore(new File("agent-logs"), 10000, false);
+        BuildProcesses processes = new BuildProcesses(
+                Long.parseLong(setting("ci.build.timeoutMinutes", "60")),
+                Long.parseLong(setting("ci.build.idleTimeoutMinutes", "15")));
+        WorkspaceReaper reaper = new WorkspaceReaper(
+                Integer.parseInt(setting("ci.reaper.threads", "2")),
+                Long.parseLong(setting("ci.reaper.maxPendingBytes", "21474836480")),
+                Long.parseLong(setting("ci.reaper.workspaceBytes", "1073741824")));
+        RepoMirrorCache mirrorCache = new RepoMirrorCache(setting("ci.mirror.folder", "./mirrors"),
+                Long.parseLong(setting("ci.mirror.maxBytes", "10737418240")));
+        mirrorCache.setReaper(reaper);
+        BuildPipeline pipeline = new BuildPipeline(setting("ci.build.specFolder", "./build-specs"),
+                Boolean.parseBoolean(setting("ci.build.scan", "true")),
+                Integer.parseInt(setting("ci.build.stageCacheSize", "1000")));
+        pipeline.setGradleSettings(new GradleSettings(setting("ci.gradle.userHome", "./gradle-home"),
+                Boolean.parseBoolean(setting("ci.gradle.daemon", "true")),
+                setting("ci.gradle.jvmArgs", ""),
+                Long.parseLong(setting("ci.gradle.daemonIdleMinutes", "30"))));
+        Builder builder = new Builder();
+        builder.setLogStore(logStore);
+        builder.setProcesses(processes);
+        builder.setReaper(reaper);
+        builder.setMirrorCache(mirrorCache);
+        builder.setPipeline(pipeline);
+        builder.setShallowClone(new ShallowClone(Boolean.parseBoolean(setting("ci.clone.shallow", "false")),
+                setting("ci.clone.git", "git")));
+        builder.setResultCache(new BuildResultCache(setting("ci.resultCache.folder", "./result-cache"),
+                Integer.parseInt(setting("ci.resultCache.maxEntries", "10000"))));
+        BuildAgent agent = new BuildAgent(agentId, new HttpAgentTransport(args[0], token), slots, 2000,
+                logStore, processes, builder::build);
+        Runtime.getRuntime().addShutdownHook(new Thread(agent::close));
+        agent.start();
+    }
+
+    private static String setting(String name, String defaultValue) {
+        return System.getProperty(name, defaultValue);
+    }
+}
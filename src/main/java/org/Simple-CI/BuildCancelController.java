@@ -0,0 +1,48 @@
+package org.Simple-CI;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+
+import java.util.List;
+
+/**
+ * This is a spring controller class responsible for cancelling builds.
+ */
+@Controller
+public class BuildCancelController {
+
+    @Autowired
+    private BuildQueue buildQueue;
+
+    @Autowired
+    private BuildProcesses processes;
+
+    @Autowired
+    @Qualifier("gitHubNotifyChannel")
+    private MessageChannel gitHubNotifyChannel;
+
+    /**
+     * This function is responsible for handling requests sent to /builds/cancel url of the webserver.
+     * A queued build is removed from the queue and reported as error right away, a running build is killed
+     * and reported as error by its worker, which then takes the next build.
+     */
+    @PostMapping("/builds/cancel")
+    public ResponseEntity<String> cancel(@RequestParam(name = "id") String id) {
+        List<Message<?>> finals = buildQueue.cancel(id);
+        if (!finals.isEmpty()) {
+            for (Message<?> msg : finals)
+                gitHubNotifyChannel.send(msg);
+            return ResponseEntity.ok("cancelled queued build " + id);
+        }
+        if (processes.cancel(id))
+            return ResponseEntity.ok("cancelled running build " + id);
+        return ResponseEntity.status(HttpStatus.NOT_FOUND).body("no queued or running build " + id);
+    }
+}
@@ -0,0 +1,445 @@
+package org.Simple-CI;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Hands builds to remote {@link BuildAgent}s when ci.agents.enabled is set. The server keeps queueing and
+ * bookkeeping: the {@link Builder} of a build worker calls {@link #run(BuildData, String, String)}, which waits until
+ * an agent leased the build and reported its result, so the {@link BuildQueue} still decides which build runs next
+ * and ci.build.workers should be the number of builds all agents run at the same time.
+ * Agents stream the output of a build into its log with their heartbeats. A lease without a heartbeat for
+ * leaseTimeoutMillis is lost, its build is leased again up to maxAttempts times. Builds are registered in
+ * {@link BuildProcesses} while they wait for an agent and while they run, so they can be cancelled and time out
+ * like local builds, the cancel reaches the agent with its next heartbeat.
+ */
+@Component
+public class BuildCoordinator {
+
+    private static final long CHECK_MILLIS = 100;
+
+    private final Logger log = LoggerFactory.getLogger(BuildCoordinator.class);
+    private final boolean enabled;
+    private final byte[] token;
+    private final long leaseTimeoutMillis;
+    private final long leaseWaitMillis;
+    private final int maxAttempts;
+    private final Deque<Job> pending = new ArrayDeque<>();
+    private final Map<String, Job> leased = new HashMap<>();
+    private final Map<String, Long> agents = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "agent-lease-reaper");
+        t.setDaemon(true);
+        return t;
+    });
+
+    @Autowired(required = false)
+    private BuildProcesses processes;
+
+    @Autowired(required = false)
+    private PipelineMetrics metrics;
+
+    private BuildLogStore logStore;
+
+    /**
+     * A build that waits for an agent or runs on one
+     */
+    private static class Job {
+        final BuildData buildData;
+        final String branch;
+        final String traceId;
+        final BuildProcesses.Handle handle;
+        final BuildLogStore.LogWriter buildLog;
+        final CompletableFuture<JSONObject> result = new CompletableFuture<>();
+        String leaseId;
+        String agentId;
+        long lastHeartbeat;
+        int attempts;
+
+        Job(BuildData buildData, String branch, String traceId, BuildProcesses.Handle handle,
+            BuildLogStore.LogWriter buildLog) {
+            this.buildData = buildData;
+            this.branch = branch;
+            this.traceId = traceId;
+            this.handle = handle;
+            this.buildLog = buildLog;
+        }
+    }
+
+    /**
+     * Create the coordinator and start expiring leases.
+     * @param enabled run builds on agents instead of the build workers of the server
+     * @param token secret the agents send with every request, empty accepts every agent
+     * @param leaseTimeoutMillis time without a heartbeat after which a lease is lost
+     * @param leaseWaitMillis time a lease request waits for a build before it is answered with none
+     * @param maxAttempts number of times a build is leased before it fails because its agents were lost
+     */
+    @Autowired
+    public BuildCoordinator(@Value("${ci.agents.enabled:false}") boolean enabled,
+                            @Value("${ci.agents.token:}") String token,
+                            @Value("${ci.agents.leaseTimeoutMillis:30000}") long leaseTimeoutMillis,
+                            @Value("${ci.agents.leaseWaitMillis:10000}") long leaseWaitMillis,
+                            @Value("${ci.agents.maxAttempts:3}") int maxAttempts) {
+        this.enabled = enabled;
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+        this.leaseTimeoutMillis = leaseTimeoutMillis;
+        this.leaseWaitMillis = leaseWaitMillis;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        long checkMillis = Math.max(10, leaseTimeoutMillis / 4);
+        reaper.scheduleWithFixedDelay(this::expireLeases, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+        if (enabled && token.isEmpty())
+            log.warn("ci.agents.token is empty, every client can lease builds and report their results");
+    }
+
+    /**
+     * Checks if builds run on agents
+     * @return true if builds run on agents
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Checks the secret an agent sent
+     * @param agentToken secret sent by the agent, may be null
+     * @return true if no token is configured or the secret matches it
+     */
+    public boolean isAuthorized(String agentToken) {
+        if (token.length == 0)
+            return true;
+        return agentToken != null && MessageDigest.isEqual(token, agentToken.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Getter for the time a lease request waits for a build
+     * @return milliseconds
+     */
+    public long getLeaseWaitMillis() {
+        return leaseWaitMillis;
+    }
+
+    /**
+     * Runs a build on an agent, waits until the build is done. Sets the start, finish, status, message and timings
+     * of the build, its log is streamed into the log store.
+     * @param buildData build to run
+     * @param branch branch of the build
+     * @param traceId trace id of the build, may be null
+     * @return gradle scan url if available
+     */
+    public String run(BuildData buildData, String branch, String traceId) {
+        final BuildLogStore logStore = getLogStore();
+        final String buildId = buildData.getBuildId();
+        BuildProcesses.Handle handle = getProcesses().register(buildId);
+        BuildLogStore.LogWriter buildLog = null;
+        JSONObject result;
+        try {
+            buildLog = logStore.openWriter(buildId);
+            buildLog.append("Waiting for a build agent");
+            Job job = new Job(buildData, branch, traceId, handle, buildLog);
+            synchronized (this) {
+                pending.add(job);
+                notifyAll();
+            }
+            result = await(job);
+        } catch (IOException e) {
+            log.error("Could not open the log of " + buildId, e);
+            result = failure(e.getClass().getSimpleName() + ". See log");
+        } catch (InterruptedException e) {
+            result = failure("InterruptedException. See log");
+            Thread.currentThread().interrupt();
+        }
+        handle.close();
+        if (buildData.getDateStart() == null)
+            buildData.setDateStart(new Date());
+        buildData.setBuildStatus(statusOf(result.optString("status")));
+        buildData.setMessage(result.optString("message", ""));
+        JSONObject timings = result.optJSONObject("timings");
+        if (timings != null) {
+            for (Iterator<?> it = timings.keys(); it.hasNext(); ) {
+                String phase = (String) it.next();
+                buildData.setTiming(phase, timings.optLong(phase));
+            }
+        }
+        buildData.setDateFinish(new Date());
+        if (buildLog != null) {
+            try {
+                buildLog.close();
+            } catch (IOException e) {
+                log.error("Could not close build log", e);
+            }
+        }
+        buildData.setBuildLogLoader(() -> logStore.read(buildId));
+        return result.optString("url", "");
+    }
+
+    /**
+     * Waits for the result of a job. A job that is cancelled before an agent leased it fails right away.
+     */
+    private JSONObject await(Job job) throws InterruptedException {
+        try {
+            while (true) {
+                try {
+                    return job.result.get(CHECK_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    if (job.handle.getReason() != null && withdraw(job)) {
+                        job.buildLog.append(job.handle.getReason());
+                        return failure(job.handle.getReason());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                pending.remove(job);
+                if (job.leaseId != null)
+                    leased.remove(job.leaseId);
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            return failure(e.getCause().toString());
+        }
+    }
+
+    /**
+     * Removes a job that waits for an agent, a leased job is cancelled by its agent
+     * @return true if the job waited for an agent
+     */
+    private synchronized boolean withdraw(Job job) {
+        return pending.remove(job);
+    }
+
+    /**
+     * Leases the next waiting build to an agent, waits for one if none is waiting.
+     * @param agentId id of the agent
+     * @param waitMillis maximum time to wait for a build
+     * @return job of the agent, {"lease", "repo", "sha", "created", "branch", "traceId"}, null if no build waits
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized JSONObject lease(String agentId, long waitMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + waitMillis;
+        while (true) {
+            long now = System.currentTimeMillis();
+            agents.put(agentId, now);
+            Job job = pending.poll();
+            if (job != null && job.handle.getReason() != null) {
+                // cancelled while it waited
+                job.buildLog.append(job.handle.getReason());
+                job.result.complete(failure(job.handle.getReason()));
+            } else if (job != null) {
+                job.leaseId = UUID.randomUUID().toString();
+                job.agentId = agentId;
+                job.lastHeartbeat = now;
+                job.attempts++;
+                leased.put(job.leaseId, job);
+                if (job.buildData.getDateStart() == null)
+                    job.buildData.setDateStart(new Date(now));
+                job.buildLog.append("Leased by build agent " + agentId +
+                        (job.attempts > 1 ? ", attempt " + job.attempts : ""));
+                getMetrics().increment("ci.agents.leases");
+                return new JSONObject()
+                        .put("lease", job.leaseId)
+                        .put("repo", job.buildData.getRepoFullName())
+                        .put("sha", job.buildData.getSha())
+                        .put("created", job.buildData.getDateCreated().getTime())
+                        .put("branch", job.branch)
+                        .put("traceId", job.traceId);
+            } else if (now >= deadline) {
+                return null;
+            } else {
+                wait(deadline - now);
+            }
+        }
+    }
+
+    /**
+     * Renews a lease and appends the new output of its build to the log
+     * @param leaseId lease of the build
+     * @param output new lines of the log, may be empty
+     * @return {"cancel": true} if the build must be cancelled, {"lost": true} if the lease is lost
+     */
+    public JSONObject heartbeat(String leaseId, String output) {
+        Job job;
+        synchronized (this) {
+            job = leased.get(leaseId);
+            if (job == null)
+                return new JSONObject().put("lost", true);
+            job.lastHeartbeat = System.currentTimeMillis();
+            agents.put(job.agentId, job.lastHeartbeat);
+        }
+        if (output != null && !output.isEmpty()) {
+            String[] lines = output.split("\n", -1);
+            // the output ends with a line break, blank lines before it are part of the log
+            int count = lines[lines.length - 1].isEmpty() ? lines.length - 1 : lines.length;
+            for (int i = 0; i < count; i++)
+                job.buildLog.append(lines[i]);
+            job.handle.touch();
+        }
+        return new JSONObject().put("cancel", job.handle.getReason() != null);
+    }
+
+    /**
+     * Reports the result of a build, its output is sent with the heartbeats before
+     * @param leaseId lease of the build
+     * @param result {"status", "message", "url", "timings"}
+     * @return false if the lease is lost, the build is leased again or has failed meanwhile
+     */
+    public boolean complete(String leaseId, JSONObject result) {
+        Job job;
+        synchronized (this) {
+            job = leased.remove(leaseId);
+        }
+        if (job == null)
+            return false;
+        return job.result.complete(result);
+    }
+
+    /**
+     * Leases of agents that sent no heartbeat for leaseTimeoutMillis are lost. Their builds wait for an agent again,
+     * first in line, unless they were cancelled or leased maxAttempts times.
+     */
+    private void expireLeases() {
+        List<Job> lost = new ArrayList<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            for (Iterator<Job> it = leased.values().iterator(); it.hasNext(); ) {
+                Job job = it.next();
+                if (now - job.lastHeartbeat > leaseTimeoutMillis) {
+                    it.remove();
+                    lost.add(job);
+                }
+            }
+            agents.values().removeIf(lastSeen -> now - lastSeen > leaseTimeoutMillis + leaseWaitMillis);
+            for (int i = lost.size() - 1; i >= 0; i--) {
+                Job job = lost.get(i);
+                String why = "Build agent " + job.agentId + " sent no heartbeat for " + leaseTimeoutMillis + " ms";
+                log.warn(why + ", lost build " + job.buildData.getBuildId());
+                job.buildLog.append(why);
+                getMetrics().increment("ci.agents.lost");
+                if (job.handle.getReason() != null) {
+                    job.result.complete(failure(job.handle.getReason()));
+                } else if (job.attempts >= maxAttempts) {
+                    job.result.complete(failure("Build agent lost"));
+                } else {
+                    job.leaseId = null;
+                    job.buildLog.append("Waiting for a build agent");
+                    pending.addFirst(job);
+                }
+            }
+            if (!lost.isEmpty())
+                notifyAll();
+        }
+    }
+
+    private static BuildStatus statusOf(String name) {
+        try {
+            return BuildStatus.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            return BuildStatus.error;
+        }
+    }
+
+    private static JSONObject failure(String message) {
+        return new JSONObject()
+                .put("status", BuildStatus.error.name())
+                .put("message", message);
+    }
+
+    /**
+     * Getter for the number of builds waiting for an agent
+     * @return waiting builds
+     */
+    public synchronized int getWaiting() {
+        return pending.size();
+    }
+
+    /**
+     * Getter for the number of builds running on agents
+     * @return leased builds
+     */
+    public synchronized int getLeased() {
+        return leased.size();
+    }
+
+    /**
+     * Getter for the number of agents that asked for builds or sent heartbeats recently
+     * @return connected agents
+     */
+    public int getAgentCount() {
+        return agents.size();
+    }
+
+    /**
+     * Getter for the registry of running builds, a private one with the default timeouts if none is wired
+     * @return running builds
+     */
+    synchronized BuildProcesses getProcesses() {
+        if (processes == null)
+            processes = new BuildProcesses(60, 15);
+        return processes;
+    }
+
+    /**
+     * Setter for the registry of running builds
+     * @param processes running builds
+     */
+    void setProcesses(BuildProcesses processes) {
+        this.processes = processes;
+    }
+
+    /**
+     * Getter for the registry the leases are counted in, a private one if none is wired
+     * @return pipeline metrics
+     */
+    synchronized PipelineMetrics getMetrics() {
+        if (metrics == null)
+            metrics = new PipelineMetrics();
+        return metrics;
+    }
+
+    /**
+     * Getter for the store the build logs are streamed into, the one of the build database by default
+     * @return build log store
+     */
+    synchronized BuildLogStore getLogStore() {
+        if (logStore == null)
+            logStore = CiApplication.CIDB.getLogStore();
+        return logStore;
+    }
+
+    /**
+     * Setter for the store the build logs are streamed into
+     * @param logStore build log store
+     */
+    void setLogStore(BuildLogStore logStore) {
+        this.logStore = logStore;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        reaper.shutdownNow();
+    }
+}
@@ -6,23 +6,30 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.function.Supplier;
 
 /**
  * BuildData object contains all information about at build
  */
 public class BuildData {
-    private final Logger logger = LoggerFactory.getLogger(BuildData.class);
+    private static final Logger logger = LoggerFactory.getLogger(BuildData.class);
     private final String repoFullName;
     private final Date dateCreated;
     private Date dateStart;
     private Date dateFinish;
     private final String sha;
+    private String branch;
     private ArrayList<String> buildLog;
+    private Supplier<List<String>> buildLogLoader;
     private BuildStatus buildStatus;
     private String message;
+    private final Map<String, Long> timings = new LinkedHashMap<>();
 
     /**
      * Create a build with the basic data that should always be available.
@@ -33,11 +40,27 @@ public class BuildData {
     public BuildData(String repoFullName, Date dateCreated, String sha) {
         this.repoFullName = repoFullName;
         this.dateCreated = dateCreated;
-        if (!sha.matches("^[a-z0-9]{40}$"))
+        if (!isValidSha(sha))
             logger.error("sha string:[" + sha + "] does not match regex ^[a-z0-9]{40}$");
         this.sha = sha;
     }
 
+    /**
+     * Checks sha against ^[a-z0-9]{40}$ without a regex, builds are created in bulk when the database starts.
+     * @param sha the sha1 hash to check
+     * @return true if sha matches
+     */
+    private static boolean isValidSha(String sha) {
+        if (sha.length() != 40)
+            return false;
+        for (int i = 0; i < 40; i++) {
+            char c = sha.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')))
+                return false;
+        }
+        return true;
+    }
+
     /**
      * Getter for GitHub repo name in the form of "xmas92/test-project"
      * @return GitHub repo name
@@ -46,6 +69,14 @@ public class BuildData {
         return repoFullName;
     }
 
+    /**
+     * Getter for the build id. Combines sha and dateCreated so every build of a commit gets its own id.
+     * @return build id
+     */
+    public String getBuildId() {
+        return sha + "-" + dateCreated.getTime();
+    }
+
     /**
      * Getter for date and time the build started
      * @return start date
@@ -102,11 +133,30 @@ public class BuildData {
         return sha;
     }
 
+    /**
+     * Getter for the branch the commit was pushed to, or the head branch of the pull request
+     * @return branch name, null if unknown
+     */
+    public String getBranch() {
+        return branch;
+    }
+
+    /**
+     * Setter for the branch the commit was pushed to
+     * @param branch branch name
+     */
+    public void setBranch(String branch) {
+        this.branch = branch;
+    }
+
     /**
      * Getter for the build log. Every entry is one output line.
+     * Loads the log if it is not kept in memory.
      * @return build log
      */
     public List<String> getBuildLog() {
+        if (buildLog == null && buildLogLoader != null)
+            return buildLogLoader.get();
         return buildLog;
     }
 
@@ -116,6 +166,24 @@ public class BuildData {
      */
     public void setBuildLog(List<String> buildLog) {
         this.buildLog = new ArrayList<String>(buildLog);
+        this.buildLogLoader = null;
+    }
+
+    /**
+     * Checks if the build log is kept in memory or loaded on demand
+     * @return true if the build log is in memory
+     */
+    public boolean isBuildLogInMemory() {
+        return buildLog != null;
+    }
+
+    /**
+     * Drops the build log from memory, from now on it is loaded on demand by the loader.
+     * @param buildLogLoader loads the build log when it is needed
+     */
+    public void setBuildLogLoader(Supplier<List<String>> buildLogLoader) {
+        this.buildLog = null;
+        this.buildLogLoader = buildLogLoader;
     }
 
     /**
@@ -150,6 +218,23 @@ public class BuildData {
         this.message = message;
     }
 
+    /**
+     * Getter for the time spent in the phases of the build, e.g. clone, configure and execution
+     * @return milliseconds per phase, in the order the phases were recorded
+     */
+    public Map<String, Long> getTimings() {
+        return Collections.unmodifiableMap(timings);
+    }
+
+    /**
+     * Setter for the time spent in a phase of the build
+     * @param phase name of the phase
+     * @param millis time spent in milliseconds
+     */
+    public void setTiming(String phase, long millis) {
+        timings.put(phase, millis);
+    }
+
     /**
      * Unique hashCode based on sha and dateCreated
      * @return Unique hashCode
@@ -161,6 +246,7 @@ public class BuildData {
 
     /**
      * Checks if obj and this BuildData have the same logical state.
+     * The build logs are not compared when one of them is loaded on demand.
      * @param obj other object
      * @return true if same logical state, false otherwise
      */
@@ -171,17 +257,20 @@ public class BuildData {
         BuildData other = (BuildData)obj;
         if (    this.repoFullName.equals(other.repoFullName) &&
                 this.sha.equals(other.sha) &&
+                Objects.equals(this.branch, other.branch) &&
                 this.dateCreated.equals(other.dateCreated) &&
                 ((this.dateStart == null && other.dateStart == null) ||
                         (this.dateStart != null && this.dateStart.equals(other.dateStart))) &&
                 ((this.dateFinish == null && other.dateFinish == null) ||
                         (this.dateFinish != null && this.dateFinish.equals(other.dateFinish))) &&
-                ((this.buildLog == null && other.buildLog == null) ||
-                        (this.buildLog != null && this.buildLog.equals(other.buildLog))) &&
+                // a log that is loaded on demand is not read for this, stored logs do not change
+                (this.buildLogLoader != null || other.buildLogLoader != null ||
+                        Objects.equals(this.buildLog, other.buildLog)) &&
                 ((this.buildStatus == null && other.buildStatus == null) ||
                         (this.buildStatus != null && this.buildStatus.equals(other.buildStatus))) &&
                 ((this.message == null && other.message == null) ||
-                        (this.message != null && this.message.equals(other.message)))
+                        (this.message != null && this.message.equals(other.message))) &&
+                this.timings.equals(other.timings)
         )
             return true;
         return false;
@@ -193,15 +282,19 @@ public class BuildData {
      */
     @Override
     public String toString() {
-        return new JSONObject()
+        JSONObject json = new JSONObject()
                 .put("repoFullName", repoFullName)
                 .put("dateCreated", dateCreated != null ? dateCreated.toString() : null)
                 .put("dateStart", dateStart != null ? dateStart.toString() : null)
                 .put("dateFinish", dateFinish != null ? dateFinish.toString() : null)
                 .put("sha", sha)
-                .put("buildLog", new JSONArray(buildLog))
+                .put("buildLog", new JSONArray(getBuildLog()))
                 .put("buildStatus", buildStatus != null ? buildStatus.name() : null)
-                .put("message", message)
-                .toString();
+                .put("message", message);
+        if (branch != null)
+            json.put("branch", branch);
+        if (!timings.isEmpty())
+            json.put("timings", new JSONObject(timings));
+        return json.toString();
     }
 }
@@ -0,0 +1,306 @@
+package org.Simple-CI;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the build database. Every record is framed as its length, the CRC32 of its payload and
+ * the payload, so a record torn by a crash is recognized and cut off when the journal is opened again.
+ * Appends are durable once {@link #sync(long)} returned. Writers append under a short lock and then sync outside
+ * of it, the first writer to sync forces everything appended so far, so concurrent writers share one fsync
+ * (group commit) instead of paying one each.
+ * A record that could not be written completely is cut off again, if that fails too the journal rejects further
+ * records, so no record is ever appended behind a partial one.
+ */
+public class BuildJournal implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(BuildJournal.class);
+    private static final int MAGIC = 0x53434a31;
+    private static final int VERSION = 1;
+    static final int HEADER_BYTES = 8;
+    private static final int FRAME_BYTES = 8;
+    private static final int MAX_RECORD_BYTES = 16 << 20;
+
+    private final File file;
+    private final FileChannel channel;
+    private final Object syncLock = new Object();
+    private long appended;
+    private boolean failed;
+    private volatile long synced;
+    private volatile long syncs;
+
+    /**
+     * Journal appending to a channel that is opened already, for tests
+     * @param file journal file
+     * @param channel channel appending to the file
+     */
+    BuildJournal(File file, FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+    }
+
+    /**
+     * Opens a journal, creating it if it does not exist, and replays its records from an offset.
+     * A torn or corrupt record ends the journal, it and everything after it is cut off.
+     * @param file journal file
+     * @param from offset of the first record to replay, records before it are known, 0 to replay all
+     * @param replay receives the payload of every record from the offset on
+     * @return the open journal, records are appended at its end
+     * @throws IOException if the journal could not be opened or is not a journal
+     */
+    public static BuildJournal open(File file, long from, Consumer<byte[]> replay) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() < HEADER_BYTES) {
+                // new, or torn while its header was written
+                channel.truncate(0);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION);
+                header.flip();
+                while (header.hasRemaining())
+                    channel.write(header, header.position());
+                channel.force(true);
+                syncFolder(file.getAbsoluteFile().getParentFile());
+            } else {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                readFully(channel, header, 0);
+                if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+                    throw new IOException("Not a build journal: " + file);
+            }
+            long end = replay(channel, Math.max(HEADER_BYTES, from), replay);
+            if (end < channel.size()) {
+                log.warn("Cutting off " + (channel.size() - end) + " bytes of torn or corrupt records at the end of "
+                        + file);
+                channel.truncate(end);
+                channel.force(true);
+            }
+        }
+        // appends go to the end of the file, also when another database has the same folder open
+        return new BuildJournal(file, FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND));
+    }
+
+    /**
+     * Replays the records from an offset
+     * @return offset after the last valid record
+     */
+    private static long replay(FileChannel channel, long from, Consumer<byte[]> replay) throws IOException {
+        long size = channel.size();
+        long offset = from;
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_BYTES);
+        CRC32 crc = new CRC32();
+        while (size - offset >= FRAME_BYTES) {
+            frame.clear();
+            readFully(channel, frame, offset);
+            int length = frame.getInt(0);
+            int checksum = frame.getInt(4);
+            if (length < 0 || length > MAX_RECORD_BYTES || size - offset - FRAME_BYTES < length)
+                break;
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(channel, payload, offset + FRAME_BYTES);
+            crc.reset();
+            crc.update(payload.array(), 0, length);
+            if ((int) crc.getValue() != checksum)
+                break;
+            replay.accept(payload.array());
+            offset += FRAME_BYTES + length;
+        }
+        return offset;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0)
+                throw new IOException("Unexpected end of journal");
+        }
+    }
+
+    private static ByteBuffer frame(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_BYTES + payload.length);
+        frame.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Appends a record, it is durable once {@link #sync(long)} returned for the returned ticket
+     * @param payload record
+     * @return ticket of the record
+     * @throws IOException if the record could not be written, or an earlier record could not be cut off
+     */
+    public long append(byte[] payload) throws IOException {
+        if (payload.length > MAX_RECORD_BYTES)
+            throw new IOException("Record of " + payload.length + " bytes is too large for the journal");
+        ByteBuffer frame = frame(payload);
+        synchronized (this) {
+            if (failed)
+                throw new IOException("Journal failed, it accepts no more records: " + file);
+            long end = channel.size();
+            try {
+                while (frame.hasRemaining())
+                    channel.write(frame);
+            } catch (IOException e) {
+                cutOff(end, e);
+                throw e;
+            }
+            return ++appended;
+        }
+    }
+
+    /**
+     * Cuts off a record that was written partly, so that the next record is not appended behind it.
+     * Called with the journal locked.
+     * @param end size of the journal before the record
+     * @param cause why the record could not be written
+     */
+    private void cutOff(long end, IOException cause) {
+        try {
+            if (channel.size() > end)
+                channel.truncate(end);
+        } catch (IOException e) {
+            failed = true;
+            cause.addSuppressed(e);
+            log.error("Could not cut off a partly written record, the journal accepts no more records: " + file, e);
+        }
+    }
+
+    /**
+     * Waits until a record is on the disk. If no other writer is forcing the journal, this one forces all records
+     * appended so far, else it waits for that writer and only forces again if its record came too late.
+     * @param ticket ticket of the record
+     * @throws IOException if the journal could not be forced
+     */
+    public void sync(long ticket) throws IOException {
+        if (synced >= ticket)
+            return;
+        synchronized (syncLock) {
+            if (synced >= ticket)
+                return;
+            long upTo;
+            synchronized (this) {
+                upTo = appended;
+            }
+            channel.force(false);
+            syncs++;
+            synced = upTo;
+        }
+    }
+
+    /**
+     * Waits until every appended record is on the disk
+     * @throws IOException if the journal could not be forced
+     */
+    public void syncAll() throws IOException {
+        long ticket;
+        synchronized (this) {
+            ticket = appended;
+        }
+        sync(ticket);
+    }
+
+    /**
+     * Getter for the size of the journal
+     * @return bytes, including records that are not on the disk yet
+     * @throws IOException if the size could not be read
+     */
+    public synchronized long size() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * Getter for the number of times the journal was forced to the disk
+     * @return fsyncs since the journal was opened
+     */
+    public long getSyncs() {
+        return syncs;
+    }
+
+    /**
+     * Getter for the journal file
+     * @return file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Writes a complete journal and forces it to the disk, used to compact one. The file should have a temporary
+     * name, once more records are appended it is moved into place with {@link #moveTo(File)}, so a crash leaves
+     * either no journal or the whole journal behind.
+     * @param file file to create
+     * @param payloads records
+     * @throws IOException if the journal could not be written
+     */
+    public static void write(File file, List<byte[]> payloads) throws IOException {
+        try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            buffer.putInt(MAGIC).putInt(VERSION);
+            for (byte[] payload : payloads) {
+                ByteBuffer frame = frame(payload);
+                if (frame.remaining() > buffer.remaining()) {
+                    buffer.flip();
+                    while (buffer.hasRemaining())
+                        out.write(buffer);
+                    buffer.clear();
+                }
+                if (frame.remaining() > buffer.capacity()) {
+                    while (frame.hasRemaining())
+                        out.write(frame);
+                } else {
+                    buffer.put(frame);
+                }
+            }
+            buffer.flip();
+            while (buffer.hasRemaining())
+                out.write(buffer);
+            out.force(true);
+        }
+    }
+
+    /**
+     * Moves the journal to another name and forces the folder to the disk. Every record should be synced, the
+     * journal returned appends to the same file under its new name.
+     * @param target new journal file, replaced if it exists
+     * @return the journal under its new name, this journal must not be used anymore
+     * @throws IOException if the journal could not be moved
+     */
+    public synchronized BuildJournal moveTo(File target) throws IOException {
+        Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        syncFolder(target.getAbsoluteFile().getParentFile());
+        return new BuildJournal(target, channel);
+    }
+
+    /**
+     * Forces the entries of a folder to the disk, so created, moved and deleted files survive a crash.
+     * Not supported on every platform, where it does nothing.
+     * @param folder folder
+     */
+    static void syncFolder(File folder) {
+        try (FileChannel channel = FileChannel.open(folder.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // folders cannot be opened on Windows
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,166 @@
+package org.Simple-CI;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes builds as compact JSON for the API of {@link BuildsApiController}.
+ * The JSON is appended straight to one StringBuilder, no object tree is built per build as in
+ * {@link BuildData#toString()}. Fields without a value are left out, dates are milliseconds since the epoch.
+ */
+public class BuildJson {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private BuildJson() {
+    }
+
+    /**
+     * Writes a page of builds, {"builds": [...], "next": cursor}, without their logs
+     * @param page page of builds
+     * @return JSON
+     */
+    public static String page(BuildQuery.Page page) {
+        StringBuilder sb = new StringBuilder(64 + 256 * page.getBuilds().size());
+        sb.append("{\"builds\":[");
+        for (int i = 0; i < page.getBuilds().size(); i++) {
+            if (i > 0)
+                sb.append(',');
+            appendBuild(sb, page.getBuilds().get(i), false);
+        }
+        sb.append(']');
+        if (page.getNextCursor() != null) {
+            sb.append(",\"next\":");
+            appendString(sb, page.getNextCursor());
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * Writes one build
+     * @param build the build
+     * @param withLog include the log lines
+     * @return JSON
+     */
+    public static String build(BuildData build, boolean withLog) {
+        StringBuilder sb = new StringBuilder(256);
+        appendBuild(sb, build, withLog);
+        return sb.toString();
+    }
+
+    /**
+     * Writes a range of log lines, {"id": id, "from": first line, "total": lines, "running": bool, "lines": [...]}
+     * @param buildId id of the build
+     * @param from index of the first line of the range
+     * @param total number of lines in the log
+     * @param running true if the log is still growing
+     * @param lines lines of the range
+     * @return JSON
+     */
+    public static String logRange(String buildId, int from, long total, boolean running, List<String> lines) {
+        StringBuilder sb = new StringBuilder(128 + 80 * lines.size());
+        sb.append("{\"id\":");
+        appendString(sb, buildId);
+        sb.append(",\"from\":").append(from)
+                .append(",\"total\":").append(total)
+                .append(",\"running\":").append(running)
+                .append(",\"lines\":");
+        appendStrings(sb, lines);
+        return sb.append('}').toString();
+    }
+
+    private static void appendBuild(StringBuilder sb, BuildData build, boolean withLog) {
+        sb.append("{\"id\":");
+        appendString(sb, build.getBuildId());
+        sb.append(",\"repoFullName\":");
+        appendString(sb, build.getRepoFullName());
+        sb.append(",\"sha\":");
+        appendString(sb, build.getSha());
+        if (build.getBranch() != null) {
+            sb.append(",\"branch\":");
+            appendString(sb, build.getBranch());
+        }
+        appendDate(sb, "dateCreated", build.getDateCreated());
+        appendDate(sb, "dateStart", build.getDateStart());
+        appendDate(sb, "dateFinish", build.getDateFinish());
+        if (build.getBuildStatus() != null)
+            sb.append(",\"buildStatus\":\"").append(build.getBuildStatus().name()).append('"');
+        if (build.getMessage() != null) {
+            sb.append(",\"message\":");
+            appendString(sb, build.getMessage());
+        }
+        if (!build.getTimings().isEmpty()) {
+            sb.append(",\"timings\":{");
+            boolean first = true;
+            for (Map.Entry<String, Long> timing : build.getTimings().entrySet()) {
+                if (!first)
+                    sb.append(',');
+                first = false;
+                appendString(sb, timing.getKey());
+                sb.append(':').append(timing.getValue());
+            }
+            sb.append('}');
+        }
+        if (withLog) {
+            sb.append(",\"buildLog\":");
+            appendStrings(sb, build.getBuildLog());
+        }
+        sb.append('}');
+    }
+
+    private static void appendDate(StringBuilder sb, String name, Date date) {
+        if (date != null)
+            sb.append(",\"").append(name).append("\":").append(date.getTime());
+    }
+
+    private static void appendStrings(StringBuilder sb, List<String> values) {
+        sb.append('[');
+        for (int i = 0; values != null && i < values.size(); i++) {
+            if (i > 0)
+                sb.append(',');
+            appendString(sb, values.get(i));
+        }
+        sb.append(']');
+    }
+
+    /**
+     * Appends a JSON string literal
+     * @param sb where to append
+     * @param value the string, null is written as null
+     */
+    static void appendString(StringBuilder sb, String value) {
+        if (value == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029')
+                        sb.append("\\u").append(HEX[c >> 12 & 0xf]).append(HEX[c >> 8 & 0xf])
+                                .append(HEX[c >> 4 & 0xf]).append(HEX[c & 0xf]);
+                    else
+                        sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,149 @@
+package org.Simple-CI;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This is a spring controller class responsible for serving build logs while they are written.
+ * Clients address the log by byte offset, so they can resume where they stopped.
+ * Live tails run on a pool of ci.log.tailThreads threads. Sending to a client blocks while it does not read,
+ * a stalled client holds one tail thread and the other clients keep being served by the rest.
+ */
+@Controller
+public class BuildLogController {
+
+    private final Logger log = LoggerFactory.getLogger(BuildLogController.class);
+    private static final int MAX_CHUNK_BYTES = 1 << 20;
+    private static final long TAIL_PERIOD_MILLIS = 500;
+    private final ScheduledExecutorService tailer;
+
+    /**
+     * Create the controller
+     * @param tailThreads number of threads sending live tails to clients
+     */
+    public BuildLogController(@Value("${ci.log.tailThreads:8}") int tailThreads) {
+        this.tailer = Executors.newScheduledThreadPool(Math.max(1, tailThreads), r -> {
+            Thread t = new Thread(r, "build-log-tail");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * This function is responsible for handling requests sent to /builds/log url of the webserver.
+     * Returns the log of a build from a byte offset. Header X-Log-Offset holds the offset to ask for next
+     * and X-Build-Running tells if the log is still growing.
+     */
+    @GetMapping(value = "/builds/log", produces = MediaType.TEXT_PLAIN_VALUE)
+    public ResponseEntity<byte[]> log(@RequestParam(name = "id") String id,
+                                      @RequestParam(name = "offset", required = false, defaultValue = "0") long offset)
+            throws IOException {
+        BuildLogStore logStore = CiApplication.CIDB.getLogStore();
+        if (!isValidId(id) || !logStore.exists(id))
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        byte[] chunk = logStore.readFrom(id, Math.max(0, offset), MAX_CHUNK_BYTES);
+        return ResponseEntity.ok()
+                .header("X-Log-Offset", "" + (Math.max(0, offset) + chunk.length))
+                .header("X-Build-Running", "" + logStore.isRunning(id))
+                .body(chunk);
+    }
+
+    /**
+     * This function is responsible for handling requests sent to /builds/log/stream url of the webserver.
+     * Streams the log of a build as server sent events until the build is finished. The id of every event is
+     * the byte offset after it, so a reconnecting client resumes through the Last-Event-ID header.
+     */
+    @GetMapping(value = "/builds/log/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter stream(@RequestParam(name = "id") String id,
+                             @RequestParam(name = "offset", required = false, defaultValue = "0") long offset,
+                             @RequestHeader(name = "Last-Event-ID", required = false) String lastEventId) {
+        BuildLogStore logStore = CiApplication.CIDB.getLogStore();
+        SseEmitter emitter = new SseEmitter(0L);
+        if (!isValidId(id) || !logStore.exists(id)) {
+            emitter.complete();
+            return emitter;
+        }
+        long position = Math.max(0, offset);
+        if (lastEventId != null && lastEventId.matches("\\d+"))
+            position = Long.parseLong(lastEventId);
+        tail(logStore, id, position, emitter);
+        return emitter;
+    }
+
+    /**
+     * Sends the log of a build from a byte offset to an emitter until the build is finished, on the tail pool.
+     * @param logStore store holding the log
+     * @param id id of the build
+     * @param offset byte offset to start at
+     * @param emitter emitter of the client
+     */
+    void tail(BuildLogStore logStore, String id, long offset, SseEmitter emitter) {
+        AtomicLong position = new AtomicLong(offset);
+        AtomicReference<ScheduledFuture<?>> task = new AtomicReference<>();
+        Runnable tail = () -> {
+            try {
+                // read whether the build runs before reading, so the last lines are never missed
+                boolean running = logStore.isRunning(id);
+                byte[] chunk;
+                while ((chunk = logStore.readFrom(id, position.get(), MAX_CHUNK_BYTES)).length > 0) {
+                    position.addAndGet(chunk.length);
+                    SseEmitter.SseEventBuilder event = SseEmitter.event().id("" + position.get()).name("log");
+                    String[] lines = new String(chunk, StandardCharsets.UTF_8).split("\n", -1);
+                    // the chunk ends with a line break, blank lines before it are part of the log
+                    for (int i = 0; i < lines.length - 1; i++)
+                        event.data(lines[i]);
+                    emitter.send(event);
+                }
+                if (!running) {
+                    emitter.send(SseEmitter.event().id("" + position.get()).name("end").data(""));
+                    emitter.complete();
+                    cancel(task);
+                }
+            } catch (IOException | RuntimeException e) {
+                log.info("Stop tailing log of " + id + ": " + e);
+                emitter.completeWithError(e);
+                cancel(task);
+            }
+        };
+        emitter.onCompletion(() -> cancel(task));
+        emitter.onTimeout(() -> cancel(task));
+        task.set(tailer.scheduleWithFixedDelay(tail, 0, TAIL_PERIOD_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    private static void cancel(AtomicReference<ScheduledFuture<?>> task) {
+        ScheduledFuture<?> future = task.get();
+        if (future != null)
+            future.cancel(false);
+    }
+
+    /**
+     * Build ids are sha-time, anything else could escape the log folder.
+     */
+    static boolean isValidId(String id) {
+        return id.matches("^[a-z0-9]+-\\d+$");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        tailer.shutdownNow();
+    }
+}
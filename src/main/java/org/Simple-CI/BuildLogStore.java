@@ -0,0 +1,428 @@
+package org.Simple-CI;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Storage for build logs, one file per build in the logs folder of the database.
+ * Logs are kept out of the in-memory build history and loaded on demand through a cache
+ * that is bounded by the total number of cached lines.
+ * Running builds stream their output into the log file line by line, readers can tail it by byte offset.
+ * When a build is done its log is compressed into a {@link CompressedLog}, so months of history take a fraction
+ * of the disk and a range of lines is read without reading the whole log. Byte offsets stay the same.
+ */
+public class BuildLogStore {
+
+    private final Logger log = LoggerFactory.getLogger(BuildLogStore.class);
+    private final File folder;
+    private final long maxCachedLines;
+    private final boolean compress;
+    private final LinkedHashMap<String, List<String>> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedLines;
+    private final Set<String> running = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Appends the output of a running build to its log file as it is produced.
+     * Write errors are logged once and do not fail the build.
+     */
+    public class LogWriter implements Closeable {
+        private final String buildId;
+        private final BufferedWriter writer;
+        private IOException error;
+
+        private LogWriter(String buildId) throws IOException {
+            this.buildId = buildId;
+            this.writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(getLogFile(buildId), true), StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Appends one line to the log and makes it visible to readers, steps running in parallel may append
+         * @param line output line
+         */
+        public synchronized void append(String line) {
+            if (error != null)
+                return;
+            try {
+                writer.write(line);
+                writer.write('\n');
+                writer.flush();
+            } catch (IOException e) {
+                error = e;
+                log.error("Could not append to log of " + buildId + ": " + e);
+            }
+        }
+
+        /**
+         * Closes the log file, the build is no longer running
+         * @throws IOException if the log file could not be closed
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                writer.close();
+                if (compress && error == null)
+                    compress(buildId);
+            } finally {
+                running.remove(buildId);
+                evict(buildId);
+            }
+        }
+    }
+
+    /**
+     * Create a log store.
+     * @param folder folder where the log files live, created if missing
+     * @param maxCachedLines maximum number of log lines kept in memory
+     */
+    public BuildLogStore(File folder, long maxCachedLines) {
+        this(folder, maxCachedLines, true);
+    }
+
+    /**
+     * Create a log store.
+     * @param folder folder where the log files live, created if missing
+     * @param maxCachedLines maximum number of log lines kept in memory
+     * @param compress compress the logs of finished builds, plain text logs are read either way
+     */
+    public BuildLogStore(File folder, long maxCachedLines, boolean compress) {
+        this.folder = folder;
+        this.maxCachedLines = maxCachedLines;
+        this.compress = compress;
+        if (!folder.isDirectory())
+            folder.mkdirs();
+    }
+
+    /**
+     * Plain text log file of a build, the log of a running build or of a build stored before logs were compressed
+     * @param buildId id of the build
+     * @return log file, may not exist
+     */
+    public File getLogFile(String buildId) {
+        return new File(folder, buildId + ".log");
+    }
+
+    /**
+     * Compressed log file of a build
+     * @param buildId id of the build
+     * @return log file, may not exist
+     */
+    File getCompressedFile(String buildId) {
+        return new File(folder, buildId + ".logz");
+    }
+
+    /**
+     * Checks if the log of a build is stored
+     * @param buildId id of the build
+     * @return true if the log is stored
+     */
+    public boolean exists(String buildId) {
+        return getCompressedFile(buildId).isFile() || getLogFile(buildId).isFile();
+    }
+
+    /**
+     * Time the log of a build was last written
+     * @param buildId id of the build
+     * @return milliseconds since the epoch, 0 if no log is stored
+     */
+    public long lastModified(String buildId) {
+        File compressed = getCompressedFile(buildId);
+        return compressed.isFile() ? compressed.lastModified() : getLogFile(buildId).lastModified();
+    }
+
+    /**
+     * Size of the log of a build on disk
+     * @param buildId id of the build
+     * @return bytes stored, compressed or not
+     */
+    public long storedSize(String buildId) {
+        return getCompressedFile(buildId).length() + getLogFile(buildId).length();
+    }
+
+    /**
+     * Stores the log of a build, replacing a stored log.
+     * @param buildId id of the build
+     * @param buildLog log lines
+     * @throws IOException if the log could not be written
+     */
+    public void write(String buildId, List<String> buildLog) throws IOException {
+        if (compress) {
+            File tmp = new File(folder, buildId + ".logz.tmp");
+            try (CompressedLog.Writer writer = new CompressedLog.Writer(tmp)) {
+                for (String line : buildLog)
+                    writer.writeLine(line);
+            }
+            Files.move(tmp.toPath(), getCompressedFile(buildId).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            getLogFile(buildId).delete();
+        } else {
+            getCompressedFile(buildId).delete();
+            Files.write(getLogFile(buildId).toPath(), buildLog, StandardCharsets.UTF_8);
+        }
+        evict(buildId);
+    }
+
+    /**
+     * Compresses the plain text log of a finished build. Readers that opened the plain file keep reading it,
+     * later readers find the compressed file first.
+     */
+    private void compress(String buildId) {
+        File plain = getLogFile(buildId);
+        File tmp = new File(folder, buildId + ".logz.tmp");
+        try {
+            try (InputStream in = new FileInputStream(plain);
+                 CompressedLog.Writer writer = new CompressedLog.Writer(tmp)) {
+                byte[] buffer = new byte[1 << 16];
+                int n;
+                while ((n = in.read(buffer)) > 0)
+                    writer.write(buffer, 0, n);
+            }
+            Files.move(tmp.toPath(), getCompressedFile(buildId).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            plain.delete();
+        } catch (IOException e) {
+            log.error("Could not compress log of " + buildId + ", keeping it as plain text: " + e);
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Starts the log of a running build, replacing a stored log.
+     * @param buildId id of the build
+     * @return writer that appends to the log, must be closed when the build is done
+     * @throws IOException if the log file could not be created
+     */
+    public LogWriter openWriter(String buildId) throws IOException {
+        evict(buildId);
+        getCompressedFile(buildId).delete();
+        getLogFile(buildId).delete();
+        LogWriter writer = new LogWriter(buildId);
+        running.add(buildId);
+        return writer;
+    }
+
+    /**
+     * Checks if a build is still writing its log
+     * @param buildId id of the build
+     * @return true if the log is still growing
+     */
+    public boolean isRunning(String buildId) {
+        return running.contains(buildId);
+    }
+
+    /**
+     * Size of the log of a build
+     * @param buildId id of the build
+     * @return size of the uncompressed log in bytes, 0 if no log is stored
+     */
+    public long size(String buildId) {
+        try {
+            return withLog(buildId, CompressedLog::getBytes, File::length, 0L);
+        } catch (IOException e) {
+            log.error(e.toString());
+            return 0;
+        }
+    }
+
+    /**
+     * Number of lines of the log of a build
+     * @param buildId id of the build
+     * @return lines, 0 if no log is stored
+     */
+    public long lineCount(String buildId) {
+        synchronized (cache) {
+            List<String> cached = cache.get(buildId);
+            if (cached != null)
+                return cached.size();
+        }
+        try {
+            return withLog(buildId, CompressedLog::getLines, plain -> {
+                try (Stream<String> lines = Files.lines(plain.toPath(), StandardCharsets.UTF_8)) {
+                    return lines.count();
+                }
+            }, 0L);
+        } catch (IOException | UncheckedIOException e) {
+            log.error(e.toString());
+            return 0;
+        }
+    }
+
+    /**
+     * Reads a range of lines of the log of a build. Of a compressed log only the chunks of the range are read.
+     * @param buildId id of the build
+     * @param from number of the first line, counting from 0
+     * @param count maximum number of lines
+     * @return the lines, fewer at the end of the log, empty if no log is stored
+     */
+    public List<String> readLines(String buildId, long from, int count) {
+        synchronized (cache) {
+            List<String> cached = cache.get(buildId);
+            if (cached != null)
+                return subList(cached, from, count);
+        }
+        try {
+            return withLog(buildId, compressed -> compressed.readLines(from, count),
+                    plain -> new ArrayList<>(subList(
+                            Files.readAllLines(plain.toPath(), StandardCharsets.UTF_8), from, count)),
+                    Collections.<String>emptyList());
+        } catch (IOException e) {
+            log.error(e.toString());
+            return Collections.emptyList();
+        }
+    }
+
+    private static List<String> subList(List<String> lines, long from, int count) {
+        int start = (int) Math.min(from, lines.size());
+        return lines.subList(start, (int) Math.min((long) start + count, lines.size()));
+    }
+
+    /**
+     * Reads part of the log of a build, used to tail a running build.
+     * Only whole lines are returned, so the next offset always starts a line.
+     * @param buildId id of the build
+     * @param offset byte offset to start reading at
+     * @param maxBytes maximum number of bytes to read
+     * @return the bytes read, empty if there is nothing new
+     * @throws IOException if the log could not be read
+     */
+    public byte[] readFrom(String buildId, long offset, int maxBytes) throws IOException {
+        return wholeLines(withLog(buildId, compressed -> compressed.readBytes(offset, maxBytes), file -> {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                long available = raf.length() - offset;
+                if (available <= 0)
+                    return new byte[0];
+                byte[] buffer = new byte[(int) Math.min(available, maxBytes)];
+                raf.seek(offset);
+                raf.readFully(buffer);
+                return buffer;
+            }
+        }, new byte[0]));
+    }
+
+    private static byte[] wholeLines(byte[] buffer) {
+        int end = buffer.length;
+        while (end > 0 && buffer[end - 1] != '\n')
+            end--;
+        if (end == buffer.length)
+            return buffer;
+        // a single line longer than maxBytes is returned as is
+        byte[] lines = new byte[end == 0 ? buffer.length : end];
+        System.arraycopy(buffer, 0, lines, 0, lines.length);
+        return lines;
+    }
+
+    /**
+     * Reads the log of a build, from the cache if possible.
+     * @param buildId id of the build
+     * @return unmodifiable log lines, empty if no log is stored
+     */
+    public List<String> read(String buildId) {
+        synchronized (cache) {
+            List<String> cached = cache.get(buildId);
+            if (cached != null)
+                return cached;
+        }
+        List<String> buildLog;
+        try {
+            buildLog = Collections.unmodifiableList(withLog(buildId, CompressedLog::readAll,
+                    plain -> Files.readAllLines(plain.toPath(), StandardCharsets.UTF_8), Collections.<String>emptyList()));
+        } catch (IOException e) {
+            log.error(e.toString());
+            return Collections.emptyList();
+        }
+        synchronized (cache) {
+            if (buildLog.size() <= maxCachedLines && !cache.containsKey(buildId) && !isRunning(buildId)) {
+                cache.put(buildId, buildLog);
+                cachedLines += buildLog.size();
+                Iterator<Map.Entry<String, List<String>>> eldest = cache.entrySet().iterator();
+                while (cachedLines > maxCachedLines && eldest.hasNext()) {
+                    cachedLines -= eldest.next().getValue().size();
+                    eldest.remove();
+                }
+            }
+        }
+        return buildLog;
+    }
+
+    /**
+     * Removes the log of a build
+     * @param buildId id of the build
+     */
+    public void delete(String buildId) {
+        evict(buildId);
+        getCompressedFile(buildId).delete();
+        getLogFile(buildId).delete();
+    }
+
+    /**
+     * Reads a log, may fail with an IOException
+     */
+    private interface LogReader<L, T> {
+        T read(L log) throws IOException;
+    }
+
+    /**
+     * Reads the log of a build in the format it is stored in. A plain text log that is compressed and removed
+     * while it is opened is read from the compressed file.
+     * @param fromCompressed reads a compressed log
+     * @param fromPlain reads a plain text log file
+     * @param missing the result if no log is stored
+     */
+    private <T> T withLog(String buildId, LogReader<CompressedLog, T> fromCompressed, LogReader<File, T> fromPlain,
+                          T missing) throws IOException {
+        File compressed = getCompressedFile(buildId);
+        if (compressed.isFile())
+            return fromCompressed.read(CompressedLog.open(compressed));
+        File plain = getLogFile(buildId);
+        try {
+            if (plain.isFile())
+                return fromPlain.read(plain);
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            // compressed in the meantime
+        }
+        return compressed.isFile() ? fromCompressed.read(CompressedLog.open(compressed)) : missing;
+    }
+
+    /**
+     * Getter for the number of log lines kept in memory
+     * @return cached lines
+     */
+    public long getCachedLines() {
+        synchronized (cache) {
+            return cachedLines;
+        }
+    }
+
+    private void evict(String buildId) {
+        synchronized (cache) {
+            List<String> removed = cache.remove(buildId);
+            if (removed != null)
+                cachedLines -= removed.size();
+        }
+    }
+}
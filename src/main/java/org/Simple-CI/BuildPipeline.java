@@ -0,0 +1,398 @@
+package org.Simple-CI;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the {@link BuildSpec} of a repository in its workspace. The spec is the .simple-ci.json file of the
+ * repository, else the file owner/repo.json in the spec folder of the server, else a single gradlew build.
+ * Stages run one after the other and stop at the first failing stage, the steps of a stage run in parallel.
+ * Every step is a process of the build, so timeouts and cancelling stop all steps.
+ * A stage marked "cache": true that passed before on the same git tree, after the same stages, is skipped.
+ * Every build is a fresh checkout, so only stages whose outputs no later stage needs may be marked, such as a
+ * lint stage or a gradle stage whose tasks are built again by the later stages that depend on them.
+ */
+@Component
+public class BuildPipeline {
+
+    /**
+     * Spec file in the root of a repository
+     */
+    public static final String SPEC_FILE = ".simple-ci.json";
+
+    private final File specFolder;
+    private final boolean scan;
+    private final int stageCacheSize;
+    private final Map<String, String> passedStages;
+    private final AtomicLong stagesRun = new AtomicLong();
+    private final AtomicLong stagesSkipped = new AtomicLong();
+    private final ExecutorService steps = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "build-step");
+        t.setDaemon(true);
+        return t;
+    });
+
+    @Autowired(required = false)
+    private GradleSettings gradleSettings;
+
+    /**
+     * The outcome of a pipeline
+     */
+    public static class Result {
+        private final boolean success;
+        private final String url;
+
+        Result(boolean success, String url) {
+            this.success = success;
+            this.url = url;
+        }
+
+        /**
+         * @return true if all stages passed
+         */
+        public boolean isSuccess() {
+            return success;
+        }
+
+        /**
+         * @return gradle scan url if a step published one, else empty
+         */
+        public String getUrl() {
+            return url;
+        }
+    }
+
+    /**
+     * Create the pipeline runner.
+     * @param specFolder folder of the server side specs, owner/repo.json
+     * @param scan publish gradle build scans in the default spec
+     * @param stageCacheSize number of passed stages remembered, 0 disables the stage cache
+     */
+    public BuildPipeline(@Value("${ci.build.specFolder:./build-specs}") String specFolder,
+                         @Value("${ci.build.scan:true}") boolean scan,
+                         @Value("${ci.build.stageCacheSize:1000}") int stageCacheSize) {
+        this.specFolder = new File(specFolder);
+        this.scan = scan;
+        this.stageCacheSize = stageCacheSize;
+        this.passedStages = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > BuildPipeline.this.stageCacheSize;
+            }
+        };
+    }
+
+    /**
+     * Setter for the gradle settings of gradlew steps
+     * @param gradleSettings shared gradle user home and daemons
+     */
+    void setGradleSettings(GradleSettings gradleSettings) {
+        this.gradleSettings = gradleSettings;
+    }
+
+    /**
+     * Finds the spec of a checked out repository
+     * @param workspace checkout of the repository
+     * @param repoFullName full name of the repository
+     * @return spec of the repository file, the server file or the default spec
+     * @throws IOException if a spec file could not be read
+     * @throws IllegalArgumentException if a spec file is not valid
+     */
+    public BuildSpec loadSpec(File workspace, String repoFullName) throws IOException {
+        File repoSpec = new File(workspace, SPEC_FILE);
+        if (repoSpec.isFile())
+            return BuildSpec.parse(new String(Files.readAllBytes(repoSpec.toPath()), StandardCharsets.UTF_8));
+        BuildSpec serverSpec = loadServerSpec(repoFullName);
+        return serverSpec != null ? serverSpec : BuildSpec.defaultSpec(scan);
+    }
+
+    /**
+     * Paths a repository needs checked out, from its server side spec
+     * @param repoFullName full name of the repository
+     * @return sparse paths of the server spec, empty to check out everything
+     * @throws IOException if the server spec could not be read
+     * @throws IllegalArgumentException if the server spec is not valid
+     */
+    public List<String> sparsePaths(String repoFullName) throws IOException {
+        BuildSpec serverSpec = loadServerSpec(repoFullName);
+        return serverSpec != null ? serverSpec.getSparsePaths() : new ArrayList<>();
+    }
+
+    private BuildSpec loadServerSpec(String repoFullName) throws IOException {
+        File serverSpec = repoFullName == null ? null : new File(specFolder, repoFullName + ".json");
+        if (serverSpec == null || !serverSpec.isFile())
+            return null;
+        return BuildSpec.parse(new String(Files.readAllBytes(serverSpec.toPath()), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Identifies the spec a repository is built with, known before the repository is checked out.
+     * A spec file of the repository is part of the git tree, so only the server side spec and the default
+     * spec are in the key.
+     * @param repoFullName full name of the repository
+     * @return sha-1 of the server spec file, else of the default spec
+     * @throws IOException if the server spec could not be read
+     */
+    public String specKey(String repoFullName) throws IOException {
+        byte[] spec = ("default scan=" + scan).getBytes(StandardCharsets.UTF_8);
+        File serverSpec = repoFullName == null ? null : new File(specFolder, repoFullName + ".json");
+        if (serverSpec != null && serverSpec.isFile())
+            spec = Files.readAllBytes(serverSpec.toPath());
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-1").digest(spec))
+                hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Runs a spec in a workspace. Records the time of every stage and step in buildData, as stage.name and
+     * step.stage.name, and the gradle configure and execution phases, until and after the first task of any step.
+     * @param buildData build to record the timings in
+     * @param spec spec to run
+     * @param workspace checkout to run the steps in
+     * @param treeId git tree of the checkout, null to run all stages
+     * @param buildLog build log, gets the output of all steps
+     * @param handle handle of the running build
+     * @return outcome of the pipeline
+     * @throws IOException if a step could not be started or its output read
+     * @throws InterruptedException if the build thread was interrupted
+     */
+    public Result run(BuildData buildData, BuildSpec spec, File workspace, String treeId,
+                      BuildLogStore.LogWriter buildLog, BuildProcesses.Handle handle) throws IOException, InterruptedException {
+        long pipelineStart = System.nanoTime();
+        AtomicLong firstTask = new AtomicLong();
+        AtomicReference<String> url = new AtomicReference<>("");
+        StringBuilder cacheKey = new StringBuilder(treeId == null ? "" : treeId);
+        boolean success = true;
+        for (BuildSpec.Stage stage : spec.getStages()) {
+            cacheKey.append('\n').append(stage.fingerprint());
+            if (!success || handle.getReason() != null) {
+                buildLog.append("Stage " + stage.getName() + " skipped");
+                continue;
+            }
+            String key = cacheKey.toString();
+            String passedIn = treeId != null && stage.isCacheable() ? passed(key) : null;
+            if (passedIn != null) {
+                stagesSkipped.incrementAndGet();
+                buildLog.append("Stage " + stage.getName() + " skipped, it passed on the same tree in build " + passedIn);
+                continue;
+            }
+            stagesRun.incrementAndGet();
+            long stageStart = System.nanoTime();
+            buildLog.append("Stage " + stage.getName());
+            success = runStage(buildData, stage, workspace, buildLog, handle, firstTask, url);
+            buildData.setTiming("stage." + stage.getName(), millisSince(stageStart));
+            if (success && handle.getReason() == null && treeId != null && stage.isCacheable())
+                pass(key, buildData.getBuildId());
+        }
+        long executionStart = firstTask.get();
+        if (executionStart == 0) {
+            buildData.setTiming("configure", millisSince(pipelineStart));
+        } else {
+            buildData.setTiming("configure", TimeUnit.NANOSECONDS.toMillis(executionStart - pipelineStart));
+            buildData.setTiming("execution", millisSince(executionStart));
+        }
+        buildLog.append("Exit: " + success);
+        return new Result(success, url.get());
+    }
+
+    private boolean runStage(BuildData buildData, BuildSpec.Stage stage, File workspace, BuildLogStore.LogWriter buildLog,
+                             BuildProcesses.Handle handle, AtomicLong firstTask, AtomicReference<String> url)
+            throws IOException, InterruptedException {
+        List<BuildSpec.Step> stageSteps = stage.getSteps();
+        boolean prefix = stageSteps.size() > 1;
+        // step threads only write their own slot, the timings are recorded in step order once all are done
+        long[] millis = new long[stageSteps.size()];
+        // set by the first step that fails, the steps next to it are killed then
+        AtomicBoolean stageFailed = new AtomicBoolean();
+        List<Future<Boolean>> running = new ArrayList<>();
+        boolean success = true;
+        boolean finished = false;
+        try {
+            for (int i = 1; i < stageSteps.size(); i++) {
+                int slot = i;
+                running.add(steps.submit(() -> runStep(stageSteps.get(slot), prefix, workspace, buildLog, handle,
+                        firstTask, url, millis, slot, stageFailed)));
+            }
+            // the build thread runs the first step itself
+            success = runStep(stageSteps.get(0), prefix, workspace, buildLog, handle, firstTask, url, millis, 0,
+                    stageFailed);
+            for (Future<Boolean> step : running) {
+                try {
+                    success &= step.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException)
+                        throw (IOException) e.getCause();
+                    if (e.getCause() instanceof InterruptedException)
+                        throw (InterruptedException) e.getCause();
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            finished = true;
+        } finally {
+            // the log and the workspace are closed after this, no step may keep running
+            if (!finished)
+                stopSteps(running, handle);
+        }
+        for (int i = 0; i < stageSteps.size(); i++)
+            buildData.setTiming("step." + stage.getName() + "." + stageSteps.get(i).getName(), millis[i]);
+        return success;
+    }
+
+    /**
+     * Kills the processes of a stage whose steps could not all be run and waits for the step threads to end.
+     * A step that starts its process meanwhile is killed on the next round.
+     */
+    private static void stopSteps(List<Future<Boolean>> running, BuildProcesses.Handle handle) {
+        boolean interrupted = false;
+        for (Future<Boolean> step : running) {
+            while (!step.isDone()) {
+                handle.kill();
+                try {
+                    step.get(100, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException | ExecutionException e) {
+                    // killed or failed, checked again
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Runs one step and streams its output line by line into the build log, prefixed with the step name
+     * if it runs next to other steps. Also extracts the scan url if available, and stores the run time in millis[slot].
+     * The first step of a stage that fails kills the steps running next to it, a step is not started once one
+     * failed.
+     * @return true if the step exited with 0
+     */
+    private boolean runStep(BuildSpec.Step step, boolean prefix, File workspace, BuildLogStore.LogWriter buildLog,
+                            BuildProcesses.Handle handle, AtomicLong firstTask, AtomicReference<String> url,
+                            long[] millis, int slot, AtomicBoolean stageFailed) throws IOException, InterruptedException {
+        String linePrefix = prefix ? "[" + step.getName() + "] " : "";
+        if (stageFailed.get()) {
+            buildLog.append(linePrefix + "Not started, a step next to it failed");
+            return false;
+        }
+        long stepStart = System.nanoTime();
+        Process p = startStep(step, workspace, buildLog, linePrefix);
+        handle.start(p);
+        // a step that failed while this one was started did not see its process
+        if (stageFailed.get())
+            handle.kill();
+        String line;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+            while ((line = in.readLine()) != null) {
+                handle.touch();
+                buildLog.append(linePrefix + line);
+                if (line.startsWith("> Task "))
+                    firstTask.compareAndSet(0, System.nanoTime());
+                if (line.startsWith("https://gradle.com/s/"))
+                    url.compareAndSet("", line);
+            }
+        } catch (IOException e) {
+            // killing the process closes its output
+            if (handle.getReason() == null)
+                throw e;
+        }
+        p.waitFor();
+        millis[slot] = millisSince(stepStart);
+        boolean passed = p.exitValue() == 0;
+        buildLog.append(linePrefix + "Exit: " + passed);
+        if (!passed && stageFailed.compareAndSet(false, true) && prefix) {
+            buildLog.append(linePrefix + "Stopping the steps next to it");
+            handle.kill();
+        }
+        return passed;
+    }
+
+    /**
+     * Starts the process of a step in the workspace. A gradlew command runs the gradlew of the workspace with
+     * the shared gradle user home and daemons of {@link GradleSettings} if wired.
+     */
+    private Process startStep(BuildSpec.Step step, File workspace, BuildLogStore.LogWriter buildLog,
+                              String linePrefix) throws IOException {
+        List<String> command = new ArrayList<>(step.getCommand());
+        boolean gradlew = command.get(0).equals("gradlew") || command.get(0).equals("./gradlew");
+        if (gradlew) {
+            command.set(0, workspace.getCanonicalPath() + File.separator + "gradlew" +
+                    (System.getProperty("os.name").startsWith("Windows") ? ".bat" : ""));
+            if (gradleSettings != null)
+                command.addAll(gradleSettings.arguments());
+            buildLog.append(linePrefix + "gradlew " + String.join(" ", command.subList(1, command.size())));
+        } else {
+            buildLog.append(linePrefix + String.join(" ", command));
+        }
+        ProcessBuilder processBuilder = new ProcessBuilder()
+                .command(command)
+                .directory(workspace)
+                .redirectErrorStream(true);
+        if (gradlew && gradleSettings != null)
+            gradleSettings.apply(processBuilder);
+        return processBuilder.start();
+    }
+
+    private synchronized String passed(String key) {
+        return passedStages.get(key);
+    }
+
+    private synchronized void pass(String key, String buildId) {
+        if (stageCacheSize > 0)
+            passedStages.put(key, buildId);
+    }
+
+    private static long millisSince(long nanoTime) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nanoTime);
+    }
+
+    /**
+     * Getter for the number of stages that were run
+     * @return stages run
+     */
+    public long getStagesRun() {
+        return stagesRun.get();
+    }
+
+    /**
+     * Getter for the number of stages skipped because they passed before on the same tree
+     * @return stages skipped
+     */
+    public long getStagesSkipped() {
+        return stagesSkipped.get();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        steps.shutdownNow();
+    }
+}
@@ -0,0 +1,206 @@
+package org.Simple-CI;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Registry of the running builds and their processes.
+ * A watchdog stops builds that run longer than the wall-clock timeout or print nothing for the idle timeout,
+ * and running builds can be cancelled. Stopping a build kills its whole process tree, so a hanging test
+ * never keeps a build worker busy.
+ */
+@Component
+public class BuildProcesses {
+
+    private final Logger log = LoggerFactory.getLogger(BuildProcesses.class);
+    private final long timeoutMillis;
+    private final long idleTimeoutMillis;
+    private final Map<String, Handle> running = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "build-watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * A running build. The build attaches its processes, one per running step, and reports output,
+     * the watchdog and {@link #cancel(String)} stop it.
+     */
+    public class Handle implements AutoCloseable {
+        private final String buildId;
+        private final long started = System.currentTimeMillis();
+        private volatile long lastOutput = started;
+        private volatile String reason;
+        private final List<Process> processes = new ArrayList<>();
+
+        private Handle(String buildId) {
+            this.buildId = buildId;
+        }
+
+        /**
+         * Attaches a process of the build, it is killed right away if the build was stopped meanwhile
+         * @param process build process
+         */
+        public synchronized void start(Process process) {
+            processes.removeIf(p -> !p.isAlive());
+            processes.add(process);
+            lastOutput = System.currentTimeMillis();
+            if (reason != null)
+                killTree(process);
+        }
+
+        /**
+         * Reports output of the build, resets the idle timeout
+         */
+        public void touch() {
+            lastOutput = System.currentTimeMillis();
+        }
+
+        /**
+         * Getter for why the build was stopped
+         * @return reason, null if the build was not stopped
+         */
+        public String getReason() {
+            return reason;
+        }
+
+        /**
+         * Kills the processes attached so far without stopping the build, used when a step failed and the steps
+         * running next to it must not outlive it
+         */
+        public synchronized void kill() {
+            for (Process process : processes)
+                killTree(process);
+        }
+
+        synchronized boolean stop(String why) {
+            if (reason != null)
+                return false;
+            reason = why;
+            log.info("Stopping build " + buildId + ": " + why);
+            for (Process process : processes)
+                killTree(process);
+            return true;
+        }
+
+        /**
+         * Unregisters the build, it is finished
+         */
+        @Override
+        public void close() {
+            running.remove(buildId, this);
+        }
+    }
+
+    /**
+     * Create the registry and start the watchdog.
+     * @param timeoutMinutes maximum run time of a build, 0 for none
+     * @param idleTimeoutMinutes maximum time a build may print nothing, 0 for none
+     */
+    @Autowired
+    public BuildProcesses(@Value("${ci.build.timeoutMinutes:60}") long timeoutMinutes,
+                          @Value("${ci.build.idleTimeoutMinutes:15}") long idleTimeoutMinutes) {
+        this(TimeUnit.MINUTES.toMillis(timeoutMinutes), TimeUnit.MINUTES.toMillis(idleTimeoutMinutes), 1000);
+    }
+
+    BuildProcesses(long timeoutMillis, long idleTimeoutMillis, long checkMillis) {
+        this.timeoutMillis = timeoutMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        watchdog.scheduleWithFixedDelay(this::check, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers a build that starts now
+     * @param buildId id of the build
+     * @return handle of the build, must be closed when the build is done
+     */
+    public Handle register(String buildId) {
+        Handle handle = new Handle(buildId);
+        running.put(buildId, handle);
+        return handle;
+    }
+
+    /**
+     * Cancels a running build and kills its processes
+     * @param buildId id of the build
+     * @return true if the build was running
+     */
+    public boolean cancel(String buildId) {
+        Handle handle = running.get(buildId);
+        return handle != null && handle.stop("Build cancelled");
+    }
+
+    /**
+     * Checks if a build is running
+     * @param buildId id of the build
+     * @return true if the build is running
+     */
+    public boolean isRunning(String buildId) {
+        return running.containsKey(buildId);
+    }
+
+    /**
+     * Getter for the number of running builds
+     * @return running builds
+     */
+    public int getRunningCount() {
+        return running.size();
+    }
+
+    private void check() {
+        long now = System.currentTimeMillis();
+        for (Handle handle : running.values()) {
+            if (timeoutMillis > 0 && now - handle.started > timeoutMillis)
+                handle.stop("Build timed out after " + TimeUnit.MILLISECONDS.toSeconds(timeoutMillis) + "s");
+            else if (idleTimeoutMillis > 0 && now - handle.lastOutput > idleTimeoutMillis)
+                handle.stop("Build printed nothing for " + TimeUnit.MILLISECONDS.toSeconds(idleTimeoutMillis) + "s");
+        }
+    }
+
+    /**
+     * Kills a process and all its descendants. The descendants are only known on Java 9 and later,
+     * the API is called through reflection to keep compiling for Java 8, where only the process itself is killed.
+     * @param process process to kill
+     */
+    static void killTree(Process process) {
+        List<Object> descendants = new ArrayList<>();
+        Method destroy = null;
+        try {
+            Object handle = Process.class.getMethod("toHandle").invoke(process);
+            Class<?> handleClass = Class.forName("java.lang.ProcessHandle");
+            destroy = handleClass.getMethod("destroyForcibly");
+            Stream<?> stream = (Stream<?>) handleClass.getMethod("descendants").invoke(handle);
+            descendants = stream.collect(Collectors.toList());
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Java 8
+        }
+        process.destroyForcibly();
+        for (Object descendant : descendants) {
+            try {
+                destroy.invoke(descendant);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // already gone
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        watchdog.shutdownNow();
+    }
+}
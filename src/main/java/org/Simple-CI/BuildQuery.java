@@ -0,0 +1,206 @@
+package org.Simple-CI;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A query for a page of builds, see {@link CIDataBase#query(BuildQuery)}.
+ * Builds are returned newest first, ordered by creation date and then by sha. A page ends with a cursor,
+ * the id of its last build, and the next page holds the builds after it, so pages do not shift when builds
+ * are added while a client is paging. All filters are optional, set filters must all match.
+ */
+public class BuildQuery {
+
+    /**
+     * Newest first: creation date descending, then sha descending
+     */
+    static final Comparator<BuildData> NEWEST_FIRST = Comparator
+            .comparing((BuildData build) -> build.getDateCreated().getTime())
+            .thenComparing(BuildData::getSha)
+            .reversed();
+
+    private String repoFullName;
+    private String branch;
+    private BuildStatus status;
+    private String sha;
+    private Date from;
+    private Date to;
+    private String afterSha;
+    private long afterTime;
+    private int limit = 50;
+
+    /**
+     * Only builds of a repository
+     * @param repoFullName full name of the repository, null for all
+     * @return this query
+     */
+    public BuildQuery repo(String repoFullName) {
+        this.repoFullName = emptyToNull(repoFullName);
+        return this;
+    }
+
+    /**
+     * Only builds of a branch
+     * @param branch branch name, null for all
+     * @return this query
+     */
+    public BuildQuery branch(String branch) {
+        this.branch = emptyToNull(branch);
+        return this;
+    }
+
+    /**
+     * Only builds with a status
+     * @param status build status, null for all
+     * @return this query
+     */
+    public BuildQuery status(BuildStatus status) {
+        this.status = status;
+        return this;
+    }
+
+    /**
+     * Only builds of a commit
+     * @param sha commit sha, null for all
+     * @return this query
+     */
+    public BuildQuery sha(String sha) {
+        this.sha = emptyToNull(sha);
+        return this;
+    }
+
+    /**
+     * Only builds created in a range
+     * @param from first creation date, inclusive, null for no lower bound
+     * @param to last creation date, exclusive, null for no upper bound
+     * @return this query
+     */
+    public BuildQuery between(Date from, Date to) {
+        this.from = from;
+        this.to = to;
+        return this;
+    }
+
+    /**
+     * Only builds after the last build of the previous page
+     * @param cursor cursor of the previous page, null or empty for the first page
+     * @return this query
+     * @throws IllegalArgumentException if the cursor is not a build id
+     */
+    public BuildQuery after(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            afterSha = null;
+            return this;
+        }
+        int dash = cursor.lastIndexOf('-');
+        try {
+            afterTime = Long.parseLong(cursor.substring(dash + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a build cursor: " + cursor);
+        }
+        if (dash <= 0)
+            throw new IllegalArgumentException("Not a build cursor: " + cursor);
+        afterSha = cursor.substring(0, dash);
+        return this;
+    }
+
+    /**
+     * Maximum number of builds on a page
+     * @param limit builds per page, at least 1
+     * @return this query
+     */
+    public BuildQuery limit(int limit) {
+        if (limit < 1)
+            throw new IllegalArgumentException("Limit must be positive: " + limit);
+        this.limit = limit;
+        return this;
+    }
+
+    String getRepoFullName() {
+        return repoFullName;
+    }
+
+    String getBranch() {
+        return branch;
+    }
+
+    BuildStatus getStatus() {
+        return status;
+    }
+
+    String getSha() {
+        return sha;
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    /**
+     * The creation time below which builds can be on the page, from the upper bound of the range and the cursor
+     * @return upper bound of the creation time, inclusive
+     */
+    long getUpperTime() {
+        long upper = to != null ? to.getTime() - 1 : Long.MAX_VALUE;
+        return afterSha != null ? Math.min(upper, afterTime) : upper;
+    }
+
+    /**
+     * The creation time from which builds can be on the page, from the lower bound of the range
+     * @return lower bound of the creation time, inclusive
+     */
+    long getLowerTime() {
+        return from != null ? from.getTime() : Long.MIN_VALUE;
+    }
+
+    /**
+     * Checks a build against all filters and the cursor
+     * @param build a build with a creation date in the bounds
+     * @return true if the build belongs on the page
+     */
+    boolean matches(BuildData build) {
+        if (afterSha != null && build.getDateCreated().getTime() == afterTime && build.getSha().compareTo(afterSha) >= 0)
+            return false;
+        long time = build.getDateCreated().getTime();
+        return time >= getLowerTime() && time <= getUpperTime()
+                && (repoFullName == null || repoFullName.equals(build.getRepoFullName()))
+                && (branch == null || branch.equals(build.getBranch()))
+                && (status == null || status == build.getBuildStatus())
+                && (sha == null || sha.equals(build.getSha()));
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    /**
+     * A page of builds
+     */
+    public static class Page {
+        private final List<BuildData> builds;
+        private final String nextCursor;
+
+        Page(List<BuildData> builds, String nextCursor) {
+            this.builds = Collections.unmodifiableList(builds);
+            this.nextCursor = nextCursor;
+        }
+
+        /**
+         * Getter for the builds of the page
+         * @return builds, newest first
+         */
+        public List<BuildData> getBuilds() {
+            return builds;
+        }
+
+        /**
+         * Getter for the cursor of the next page
+         * @return cursor to pass to {@link BuildQuery#after(String)}, null if this is the last page
+         */
+        public String getNextCursor() {
+            return nextCursor;
+        }
+    }
+}
@@ -0,0 +1,542 @@
+package org.Simple-CI;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.Message;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queue of builds waiting for a build worker.
+ * At most one build per repository and branch waits in the queue, a push of a newer head supersedes the queued build.
+ * A commit is built only once: a build of a commit that is being built, or was built successfully, reuses that
+ * result. A commit whose build failed is built again.
+ * Workers do not get builds directly, a worker holding a ticket takes the next waiting build, so superseded
+ * builds never reach a worker. A ticket is handed out only while there are fewer tickets than waiting builds,
+ * so the worker pool never holds more tickets than builds are waiting.
+ * Above maxQueued waiting builds the queue is full and the {@link Overflow} policy applies.
+ * <p>The next build is chosen by fair share across repositories: the build of the highest {@link Priority},
+ * then of the repository with the fewest running builds, then of the repository that started a build least
+ * recently, then the oldest. Repositories at their concurrency cap are skipped, a ticket that finds only such
+ * builds finds no build and a new ticket is handed out when a build finishes.</p>
+ * <p>The webhook of a build is acknowledged in the {@link WebhookQueue} once a worker took the build, or the build
+ * was superseded, cancelled or answered with the result of another build. Until then it is delivered again after
+ * a restart, so queued builds survive one.</p>
+ */
+@Component
+public class BuildQueue {
+
+    /**
+     * Header of the messages returned by {@link #submit(Message)}, "notify" or "build".
+     */
+    public static final String ROUTE_HEADER = "buildQueueRoute";
+
+    /**
+     * Header with the {@link Priority} of a build, builds without it have priority branch.
+     */
+    public static final String PRIORITY_HEADER = "buildPriority";
+
+    private final Logger log = LoggerFactory.getLogger(BuildQueue.class);
+    private final LinkedHashMap<String, Message<?>> waiting = new LinkedHashMap<>();
+    private final Map<String, List<Message<?>>> inFlight = new HashMap<>();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong superseded = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final int maxQueued;
+    private final Overflow overflow;
+    private final int maxPerRepo;
+    private final Map<String, Integer> repoCaps;
+    private final Map<String, Integer> running = new HashMap<>();
+    private final Map<String, Long> lastStarted = new HashMap<>();
+    private long starts;
+    private int tickets;
+    private CIDataBase database;
+    private WebhookQueue webhookQueue;
+
+    /**
+     * Priority of a build, builds of a higher priority start first.
+     */
+    public enum Priority {
+        /**
+         * Push to the default branch of the repository
+         */
+        defaultBranch,
+        /**
+         * Push to another branch
+         */
+        branch,
+        /**
+         * Pull request
+         */
+        pullRequest
+    }
+
+    /**
+     * What happens to new builds while the queue is full.
+     */
+    public enum Overflow {
+        /**
+         * Webhooks stay in the {@link WebhookQueue} on disk until a worker is free
+         */
+        spill,
+        /**
+         * Like spill, and new webhooks are answered with 429 Too Many Requests
+         */
+        reject,
+        /**
+         * A new build supersedes the oldest waiting build of its repository, else the oldest waiting build
+         */
+        coalesce
+    }
+
+    /**
+     * Create a queue without limit
+     */
+    public BuildQueue() {
+        this(0, Overflow.spill);
+    }
+
+    /**
+     * Create a queue
+     * @param maxQueued number of waiting builds at which the queue is full, 0 for no limit
+     * @param overflow what happens to new builds while the queue is full
+     */
+    public BuildQueue(int maxQueued, Overflow overflow) {
+        this(maxQueued, overflow, 0, "");
+    }
+
+    /**
+     * Create a queue with concurrency caps per repository
+     * @param maxQueued number of waiting builds at which the queue is full, 0 for no limit
+     * @param overflow what happens to new builds while the queue is full
+     * @param maxPerRepo number of builds of a repository that may run at the same time, 0 for no limit
+     * @param repoCaps caps of single repositories instead of maxPerRepo, comma separated owner/repo=builds
+     * @throws IllegalArgumentException if repoCaps is malformed
+     */
+    @Autowired
+    public BuildQueue(@Value("${ci.build.maxQueued:100}") int maxQueued,
+                      @Value("${ci.build.overflow:spill}") Overflow overflow,
+                      @Value("${ci.build.maxPerRepo:0}") int maxPerRepo,
+                      @Value("${ci.build.repoCaps:}") String repoCaps) {
+        this.maxQueued = maxQueued;
+        this.overflow = overflow;
+        this.maxPerRepo = maxPerRepo;
+        this.repoCaps = parseCaps(repoCaps);
+    }
+
+    private static Map<String, Integer> parseCaps(String repoCaps) {
+        Map<String, Integer> caps = new HashMap<>();
+        for (String cap : repoCaps.split(",")) {
+            if (cap.trim().isEmpty())
+                continue;
+            String[] parts = cap.split("=");
+            try {
+                if (parts.length != 2)
+                    throw new NumberFormatException();
+                caps.put(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Malformed repository cap, expected owner/repo=builds: " + cap);
+            }
+        }
+        return caps;
+    }
+
+    /**
+     * Queues the build of a message with header buildData and branch.
+     * @param msg message from the webhook handler
+     * @return messages to route: the pending notification of the new build and a worker ticket unless there are
+     * enough tickets, final notifications of the builds it superseded, or only the final notification if a
+     * result is reused
+     */
+    public synchronized List<Message<?>> submit(Message<?> msg) {
+        BuildData buildData = (BuildData) msg.getHeaders().get("buildData");
+        List<Message<?>> out = new ArrayList<>();
+        if (buildData == null) {
+            acknowledge(msg);
+            return out;
+        }
+        submitted.incrementAndGet();
+        String sha = buildData.getSha();
+
+        // same commit already being built, finish together with it
+        List<Message<?>> followers = inFlight.get(sha);
+        if (followers != null) {
+            log.info("Build of " + sha + " is running, reusing its result for " + buildData.getRepoFullName());
+            followers.add(msg);
+            acknowledge(msg);
+            out.add(route(msg, "notify", "build pending"));
+            return out;
+        }
+        // same commit already waiting, the waiting build reports for both
+        for (Message<?> queued : waiting.values()) {
+            if (sha.equals(buildDataOf(queued).getSha())) {
+                log.info("Build of " + sha + " is already queued, reusing its result for " + buildData.getRepoFullName());
+                inFlight.computeIfAbsent(waitingKey(sha), k -> new ArrayList<>()).add(msg);
+                out.add(route(msg, "notify", "build pending"));
+                return out;
+            }
+        }
+        // same commit built before
+        BuildData previous = findFinished(sha);
+        if (previous != null) {
+            log.info("Commit " + sha + " was built by " + previous.getBuildId() + ", reusing its result");
+            reused.incrementAndGet();
+            acknowledge(msg);
+            out.add(finish(msg, previous));
+            return out;
+        }
+
+        String key = branchKey(msg);
+        String olderKey = key;
+        if (!waiting.containsKey(key) && overflow == Overflow.coalesce && isFull())
+            olderKey = oldestKey(buildData.getRepoFullName());
+        Message<?> older = waiting.remove(olderKey);
+        if (older != null)
+            out.addAll(supersede(older, olderKey, sha));
+        // a build of the superseded commit may have taken the place of this branch
+        Message<?> replaced = waiting.put(key, msg);
+        if (replaced != null)
+            out.addAll(supersede(replaced, key, sha));
+        out.add(route(msg, "notify", "build pending"));
+        if (tickets < waiting.size()) {
+            tickets++;
+            out.add(route(msg, "build", null));
+        }
+        return out;
+    }
+
+    /**
+     * Reports a build removed from the queue as superseded
+     * @param older the removed build
+     * @param key key it waited under
+     * @param sha commit that supersedes it
+     * @return final notifications of the build and of the builds that waited for its result
+     */
+    private List<Message<?>> supersede(Message<?> older, String key, String sha) {
+        List<Message<?>> out = new ArrayList<>();
+        superseded.incrementAndGet();
+        acknowledge(older);
+        BuildData olderData = buildDataOf(older);
+        log.info("Build of " + olderData.getSha() + " superseded by " + sha);
+        olderData.setBuildStatus(BuildStatus.error);
+        olderData.setMessage("Superseded by " + sha);
+        olderData.setBuildLog(Collections.singletonList("Build superseded by a newer push: " + sha));
+        out.add(route(older, "notify", "build final"));
+        out.addAll(supersedeFollowers(olderData, key));
+        return out;
+    }
+
+    /**
+     * Key of the oldest waiting build of a repository, else of the oldest waiting build
+     */
+    private String oldestKey(String repoFullName) {
+        for (Map.Entry<String, Message<?>> entry : waiting.entrySet())
+            if (buildDataOf(entry.getValue()).getRepoFullName().equals(repoFullName))
+                return entry.getKey();
+        return waiting.keySet().iterator().next();
+    }
+
+    /**
+     * Removes a waiting build from the queue, its worker ticket will find no build.
+     * @param buildId id of the build
+     * @return final notifications of the cancelled build and of the builds that waited for its result,
+     * empty if the build is not waiting
+     */
+    public synchronized List<Message<?>> cancel(String buildId) {
+        List<Message<?>> out = new ArrayList<>();
+        Iterator<Map.Entry<String, Message<?>>> it = waiting.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Message<?>> entry = it.next();
+            BuildData buildData = buildDataOf(entry.getValue());
+            if (!buildData.getBuildId().equals(buildId))
+                continue;
+            it.remove();
+            acknowledge(entry.getValue());
+            log.info("Build " + buildId + " cancelled while queued");
+            buildData.setBuildStatus(BuildStatus.error);
+            buildData.setMessage("Build cancelled");
+            buildData.setBuildLog(Collections.singletonList("Build cancelled while queued"));
+            out.add(route(entry.getValue(), "notify", "build final"));
+            out.addAll(supersedeFollowers(buildData, entry.getKey()));
+            break;
+        }
+        return out;
+    }
+
+    /**
+     * Builds of the same commit on the superseded branch are superseded too. The first build of the commit on
+     * another branch takes the place of the superseded build in the queue, using its worker ticket.
+     */
+    private List<Message<?>> supersedeFollowers(BuildData olderData, String key) {
+        List<Message<?>> out = new ArrayList<>();
+        String sha = olderData.getSha();
+        boolean promoted = false;
+        for (Message<?> follower : removeFollowers(waitingKey(sha))) {
+            String followerKey = branchKey(follower);
+            if (followerKey.equals(key) || (!promoted && waiting.containsKey(followerKey))) {
+                superseded.incrementAndGet();
+                acknowledge(follower);
+                out.add(finish(follower, olderData));
+            } else if (!promoted) {
+                waiting.put(followerKey, follower);
+                promoted = true;
+            } else {
+                inFlight.computeIfAbsent(waitingKey(sha), k -> new ArrayList<>()).add(follower);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Takes the next waiting build for a worker holding a ticket.
+     * @param ticket worker ticket
+     * @return the build message, null if the build of the ticket was superseded or all waiting builds belong to
+     * repositories at their cap
+     */
+    public synchronized Message<?> take(Message<?> ticket) {
+        tickets = Math.max(0, tickets - 1);
+        String key = next();
+        if (key == null)
+            return null;
+        Message<?> msg = waiting.remove(key);
+        BuildData buildData = buildDataOf(msg);
+        running.merge(buildData.getRepoFullName(), 1, Integer::sum);
+        lastStarted.put(buildData.getRepoFullName(), ++starts);
+        String sha = buildData.getSha();
+        List<Message<?>> followers = removeFollowers(waitingKey(sha));
+        inFlight.put(sha, followers);
+        acknowledge(msg);
+        for (Message<?> follower : followers)
+            acknowledge(follower);
+        return MessageBuilder.fromMessage(msg).removeHeader(ROUTE_HEADER).build();
+    }
+
+    /**
+     * Chooses the next build by priority and fair share
+     * @return key of the build, null if no build may start
+     */
+    private String next() {
+        Map.Entry<String, Message<?>> best = null;
+        for (Map.Entry<String, Message<?>> entry : waiting.entrySet()) {
+            String repo = buildDataOf(entry.getValue()).getRepoFullName();
+            if (runningOf(repo) >= capOf(repo))
+                continue;
+            // waiting is oldest first, so an equal build never replaces the one found before
+            if (best == null || compare(entry.getValue(), best.getValue()) < 0)
+                best = entry;
+        }
+        return best != null ? best.getKey() : null;
+    }
+
+    private int compare(Message<?> a, Message<?> b) {
+        int byPriority = priorityOf(a).compareTo(priorityOf(b));
+        if (byPriority != 0)
+            return byPriority;
+        String repoA = buildDataOf(a).getRepoFullName();
+        String repoB = buildDataOf(b).getRepoFullName();
+        int byRunning = Integer.compare(runningOf(repoA), runningOf(repoB));
+        if (byRunning != 0)
+            return byRunning;
+        return Long.compare(lastStarted.getOrDefault(repoA, 0L), lastStarted.getOrDefault(repoB, 0L));
+    }
+
+    private static Priority priorityOf(Message<?> msg) {
+        Priority priority = msg.getHeaders().get(PRIORITY_HEADER, Priority.class);
+        return priority != null ? priority : Priority.branch;
+    }
+
+    private int runningOf(String repo) {
+        return running.getOrDefault(repo, 0);
+    }
+
+    private int capOf(String repo) {
+        int cap = repoCaps.getOrDefault(repo, maxPerRepo);
+        return cap > 0 ? cap : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Marks a build as finished.
+     * @param msg final message of the build with header buildData
+     * @return the final message, the final messages of the builds of the same commit that reuse its result and
+     * worker tickets for the builds that wait without one, routed by header {@link #ROUTE_HEADER} if they have it
+     */
+    public synchronized List<Message<?>> complete(Message<?> msg) {
+        List<Message<?>> out = new ArrayList<>();
+        out.add(msg);
+        BuildData buildData = (BuildData) msg.getHeaders().get("buildData");
+        if (buildData == null)
+            return out;
+        running.computeIfPresent(buildData.getRepoFullName(), (repo, count) -> count > 1 ? count - 1 : null);
+        List<Message<?>> followers = inFlight.remove(buildData.getSha());
+        if (followers != null)
+            for (Message<?> follower : followers) {
+                reused.incrementAndGet();
+                out.add(finish(follower, buildData));
+            }
+        // tickets that found only builds of capped repositories are handed out again
+        while (tickets < waiting.size()) {
+            tickets++;
+            out.add(MessageBuilder.withPayload("").setHeader(ROUTE_HEADER, "build").build());
+        }
+        return out;
+    }
+
+    /**
+     * Getter for the number of builds waiting for a worker
+     * @return queue depth
+     */
+    public synchronized int getQueueDepth() {
+        return waiting.size();
+    }
+
+    /**
+     * Checks if the queue is full, at or above maxQueued waiting builds
+     * @return true if the overflow policy applies
+     */
+    public synchronized boolean isFull() {
+        return maxQueued > 0 && waiting.size() >= maxQueued;
+    }
+
+    /**
+     * Getter for what happens to new builds while the queue is full
+     * @return overflow policy
+     */
+    public Overflow getOverflow() {
+        return overflow;
+    }
+
+    /**
+     * Getter for the number of waiting builds at which the queue is full
+     * @return maxQueued, 0 for no limit
+     */
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    /**
+     * Getter for the number of running builds of a repository
+     * @param repoFullName full name of the repository
+     * @return builds taken by a worker and not completed yet
+     */
+    public synchronized int getRunning(String repoFullName) {
+        return runningOf(repoFullName);
+    }
+
+    /**
+     * Getter for the number of builds submitted since startup
+     * @return builds submitted
+     */
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    /**
+     * Getter for the number of queued builds replaced by a newer head of the same branch
+     * @return builds superseded
+     */
+    public long getSuperseded() {
+        return superseded.get();
+    }
+
+    /**
+     * Getter for the number of builds that reused the result of a build of the same commit
+     * @return builds reused
+     */
+    public long getReused() {
+        return reused.get();
+    }
+
+    /**
+     * Setter for the webhook queue the webhooks of the builds are acknowledged in
+     * @param webhookQueue webhook queue
+     */
+    @Autowired(required = false)
+    void setWebhookQueue(WebhookQueue webhookQueue) {
+        this.webhookQueue = webhookQueue;
+    }
+
+    /**
+     * Acknowledges the webhook a build message came from, it is not delivered again after a restart
+     */
+    private void acknowledge(Message<?> msg) {
+        if (webhookQueue != null)
+            webhookQueue.acknowledge(msg);
+    }
+
+    void setDatabase(CIDataBase database) {
+        this.database = database;
+    }
+
+    private CIDataBase getDatabase() {
+        return database != null ? database : CiApplication.CIDB;
+    }
+
+    /**
+     * Latest successful build of a commit. Failures are not reused, a flaky failure would fail the commit forever.
+     */
+    private BuildData findFinished(String sha) {
+        BuildData latest = null;
+        for (BuildData build : getDatabase().readAllBuild(sha)) {
+            if (build.getBuildStatus() != BuildStatus.success)
+                continue;
+            if (latest == null || build.getDateCreated().after(latest.getDateCreated()))
+                latest = build;
+        }
+        return latest;
+    }
+
+    private static String branchKey(Message<?> msg) {
+        return buildDataOf(msg).getRepoFullName() + "#" + msg.getHeaders().get("branch");
+    }
+
+    /**
+     * Followers of a waiting build are parked under this key until a worker takes the build.
+     */
+    private static String waitingKey(String sha) {
+        return "waiting:" + sha;
+    }
+
+    private List<Message<?>> removeFollowers(String key) {
+        List<Message<?>> followers = inFlight.remove(key);
+        return followers != null ? followers : new ArrayList<>();
+    }
+
+    /**
+     * Final message of a build that takes over the result of another build of the same commit.
+     */
+    private Message<?> finish(Message<?> msg, BuildData result) {
+        BuildData buildData = buildDataOf(msg);
+        Date now = new Date();
+        buildData.setDateStart(now);
+        buildData.setDateFinish(now);
+        buildData.setBuildStatus(result.getBuildStatus());
+        buildData.setMessage(result.getMessage());
+        buildData.setBuildLog(Collections.singletonList("Result of build " + result.getBuildId() + " of the same commit"));
+        return route(msg, "notify", "build final");
+    }
+
+    private static BuildData buildDataOf(Message<?> msg) {
+        return (BuildData) msg.getHeaders().get("buildData");
+    }
+
+    private static Message<?> route(Message<?> msg, String route, String notifyType) {
+        MessageBuilder<?> builder = MessageBuilder.fromMessage(msg).setHeader(ROUTE_HEADER, route);
+        if (notifyType != null)
+            builder.setHeader("notifyType", notifyType);
+        if ("build final".equals(notifyType))
+            builder.setHeader("url", "");
+        return builder.build();
+    }
+}
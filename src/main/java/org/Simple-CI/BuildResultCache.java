@@ -0,0 +1,208 @@
+package org.Simple-CI;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Results of finished builds by content: the git tree that was built and the build spec it was built with.
+ * A commit with the same tree as a commit built before, like a merge commit equal to a tested pull request head
+ * or a revert, gets the stored status and log of that build without building again.
+ * Only successes are stored. A failure may be caused by a flaky test or the build machine, so a tree that failed
+ * is built again when it is pushed again, errors say nothing about the code either. The cache keeps the most recently
+ * used entries and appends new ones to an index file, which is compacted when the cache is created.
+ */
+@Component
+public class BuildResultCache {
+
+    private final Logger log = LoggerFactory.getLogger(BuildResultCache.class);
+    private final File indexFile;
+    private final int maxEntries;
+    private final Map<String, Entry> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * A stored result, the build that produced it holds the log.
+     */
+    public static class Entry {
+        private final String buildId;
+        private final BuildStatus status;
+        private final String message;
+        private final String url;
+
+        Entry(String buildId, BuildStatus status, String message, String url) {
+            this.buildId = buildId;
+            this.status = status;
+            this.message = message;
+            this.url = url;
+        }
+
+        public String getBuildId() {
+            return buildId;
+        }
+
+        public BuildStatus getStatus() {
+            return status;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+    }
+
+    /**
+     * Create the cache and load the index file of a previous run.
+     * @param folderName folder of the index file
+     * @param maxEntries number of results kept
+     */
+    public BuildResultCache(@Value("${ci.resultCache.folder:./result-cache}") String folderName,
+                            @Value("${ci.resultCache.maxEntries:10000}") int maxEntries) {
+        File folder = new File(folderName);
+        if (!folder.isDirectory())
+            folder.mkdirs();
+        this.indexFile = new File(folder, "index.tsv");
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, BuildResultCache.Entry> eldest) {
+                return size() > BuildResultCache.this.maxEntries;
+            }
+        };
+        load();
+    }
+
+    /**
+     * Looks up the result of a tree and spec, counts a hit or a miss
+     * @param treeId git tree id of the commit
+     * @param specKey key of the build spec, see {@link BuildPipeline#specKey(String)}
+     * @return stored result, null if the tree was not built with the spec
+     */
+    public synchronized Entry get(String treeId, String specKey) {
+        Entry entry = entries.get(key(treeId, specKey));
+        if (entry == null)
+            misses.incrementAndGet();
+        else
+            hits.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Stores the result of a finished build, builds that did not succeed are ignored
+     * @param treeId git tree id of the built commit
+     * @param specKey key of the build spec
+     * @param buildData finished build
+     * @param url gradle scan url of the build
+     */
+    public synchronized void put(String treeId, String specKey, BuildData buildData, String url) {
+        BuildStatus status = buildData.getBuildStatus();
+        if (status != BuildStatus.success)
+            return;
+        Entry entry = new Entry(buildData.getBuildId(), status, buildData.getMessage(), url == null ? "" : url);
+        String key = key(treeId, specKey);
+        entries.put(key, entry);
+        List<String> line = new ArrayList<>();
+        line.add(format(key, entry));
+        try {
+            Files.write(indexFile.toPath(), line, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            log.error("Could not append to " + indexFile + ": " + e);
+        }
+    }
+
+    /**
+     * Forgets a result, used when the log of its build is gone
+     * @param treeId git tree id
+     * @param specKey key of the build spec
+     */
+    public synchronized void remove(String treeId, String specKey) {
+        entries.remove(key(treeId, specKey));
+    }
+
+    private static String key(String treeId, String specKey) {
+        return treeId + " " + specKey;
+    }
+
+    private static String format(String key, Entry entry) {
+        return String.join("\t", key, entry.buildId, entry.status.name(),
+                clean(entry.url), clean(entry.message == null ? "" : entry.message));
+    }
+
+    private static String clean(String field) {
+        return field.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    /**
+     * Reads the index file, later lines win, and writes it back with only the entries kept
+     */
+    private synchronized void load() {
+        if (!indexFile.isFile())
+            return;
+        try {
+            for (String line : Files.readAllLines(indexFile.toPath(), StandardCharsets.UTF_8)) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 5)
+                    continue;
+                try {
+                    entries.put(fields[0], new Entry(fields[1], BuildStatus.valueOf(fields[2]), fields[4], fields[3]));
+                } catch (IllegalArgumentException e) {
+                    // torn line of a crash
+                }
+            }
+            File tmp = new File(indexFile.getPath() + ".tmp");
+            try (BufferedWriter out = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    out.write(format(entry.getKey(), entry.getValue()));
+                    out.write('\n');
+                }
+            }
+            Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.info("Loaded " + entries.size() + " build results from " + indexFile);
+        } catch (IOException e) {
+            log.error("Could not load " + indexFile + ": " + e);
+        }
+    }
+
+    /**
+     * Getter for the number of builds that found the result of their tree
+     * @return cache hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Getter for the number of builds that had to build
+     * @return cache misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Getter for the number of stored results
+     * @return cache size
+     */
+    public synchronized int getSize() {
+        return entries.size();
+    }
+}
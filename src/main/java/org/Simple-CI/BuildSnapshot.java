@@ -0,0 +1,172 @@
+package org.Simple-CI;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary snapshot of the build metadata in the database.
+ * For the build journal the snapshot holds the builds it contained, its length and its number of records at
+ * snapshot time, so only records appended after the snapshot have to be replayed at startup.
+ * The snapshot is read through a memory-mapped buffer. A snapshot of another version is ignored,
+ * the database then replays the whole journal and writes a new one.
+ */
+public class BuildSnapshot {
+
+    private static final int MAGIC = 0x53434931;
+    private static final int VERSION = 5;
+
+    /**
+     * The builds of one database file at snapshot time.
+     */
+    public static class Entry {
+        final String fileName;
+        final long length;
+        final long records;
+        final List<BuildData> builds;
+
+        Entry(String fileName, long length, long records, List<BuildData> builds) {
+            this.fileName = fileName;
+            this.length = length;
+            this.records = records;
+            this.builds = builds;
+        }
+    }
+
+    private BuildSnapshot() {
+    }
+
+    /**
+     * Writes a snapshot. The snapshot is written to a temporary file first and then moved into place,
+     * so a crash never leaves a half written snapshot behind. The temporary file is forced to the disk before it
+     * is moved and the folder after it, so the snapshot also survives a power loss.
+     * @param file snapshot file
+     * @param entries database files and their builds
+     * @throws IOException if the snapshot could not be written
+     */
+    public static void write(File file, List<Entry> entries) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                writeString(out, entry.fileName);
+                out.writeLong(entry.length);
+                out.writeLong(entry.records);
+                out.writeInt(entry.builds.size());
+                for (BuildData build : entry.builds) {
+                    writeString(out, build.getSha());
+                    writeString(out, build.getRepoFullName());
+                    out.writeLong(build.getDateCreated().getTime());
+                    out.writeLong(build.getDateStart() != null ? build.getDateStart().getTime() : -1);
+                    out.writeLong(build.getDateFinish() != null ? build.getDateFinish().getTime() : -1);
+                    out.writeByte(build.getBuildStatus() != null ? build.getBuildStatus().ordinal() : -1);
+                    writeString(out, build.getMessage());
+                    writeString(out, build.getBranch());
+                    out.writeInt(build.getTimings().size());
+                    for (Map.Entry<String, Long> timing : build.getTimings().entrySet()) {
+                        writeString(out, timing.getKey());
+                        out.writeLong(timing.getValue());
+                    }
+                }
+            }
+            out.flush();
+            fileOut.getChannel().force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        BuildJournal.syncFolder(file.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Reads a snapshot. The builds are returned without their logs.
+     * @param file snapshot file
+     * @return database files and their builds at snapshot time
+     * @throws IOException if the snapshot could not be read or is corrupt
+     */
+    public static List<Entry> read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Snapshot too large to map: " + channel.size());
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+                    throw new IOException("Not a build snapshot: " + file);
+                BuildStatus[] statuses = BuildStatus.values();
+                // repository names and messages repeat a lot, share the strings
+                Map<String, String> strings = new HashMap<>();
+                int fileCount = buffer.getInt();
+                List<Entry> entries = new ArrayList<>(fileCount);
+                for (int i = 0; i < fileCount; i++) {
+                    String fileName = readString(buffer, null);
+                    long length = buffer.getLong();
+                    long records = buffer.getLong();
+                    int buildCount = buffer.getInt();
+                    List<BuildData> builds = new ArrayList<>(buildCount);
+                    for (int j = 0; j < buildCount; j++) {
+                        String sha = readString(buffer, null);
+                        String repoFullName = readString(buffer, strings);
+                        BuildData build = new BuildData(repoFullName, new Date(buffer.getLong()), sha);
+                        long dateStart = buffer.getLong();
+                        long dateFinish = buffer.getLong();
+                        byte status = buffer.get();
+                        if (dateStart >= 0)
+                            build.setDateStart(new Date(dateStart));
+                        if (dateFinish >= 0)
+                            build.setDateFinish(new Date(dateFinish));
+                        if (status >= 0)
+                            build.setBuildStatus(statuses[status]);
+                        build.setMessage(readString(buffer, strings));
+                        build.setBranch(readString(buffer, strings));
+                        int timingCount = buffer.getInt();
+                        for (int k = 0; k < timingCount; k++)
+                            build.setTiming(readString(buffer, strings), buffer.getLong());
+                        builds.add(build);
+                    }
+                    entries.add(new Entry(fileName, length, records, builds));
+                }
+                return entries;
+            } catch (RuntimeException e) {
+                throw new IOException("Corrupt build snapshot: " + file, e);
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer, Map<String, String> strings) {
+        int length = buffer.getInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        String value = new String(bytes, StandardCharsets.UTF_8);
+        if (strings == null)
+            return value;
+        String shared = strings.putIfAbsent(value, value);
+        return shared != null ? shared : value;
+    }
+}
@@ -0,0 +1,189 @@
+package org.Simple-CI;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * How a repository is built: stages that run one after the other, each made of steps that run in parallel.
+ * A spec is JSON, for example
+ * <pre>
+ * {"stages": [
+ *   {"name": "compile", "steps": [{"name": "assemble", "command": "./gradlew assemble"}]},
+ *   {"name": "test", "steps": [
+ *     {"name": "unit", "command": ["./gradlew", "test"]},
+ *     {"name": "integration", "command": ["./gradlew", "integrationTest"]}]}
+ * ]}
+ * </pre>
+ * A command is an argument list or a string split at whitespace, it is not run through a shell.
+ * A stage with "cache": true may be skipped by the stage cache of {@link BuildPipeline}, other stages always run.
+ * A server side spec may list "sparse" paths, only those are checked out, see {@link ShallowClone}.
+ */
+public class BuildSpec {
+
+    /**
+     * A group of steps that run in parallel. The stage succeeds if all its steps exit with 0.
+     */
+    public static class Stage {
+        private final String name;
+        private final List<Step> steps;
+        private final boolean cacheable;
+
+        Stage(String name, List<Step> steps, boolean cacheable) {
+            this.name = name;
+            this.steps = Collections.unmodifiableList(steps);
+            this.cacheable = cacheable;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<Step> getSteps() {
+            return steps;
+        }
+
+        public boolean isCacheable() {
+            return cacheable;
+        }
+
+        /**
+         * Identifies what the stage runs, equal for stages that run the same commands
+         * @return stage name and step commands
+         */
+        public String fingerprint() {
+            StringBuilder sb = new StringBuilder(name);
+            for (Step step : steps)
+                sb.append('\n').append(step.getName()).append('\0').append(String.join("\0", step.getCommand()));
+            return sb.toString();
+        }
+    }
+
+    /**
+     * One command of a stage
+     */
+    public static class Step {
+        private final String name;
+        private final List<String> command;
+
+        Step(String name, List<String> command) {
+            this.name = name;
+            this.command = Collections.unmodifiableList(command);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<String> getCommand() {
+            return command;
+        }
+    }
+
+    private final List<Stage> stages;
+    private final List<String> sparsePaths;
+
+    BuildSpec(List<Stage> stages, List<String> sparsePaths) {
+        this.stages = Collections.unmodifiableList(stages);
+        this.sparsePaths = Collections.unmodifiableList(sparsePaths);
+    }
+
+    public List<Stage> getStages() {
+        return stages;
+    }
+
+    /**
+     * Paths of the repository the build needs
+     * @return paths relative to the repository root, empty for all
+     */
+    public List<String> getSparsePaths() {
+        return sparsePaths;
+    }
+
+    /**
+     * The spec of repositories that have none, a single gradlew build
+     * @param scan publish a gradle build scan
+     * @return gradlew build -s, with --scan if scan is set
+     */
+    public static BuildSpec defaultSpec(boolean scan) {
+        List<String> command = new ArrayList<>(Arrays.asList("./gradlew", "build"));
+        if (scan)
+            command.add("--scan");
+        command.add("-s");
+        List<Step> steps = new ArrayList<>();
+        steps.add(new Step("gradlew", command));
+        List<Stage> stages = new ArrayList<>();
+        stages.add(new Stage("build", steps, true));
+        return new BuildSpec(stages, new ArrayList<>());
+    }
+
+    /**
+     * Reads a spec
+     * @param json spec as JSON
+     * @return the spec
+     * @throws IllegalArgumentException if the spec is not valid
+     */
+    public static BuildSpec parse(String json) {
+        try {
+            JSONObject specJson = new JSONObject(json);
+            JSONArray stagesJson = specJson.getJSONArray("stages");
+            List<Stage> stages = new ArrayList<>();
+            Set<String> stageNames = new HashSet<>();
+            for (int i = 0; i < stagesJson.length(); i++) {
+                Stage stage = parseStage(stagesJson.getJSONObject(i));
+                if (!stageNames.add(stage.getName()))
+                    throw new IllegalArgumentException("Duplicate stage " + stage.getName());
+                stages.add(stage);
+            }
+            if (stages.isEmpty())
+                throw new IllegalArgumentException("Build spec has no stages");
+            List<String> sparsePaths = new ArrayList<>();
+            JSONArray sparseJson = specJson.optJSONArray("sparse");
+            for (int i = 0; sparseJson != null && i < sparseJson.length(); i++)
+                sparsePaths.add(sparseJson.getString(i));
+            return new BuildSpec(stages, sparsePaths);
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Build spec is not valid: " + e.getMessage(), e);
+        }
+    }
+
+    private static Stage parseStage(JSONObject stageJson) throws JSONException {
+        String name = stageJson.getString("name");
+        JSONArray stepsJson = stageJson.getJSONArray("steps");
+        List<Step> steps = new ArrayList<>();
+        Set<String> stepNames = new HashSet<>();
+        for (int i = 0; i < stepsJson.length(); i++) {
+            JSONObject stepJson = stepsJson.getJSONObject(i);
+            Step step = new Step(stepJson.getString("name"), parseCommand(stepJson.get("command")));
+            if (!stepNames.add(step.getName()))
+                throw new IllegalArgumentException("Duplicate step " + step.getName() + " in stage " + name);
+            steps.add(step);
+        }
+        if (steps.isEmpty())
+            throw new IllegalArgumentException("Stage " + name + " has no steps");
+        return new Stage(name, steps, stageJson.optBoolean("cache", false));
+    }
+
+    private static List<String> parseCommand(Object commandJson) throws JSONException {
+        List<String> command = new ArrayList<>();
+        if (commandJson instanceof JSONArray) {
+            JSONArray array = (JSONArray) commandJson;
+            for (int i = 0; i < array.length(); i++)
+                command.add(array.getString(i));
+        } else {
+            for (String arg : commandJson.toString().trim().split("\\s+"))
+                if (!arg.isEmpty())
+                    command.add(arg);
+        }
+        if (command.isEmpty())
+            throw new IllegalArgumentException("Empty command");
+        return command;
+    }
+}
@@ -4,22 +4,26 @@ import org.eclipse.jgit.api.CloneCommand;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.ResetCommand;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.transport.CredentialsProvider;
 import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.integration.annotation.ServiceActivator;
 import org.springframework.integration.support.MessageBuilder;
 import org.springframework.messaging.Message;
 import org.springframework.stereotype.Component;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
-import java.util.ArrayList;
+import java.nio.file.Path;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 /**
  * This is the class that takes the repository and builds it on call.
@@ -29,13 +33,40 @@ public class Builder {
 
     private Logger log2 = LoggerFactory.getLogger(this.getClass().getName());
 
+    @Autowired(required = false)
+    private RepoMirrorCache mirrorCache;
+
+    @Autowired(required = false)
+    private BuildProcesses processes;
+
+    @Autowired(required = false)
+    private BuildPipeline pipeline;
+
+    @Autowired(required = false)
+    private BuildResultCache resultCache;
+
+    @Autowired(required = false)
+    private ShallowClone shallowClone;
+
+    @Autowired(required = false)
+    private WorkspaceReaper reaper;
+
+    @Autowired(required = false)
+    private PipelineMetrics metrics;
+
+    @Autowired(required = false)
+    private BuildCoordinator coordinator;
+
+    private BuildLogStore logStore;
+
     public Builder() {
         /**/
     }
 
     /**
      * Downloads, builds and tests repository defined in the msg header field buildData
-     * using branch defined in msg header field branch.
+     * using branch defined in msg header field branch. With ci.agents.enabled a {@link BuildAgent} runs the build,
+     * this worker waits for its result.
      * @param msg Should contain header field buildData({@link BuildData}) and branch(String)
      * @return msg containing header field buildData({@link BuildData}) and url(String)
      */
@@ -55,10 +86,24 @@ public class Builder {
         final String repoFullName = buildData.getRepoFullName();
         final String repoGitURI = "https://github.com/" + repoFullName + ".git";
 
-        File gitPath = new File(System.getProperty("user.dir") + File.separator + "repo");
+        String url = "";
+        try {
+            if (coordinator != null && coordinator.isEnabled()) {
+                url = coordinator.run(buildData, branch, (String) msg.getHeaders().get(PipelineMetrics.TRACE_HEADER));
+            } else {
+                File gitPath = getWorkspace(buildData);
 
-        // Clone, build and test
-        String url = buildAndTest(buildData, branch, sha, repoFullName, repoGitURI, gitPath);
+                // Clone, build and test
+                url = buildAndTest(buildData, branch, sha, repoFullName, repoGitURI, gitPath);
+            }
+        } catch (RuntimeException e) {
+            // every build must end with a final message, the BuildQueue releases its commit and repository slot on it
+            logException(buildData, null, e);
+            if (buildData.getDateStart() == null)
+                buildData.setDateStart(new Date());
+            buildData.setDateFinish(new Date());
+        }
+        recordBuild(buildData);
 
         return MessageBuilder.withPayload(payload)
                 .copyHeadersIfAbsent(msg.getHeaders())
@@ -67,6 +112,17 @@ public class Builder {
                 .build();
     }
 
+    /**
+     * Workspace folder of a build. Every build gets its own folder so that concurrent
+     * builds never share a checkout.
+     * @param buildData build to get the workspace for
+     * @return workspace folder user.dir/repo/buildId
+     */
+    File getWorkspace(BuildData buildData) {
+        return new File(System.getProperty("user.dir") + File.separator + "repo" +
+                File.separator + buildData.getBuildId());
+    }
+
     /**
      * Method that clones, builds and tests a gradlew repository.
      * @param buildData BuildData object stores information about the build
@@ -80,24 +136,98 @@ public class Builder {
     private String buildAndTest(BuildData buildData, String branch, String sha, String repoFullName, String repoGitURI, File gitPath) {
         resetFolder(gitPath);
         buildData.setDateStart(new Date());
-        ArrayList<String> buildLog = new ArrayList<>();
+        final BuildLogStore logStore = getLogStore();
+        final String buildId = buildData.getBuildId();
+        BuildLogStore.LogWriter buildLog = null;
         String url = "";
+        boolean mirrorUsed = false;
+        BuildProcesses.Handle handle = getProcesses().register(buildId);
         try {
-            // Clone git repo branch
-            addToBuildLog(buildLog, "git clone --branch=" + branch + " " + repoGitURI + " " + repoFullName);
-            Git result = cloneGitRepo(branch, gitPath, repoGitURI);
-
-            // hard reset to commit
-            addToBuildLog(buildLog, "git reset --hard " + sha);
-            result.reset().setMode(ResetCommand.ResetType.HARD).setRef(sha).call();
+            // stream the output into the log store as it is produced
+            buildLog = logStore.openWriter(buildId);
+            final String specKey = getPipeline().specKey(repoFullName);
+            long cloneStart = System.nanoTime();
+            Git result = null;
+            boolean checkedOut = false;
+            String treeId = null;
+            BuildResultCache.Entry cached = null;
+            List<String> sparsePaths = getPipeline().sparsePaths(repoFullName);
+            if (shallowClone != null && (shallowClone.isPreferred() || !sparsePaths.isEmpty())) {
+                // Fetch only the commit, and only the paths the build needs
+                result = shallowClone.checkout(repoGitURI, sha, gitPath, sparsePaths,
+                        System.getenv("MY_PERSONAL_TOKEN"), buildLog, handle);
+                checkedOut = result != null;
+                if (result == null && handle.getReason() == null) {
+                    addToBuildLog(buildLog, "Shallow checkout failed, falling back to a full checkout");
+                    resetFolder(gitPath);
+                }
+            }
+            if (!checkedOut && handle.getReason() == null && mirrorCache != null) {
+                // Fetch into the mirror, identical content built before needs no working tree
+                addToBuildLog(buildLog, "git fetch " + repoGitURI + " (mirror) " + repoFullName);
+                mirrorUsed = true;
+                treeId = mirrorCache.fetch(repoFullName, repoGitURI, sha, getCredentialsProvider());
+                cached = findResult(treeId, specKey);
+                // Borrow the objects of the mirror
+                result = cached == null ? mirrorCache.worktree(repoFullName, sha, gitPath) : null;
+            } else if (!checkedOut && handle.getReason() == null) {
+                // Clone git repo branch
+                addToBuildLog(buildLog, "git clone --branch=" + branch + " " + repoGitURI + " " + repoFullName);
+                result = cloneGitRepo(branch, gitPath, repoGitURI);
+            }
 
-            // build with gradlew build --scan -s
-            Process p = getGradleProcess(gitPath, buildLog);
+            if (result != null) {
+                ObjectId tree;
+                // the repository holds files of the worktree and, through alternates, of the mirror open
+                try {
+                    if (!checkedOut) {
+                        // hard reset to commit
+                        addToBuildLog(buildLog, "git reset --hard " + sha);
+                        result.reset().setMode(ResetCommand.ResetType.HARD).setRef(sha).call();
+                    }
+                    tree = result.getRepository().resolve(sha + "^{tree}");
+                } finally {
+                    result.close();
+                }
+                if (treeId == null && tree != null) {
+                    treeId = tree.name();
+                    cached = findResult(treeId, specKey);
+                }
+            }
+            long cloneMillis = millisSince(cloneStart);
+            buildData.setTiming("clone", cloneMillis);
+            getMetrics().timer("ci.build.clone").record(cloneMillis, TimeUnit.MILLISECONDS);
+            // only a shallow .git is small enough to be measured on the build thread
+            addToBuildLog(buildLog, "Checkout took " + cloneMillis + " ms" + (checkedOut
+                    ? ", " + sizeOf(new File(gitPath, ".git")) / 1024 + " KB in .git" : ""));
 
-            // Hijack input
-            url = logGradlewOutput(buildLog, p);
+            BuildPipeline.Result built = null;
+            if (cached != null) {
+                // the same tree was built with the same spec, report its result and log
+                addToBuildLog(buildLog, "Tree " + treeId + " was built by " + cached.getBuildId() + ", reusing its result");
+                for (String line : logStore.read(cached.getBuildId()))
+                    buildLog.append(line);
+                url = cached.getUrl();
+            } else if (handle.getReason() == null) {
+                // run the build spec of the repository, unless the build was cancelled during the checkout
+                BuildSpec spec = getPipeline().loadSpec(gitPath, repoFullName);
+                long runStart = System.nanoTime();
+                built = getPipeline().run(buildData, spec, gitPath, treeId, buildLog, handle);
+                getMetrics().timer("ci.build.run").recordSince(runStart);
+                url = built.getUrl();
+                addToBuildLog(buildLog, "Timings (ms): " + buildData.getTimings());
+            }
 
-            if (p.exitValue() == 0) {
+            if (cached != null) {
+                buildData.setBuildStatus(cached.getStatus());
+                buildData.setMessage(cached.getMessage());
+            }
+            else if (handle.getReason() != null) {
+                addToBuildLog(buildLog, handle.getReason());
+                buildData.setBuildStatus(BuildStatus.error);
+                buildData.setMessage(handle.getReason());
+            }
+            else if (built.isSuccess()) {
                 buildData.setBuildStatus(BuildStatus.success);
                 buildData.setMessage("Build Success");
             }
@@ -105,100 +235,231 @@ public class Builder {
                 buildData.setBuildStatus(BuildStatus.failure);
                 buildData.setMessage("Build Failure");
             }
-        } catch (IOException|GitAPIException e) {
+            if (cached == null && treeId != null && resultCache != null)
+                resultCache.put(treeId, specKey, buildData, url);
+        } catch (IOException|GitAPIException|RuntimeException e) {
             logException(buildData, buildLog, e);
         } catch (InterruptedException e) {
             logException(buildData, buildLog, e);
             Thread.currentThread().interrupt();
+        } finally {
+            handle.close();
+            buildData.setDateFinish(new Date());
+            closeBuildLog(buildLog);
+            buildData.setBuildLogLoader(() -> logStore.read(buildId));
+            log2.info("Remove: " + gitPath);
+            getReaper().reap(gitPath);
+            if (mirrorUsed)
+                mirrorCache.release(repoFullName);
         }
-        buildData.setDateFinish(new Date());
-        buildData.setBuildLog(buildLog);
-        log2.info("Remove: " + gitPath);
-        deleteDir(gitPath);
         log2.info("Exit build function");
         return url;
     }
 
-    private void logException(BuildData buildData, ArrayList<String> buildLog, Exception e) {
+    /**
+     * Looks up the result of a tree in the {@link BuildResultCache} if wired
+     * @param treeId git tree of the commit, may be null
+     * @param specKey key of the build spec
+     * @return stored result whose log is still available, null if there is none
+     */
+    private BuildResultCache.Entry findResult(String treeId, String specKey) {
+        if (resultCache == null || treeId == null)
+            return null;
+        BuildResultCache.Entry cached = resultCache.get(treeId, specKey);
+        if (cached != null && !getLogStore().exists(cached.getBuildId())) {
+            resultCache.remove(treeId, specKey);
+            return null;
+        }
+        return cached;
+    }
+
+    /**
+     * Records the time the build waited since its webhook was received, the time it took and its result
+     * @param buildData finished build
+     */
+    private void recordBuild(BuildData buildData) {
+        PipelineMetrics metrics = getMetrics();
+        long created = buildData.getDateCreated().getTime();
+        long start = buildData.getDateStart().getTime();
+        long finish = buildData.getDateFinish().getTime();
+        metrics.timer("ci.build.queueWait").record(start - created, TimeUnit.MILLISECONDS);
+        metrics.timer("ci.build.duration").record(finish - start, TimeUnit.MILLISECONDS);
+        metrics.increment("ci.build." + buildData.getBuildStatus());
+    }
+
+    private void logException(BuildData buildData, BuildLogStore.LogWriter buildLog, Exception e) {
         log2.error(e.getClass().getSimpleName(), e);
-        buildLog.add(e.toString());
+        if (buildLog != null)
+            buildLog.append(e.toString());
         buildData.setBuildStatus(BuildStatus.error);
         buildData.setMessage(e.getClass().getSimpleName() + ". See log");
     }
 
+    private static long millisSince(long nanoTime) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nanoTime);
+    }
+
     /**
-     * Hijacks the Gradlew output and prints it line by line to the buildLog
-     * Also extracts the scan url if available, returns when gradlew is finished
-     * @param buildLog build log
-     * @param p gradlew process
-     * @return gradle scan url if available
-     * @throws IOException
-     * @throws InterruptedException
-     */
-    private String logGradlewOutput(ArrayList<String> buildLog, Process p) throws IOException, InterruptedException {
-        BufferedReader in = new BufferedReader(
-                new InputStreamReader(p.getInputStream()) );
-        String line;
-        String urlExtract = "";
-        // store input
-        while ((line = in.readLine()) != null) {
-            addToBuildLog(buildLog, line);
-            if (line.startsWith("https://gradle.com/s/"))
-                urlExtract = line;
+     * Add line to build log, also logs the line.
+     * @param buildLog build log to augment
+     * @param s line to add
+     */
+    private void addToBuildLog(BuildLogStore.LogWriter buildLog, String s) {
+        log2.info(s);
+        buildLog.append(s);
+    }
+
+    /**
+     * Closes the build log, readers see the log as finished from now on.
+     * @param buildLog build log, may be null if it could not be opened
+     */
+    private void closeBuildLog(BuildLogStore.LogWriter buildLog) {
+        if (buildLog == null)
+            return;
+        try {
+            buildLog.close();
+        } catch (IOException e) {
+            log2.error("Could not close build log", e);
         }
-        in.close();
-        p.waitFor();
-        addToBuildLog(buildLog, "Exit: " + (p.exitValue() == 0));
-        return urlExtract;
     }
 
     /**
-     * Creates and runs gradlew in gitPath
-     * @param gitPath gitPath folder where gradlew lives
-     * @param buildLog build log progress
-     * @return gradlew process object
-     * @throws IOException problem with starting gradlew
+     * Getter for the registry of running builds, a private one with the default timeouts if none is wired
+     * @return running builds
      */
-    private Process getGradleProcess(File gitPath, ArrayList<String> buildLog) throws IOException {
-        final String buildCommand = gitPath.getCanonicalPath() + File.separator +
-                "gradlew" +
-                (System.getProperty("os.name").startsWith("Windows")?".bat":"");
-        final String[] options = {buildCommand,"build","--scan","-s"};
-        addToBuildLog(buildLog, "gradlew" +
-                " " + options[1] +
-                " " + options[2] +
-                " " + options[3]);
-        return new ProcessBuilder()
-                .command(options)
-                .directory(gitPath)
-                .redirectErrorStream(true)
-                .start();
+    synchronized BuildProcesses getProcesses() {
+        if (processes == null)
+            processes = new BuildProcesses(60, 15);
+        return processes;
     }
 
     /**
-     * Add line to build log, also logs the line.
-     * @param buildLog build log to augment
-     * @param s line to add
+     * Setter for the registry of running builds
+     * @param processes running builds
      */
-    private void addToBuildLog(ArrayList<String> buildLog, String s) {
-        log2.info(s);
-        buildLog.add(s);
+    void setProcesses(BuildProcesses processes) {
+        this.processes = processes;
+    }
+
+    /**
+     * Getter for the runner of the build specs, a private one with the default settings if none is wired
+     * @return build pipeline
+     */
+    synchronized BuildPipeline getPipeline() {
+        if (pipeline == null)
+            pipeline = new BuildPipeline("./build-specs", true, 1000);
+        return pipeline;
+    }
+
+    /**
+     * Getter for the reaper of the workspaces, a private one with the default settings if none is wired
+     * @return workspace reaper
+     */
+    synchronized WorkspaceReaper getReaper() {
+        if (reaper == null)
+            reaper = new WorkspaceReaper(2, 21474836480L, 1073741824L);
+        return reaper;
+    }
+
+    /**
+     * Setter for the reaper of the workspaces
+     * @param reaper workspace reaper
+     */
+    void setReaper(WorkspaceReaper reaper) {
+        this.reaper = reaper;
+    }
+
+    /**
+     * Getter for the registry the build times are recorded in, a private one if none is wired
+     * @return pipeline metrics
+     */
+    synchronized PipelineMetrics getMetrics() {
+        if (metrics == null)
+            metrics = new PipelineMetrics();
+        return metrics;
+    }
+
+    /**
+     * Setter for the registry the build times are recorded in
+     * @param metrics pipeline metrics
+     */
+    void setMetrics(PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Setter for the coordinator that runs the builds on agents
+     * @param coordinator build coordinator
+     */
+    void setCoordinator(BuildCoordinator coordinator) {
+        this.coordinator = coordinator;
+    }
+
+    /**
+     * Setter for the runner of the build specs
+     * @param pipeline build pipeline
+     */
+    void setPipeline(BuildPipeline pipeline) {
+        this.pipeline = pipeline;
     }
 
     /**
-     * Reset folder by deleting the folder tree if it exists and recreate the root folder.
+     * Setter for the cache of build results by content
+     * @param resultCache build results
+     */
+    void setResultCache(BuildResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * Setter for the shallow checkout used when there is no mirror cache
+     * @param shallowClone shallow checkout
+     */
+    void setShallowClone(ShallowClone shallowClone) {
+        this.shallowClone = shallowClone;
+    }
+
+    /**
+     * Setter for the mirror cache builds check out from
+     * @param mirrorCache mirror cache
+     */
+    void setMirrorCache(RepoMirrorCache mirrorCache) {
+        this.mirrorCache = mirrorCache;
+    }
+
+    /**
+     * Getter for the store the build logs are streamed into, the one of the build database by default
+     * @return build log store
+     */
+    BuildLogStore getLogStore() {
+        if (logStore == null)
+            logStore = CiApplication.CIDB.getLogStore();
+        return logStore;
+    }
+
+    /**
+     * Setter for the store the build logs are streamed into
+     * @param logStore build log store
+     */
+    void setLogStore(BuildLogStore logStore) {
+        this.logStore = logStore;
+    }
+
+    /**
+     * Reset folder by handing the folder tree to the reaper if it exists and recreate the root folder.
      * @param gitPath root folder
      */
     private void resetFolder(File gitPath) {
         log2.info("Create: " + gitPath);
-        deleteDir(gitPath);
-        gitPath.mkdir();
+        getReaper().reap(gitPath);
+        gitPath.mkdirs();
     }
 
 
     /**
      * Clones a Git repository onto disk and switches to a branch
      * Uses MY_PERSONAL_TOKEN env var if available for CredentialsProvider
+     * Only used when no {@link RepoMirrorCache} is available
      * @param branch branch to checkout
      * @param gitPath path to clone it
      * @param repoGitURI URI of .git repository
@@ -207,14 +468,18 @@ public class Builder {
      * @throws IOException on file system error
      */
     private static Git cloneGitRepo(String branch, File gitPath, String repoGitURI) throws GitAPIException, IOException {
+        return cloneGitRepo(branch, gitPath, repoGitURI, getCredentialsProvider());
+    }
+
+    /**
+     * CredentialsProvider for GitHub, uses MY_PERSONAL_TOKEN env var if available
+     * @return token CredentialsProvider or the default one
+     */
+    private static CredentialsProvider getCredentialsProvider() {
         String token = System.getenv("MY_PERSONAL_TOKEN");
-        if (token != null){
-            CredentialsProvider cp = new UsernamePasswordCredentialsProvider(
-                    "token",
-                    System.getenv("MY_PERSONAL_TOKEN"));
-            return cloneGitRepo(branch, gitPath, repoGitURI, cp);
-        }
-        return cloneGitRepo(branch, gitPath, repoGitURI, CredentialsProvider.getDefault());
+        if (token != null)
+            return new UsernamePasswordCredentialsProvider("token", token);
+        return CredentialsProvider.getDefault();
     }
 
     /**
@@ -238,18 +503,17 @@ public class Builder {
     }
 
     /**
-     * Recursively remove files and folders in path. rm -r file
-     * @param file file or folder to delete
+     * Size of the files in a folder tree
+     * @param file file or folder
+     * @return size in bytes, 0 if it does not exist
      */
-    private static void deleteDir(File file) {
-        File[] contents = file.listFiles();
-        if (contents != null) {
-            for (File f : contents) {
-                if (! Files.isSymbolicLink(f.toPath())) {
-                    deleteDir(f);
-                }
-            }
+    private static long sizeOf(File file) {
+        if (!file.exists())
+            return 0;
+        try (Stream<Path> paths = Files.walk(file.toPath())) {
+            return paths.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum();
+        } catch (IOException | UncheckedIOException e) {
+            return 0;
         }
-        file.delete();
     }
 }
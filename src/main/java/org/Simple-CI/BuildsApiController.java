@@ -0,0 +1,107 @@
+package org.Simple-CI;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * This is a spring controller class responsible for the JSON API of the build history, see {@link BuildJson}.
+ * Every response has an ETag and a Last-Modified header. Build lists and builds change only when a build is
+ * added to or removed from the database, so a request with a matching If-None-Match or If-Modified-Since header
+ * is answered with 304 Not Modified before the database is queried. Logs are tagged by their size.
+ */
+@Controller
+public class BuildsApiController {
+
+    private static final int maxBuildsPerPage = 500;
+    private static final int maxLogLines = 10000;
+
+    /**
+     * This function is responsible for handling requests sent to /api/builds url of the webserver.
+     * Returns one page of builds as JSON, newest first, without their logs. The page after is asked for with
+     * the "next" cursor of this page, which is missing on the last page.
+     * from and to are creation times in milliseconds since the epoch, from inclusive and to exclusive.
+     */
+    @GetMapping(value = "/api/builds", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public String builds(@RequestParam(name="after", required=false, defaultValue="") String after,
+            @RequestParam(name="sha", required=false, defaultValue="") String sha,
+            @RequestParam(name="repo", required=false, defaultValue="") String repo,
+            @RequestParam(name="branch", required=false, defaultValue="") String branch,
+            @RequestParam(name="status", required=false, defaultValue="") String status,
+            @RequestParam(name="from", required=false) Long from,
+            @RequestParam(name="to", required=false) Long to,
+            @RequestParam(name="limit", required=false, defaultValue="" + BuildsController.buildsPerPage) int limit,
+            WebRequest request) {
+        BuildQuery query = BuildsController.query(repo, branch, status, sha,
+                from != null ? new Date(from) : null, to != null ? new Date(to) : null, after,
+                Math.min(limit, maxBuildsPerPage));
+        if (notModified(request))
+            return null;
+        return BuildJson.page(CiApplication.CIDB.query(query));
+    }
+
+    /**
+     * This function is responsible for handling requests sent to /api/builds/{id} url of the webserver.
+     * Returns one build as JSON, with its log lines only if log=true.
+     */
+    @GetMapping(value = "/api/builds/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public String build(@PathVariable("id") String id,
+            @RequestParam(name="log", required=false, defaultValue="false") boolean withLog,
+            WebRequest request) {
+        BuildData build = find(id);
+        if (notModified(request))
+            return null;
+        return BuildJson.build(build, withLog);
+    }
+
+    /**
+     * This function is responsible for handling requests sent to /api/builds/{id}/log url of the webserver.
+     * Returns up to count log lines of a build from line from, counting from 0. "total" is the number of lines
+     * of the log and "running" tells if it is still growing. The log of a running build can be read before
+     * the build is in the database.
+     */
+    @GetMapping(value = "/api/builds/{id}/log", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public String log(@PathVariable("id") String id,
+            @RequestParam(name="from", required=false, defaultValue="0") int from,
+            @RequestParam(name="count", required=false, defaultValue="1000") int count,
+            WebRequest request) {
+        BuildLogStore logStore = CiApplication.CIDB.getLogStore();
+        if (from < 0 || count < 0)
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "from and count must not be negative");
+        if (!BuildLogController.isValidId(id) || !logStore.exists(id))
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No log of build " + id);
+        boolean running = logStore.isRunning(id);
+        String tag = Long.toString(logStore.size(id), 36) + (running ? ".running" : "");
+        if (request.checkNotModified(tag, logStore.lastModified(id)))
+            return null;
+        long total = logStore.lineCount(id);
+        List<String> lines = logStore.readLines(id, from, Math.min(count, maxLogLines));
+        return BuildJson.logRange(id, (int) Math.min(from, total), total, running, lines);
+    }
+
+    /**
+     * Answers with 304 Not Modified if the client has the current version of the build history
+     */
+    private static boolean notModified(WebRequest request) {
+        return request.checkNotModified(CiApplication.CIDB.getVersionTag(), CiApplication.CIDB.getLastModified());
+    }
+
+    private static BuildData find(String id) {
+        BuildData build = CiApplication.CIDB.readBuildById(id);
+        if (build == null)
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No build " + id);
+        return build;
+    }
+}
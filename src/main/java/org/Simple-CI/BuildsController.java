@@ -1,13 +1,13 @@
 package org.Simple-CI;
 
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.server.ResponseStatusException;
 
-
-import java.util.ArrayList;
 import java.util.Date;
 
 /**
@@ -21,44 +21,47 @@ public class BuildsController {
     @Value("${spring.application.name}")
     String appName;
 
-    private static final int buildsPerPage = 50;
+    static final int buildsPerPage = 50;
+
     /**
-     * This function is responsible for handling requests sent to /builds url of the webserver
+     * This function is responsible for handling requests sent to /builds url of the webserver.
+     * Shows one page of builds, newest first. The page after is asked for with the cursor of this page.
      */
     @GetMapping("/builds")
-    public String builds(@RequestParam(name="page", required=false, defaultValue="1") String page,
-            @RequestParam(name="sha", required=false, defaultValue="") String sha, Model model) {
-        ArrayList<BuildData> buildsToGet;
-        if (!sha.isEmpty())
-            buildsToGet = CiApplication.CIDB.readAllBuild(sha);
-        else
-            buildsToGet = CiApplication.CIDB.getAllBuilds();
-        int count = buildsToGet.size();
-        int pageNum = Integer.parseInt(page);
-        int startIndex;
-        int finalIndex;
-        if (pageNum * buildsPerPage < count)
-        {
-            startIndex = (pageNum - 1) * buildsPerPage;
-            finalIndex = (pageNum * buildsPerPage) + 1;
-        }
-        else
-        {
-            finalIndex = count;
-            if (count - 50 < 0)
-                startIndex = 0;
-            else
-                startIndex = count - 50;
-        }
-        ArrayList<BuildData> buildsToShow;
-        buildsToShow = new ArrayList<>(buildsToGet.subList(startIndex, finalIndex));
-        //buildsToShow.add(new BuildData("Example", new Date()
-        //        ,"0000000000000000000000000000000000000000"));
-        model.addAttribute("page", pageNum);
+    public String builds(@RequestParam(name="after", required=false, defaultValue="") String after,
+            @RequestParam(name="sha", required=false, defaultValue="") String sha,
+            @RequestParam(name="repo", required=false, defaultValue="") String repo,
+            @RequestParam(name="branch", required=false, defaultValue="") String branch,
+            @RequestParam(name="status", required=false, defaultValue="") String status, Model model) {
+        BuildQuery.Page page = CiApplication.CIDB.query(
+                query(repo, branch, status, sha, null, null, after, buildsPerPage));
+        model.addAttribute("after", after);
         model.addAttribute("sha", sha);
+        model.addAttribute("repo", repo);
+        model.addAttribute("branch", branch);
+        model.addAttribute("status", status);
         model.addAttribute("appName", appName);
-        model.addAttribute("buildsToShow", buildsToShow);
+        model.addAttribute("buildsToShow", page.getBuilds());
+        model.addAttribute("nextCursor", page.getNextCursor());
         return "builds";
     }
 
+    /**
+     * Creates the query of a request, bad parameters are answered with 400 Bad Request
+     */
+    static BuildQuery query(String repo, String branch, String status, String sha, Date from, Date to,
+                            String after, int limit) {
+        try {
+            return new BuildQuery()
+                    .repo(repo)
+                    .branch(branch)
+                    .status(status.isEmpty() ? null : BuildStatus.valueOf(status))
+                    .sha(sha)
+                    .between(from, to)
+                    .after(after)
+                    .limit(limit);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+    }
 }
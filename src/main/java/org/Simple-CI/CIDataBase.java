@@ -6,17 +6,79 @@ import org.springframework.boot.autoconfigure.info.ProjectInfoProperties;
 
 import java.io.*;
 import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 /**
  * Database for buildhistory. Saves build data objects and retrieves build data objects.
+ * Builds are kept in allBuilds by build id and indexed by sha, by repository and by creation time,
+ * so lookups and removals never scan the whole history. For the paged queries of {@link #query(BuildQuery)} builds are also
+ * indexed by creation time per repository, branch, repository and branch, and status.
+ * Builds are stored in a checksummed append-only {@link BuildJournal}. A build is on the disk when writeBuild
+ * returned, concurrent writers share their fsyncs. Removed builds are recorded as removal records, the journal is
+ * compacted once most of its records are dead. Snapshots and compactions run on a background thread, writers never
+ * wait for them. Database files of the former one file per commit format are moved into the journal when the
+ * database is opened.
  */
 public class CIDataBase {
 
     private final Logger log = LoggerFactory.getLogger(CIDataBase.class);
-    ArrayList<BuildData> allBuilds;
+    // by build id, in the order the builds were added
+    final LinkedHashMap<String, BuildData> allBuilds = new LinkedHashMap<>();
     File currentfolder;
+    private final Map<String, ArrayList<BuildData>> buildsBySha = new HashMap<>();
+    private final Map<String, LinkedHashMap<String, BuildData>> buildsByRepo = new HashMap<>();
+    private final NavigableMap<Long, ArrayList<BuildData>> buildsByTime = new TreeMap<>();
+    private final Map<String, NavigableMap<Long, ArrayList<BuildData>>> buildsByFilter = new HashMap<>();
+    private final ReadWriteLock indexLock = new ReentrantReadWriteLock();
+    private final BuildLogStore logStore;
+    private static final String RECORD_START = "#build";
+    private static final String RECORD_END = "#end";
+    private static final String TIMING_PREFIX = "timing.";
+    private static final long DEFAULT_MAX_CACHED_LOG_LINES = 200000;
+    private static final String SNAPSHOT_FILE = "snapshot.bin";
+    private static final int SNAPSHOT_INTERVAL = 100;
+    private static final String JOURNAL_PREFIX = "journal.";
+    private static final String RECORD_REMOVE = "#remove";
+    private static final int COMPACT_MIN_DEAD_RECORDS = 100;
+    private static final String UNMIGRATED_SUFFIX = ".unmigrated";
+    // snapshots and compactions of all databases, one at a time
+    private static final ExecutorService MAINTENANCE = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "database-maintenance");
+        t.setDaemon(true);
+        return t;
+    });
+    private int writesSinceSnapshot;
+    private boolean maintenanceScheduled;
+    private long snapshotsTaken;
+    private final Object snapshotLock = new Object();
+    private long snapshotWritten;
+    private final Object compactLock = new Object();
+    // records appended while the journal is compacted, null while it is not
+    private List<byte[]> appendedDuringCompaction;
+    // runs after the compacted journal is written and before it replaces the journal, for tests
+    volatile Runnable beforeCompactionSwap;
+    private BuildJournal journal;
+    private long generation;
+    private long journalRecords;
+    private final long openedAt = System.currentTimeMillis();
+    private long modifications;
+    private volatile long lastModified = openedAt;
 
     /*
 
@@ -25,7 +87,13 @@ public class CIDataBase {
      */
 
     public CIDataBase(String folderName){
-        ArrayList<BuildData> allBuildsList = new ArrayList<BuildData>();
+        this(folderName, DEFAULT_MAX_CACHED_LOG_LINES);
+    }
+    /*
+    @param folderName the database folder, ./database if empty.
+    maxCachedLogLines the maximum number of log lines kept in memory.
+     */
+    public CIDataBase(String folderName, long maxCachedLogLines){
         if(!folderName.isEmpty()){
             currentfolder = new File(folderName);
         } else {
@@ -34,97 +102,783 @@ public class CIDataBase {
         if(!currentfolder.isDirectory()){
             currentfolder.mkdir();
         }
-        File[] allFiles = currentfolder.listFiles();
-        for (File jsonFile:
-             allFiles) {
-            try{
-                ArrayList<BuildData> arr = readBuild(jsonFile);
-                for (int i = 0; i < arr.size() ; i++){
-                    allBuildsList.add(arr.get(i));
+        logStore = new BuildLogStore(new File(currentfolder, "logs"), maxCachedLogLines);
+        try {
+            openJournal();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the build journal in " + currentfolder, e);
+        }
+    }
+    /*
+    Opens the newest journal and adds its builds to the indexes. Builds in the snapshot are not parsed again,
+    only records appended after it. Journals left behind by a compaction and database files of the former
+    format are cleaned up.
+     */
+    private void openJournal() throws IOException {
+        File[] files = currentfolder.listFiles(File::isFile);
+        generation = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(JOURNAL_PREFIX))
+                continue;
+            if (name.endsWith(".tmp")) {
+                // compaction did not finish, the journal it replaces is still complete
+                file.delete();
+                continue;
+            }
+            try {
+                generation = Math.max(generation, Long.parseLong(name.substring(JOURNAL_PREFIX.length())));
+            } catch (NumberFormatException e) {
+                log.error("Ignoring " + file);
+            }
+        }
+        File journalFile = journalFile(generation);
+        for (File file : files)
+            if (file.getName().startsWith(JOURNAL_PREFIX) && file.isFile() && !file.equals(journalFile))
+                file.delete();
+        BuildSnapshot.Entry snapshot = loadSnapshot(journalFile);
+        long replayFrom = 0;
+        if (snapshot != null) {
+            replayFrom = snapshot.length;
+            journalRecords = snapshot.records;
+        }
+        final int[] replayed = {0};
+        journal = BuildJournal.open(journalFile, replayFrom, record -> {
+            replay(record);
+            replayed[0]++;
+        });
+        int migrated = migrate(files);
+        if (replayed[0] > 0 || migrated > 0)
+            snapshot();
+    }
+
+    private File journalFile(long generation) {
+        return new File(currentfolder, JOURNAL_PREFIX + generation);
+    }
+    /*
+    Applies one journal record to the indexes.
+    @param record a build or a removal, see writeBuild and removeBuildData
+     */
+    private void replay(byte[] record) {
+        journalRecords++;
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(record),
+                StandardCharsets.UTF_8))) {
+            String first = br.readLine();
+            if (RECORD_START.equals(first)) {
+                BuildData json = readRecord(br);
+                final String buildId = json.getBuildId();
+                json.setBuildLogLoader(() -> logStore.read(buildId));
+                addToIndex(json);
+            } else if (RECORD_REMOVE.equals(first)) {
+                for (BuildData json : readAllBuild(readRemoveRecord(br)))
+                    removeFromIndex(json);
+            } else {
+                throw new IOException("Unknown record " + first);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("Unreadable build record: " + e);
+        }
+    }
+    /*
+    Moves the builds of database files of the former format, one text file per commit, into the journal.
+    The files are deleted once their builds are on the disk. Builds that are already in the journal, because the
+    database stopped before it could delete the files, are not appended again. A file that could not be read to
+    its end is renamed to .unmigrated instead, the builds after its unreadable record are still in it.
+    @param files the files of the database folder
+    @return the number of builds moved
+     */
+    private int migrate(File[] files) throws IOException {
+        List<File> legacy = new ArrayList<>();
+        for (File file : files)
+            if (!file.getName().startsWith(SNAPSHOT_FILE) && !file.getName().startsWith(JOURNAL_PREFIX)
+                    && !file.getName().endsWith(UNMIGRATED_SUFFIX))
+                legacy.add(file);
+        if (legacy.isEmpty())
+            return 0;
+        int migrated = 0;
+        List<File> unreadable = new ArrayList<>();
+        synchronized (this) {
+            for (File file : legacy) {
+                ArrayList<BuildData> builds = new ArrayList<>();
+                try {
+                    if (!readBuild(file, builds))
+                        unreadable.add(file);
+                } catch (IOException e) {
+                    log.error("Could not read " + file + ": " + e);
+                    unreadable.add(file);
+                }
+                Set<String> known = new HashSet<>();
+                for (BuildData json : readAllBuild(file.getName()))
+                    known.add(json.getBuildId());
+                for (BuildData json : builds) {
+                    if (known.contains(json.getBuildId()))
+                        continue;
+                    append(record(json));
+                    addToIndex(json);
+                    migrated++;
                 }
-            } catch(IOException e){
-                log.error(e.toString());
             }
+            journal.syncAll();
+        }
+        for (File file : legacy) {
+            if (!unreadable.contains(file)) {
+                file.delete();
+                continue;
+            }
+            File aside = new File(file.getPath() + UNMIGRATED_SUFFIX);
+            if (file.renameTo(aside))
+                log.warn("Database file " + file + " has unreadable builds, kept as " + aside);
+            else
+                log.error("Database file " + file + " has unreadable builds and could not be renamed");
+        }
+        BuildJournal.syncFolder(currentfolder);
+        log.info("Moved " + migrated + " builds of " + legacy.size() + " database files to " + journal.getFile());
+        return migrated;
+    }
+    /*
+    Adds the builds of the snapshot to the indexes, unless the snapshot belongs to another journal.
+    @param journalFile the journal that is opened
+    @return the snapshot of the journal, null if there is none
+     */
+    private BuildSnapshot.Entry loadSnapshot(File journalFile) {
+        File snapshotFile = new File(currentfolder, SNAPSHOT_FILE);
+        if (!snapshotFile.isFile())
+            return null;
+        List<BuildSnapshot.Entry> entries;
+        try {
+            entries = BuildSnapshot.read(snapshotFile);
+        } catch (IOException e) {
+            log.error("Ignoring build snapshot: " + e);
+            return null;
+        }
+        for (BuildSnapshot.Entry entry : entries) {
+            if (!entry.fileName.equals(journalFile.getName()) || journalFile.length() < entry.length)
+                continue;
+            for (BuildData build : entry.builds) {
+                final String buildId = build.getBuildId();
+                build.setBuildLogLoader(() -> logStore.read(buildId));
+            }
+            addAllToIndex(entry.builds);
+            return entry;
+        }
+        return null;
+    }
+    /*
+    Writes a snapshot of all builds stored in the database, used to start up without parsing every record.
+    The builds and the journal length are taken with the database locked, the journal is synced and the snapshot
+    written without it, so writers are not held up.
+    @return true if it succeeded and false if it failed.
+     */
+    public boolean snapshot() {
+        List<BuildData> builds;
+        BuildJournal snapshotJournal;
+        long length;
+        long records;
+        long taken;
+        synchronized (this) {
+            indexLock.readLock().lock();
+            try {
+                builds = new ArrayList<BuildData>(allBuilds.values());
+            } finally {
+                indexLock.readLock().unlock();
+            }
+            snapshotJournal = journal;
+            try {
+                length = journal.size();
+            } catch (IOException e) {
+                log.error("Could not write build snapshot: " + e);
+                return false;
+            }
+            records = journalRecords;
+            taken = ++snapshotsTaken;
+            writesSinceSnapshot = 0;
+        }
+        synchronized (snapshotLock) {
+            if (taken < snapshotWritten)
+                return true; // a newer snapshot is on the disk already
+            try {
+                // the snapshot must not cover records that could still be lost
+                snapshotJournal.syncAll();
+                BuildSnapshot.write(new File(currentfolder, SNAPSHOT_FILE), Collections.singletonList(
+                        new BuildSnapshot.Entry(snapshotJournal.getFile().getName(), length, records, builds)));
+                snapshotWritten = taken;
+                return true;
+            } catch (IOException e) {
+                log.error("Could not write build snapshot: " + e);
+                return false;
+            }
+        }
+    }
+    /*
+    Schedules a snapshot, and a compaction if most records of the journal are dead, on the maintenance thread.
+    Called with the database locked.
+     */
+    private void scheduleMaintenance() {
+        if (maintenanceScheduled)
+            return;
+        maintenanceScheduled = true;
+        MAINTENANCE.execute(this::maintain);
+    }
+    /*
+    Compacts the journal if it is wasteful, which writes a snapshot too, else writes a snapshot.
+     */
+    private void maintain() {
+        boolean compact;
+        synchronized (this) {
+            maintenanceScheduled = false;
+            compact = wasteful();
+        }
+        if (compact)
+            compact();
+        else
+            snapshot();
+    }
+    /*
+    Waits until the snapshots and compactions scheduled so far are done, for tests.
+     */
+    void awaitMaintenance() throws InterruptedException, ExecutionException {
+        MAINTENANCE.submit(() -> { }).get();
+    }
+    /*
+    Rewrites the journal with only the builds that were not removed. The compacted journal is written next to the
+    old one under a temporary name and only moved into place as the next generation once it is complete, a crash
+    leaves either journal complete.
+    The builds are taken with the database locked, the compacted journal is written and synced without it. Records
+    appended meanwhile are then appended to the compacted journal and the journals are swapped with the database
+    locked, so writers only wait for those records.
+    Other databases on the same folder must not write while the journal is compacted.
+    @return true if it succeeded and false if it failed.
+     */
+    public boolean compact() {
+        synchronized (compactLock) {
+            List<BuildData> builds;
+            File compactedFile;
+            synchronized (this) {
+                indexLock.readLock().lock();
+                try {
+                    builds = new ArrayList<BuildData>(allBuilds.values());
+                } finally {
+                    indexLock.readLock().unlock();
+                }
+                compactedFile = journalFile(generation + 1);
+                appendedDuringCompaction = new ArrayList<>();
+            }
+            // not a journal name until the records appended meanwhile are in it too
+            File tmpFile = new File(compactedFile.getPath() + ".tmp");
+            List<byte[]> records = new ArrayList<>(builds.size());
+            for (BuildData build : builds)
+                records.add(record(build));
+            BuildJournal compacted;
+            try {
+                BuildJournal.write(tmpFile, records);
+                compacted = BuildJournal.open(tmpFile, tmpFile.length(), record -> {});
+            } catch (IOException e) {
+                log.error("Could not compact build journal: " + e);
+                synchronized (this) {
+                    appendedDuringCompaction = null;
+                }
+                tmpFile.delete();
+                return false;
+            }
+            Runnable hook = beforeCompactionSwap;
+            if (hook != null)
+                hook.run();
+            synchronized (this) {
+                List<byte[]> tail = appendedDuringCompaction;
+                appendedDuringCompaction = null;
+                BuildJournal old = journal;
+                try {
+                    for (byte[] record : tail)
+                        compacted.append(record);
+                    compacted.syncAll();
+                    // writers that appended to the old journal find their records synced
+                    old.syncAll();
+                    compacted = compacted.moveTo(compactedFile);
+                } catch (IOException e) {
+                    log.error("Could not compact build journal: " + e);
+                    try {
+                        compacted.close();
+                    } catch (IOException suppressed) {
+                        e.addSuppressed(suppressed);
+                    }
+                    tmpFile.delete();
+                    return false;
+                }
+                log.info("Compacted " + old.getFile() + " from " + journalRecords + " to " +
+                        (records.size() + tail.size()) + " records");
+                journal = compacted;
+                generation++;
+                journalRecords = records.size() + tail.size();
+                try {
+                    old.close();
+                } catch (IOException e) {
+                    log.error("Could not close build journal: " + e);
+                }
+                old.getFile().delete();
+                BuildJournal.syncFolder(currentfolder);
+            }
+        }
+        return snapshot();
+    }
+    /*
+    Checks if most records of the journal belong to removed builds, so that it should be compacted.
+    Called with the database locked.
+     */
+    private boolean wasteful() {
+        long live = allBuilds.size();
+        long dead = journalRecords - live;
+        return dead >= COMPACT_MIN_DEAD_RECORDS && dead >= live;
+    }
+    /*
+    @return the number of records in the journal, including builds that were removed and removal records
+     */
+    public long getJournalRecords() {
+        synchronized (this) {
+            return journalRecords;
+        }
+    }
+    /*
+    @return the journal the builds are stored in
+     */
+    BuildJournal getJournal() {
+        synchronized (this) {
+            return journal;
+        }
+    }
+    /*
+    @return the store that keeps the build logs
+     */
+    public BuildLogStore getLogStore() {
+        return logStore;
+    }
+    /*
+    @param a build that should be added to the history and all indexes, without writing it to disk
+     */
+    void addToIndex(BuildData build) {
+        indexLock.writeLock().lock();
+        try {
+            index(build);
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+    /*
+    @param builds that should be added to the history and all indexes at once, without writing them to disk
+     */
+    private void addAllToIndex(List<BuildData> builds) {
+        indexLock.writeLock().lock();
+        try {
+            for (BuildData build : builds)
+                index(build);
+        } finally {
+            indexLock.writeLock().unlock();
         }
-        allBuilds = allBuildsList;
+    }
+
+    private void index(BuildData build) {
+        modified();
+        BuildData replaced = allBuilds.put(build.getBuildId(), build);
+        // a build written again replaces the one with its id
+        if (replaced != null)
+            unindex(replaced);
+        buildsBySha.computeIfAbsent(build.getSha(), k -> new ArrayList<>(1)).add(build);
+        buildsByRepo.computeIfAbsent(build.getRepoFullName(), k -> new LinkedHashMap<>())
+                .put(build.getBuildId(), build);
+        buildsByTime.computeIfAbsent(build.getDateCreated().getTime(), k -> new ArrayList<>(1)).add(build);
+        for (String key : filterKeys(build.getRepoFullName(), build.getBranch(), build.getBuildStatus()))
+            buildsByFilter.computeIfAbsent(key, k -> new TreeMap<>())
+                    .computeIfAbsent(build.getDateCreated().getTime(), k -> new ArrayList<>(1)).add(build);
+    }
+    /*
+    @param the repository, branch and status of a build, branch and status may be null
+    @return the keys of the filter indexes the build is in
+     */
+    private static List<String> filterKeys(String repoFullName, String branch, BuildStatus status) {
+        List<String> keys = new ArrayList<>(4);
+        keys.add(filterKey(repoFullName, null, null));
+        if (branch != null) {
+            keys.add(filterKey(null, branch, null));
+            keys.add(filterKey(repoFullName, branch, null));
+        }
+        if (status != null)
+            keys.add(filterKey(null, null, status));
+        return keys;
+    }
+
+    private static String filterKey(String repoFullName, String branch, BuildStatus status) {
+        if (status != null)
+            return "status\0" + status.name();
+        if (repoFullName == null)
+            return "branch\0" + branch;
+        return branch == null ? "repo\0" + repoFullName : "repo\0" + repoFullName + "\0" + branch;
+    }
+    /*
+    @param a build that should be removed from the history and all indexes
+     */
+    private void removeFromIndex(BuildData build) {
+        indexLock.writeLock().lock();
+        try {
+            modified();
+            if (allBuilds.remove(build.getBuildId(), build))
+                unindex(build);
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+    /*
+    Removes a build from every index but allBuilds. Called with the write lock held.
+     */
+    private void unindex(BuildData build) {
+        removeFromIndex(buildsBySha, build.getSha(), build);
+        LinkedHashMap<String, BuildData> repoBuilds = buildsByRepo.get(build.getRepoFullName());
+        if (repoBuilds != null && repoBuilds.remove(build.getBuildId(), build) && repoBuilds.isEmpty())
+            buildsByRepo.remove(build.getRepoFullName());
+        removeFromIndex(buildsByTime, build.getDateCreated().getTime(), build);
+        for (String key : filterKeys(build.getRepoFullName(), build.getBranch(), build.getBuildStatus())) {
+            NavigableMap<Long, ArrayList<BuildData>> index = buildsByFilter.get(key);
+            if (index == null)
+                continue;
+            removeFromIndex(index, build.getDateCreated().getTime(), build);
+            if (index.isEmpty())
+                buildsByFilter.remove(key);
+        }
+    }
+
+    /*
+    Called with the write lock held whenever a build is added or removed.
+     */
+    private void modified() {
+        modifications++;
+        lastModified = System.currentTimeMillis();
+    }
+    /*
+    @return a tag that changes whenever a build is added or removed, also across restarts. Used as ETag.
+     */
+    public String getVersionTag() {
+        indexLock.readLock().lock();
+        try {
+            return Long.toString(openedAt, 36) + "." + Long.toString(modifications, 36);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+    /*
+    @return the time a build was last added or removed, or when the database was opened
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    private static <K> void removeFromIndex(Map<K, ArrayList<BuildData>> index, K key, BuildData build) {
+        ArrayList<BuildData> builds = index.get(key);
+        if (builds == null)
+            return;
+        builds.remove(build);
+        if (builds.isEmpty())
+            index.remove(key);
     }
     /*
     @param a hash for a commit
     @return all builds that was done on a commit with the sha = hash
      */
     public ArrayList<BuildData> readAllBuild(String hash) {
-        ArrayList<BuildData> arr;
-        arr = new ArrayList<BuildData>();
-        for (int i = 0; i < allBuilds.size();i++){
-            if(allBuilds.get(i).getSha().equals(hash)){
-                arr.add(allBuilds.get(i));
+        indexLock.readLock().lock();
+        try {
+            ArrayList<BuildData> arr = buildsBySha.get(hash);
+            return arr == null ? new ArrayList<BuildData>() : new ArrayList<BuildData>(arr);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+    /*
+    @param the id of a build, see BuildData.getBuildId
+    @return the build, null if there is no build with that id
+     */
+    public BuildData readBuildById(String buildId) {
+        int dash = buildId.lastIndexOf('-');
+        if (dash <= 0)
+            return null;
+        String hash = buildId.substring(0, dash);
+        indexLock.readLock().lock();
+        try {
+            for (BuildData build : buildsBySha.getOrDefault(hash, new ArrayList<BuildData>()))
+                if (build.getBuildId().equals(buildId))
+                    return build;
+            return null;
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+    /*
+    @param the full name of a repository
+    @return all builds that was done on that repository, oldest first
+     */
+    public ArrayList<BuildData> readAllBuildsForRepo(String repoFullName) {
+        indexLock.readLock().lock();
+        try {
+            LinkedHashMap<String, BuildData> builds = buildsByRepo.get(repoFullName);
+            return builds == null ? new ArrayList<BuildData>() : new ArrayList<BuildData>(builds.values());
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+    /*
+    @param from and to, the range of creation dates, from inclusive and to exclusive
+    @return all builds created in the range, oldest first
+     */
+    public ArrayList<BuildData> getBuildsBetween(Date from, Date to) {
+        indexLock.readLock().lock();
+        try {
+            ArrayList<BuildData> arr = new ArrayList<BuildData>();
+            for (ArrayList<BuildData> builds : buildsByTime.subMap(from.getTime(), true, to.getTime(), false).values())
+                arr.addAll(builds);
+            return arr;
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+    /*
+    @param before, only builds created before this date are returned, null for the newest builds.
+    amount, the maximum number of builds to return.
+    @return up to amount builds created before the given date, newest first
+     */
+    public ArrayList<BuildData> getLatestBuilds(Date before, int amount) {
+        indexLock.readLock().lock();
+        try {
+            NavigableMap<Long, ArrayList<BuildData>> older = before == null
+                    ? buildsByTime.descendingMap()
+                    : buildsByTime.headMap(before.getTime(), false).descendingMap();
+            ArrayList<BuildData> arr = new ArrayList<BuildData>(Math.min(amount, 64));
+            for (ArrayList<BuildData> list : older.values()) {
+                for (int i = list.size() - 1; i >= 0 && arr.size() < amount; i--)
+                    arr.add(list.get(i));
+                if (arr.size() >= amount)
+                    break;
             }
+            return arr;
+        } finally {
+            indexLock.readLock().unlock();
         }
-        return arr;
+    }
+    /*
+    Reads one page of builds, newest first. The query walks the creation time index of its most selective filter
+    from the cursor on and stops after the page, so a page costs the same however long the history is.
+    @param query the filters, the cursor of the previous page and the page size.
+    @return the builds of the page and the cursor of the next page
+     */
+    public BuildQuery.Page query(BuildQuery query) {
+        indexLock.readLock().lock();
+        try {
+            ArrayList<BuildData> page = new ArrayList<BuildData>(Math.min(query.getLimit(), 64) + 1);
+            NavigableMap<Long, ArrayList<BuildData>> index = indexFor(query);
+            long lower = query.getLowerTime();
+            long upper = query.getUpperTime();
+            if (index != null && lower <= upper) {
+                for (ArrayList<BuildData> builds : index.subMap(lower, true, upper, true).descendingMap().values()) {
+                    if (builds.size() > 1) {
+                        builds = new ArrayList<BuildData>(builds);
+                        builds.sort(BuildQuery.NEWEST_FIRST);
+                    }
+                    for (int i = 0; i < builds.size() && page.size() <= query.getLimit(); i++)
+                        if (query.matches(builds.get(i)))
+                            page.add(builds.get(i));
+                    if (page.size() > query.getLimit())
+                        break;
+                }
+            }
+            String nextCursor = null;
+            if (page.size() > query.getLimit()) {
+                page.remove(page.size() - 1);
+                nextCursor = page.get(page.size() - 1).getBuildId();
+            }
+            return new BuildQuery.Page(page, nextCursor);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+    /*
+    @param a query
+    @return the creation time index with the fewest builds that still holds all builds of the query, null if none
+     */
+    private NavigableMap<Long, ArrayList<BuildData>> indexFor(BuildQuery query) {
+        if (query.getSha() != null) {
+            NavigableMap<Long, ArrayList<BuildData>> bySha = new TreeMap<>();
+            for (BuildData build : buildsBySha.getOrDefault(query.getSha(), new ArrayList<BuildData>()))
+                bySha.computeIfAbsent(build.getDateCreated().getTime(), k -> new ArrayList<>(1)).add(build);
+            return bySha;
+        }
+        if (query.getBranch() != null)
+            return buildsByFilter.get(filterKey(query.getRepoFullName(), query.getBranch(), null));
+        if (query.getRepoFullName() != null)
+            return buildsByFilter.get(filterKey(query.getRepoFullName(), null, null));
+        if (query.getStatus() != null)
+            return buildsByFilter.get(filterKey(null, null, query.getStatus()));
+        return buildsByTime;
     }
     /*
     @param amount of build Datas to return
-    @return returns an arraylist with the amount of build datas requested
+    @return returns a copy of the first amount builds, oldest first
      */
     public ArrayList<BuildData> getAllBuilds(int amount){
-        if(amount>allBuilds.size()){
-            return allBuilds;
+        indexLock.readLock().lock();
+        try {
+            ArrayList<BuildData> arr = new ArrayList<BuildData>(Math.min(amount, allBuilds.size()));
+            for (BuildData build : allBuilds.values()) {
+                if (arr.size() >= amount)
+                    break;
+                arr.add(build);
+            }
+            return arr;
+        } finally {
+            indexLock.readLock().unlock();
         }
-        return new ArrayList<BuildData>(allBuilds.subList(0,amount));
     }
     /*
-    @return returns all of our builds
+    @return returns a copy of all of our builds
      */
     public ArrayList<BuildData> getAllBuilds(){
-        return allBuilds;
+        indexLock.readLock().lock();
+        try {
+            return new ArrayList<BuildData>(allBuilds.values());
+        } finally {
+            indexLock.readLock().unlock();
+        }
     }
     /*
-
-    @param hash is the name of the file to be read.
-    @return returns the BuildData that was put in that file
+    Reads a database file of the former format, one text file per commit.
+    @param file is the file to be read.
+    @return returns the BuildData that was put in that file, their logs are loaded on demand from the log store.
+    The builds before the first unreadable record if there is one, null if the file could not be opened.
      */
     public ArrayList<BuildData> readBuild(File file) throws IOException{
-        BufferedReader br;
+        ArrayList<BuildData> answer = new ArrayList<BuildData>();
+        try {
+            readBuild(file, answer);
+        } catch (FileNotFoundException e) {
+            log.error(e.toString());
+            return null;
+        }
+        return answer;
+    }
+    /*
+    Reads a database file of the former format into a list.
+    @param file is the file to be read, answer the list the builds are added to
+    @return true if the file was read to its end, false if it stopped at an unreadable record
+     */
+    private boolean readBuild(File file, List<BuildData> answer) throws IOException {
         synchronized(this) {
-            try {
-                br = new BufferedReader(new FileReader(file));
-            } catch (FileNotFoundException e) {
-                log.error(e.toString());
-                return null;
-            }
-            ArrayList<BuildData> answer = new ArrayList<BuildData>();
-            while (true) {
-                BuildData json;
-                try {
-                    json = new BuildData(br.readLine(), new Date(Long.parseLong(br.readLine())), br.readLine());
-                } catch (Exception e) {
-                    br.close();
-                    return answer;
-                }
-                json.setDateStart(new Date(Long.parseLong(br.readLine())));
-                json.setDateFinish(new Date(Long.parseLong(br.readLine())));
-                int i = Integer.parseInt(br.readLine());
-                ArrayList<String> buildLogs = new ArrayList<String>(i);
-                for (int j = 0; j < i; j++) {
-                    buildLogs.add(br.readLine());
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                    StandardCharsets.UTF_8))) {
+                while (true) {
+                    BuildData json;
+                    try {
+                        String first = br.readLine();
+                        if (first == null)
+                            return true;
+                        json = RECORD_START.equals(first) ? readRecord(br) : readLegacyRecord(first, br);
+                    } catch (Exception e) {
+                        log.error("Unreadable build record in " + file + ": " + e);
+                        return false;
+                    }
+                    final String buildId = json.getBuildId();
+                    json.setBuildLogLoader(() -> logStore.read(buildId));
+                    answer.add(json);
                 }
-                json.setBuildLog(buildLogs);
-                String str = br.readLine();
-                if (str.equals("error")) {
-                    json.setBuildStatus(BuildStatus.error);
-                } else if (str.equals("failure")) {
-                    json.setBuildStatus(BuildStatus.failure);
-                } else if (str.equals("pending")) {
-                    json.setBuildStatus(BuildStatus.pending);
-                } else if (str.equals("success")) {
-                    json.setBuildStatus(BuildStatus.success);
-                }
-                json.setMessage(br.readLine());
-                answer.add(json);
             }
         }
     }
     /*
+    Reads a record written by writeBuild, one key=value line per field until the end marker.
+    @param reader positioned after the start marker
+    @return the build without its log
+     */
+    private static BuildData readRecord(BufferedReader br) throws IOException {
+        Map<String, String> fields = new LinkedHashMap<>();
+        String line;
+        while ((line = br.readLine()) != null && !RECORD_END.equals(line)) {
+            int eq = line.indexOf('=');
+            fields.put(line.substring(0, eq), unescape(line.substring(eq + 1)));
+        }
+        if (line == null)
+            throw new EOFException("Truncated build record");
+        BuildData json = new BuildData(fields.get("repoFullName"),
+                new Date(Long.parseLong(fields.get("dateCreated"))), fields.get("sha"));
+        if (fields.containsKey("dateStart"))
+            json.setDateStart(new Date(Long.parseLong(fields.get("dateStart"))));
+        if (fields.containsKey("dateFinish"))
+            json.setDateFinish(new Date(Long.parseLong(fields.get("dateFinish"))));
+        if (fields.containsKey("buildStatus"))
+            json.setBuildStatus(BuildStatus.valueOf(fields.get("buildStatus")));
+        json.setMessage(fields.get("message"));
+        json.setBranch(fields.get("branch"));
+        for (Map.Entry<String, String> field : fields.entrySet())
+            if (field.getKey().startsWith(TIMING_PREFIX))
+                json.setTiming(field.getKey().substring(TIMING_PREFIX.length()), Long.parseLong(field.getValue()));
+        return json;
+    }
+    /*
+    Reads a removal record written by removeBuildData.
+    @param reader positioned after the start marker
+    @return the sha whose builds were removed
+     */
+    private static String readRemoveRecord(BufferedReader br) throws IOException {
+        String line = br.readLine();
+        if (line == null || !line.startsWith("sha=") || !RECORD_END.equals(br.readLine()))
+            throw new EOFException("Truncated removal record");
+        return unescape(line.substring("sha=".length()));
+    }
+    /*
+    Reads a record of the first database format, where the log lines are stored inline.
+    The log lines are moved to the log store the first time the record is read.
+    @param the first line of the record and a reader positioned after it
+    @return the build without its log
+     */
+    private BuildData readLegacyRecord(String repoFullName, BufferedReader br) throws IOException {
+        BuildData json = new BuildData(repoFullName, new Date(Long.parseLong(br.readLine())), br.readLine());
+        json.setDateStart(new Date(Long.parseLong(br.readLine())));
+        json.setDateFinish(new Date(Long.parseLong(br.readLine())));
+        int i = Integer.parseInt(br.readLine());
+        boolean migrate = !logStore.exists(json.getBuildId());
+        ArrayList<String> buildLogs = new ArrayList<String>(migrate ? i : 0);
+        for (int j = 0; j < i; j++) {
+            String line = br.readLine();
+            if (migrate)
+                buildLogs.add(line);
+        }
+        if (migrate)
+            logStore.write(json.getBuildId(), buildLogs);
+        String str = br.readLine();
+        if (str.equals("error")) {
+            json.setBuildStatus(BuildStatus.error);
+        } else if (str.equals("failure")) {
+            json.setBuildStatus(BuildStatus.failure);
+        } else if (str.equals("pending")) {
+            json.setBuildStatus(BuildStatus.pending);
+        } else if (str.equals("success")) {
+            json.setBuildStatus(BuildStatus.success);
+        }
+        json.setMessage(br.readLine());
+        return json;
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char n = value.charAt(++i);
+                sb.append(n == 'n' ? '\n' : n == 'r' ? '\r' : n);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+    /*
     @param the hash for the given build and the date for the specific build with that hash.
     @return the build in BuildData form.
      */
@@ -141,56 +895,103 @@ public class CIDataBase {
     }
     /*
 
-    @param a data object that wants to be written to the database.
+    @param a data object that wants to be written to the database. Its log is moved to the log store
+    and from then on loaded on demand.
     @return true if it succeeded and false if it failed.
      */
     public boolean writeBuild(BuildData json) throws IOException{
-        BufferedWriter bw;
+        final String buildId = json.getBuildId();
+        // logs streamed by the builder are already in the log store
+        if (json.isBuildLogInMemory() || !logStore.exists(buildId)) {
+            List<String> buildLogs = json.getBuildLog();
+            logStore.write(buildId, buildLogs != null ? buildLogs : new ArrayList<String>());
+        }
+        byte[] record = record(json);
+        BuildJournal written;
+        long ticket;
         // Only one thread at the time can write to the database
         synchronized (this) {
+            written = journal;
             try {
-                bw = new BufferedWriter(new FileWriter(new File(currentfolder, json.getSha()), true));
-            } catch (FileNotFoundException e) {
+                ticket = append(record);
+            } catch (IOException e) {
                 log.error(e.toString());
                 return false;
             }
-            bw.write(json.getRepoFullName());
-            bw.write('\n');
-            bw.write("" + json.getDateCreated().getTime());
-            bw.write('\n');
-            bw.write(json.getSha());
-            bw.write('\n');
-            bw.write("" + json.getDateStart().getTime());
-            bw.write('\n');
-            bw.write("" + json.getDateFinish().getTime());
-            bw.write('\n');
-            ArrayList<String> buildLogs = (ArrayList<String>) json.getBuildLog();
-            bw.write("" + buildLogs.size());
-            bw.write('\n');
-            for (int i = 0; i < buildLogs.size(); i++) {
-                bw.write(buildLogs.get(i));
-                bw.write('\n');
-            }
-            bw.write(json.getBuildStatus().name());
-            bw.write('\n');
-            bw.write(json.getMessage());
-            bw.write('\n');
-            bw.flush();
-            allBuilds.add(json);
-            bw.close();
+            json.setBuildLogLoader(() -> logStore.read(buildId));
+            addToIndex(json);
+            if (++writesSinceSnapshot >= SNAPSHOT_INTERVAL)
+                scheduleMaintenance();
         }
+        // outside the lock, so that writers arriving meanwhile are synced by the same fsync
+        written.sync(ticket);
         return true;
     }
     /*
+    Appends a record to the journal. Called with the database locked.
+    @return the ticket to sync the record with
+     */
+    private long append(byte[] record) throws IOException {
+        long ticket = journal.append(record);
+        journalRecords++;
+        if (appendedDuringCompaction != null)
+            appendedDuringCompaction.add(record);
+        return ticket;
+    }
+    /*
+    @param a build
+    @return its journal record, one key=value line per field between the start and end markers
+     */
+    private static byte[] record(BuildData json) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append(RECORD_START).append('\n');
+        writeField(sb, "repoFullName", json.getRepoFullName());
+        writeField(sb, "dateCreated", "" + json.getDateCreated().getTime());
+        writeField(sb, "sha", json.getSha());
+        writeField(sb, "branch", json.getBranch());
+        writeField(sb, "dateStart", json.getDateStart() != null ? "" + json.getDateStart().getTime() : null);
+        writeField(sb, "dateFinish", json.getDateFinish() != null ? "" + json.getDateFinish().getTime() : null);
+        writeField(sb, "buildStatus", json.getBuildStatus() != null ? json.getBuildStatus().name() : null);
+        writeField(sb, "message", json.getMessage());
+        for (Map.Entry<String, Long> timing : json.getTimings().entrySet())
+            writeField(sb, TIMING_PREFIX + timing.getKey(), "" + timing.getValue());
+        sb.append(RECORD_END).append('\n');
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void writeField(StringBuilder sb, String key, String value) {
+        if (value == null)
+            return;
+        sb.append(key).append('=').append(escape(value)).append('\n');
+    }
+    /*
+    Removes all builds of a commit. A removal record is appended to the journal, so that the builds are not
+    read again when the database is opened.
     @param String specifying what hash to remove
     @return the list of buildDatas that were removed
      */
     public ArrayList<BuildData> removeBuildData(String hash) throws IOException{
-        ArrayList<BuildData> bds = readAllBuild(hash);
-        allBuilds.removeAll(bds);
+        StringBuilder sb = new StringBuilder(64);
+        sb.append(RECORD_REMOVE).append('\n');
+        writeField(sb, "sha", hash);
+        sb.append(RECORD_END).append('\n');
+        byte[] record = sb.toString().getBytes(StandardCharsets.UTF_8);
+        ArrayList<BuildData> bds;
+        BuildJournal written;
+        long ticket;
+        synchronized (this) {
+            written = journal;
+            ticket = append(record);
+            bds = readAllBuild(hash);
+            for (BuildData bd : bds) {
+                removeFromIndex(bd);
+                logStore.delete(bd.getBuildId());
+            }
+        }
+        written.sync(ticket);
         synchronized (this) {
-            File f = new File(currentfolder.getAbsoluteFile() + File.separator + hash);
-            f.delete();
+            if (wasteful())
+                scheduleMaintenance();
         }
         return bds;
     }
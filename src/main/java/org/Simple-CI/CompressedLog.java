@@ -0,0 +1,316 @@
+package org.Simple-CI;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A finished build log stored as deflate compressed chunks of whole lines with an index at the end of the file.
+ * Every chunk is compressed on its own, so a range of lines or bytes is read by decompressing only the chunks
+ * that hold it. The index holds, for every chunk, where it is in the file and the number of its first line and
+ * the offset of its first byte in the uncompressed log, so byte offsets of a log tailed while it was plain text
+ * stay valid after it is compressed.
+ * <pre>
+ * int magic, int version, chunks, int chunk count,
+ * per chunk: long file offset, int compressed length, int length, long first line, long first byte,
+ * long lines, long bytes, long index offset, int magic
+ * </pre>
+ */
+public class CompressedLog {
+
+    private static final int MAGIC = 0x53434c5a;
+    private static final int VERSION = 1;
+    private static final int FOOTER_BYTES = 12;
+    private static final int INDEX_ENTRY_BYTES = 32;
+    static final int CHUNK_BYTES = 64 * 1024;
+
+    private final File file;
+    private final long[] fileOffsets;
+    private final int[] compressedLengths;
+    private final int[] lengths;
+    private final long[] firstLines;
+    private final long[] firstBytes;
+    private final long lines;
+    private final long bytes;
+
+    private CompressedLog(File file, int chunks, ByteBuffer index) {
+        this.file = file;
+        fileOffsets = new long[chunks];
+        compressedLengths = new int[chunks];
+        lengths = new int[chunks];
+        firstLines = new long[chunks];
+        firstBytes = new long[chunks];
+        for (int i = 0; i < chunks; i++) {
+            fileOffsets[i] = index.getLong();
+            compressedLengths[i] = index.getInt();
+            lengths[i] = index.getInt();
+            firstLines[i] = index.getLong();
+            firstBytes[i] = index.getLong();
+        }
+        lines = index.getLong();
+        bytes = index.getLong();
+    }
+
+    /**
+     * Reads the index of a compressed log
+     * @param file compressed log file
+     * @return the log, its chunks are read on demand
+     * @throws IOException if the file could not be read or is not a compressed log
+     */
+    public static CompressedLog open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() < 8 + FOOTER_BYTES || raf.readInt() != MAGIC || raf.readInt() != VERSION)
+                throw new IOException("Not a compressed log: " + file);
+            raf.seek(raf.length() - FOOTER_BYTES);
+            long indexOffset = raf.readLong();
+            if (raf.readInt() != MAGIC || indexOffset < 8 || indexOffset > raf.length() - FOOTER_BYTES)
+                throw new IOException("Corrupt compressed log: " + file);
+            // the index is read with one read, it is small
+            byte[] index = new byte[(int) (raf.length() - FOOTER_BYTES - indexOffset)];
+            raf.seek(indexOffset);
+            raf.readFully(index);
+            ByteBuffer buffer = ByteBuffer.wrap(index);
+            int chunks = buffer.getInt();
+            if (index.length != 4 + chunks * (long) INDEX_ENTRY_BYTES + 16)
+                throw new IOException("Corrupt compressed log: " + file);
+            return new CompressedLog(file, chunks, buffer);
+        }
+    }
+
+    /**
+     * Getter for the number of lines of the log
+     * @return lines
+     */
+    public long getLines() {
+        return lines;
+    }
+
+    /**
+     * Getter for the size of the uncompressed log
+     * @return bytes
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Reads a range of lines
+     * @param from number of the first line, counting from 0
+     * @param count maximum number of lines
+     * @return the lines, fewer at the end of the log
+     * @throws IOException if the log could not be read
+     */
+    public List<String> readLines(long from, int count) throws IOException {
+        List<String> result = new ArrayList<>(Math.max(0, (int) Math.min(count, lines - from)));
+        if (from >= lines || count <= 0)
+            return result;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            for (int chunk = find(firstLines, from); chunk < lengths.length && result.size() < count; chunk++) {
+                byte[] raw = inflate(raf, chunk);
+                long line = firstLines[chunk];
+                int start = 0;
+                for (int i = 0; i <= raw.length && result.size() < count; i++) {
+                    if (i < raw.length && raw[i] != '\n')
+                        continue;
+                    // the last line of the log may have no newline
+                    if (i == raw.length && start == raw.length)
+                        break;
+                    if (line++ >= from)
+                        result.add(new String(raw, start, i - start, StandardCharsets.UTF_8));
+                    start = i + 1;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads all lines of the log
+     * @return the lines
+     * @throws IOException if the log could not be read
+     */
+    public List<String> readAll() throws IOException {
+        return readLines(0, (int) Math.min(lines, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Reads bytes of the uncompressed log
+     * @param offset offset of the first byte
+     * @param maxBytes maximum number of bytes
+     * @return the bytes, fewer at the end of the log
+     * @throws IOException if the log could not be read
+     */
+    public byte[] readBytes(long offset, int maxBytes) throws IOException {
+        if (offset >= bytes || maxBytes <= 0)
+            return new byte[0];
+        ByteArrayOutputStream result = new ByteArrayOutputStream((int) Math.min(maxBytes, bytes - offset));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            for (int chunk = find(firstBytes, offset); chunk < lengths.length && result.size() < maxBytes; chunk++) {
+                byte[] raw = inflate(raf, chunk);
+                int start = (int) Math.max(0, offset - firstBytes[chunk]);
+                result.write(raw, start, Math.min(raw.length - start, maxBytes - result.size()));
+            }
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * Finds the chunk that holds a line or a byte
+     * @return the last chunk that starts at or before position
+     */
+    private static int find(long[] starts, long position) {
+        int i = Arrays.binarySearch(starts, position);
+        return i >= 0 ? i : Math.max(0, -i - 2);
+    }
+
+    private byte[] inflate(RandomAccessFile raf, int chunk) throws IOException {
+        byte[] compressed = new byte[compressedLengths[chunk]];
+        raf.seek(fileOffsets[chunk]);
+        raf.readFully(compressed);
+        byte[] raw = new byte[lengths[chunk]];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int n = 0;
+            while (n < raw.length && !inflater.finished()) {
+                int read = inflater.inflate(raw, n, raw.length - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                n += read;
+            }
+            if (n != raw.length)
+                throw new IOException("Corrupt chunk " + chunk + " in " + file);
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt chunk " + chunk + " in " + file, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Writes a compressed log. Bytes are collected until a chunk is full and then compressed up to its last
+     * newline, lines are never split between chunks.
+     */
+    public static class Writer implements Closeable {
+        private final DataOutputStream out;
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final List<long[]> index = new ArrayList<>();
+        private byte[] pending = new byte[CHUNK_BYTES * 2];
+        private int pendingLength;
+        private long position;
+        private long lines;
+        private long bytes;
+
+        /**
+         * Starts a compressed log
+         * @param file file to write, replaced if it exists
+         * @throws IOException if the file could not be created
+         */
+        public Writer(File file) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            position = 8;
+        }
+
+        /**
+         * Appends bytes of the log
+         * @param b buffer
+         * @param off offset in the buffer
+         * @param len number of bytes
+         * @throws IOException if the file could not be written
+         */
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (pendingLength + len > pending.length)
+                pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + len));
+            System.arraycopy(b, off, pending, pendingLength, len);
+            pendingLength += len;
+            if (pendingLength < CHUNK_BYTES)
+                return;
+            int end = pendingLength;
+            while (end > 0 && pending[end - 1] != '\n')
+                end--;
+            if (end > 0)
+                flushChunk(end);
+        }
+
+        /**
+         * Appends one line of the log
+         * @param line the line, without newline
+         * @throws IOException if the file could not be written
+         */
+        public void writeLine(String line) throws IOException {
+            byte[] b = (line + "\n").getBytes(StandardCharsets.UTF_8);
+            write(b, 0, b.length);
+        }
+
+        private void flushChunk(int length) throws IOException {
+            int newlines = 0;
+            for (int i = 0; i < length; i++)
+                if (pending[i] == '\n')
+                    newlines++;
+            deflater.reset();
+            deflater.setInput(pending, 0, length);
+            deflater.finish();
+            byte[] buffer = new byte[Math.max(64, length / 4)];
+            int compressed = 0;
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+                compressed += n;
+            }
+            index.add(new long[]{position, compressed, length, lines, bytes});
+            position += compressed;
+            lines += newlines;
+            bytes += length;
+            System.arraycopy(pending, length, pending, 0, pendingLength - length);
+            pendingLength -= length;
+        }
+
+        /**
+         * Compresses the rest of the log and writes the index
+         * @throws IOException if the file could not be written
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                if (pendingLength > 0) {
+                    boolean partialLine = pending[pendingLength - 1] != '\n';
+                    flushChunk(pendingLength);
+                    if (partialLine)
+                        lines++;
+                }
+                long indexOffset = position;
+                out.writeInt(index.size());
+                for (long[] chunk : index) {
+                    out.writeLong(chunk[0]);
+                    out.writeInt((int) chunk[1]);
+                    out.writeInt((int) chunk[2]);
+                    out.writeLong(chunk[3]);
+                    out.writeLong(chunk[4]);
+                }
+                out.writeLong(lines);
+                out.writeLong(bytes);
+                out.writeLong(indexOffset);
+                out.writeInt(MAGIC);
+            } finally {
+                deflater.end();
+                out.close();
+            }
+        }
+    }
+}
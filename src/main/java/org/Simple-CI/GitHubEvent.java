@@ -0,0 +1,230 @@
+package org.Simple-CI;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+
+/**
+ * The fields of a github webhook event that decide whether and what to build.
+ * The payload is read with a streaming parser that keeps only these fields and skips everything else,
+ * so large push and pull_request payloads (commit and file lists) are never built into a tree.
+ */
+public class GitHubEvent {
+
+    private static final JsonFactory FACTORY = new JsonFactory()
+            .enable(JsonParser.Feature.ALLOW_UNQUOTED_FIELD_NAMES)
+            .enable(JsonParser.Feature.ALLOW_SINGLE_QUOTES);
+
+    private boolean pullRequest;
+    private boolean push;
+    private String action;
+    private String after;
+    private String ref;
+    private String repoFullName;
+    private String defaultBranch;
+    private String headSha;
+    private String headRef;
+    private String headRepoFullName;
+
+    private GitHubEvent() {
+    }
+
+    /**
+     * Reads the needed fields of a webhook payload.
+     * @param payload github webhook event json data
+     * @return the event
+     * @throws IllegalArgumentException if the payload is not a JSON object
+     */
+    public static GitHubEvent parse(String payload) {
+        GitHubEvent event = new GitHubEvent();
+        try (JsonParser parser = FACTORY.createParser(payload)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT)
+                throw new IllegalArgumentException("Webhook payload is not a JSON object");
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                switch (name) {
+                    case "pull_request":
+                        event.pullRequest = true;
+                        event.readPullRequest(parser);
+                        break;
+                    case "pusher":
+                        event.push = true;
+                        parser.skipChildren();
+                        break;
+                    case "action":
+                        event.action = text(parser);
+                        break;
+                    case "after":
+                        event.after = text(parser);
+                        break;
+                    case "ref":
+                        event.ref = text(parser);
+                        break;
+                    case "repository":
+                        event.readRepository(parser);
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed webhook payload: " + e.getMessage(), e);
+        }
+        return event;
+    }
+
+    private void readPullRequest(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            if (name.equals("head") && parser.currentToken() == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    parser.nextToken();
+                    if (field.equals("sha"))
+                        headSha = text(parser);
+                    else if (field.equals("ref"))
+                        headRef = text(parser);
+                    else if (field.equals("repo"))
+                        headRepoFullName = fullName(parser);
+                    else
+                        parser.skipChildren();
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    /**
+     * Reads full_name and default_branch of the repository of the event.
+     */
+    private void readRepository(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if (field.equals("full_name"))
+                repoFullName = text(parser);
+            else if (field.equals("default_branch"))
+                defaultBranch = text(parser);
+            else
+                parser.skipChildren();
+        }
+    }
+
+    /**
+     * Reads full_name of a repository object, the parser is left at the end of the object.
+     */
+    private static String fullName(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return null;
+        }
+        String fullName = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if (field.equals("full_name"))
+                fullName = text(parser);
+            else
+                parser.skipChildren();
+        }
+        return fullName;
+    }
+
+    private static String text(JsonParser parser) throws IOException {
+        if (parser.currentToken().isScalarValue())
+            return parser.currentToken() == JsonToken.VALUE_NULL ? null : parser.getText();
+        parser.skipChildren();
+        return null;
+    }
+
+    /**
+     * @return true if the event is a pull_request event
+     */
+    public boolean isPullRequest() {
+        return pullRequest;
+    }
+
+    /**
+     * @return true if the event is a push event
+     */
+    public boolean isPush() {
+        return push;
+    }
+
+    /**
+     * Getter for the action of a pull_request event
+     * @return action, null if missing
+     */
+    public String getAction() {
+        return action;
+    }
+
+    /**
+     * Getter for the commit a push event moved the branch to
+     * @return sha, null if missing
+     */
+    public String getAfter() {
+        return after;
+    }
+
+    /**
+     * Getter for the ref of a push event
+     * @return full ref name, null if missing
+     */
+    public String getRef() {
+        return ref;
+    }
+
+    /**
+     * Getter for the full name of the repository of a push event
+     * @return full name, null if missing
+     */
+    public String getRepoFullName() {
+        return repoFullName;
+    }
+
+    /**
+     * Getter for the head commit of a pull_request event
+     * @return sha, null if missing
+     */
+    public String getHeadSha() {
+        return headSha;
+    }
+
+    /**
+     * Getter for the head branch of a pull_request event
+     * @return branch name, null if missing
+     */
+    public String getHeadRef() {
+        return headRef;
+    }
+
+    /**
+     * Getter for the full name of the head repository of a pull_request event
+     * @return full name, null if missing
+     */
+    public String getHeadRepoFullName() {
+        return headRepoFullName;
+    }
+
+    /**
+     * Getter for the default branch of the repository of the event
+     * @return branch name, null if missing
+     */
+    public String getDefaultBranch() {
+        return defaultBranch;
+    }
+}
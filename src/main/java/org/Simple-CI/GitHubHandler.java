@@ -1,6 +1,5 @@
 package org.Simple-CI;
 
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpStatus;
@@ -8,8 +7,6 @@ import org.springframework.integration.annotation.ServiceActivator;
 import org.springframework.integration.support.MessageBuilder;
 import org.springframework.messaging.Message;
 import org.springframework.stereotype.Component;
-import org.json.JSONObject;
-import org.json.JSONTokener;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -31,8 +28,8 @@ public class GitHubHandler {
      * Extracts values from github webhook event needed for build and log.
      *
      * @param msg, github webhook event json data
-     * @return msg containing headers spawnbuild (true), buildData and branch if build should follow,
-     * else only header spawnbuild (false).
+     * @return msg containing headers spawnbuild (true), buildData, branch, buildPriority and a new traceId
+     * if build should follow, else only header spawnbuild (false).
      */
     @ServiceActivator
     public Message<?> getJSON(Message<String> msg) {
@@ -42,37 +39,43 @@ public class GitHubHandler {
         String created;
         Date date = new Date();
         BuildData buildData = null;
+        BuildQueue.Priority priority = BuildQueue.Priority.branch;
 
         // Log
         String JSONcontent = msg.getPayload();
 
-        log.info("Inside getJSON");
-        log.info("Content is:");
-        log.info(JSONcontent);
+        log.debug("Inside getJSON");
+        if (log.isDebugEnabled())
+            log.debug("Content is:\n" + JSONcontent);
 
-        JSONObject json = new JSONObject(new JSONTokener(JSONcontent));
+        // only the fields needed below are read, the rest of the payload is skipped
+        GitHubEvent event = GitHubEvent.parse(JSONcontent);
 
         boolean spawn = false;
 
         // pull_request event
-        if(json.has("pull_request")) {
-            String action = json.getString("action");
-            if(action.equals("opened") || action.equals("reopened")){
-                JSONObject head = json.getJSONObject("pull_request").getJSONObject("head");
-                sha = head.getString("sha");
-                repoFullName = head.getJSONObject("repo").getString("full_name");
-                ref = head.getString("ref");
+        if(event.isPullRequest()) {
+            String action = event.getAction();
+            if(("opened".equals(action) || "reopened".equals(action)) && event.getHeadSha() != null
+                    && event.getHeadRepoFullName() != null && event.getHeadRef() != null){
+                sha = event.getHeadSha();
+                repoFullName = event.getHeadRepoFullName();
+                ref = event.getHeadRef();
                 buildData = new BuildData(repoFullName, date, sha);
+                priority = BuildQueue.Priority.pullRequest;
                 spawn = true;
             }
             //push event
-        }else if (json.has("pusher")){
-            sha = json.getString("after");
-            if(!sha.equals("0000000000000000000000000000000000000000")){
-                repoFullName = json.getJSONObject("repository").getString("full_name");
-                ref = json.getString("ref");
+        }else if (event.isPush()){
+            sha = event.getAfter();
+            if(sha != null && !sha.equals("0000000000000000000000000000000000000000")
+                    && event.getRepoFullName() != null && event.getRef() != null){
+                repoFullName = event.getRepoFullName();
+                ref = event.getRef();
                 ref = ref.split("/", 3)[2]; // assuming refs/head/<branch-name>
                 buildData = new BuildData(repoFullName, date, sha);
+                if (ref.equals(event.getDefaultBranch()))
+                    priority = BuildQueue.Priority.defaultBranch;
                 spawn = true;
             }
         }
@@ -83,9 +86,12 @@ public class GitHubHandler {
 
         //If it should spawn build
         if(spawn){
+            buildData.setBranch(ref);
             newmsg.setHeader("spawnBuild", "true")
                     .setHeader("buildData", buildData)
-                    .setHeader("branch", ref);
+                    .setHeader("branch", ref)
+                    .setHeader(BuildQueue.PRIORITY_HEADER, priority)
+                    .setHeader(PipelineMetrics.TRACE_HEADER, PipelineMetrics.newTraceId());
         }else {
             //If it shouldn't spawn build
             newmsg.setHeader("spawnBuild", "false");
@@ -0,0 +1,386 @@
+package org.Simple-CI;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Posts commit statuses to GitHub in the background over a pool of kept-alive connections.
+ * Statuses wait in a bounded queue keyed by commit, a newer status for a commit replaces a queued one
+ * and a pending status is dropped when the final status of the commit is already queued, posted or retried.
+ * Failed posts are retried with exponential backoff, unless a newer status of the commit came meanwhile.
+ */
+@Component
+public class GitHubStatusNotifier {
+
+    private final Logger log = LoggerFactory.getLogger(GitHubStatusNotifier.class);
+    private final String apiUrl;
+    private final String token;
+    private final int queueCapacity;
+    private final int maxRetries;
+    private final long backoffMillis;
+    private final CloseableHttpClient httpClient;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService retries;
+    private final LinkedHashMap<String, Status> queue = new LinkedHashMap<>();
+    private final Set<String> inFlight = new HashSet<>();
+    // newest status of every commit that is queued, in flight or waiting for a retry
+    private final Map<String, Status> latest = new HashMap<>();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile boolean running = true;
+
+    @Autowired(required = false)
+    private volatile PipelineMetrics metrics = new PipelineMetrics();
+
+    /**
+     * A commit status to post to GitHub.
+     */
+    public static class Status {
+        final String repoFullName;
+        final String sha;
+        final BuildStatus state;
+        final String targetUrl;
+        final String description;
+        int attempts;
+        long enqueuedNanos;
+
+        /**
+         * Create a commit status
+         * @param repoFullName full name of the repository
+         * @param sha commit the status is for
+         * @param state state of the build
+         * @param targetUrl link shown next to the status
+         * @param description short description of the status
+         */
+        public Status(String repoFullName, String sha, BuildStatus state, String targetUrl, String description) {
+            this.repoFullName = repoFullName;
+            this.sha = sha;
+            this.state = state;
+            this.targetUrl = targetUrl;
+            this.description = description;
+        }
+
+        /**
+         * @return true if this is the final status of a build
+         */
+        boolean isFinal() {
+            return state != BuildStatus.pending;
+        }
+
+        String key() {
+            return repoFullName + "@" + sha;
+        }
+    }
+
+    /**
+     * Create a notifier.
+     * @param apiUrl base url of the GitHub api
+     * @param token personal access token, may be empty
+     * @param queueCapacity maximum number of queued statuses
+     * @param workerCount number of statuses posted at the same time
+     * @param maxRetries maximum number of retries of a failed post
+     * @param backoffMillis delay before the first retry, doubled for every further retry
+     */
+    public GitHubStatusNotifier(@Value("${ci.github.api:https://api.github.com}") String apiUrl,
+                                @Value("${MY_PERSONAL_TOKEN:}") String token,
+                                @Value("${ci.notify.queueCapacity:1000}") int queueCapacity,
+                                @Value("${ci.notify.workers:4}") int workerCount,
+                                @Value("${ci.notify.maxRetries:5}") int maxRetries,
+                                @Value("${ci.notify.backoffMillis:500}") long backoffMillis) {
+        this.apiUrl = apiUrl;
+        this.token = token;
+        this.queueCapacity = queueCapacity;
+        this.maxRetries = maxRetries;
+        this.backoffMillis = backoffMillis;
+        PoolingHttpClientConnectionManager connections = new PoolingHttpClientConnectionManager();
+        connections.setMaxTotal(workerCount * 2);
+        connections.setDefaultMaxPerRoute(workerCount * 2);
+        RequestConfig timeouts = RequestConfig.custom()
+                .setConnectTimeout(10000)
+                .setConnectionRequestTimeout(10000)
+                .setSocketTimeout(30000)
+                .build();
+        this.httpClient = HttpClients.custom()
+                .setConnectionManager(connections)
+                .setDefaultRequestConfig(timeouts)
+                .build();
+        this.workers = Executors.newFixedThreadPool(workerCount, r -> daemon(r, "github-notify"));
+        this.retries = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "github-notify-retry"));
+        for (int i = 0; i < workerCount; i++)
+            workers.execute(this::work);
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    /**
+     * Queues a status, returns immediately.
+     * @param status status to post
+     * @return false if the status was dropped, because it is superseded or the queue is full
+     */
+    public boolean enqueue(Status status) {
+        status.enqueuedNanos = System.nanoTime();
+        synchronized (queue) {
+            String key = status.key();
+            Status newest = latest.get(key);
+            if (newest != null && newest.isFinal() && !status.isFinal()) {
+                coalesced.incrementAndGet();
+                return false;
+            }
+            if (queue.containsKey(key)) {
+                coalesced.incrementAndGet();
+                queue.put(key, status);
+                latest.put(key, status);
+                return true;
+            }
+            if (queue.size() >= queueCapacity && !makeRoom(status)) {
+                dropped.incrementAndGet();
+                log.warn("Notify queue full, dropping status " + status.state + " for " + key);
+                return false;
+            }
+            queue.put(key, status);
+            latest.put(key, status);
+            queue.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * Makes room for a final status by dropping the oldest queued pending status.
+     */
+    private boolean makeRoom(Status status) {
+        if (!status.isFinal())
+            return false;
+        Iterator<Status> it = queue.values().iterator();
+        while (it.hasNext()) {
+            Status queued = it.next();
+            if (!queued.isFinal()) {
+                it.remove();
+                latest.remove(queued.key(), queued);
+                dropped.incrementAndGet();
+                log.warn("Notify queue full, dropping status " + queued.state + " for " + queued.key());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Takes the oldest status of a commit that has no post in flight, so statuses of a commit are posted in order.
+     */
+    private Status take() throws InterruptedException {
+        synchronized (queue) {
+            while (running) {
+                Iterator<Map.Entry<String, Status>> it = queue.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<String, Status> entry = it.next();
+                    if (inFlight.add(entry.getKey())) {
+                        it.remove();
+                        return entry.getValue();
+                    }
+                }
+                queue.wait();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Ends the post of a status, the commit is forgotten unless the status waits for a retry or was superseded
+     */
+    private void done(Status status, boolean retrying) {
+        synchronized (queue) {
+            inFlight.remove(status.key());
+            if (!retrying)
+                latest.remove(status.key(), status);
+            queue.notifyAll();
+        }
+    }
+
+    private void work() {
+        try {
+            Status status;
+            while ((status = take()) != null) {
+                boolean retrying = false;
+                try {
+                    retrying = post(status);
+                } catch (RuntimeException e) {
+                    // e.g. a repository name that does not make a valid URI, the worker goes on with the next status
+                    failed.incrementAndGet();
+                    log.error("Could not post status " + status.state + " for " + status.key() + ": " + e);
+                } finally {
+                    done(status, retrying);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Posts a status, schedules a retry if GitHub could not be reached or answered with a server error.
+     * @return true if a retry was scheduled
+     */
+    private boolean post(Status status) {
+        HttpPost request = new HttpPost(apiUrl + "/repos/" + status.repoFullName + "/statuses/" + status.sha);
+        JSONObject params = new JSONObject()
+                .put("state", status.state.name())
+                .put("target_url", status.targetUrl)
+                .put("description", status.description)
+                .put("context", "CI-DD2480");
+        request.setEntity(new StringEntity(params.toString(), ContentType.APPLICATION_JSON));
+        if (token != null && !token.isEmpty())
+            request.addHeader("Authorization", "token " + token);
+        int code;
+        long postStart = System.nanoTime();
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            code = response.getStatusLine().getStatusCode();
+            // consume the body so the connection goes back to the pool
+            EntityUtils.consume(response.getEntity());
+        } catch (IOException e) {
+            log.info("Could not post status to GitHub: " + e);
+            return retry(status);
+        } finally {
+            metrics.timer("ci.notify.post").recordSince(postStart);
+        }
+        if (code == 201) {
+            sent.incrementAndGet();
+            // from queueing to accepted, including the retries
+            metrics.timer("ci.notify.latency").recordSince(status.enqueuedNanos);
+        } else if (code >= 500 || code == 429) {
+            log.info("GitHub answered " + code + " for status of " + status.key());
+            return retry(status);
+        } else {
+            failed.incrementAndGet();
+            log.info("Error: Unable to create http request to github. Status code: " + code);
+        }
+        return false;
+    }
+
+    private boolean retry(Status status) {
+        if (status.attempts >= maxRetries || !running) {
+            failed.incrementAndGet();
+            log.warn("Giving up on status " + status.state + " for " + status.key());
+            return false;
+        }
+        long delay = (backoffMillis << status.attempts) + ThreadLocalRandom.current().nextLong(backoffMillis + 1);
+        status.attempts++;
+        retries.schedule(() -> requeue(status), delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Queues a status again for a retry, unless a newer status of the commit was queued or posted meanwhile.
+     */
+    private void requeue(Status status) {
+        synchronized (queue) {
+            if (latest.get(status.key()) != status) {
+                coalesced.incrementAndGet();
+                return;
+            }
+            queue.put(status.key(), status);
+            queue.notifyAll();
+        }
+    }
+
+    /**
+     * Setter for the registry the post times and the time from queueing to accepted are recorded in
+     * @param metrics pipeline metrics
+     */
+    void setMetrics(PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Getter for the number of statuses waiting to be posted
+     * @return queue depth
+     */
+    public int getQueueDepth() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    /**
+     * Getter for the number of statuses GitHub accepted
+     * @return statuses sent
+     */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * Getter for the number of statuses replaced by a newer status of the same commit
+     * @return statuses coalesced
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * Getter for the number of statuses dropped because the queue was full
+     * @return statuses dropped
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Getter for the number of statuses that could not be posted
+     * @return statuses failed
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Stops the workers and closes the connection pool.
+     */
+    @PreDestroy
+    public void close() {
+        running = false;
+        synchronized (queue) {
+            queue.notifyAll();
+        }
+        workers.shutdownNow();
+        retries.shutdownNow();
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            log.error(e.toString());
+        }
+    }
+}
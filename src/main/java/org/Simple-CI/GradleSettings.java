@@ -0,0 +1,84 @@
+package org.Simple-CI;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How builds run gradle. All builds share one persistent gradle user home, so wrapper distributions and
+ * dependencies are downloaded once, and run on warm gradle daemons. Gradle keeps its daemons in the user home
+ * and hands an idle daemon with the same gradle version and JVM arguments to the next build, so there are never
+ * more busy daemons than build workers. Daemons that stay idle for daemonIdleMinutes stop by themselves.
+ */
+@Component
+public class GradleSettings {
+
+    private final Logger log = LoggerFactory.getLogger(GradleSettings.class);
+    private final File userHome;
+    private final boolean daemon;
+
+    /**
+     * Create the settings and write the daemon settings into the gradle.properties of the shared user home.
+     * @param userHomeName shared gradle user home, the gradle default if empty
+     * @param daemon run builds on gradle daemons
+     * @param jvmArgs JVM arguments of the daemons, the ones of the built project if empty
+     * @param daemonIdleMinutes minutes after which an idle daemon stops
+     */
+    public GradleSettings(@Value("${ci.gradle.userHome:./gradle-home}") String userHomeName,
+                          @Value("${ci.gradle.daemon:true}") boolean daemon,
+                          @Value("${ci.gradle.jvmArgs:}") String jvmArgs,
+                          @Value("${ci.gradle.daemonIdleMinutes:30}") long daemonIdleMinutes) {
+        this.userHome = userHomeName.isEmpty() ? null : new File(userHomeName).getAbsoluteFile();
+        this.daemon = daemon;
+        if (userHome == null)
+            return;
+        userHome.mkdirs();
+        List<String> properties = new ArrayList<>();
+        properties.add("# written by the CI server at startup, see ci.gradle.* in application.properties");
+        properties.add("org.gradle.daemon=" + daemon);
+        properties.add("org.gradle.daemon.idletimeout=" + TimeUnit.MINUTES.toMillis(daemonIdleMinutes));
+        if (!jvmArgs.isEmpty())
+            properties.add("org.gradle.jvmargs=" + jvmArgs);
+        try {
+            Files.write(new File(userHome, "gradle.properties").toPath(), properties, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            log.error("Could not write gradle.properties into " + userHome + ": " + e);
+        }
+    }
+
+    /**
+     * Arguments added to every gradlew command
+     * @return gradle arguments
+     */
+    public List<String> arguments() {
+        List<String> arguments = new ArrayList<>();
+        arguments.add(daemon ? "--daemon" : "--no-daemon");
+        return arguments;
+    }
+
+    /**
+     * Points a gradlew process at the shared user home
+     * @param processBuilder gradlew process to configure
+     */
+    public void apply(ProcessBuilder processBuilder) {
+        if (userHome != null)
+            processBuilder.environment().put("GRADLE_USER_HOME", userHome.getPath());
+    }
+
+    /**
+     * Getter for the shared gradle user home
+     * @return user home, null if the gradle default is used
+     */
+    public File getUserHome() {
+        return userHome;
+    }
+}
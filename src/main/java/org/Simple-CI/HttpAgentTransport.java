@@ -0,0 +1,109 @@
+package org.Simple-CI;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reaches the {@link BuildCoordinator} of a server through the endpoints of {@link AgentController}, over a pool
+ * of kept-alive connections.
+ */
+public class HttpAgentTransport implements AgentTransport {
+
+    private final String serverUrl;
+    private final String token;
+    private final CloseableHttpClient httpClient;
+
+    /**
+     * Create a transport to a server.
+     * @param serverUrl base url of the server, e.g. http://ci.example.com:8080
+     * @param token secret of the agents, ci.agents.token of the server, may be empty
+     */
+    public HttpAgentTransport(String serverUrl, String token) {
+        this.serverUrl = serverUrl.endsWith("/") ? serverUrl.substring(0, serverUrl.length() - 1) : serverUrl;
+        this.token = token;
+        // lease requests wait up to ci.agents.leaseWaitMillis for a build
+        RequestConfig timeouts = RequestConfig.custom()
+                .setConnectTimeout(10000)
+                .setConnectionRequestTimeout(10000)
+                .setSocketTimeout(120000)
+                .build();
+        this.httpClient = HttpClients.custom()
+                .setDefaultRequestConfig(timeouts)
+                .setMaxConnPerRoute(64)
+                .setMaxConnTotal(64)
+                .build();
+    }
+
+    @Override
+    public JSONObject lease(String agentId) throws IOException {
+        Response response = post("/agents/lease?agent=" + URLEncoder.encode(agentId, "UTF-8"),
+                "", ContentType.TEXT_PLAIN);
+        if (response.code == 204)
+            return null;
+        return new JSONObject(response.expectOk());
+    }
+
+    @Override
+    public JSONObject heartbeat(String leaseId, String output) throws IOException {
+        Response response = post("/agents/heartbeat?lease=" + URLEncoder.encode(leaseId, "UTF-8"),
+                output, ContentType.TEXT_PLAIN.withCharset(StandardCharsets.UTF_8));
+        if (response.code == 410)
+            return new JSONObject().put("lost", true);
+        return new JSONObject(response.expectOk());
+    }
+
+    @Override
+    public boolean complete(String leaseId, JSONObject result) throws IOException {
+        Response response = post("/agents/complete?lease=" + URLEncoder.encode(leaseId, "UTF-8"),
+                result.toString(), ContentType.APPLICATION_JSON);
+        if (response.code == 410)
+            return false;
+        response.expectOk();
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
+    }
+
+    private static class Response {
+        final int code;
+        final String body;
+
+        Response(int code, String body) {
+            this.code = code;
+            this.body = body;
+        }
+
+        String expectOk() throws IOException {
+            if (code != 200)
+                throw new IOException("Server answered " + code + ": " + body);
+            return body;
+        }
+    }
+
+    private Response post(String path, String body, ContentType contentType) throws IOException {
+        HttpPost request = new HttpPost(serverUrl + path);
+        request.setEntity(new StringEntity(body, contentType));
+        if (token != null && !token.isEmpty())
+            request.addHeader(AgentController.TOKEN_HEADER, token);
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            int code = response.getStatusLine().getStatusCode();
+            String text = response.getEntity() == null ? ""
+                    : EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+            return new Response(code, text);
+        }
+    }
+}
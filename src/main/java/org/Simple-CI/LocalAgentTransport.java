@@ -0,0 +1,53 @@
+package org.Simple-CI;
+
+import org.json.JSONObject;
+
+/**
+ * Stand-in for {@link HttpAgentTransport} that calls a {@link BuildCoordinator} in the same JVM, so agents and
+ * coordinator run together in tests and on a single machine. Requests and answers are copied through their JSON
+ * text, as they are on the wire.
+ */
+public class LocalAgentTransport implements AgentTransport {
+
+    private final BuildCoordinator coordinator;
+    private final long leaseWaitMillis;
+
+    /**
+     * Create a transport to a coordinator.
+     * @param coordinator coordinator of the builds
+     * @param leaseWaitMillis time a lease waits for a build
+     */
+    public LocalAgentTransport(BuildCoordinator coordinator, long leaseWaitMillis) {
+        this.coordinator = coordinator;
+        this.leaseWaitMillis = leaseWaitMillis;
+    }
+
+    @Override
+    public JSONObject lease(String agentId) {
+        try {
+            return copy(coordinator.lease(agentId, leaseWaitMillis));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    @Override
+    public JSONObject heartbeat(String leaseId, String output) {
+        return copy(coordinator.heartbeat(leaseId, output));
+    }
+
+    @Override
+    public boolean complete(String leaseId, JSONObject result) {
+        return coordinator.complete(leaseId, copy(result));
+    }
+
+    @Override
+    public void close() {
+        /**/
+    }
+
+    private static JSONObject copy(JSONObject json) {
+        return json == null ? null : new JSONObject(json.toString());
+    }
+}
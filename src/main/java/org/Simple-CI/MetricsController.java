@@ -0,0 +1,109 @@
+package org.Simple-CI;
+
+import org.apache.catalina.connector.Connector;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * This is a spring controller class responsible for reporting the {@link PipelineMetrics} as JSON on the
+ * management port. The server listens on the management port too, /metrics is answered with 404 Not Found
+ * on every other port and every other path with 404 Not Found on the management port. A management port of 0 or less, or the server port, serves /metrics on the server port.
+ */
+@Controller
+public class MetricsController {
+
+    private final PipelineMetrics metrics;
+    private final int managementPort;
+
+    /**
+     * Create the controller and register the gauges of the queues and pools of the pipeline
+     * @param managementPort port of /metrics, management.server.port or the older management.port
+     */
+    public MetricsController(PipelineMetrics metrics, BuildQueue buildQueue, WebhookQueue webhookQueue,
+                             GitHubStatusNotifier notifier, BuildProcesses processes, BuildCoordinator coordinator,
+                             @Qualifier("threadQueue") ThreadPoolTaskExecutor buildWorkers,
+                             @Qualifier("threadExecutor") ThreadPoolTaskExecutor publishPool,
+                             @Value("${management.server.port:${management.port:-1}}") int managementPort) {
+        this.metrics = metrics;
+        this.managementPort = managementPort;
+        metrics.gauge("ci.buildQueue.depth", buildQueue::getQueueDepth);
+        metrics.gauge("ci.builds.running", processes::getRunningCount);
+        metrics.gauge("ci.buildWorkers.active", buildWorkers::getActiveCount);
+        metrics.gauge("ci.buildWorkers.queued", () -> buildWorkers.getThreadPoolExecutor().getQueue().size());
+        metrics.gauge("ci.publish.active", publishPool::getActiveCount);
+        metrics.gauge("ci.publish.queued", () -> publishPool.getThreadPoolExecutor().getQueue().size());
+        metrics.gauge("ci.notify.queueDepth", notifier::getQueueDepth);
+        metrics.gauge("ci.webhook.pendingBytes", webhookQueue::getPendingBytes);
+        metrics.gauge("ci.webhook.rejected", webhookQueue::getRejected);
+        metrics.gauge("ci.agents.connected", coordinator::getAgentCount);
+        metrics.gauge("ci.agents.waiting", coordinator::getWaiting);
+        metrics.gauge("ci.agents.leased", coordinator::getLeased);
+    }
+
+    /**
+     * Opens the management port next to the server port
+     */
+    @Bean
+    public static WebServerFactoryCustomizer<TomcatServletWebServerFactory> managementConnector(
+            @Value("${server.port:8080}") int serverPort,
+            @Value("${management.server.port:${management.port:-1}}") int managementPort) {
+        return factory -> {
+            if (managementPort <= 0 || managementPort == serverPort)
+                return;
+            Connector connector = new Connector(TomcatServletWebServerFactory.DEFAULT_PROTOCOL);
+            connector.setPort(managementPort);
+            factory.addAdditionalTomcatConnectors(connector);
+        };
+    }
+
+    /**
+     * Answers every request on the management port with 404 Not Found, except for /metrics, so the port does not
+     * take webhooks, cancel builds or serve the pages of the server
+     */
+    @Bean
+    public static OncePerRequestFilter managementPortFilter(
+            @Value("${server.port:8080}") int serverPort,
+            @Value("${management.server.port:${management.port:-1}}") int managementPort) {
+        return new OncePerRequestFilter() {
+            @Override
+            protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+                                            FilterChain chain) throws ServletException, IOException {
+                if (managementPort > 0 && managementPort != serverPort && request.getLocalPort() == managementPort
+                        && !request.getRequestURI().equals(request.getContextPath() + "/metrics")) {
+                    response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                    return;
+                }
+                chain.doFilter(request, response);
+            }
+        };
+    }
+
+    /**
+     * This function is responsible for handling requests sent to /metrics url of the management port
+     * @return JSON object with the timers, counters and gauges of the pipeline, durations in milliseconds
+     */
+    @GetMapping(value = "/metrics", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public String metrics(HttpServletRequest request) {
+        if (managementPort > 0 && request.getLocalPort() != managementPort)
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND);
+        return metrics.toJson().toString();
+    }
+}
@@ -0,0 +1,210 @@
+package org.Simple-CI;
+
+import org.json.JSONObject;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Timers, counters and gauges of the build pipeline, by name. Names are dotted like "ci.build.clone",
+ * the metrics of a channel are named "ci.channel.channelName.metric", see {@link PipelineTracing}.
+ * Recording is lock free, so metrics can be recorded on every message.
+ */
+@Component
+public class PipelineMetrics {
+
+    /**
+     * Header of the trace id of a build, set when the webhook of the build is handled and carried by all
+     * messages of the build.
+     */
+    public static final String TRACE_HEADER = "traceId";
+
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, Supplier<? extends Number>> gauges = new ConcurrentHashMap<>();
+
+    /**
+     * Records durations: their count, total and maximum, and a histogram with buckets from 0.1 ms to
+     * 5000 s in 1-2-5 steps for the percentiles.
+     */
+    public static class Timer {
+        private static final long[] BOUNDS = bounds();
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+
+        Timer() {
+            for (int i = 0; i < buckets.length; i++)
+                buckets[i] = new LongAdder();
+        }
+
+        private static long[] bounds() {
+            long[] steps = {1, 2, 5};
+            long[] bounds = new long[8 * steps.length];
+            long decade = TimeUnit.MICROSECONDS.toNanos(100);
+            for (int i = 0; i < bounds.length; i++) {
+                bounds[i] = decade * steps[i % steps.length];
+                if (i % steps.length == steps.length - 1)
+                    decade *= 10;
+            }
+            return bounds;
+        }
+
+        /**
+         * Records a duration, negative durations count as 0
+         * @param amount duration
+         * @param unit unit of amount
+         */
+        public void record(long amount, TimeUnit unit) {
+            long nanos = Math.max(0, unit.toNanos(amount));
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+            int bucket = 0;
+            while (bucket < BOUNDS.length && nanos > BOUNDS[bucket])
+                bucket++;
+            buckets[bucket].increment();
+        }
+
+        /**
+         * Records the time since a start time
+         * @param startNanos start, a value of {@link System#nanoTime()}
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Getter for the number of recorded durations
+         * @return count
+         */
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * Getter for the sum of the recorded durations
+         * @param unit unit of the result
+         * @return total
+         */
+        public double getTotal(TimeUnit unit) {
+            return totalNanos.sum() / (double) unit.toNanos(1);
+        }
+
+        /**
+         * Getter for the longest recorded duration
+         * @param unit unit of the result
+         * @return max
+         */
+        public double getMax(TimeUnit unit) {
+            return maxNanos.get() / (double) unit.toNanos(1);
+        }
+
+        /**
+         * Estimates a percentile by the upper bound of the bucket it falls into, at most the maximum
+         * @param quantile between 0 and 1, 0.95 for the 95th percentile
+         * @param unit unit of the result
+         * @return percentile, 0 if nothing was recorded
+         */
+        public double getPercentile(double quantile, TimeUnit unit) {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++)
+                total += counts[i] = buckets[i].sum();
+            if (total == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long max = maxNanos.get();
+            long seen = 0;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return Math.min(BOUNDS[i], max) / (double) unit.toNanos(1);
+            }
+            return max / (double) unit.toNanos(1);
+        }
+    }
+
+    /**
+     * Getter for a timer, created on first use
+     * @param name name of the timer
+     * @return timer
+     */
+    public Timer timer(String name) {
+        return timers.computeIfAbsent(name, k -> new Timer());
+    }
+
+    /**
+     * Adds one to a counter, created on first use
+     * @param name name of the counter
+     */
+    public void increment(String name) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).increment();
+    }
+
+    /**
+     * Getter for the value of a counter
+     * @param name name of the counter
+     * @return count, 0 if never incremented
+     */
+    public long count(String name) {
+        LongAdder counter = counters.get(name);
+        return counter != null ? counter.sum() : 0;
+    }
+
+    /**
+     * Registers a gauge, its value is read when the metrics are reported. Replaces a gauge of the same name.
+     * @param name name of the gauge
+     * @param value reads the current value
+     */
+    public void gauge(String name, Supplier<? extends Number> value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Creates a trace id for a new build
+     * @return 16 hex digits
+     */
+    public static String newTraceId() {
+        return String.format("%016x", ThreadLocalRandom.current().nextLong());
+    }
+
+    /**
+     * Reports all metrics, durations in milliseconds
+     * @return JSON object with the objects timers, counters and gauges
+     */
+    public JSONObject toJson() {
+        JSONObject timerJson = new JSONObject();
+        for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+            Timer timer = entry.getValue();
+            long count = timer.getCount();
+            double total = timer.getTotal(TimeUnit.MILLISECONDS);
+            timerJson.put(entry.getKey(), new JSONObject()
+                    .put("count", count)
+                    .put("totalMillis", total)
+                    .put("meanMillis", count > 0 ? total / count : 0)
+                    .put("maxMillis", timer.getMax(TimeUnit.MILLISECONDS))
+                    .put("p50Millis", timer.getPercentile(0.5, TimeUnit.MILLISECONDS))
+                    .put("p95Millis", timer.getPercentile(0.95, TimeUnit.MILLISECONDS))
+                    .put("p99Millis", timer.getPercentile(0.99, TimeUnit.MILLISECONDS)));
+        }
+        JSONObject counterJson = new JSONObject();
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet())
+            counterJson.put(entry.getKey(), entry.getValue().sum());
+        JSONObject gaugeJson = new JSONObject();
+        for (Map.Entry<String, Supplier<? extends Number>> entry : gauges.entrySet())
+            gaugeJson.put(entry.getKey(), entry.getValue().get());
+        return new JSONObject()
+                .put("timers", timerJson)
+                .put("counters", counterJson)
+                .put("gauges", gaugeJson);
+    }
+}
@@ -0,0 +1,118 @@
+package org.Simple-CI;
+
+import org.slf4j.MDC;
+import org.springframework.integration.channel.AbstractExecutorChannel;
+import org.springframework.integration.config.GlobalChannelInterceptor;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.integration.support.context.NamedComponent;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.support.ExecutorChannelInterceptor;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures every channel of the build pipeline and puts the trace id of the build of a message into the
+ * logging context (MDC key traceId) while the message is handled. Per channel it records:
+ * <ul>
+ *     <li>ci.channel.name.sent: messages sent</li>
+ *     <li>ci.channel.name.failed: sends that threw</li>
+ *     <li>ci.channel.name.send: time of a send, for a direct channel this includes handling the message</li>
+ *     <li>ci.channel.name.wait: time a message waited in the queue of an executor channel before it was handled</li>
+ * </ul>
+ */
+@Component
+@GlobalChannelInterceptor
+public class PipelineTracing implements ExecutorChannelInterceptor {
+
+    /**
+     * Header with the {@link System#nanoTime()} a message was sent to an executor channel.
+     */
+    static final String ENQUEUED_HEADER = "ciEnqueuedNanos";
+
+    private final PipelineMetrics metrics;
+
+    // sends to direct channels nest, every send and every handling on the thread pushes a scope
+    private final ThreadLocal<Deque<Scope>> sends = ThreadLocal.withInitial(ArrayDeque::new);
+    private final ThreadLocal<Deque<Scope>> handled = ThreadLocal.withInitial(ArrayDeque::new);
+
+    /**
+     * Start of a send or a handling and the trace id of the logging context before it.
+     */
+    private static class Scope {
+        final long startNanos = System.nanoTime();
+        final String previousTrace;
+
+        Scope(String previousTrace) {
+            this.previousTrace = previousTrace;
+        }
+    }
+
+    /**
+     * Create the interceptor
+     * @param metrics registry the channel metrics are recorded in
+     */
+    public PipelineTracing(PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        metrics.increment(prefix(channel) + "sent");
+        sends.get().push(new Scope(enterTrace(message)));
+        if (channel instanceof AbstractExecutorChannel)
+            return MessageBuilder.fromMessage(message).setHeader(ENQUEUED_HEADER, System.nanoTime()).build();
+        return message;
+    }
+
+    @Override
+    public void afterSendCompletion(Message<?> message, MessageChannel channel, boolean sent, Exception ex) {
+        Scope send = sends.get().pop();
+        metrics.timer(prefix(channel) + "send").recordSince(send.startNanos);
+        if (ex != null || !sent)
+            metrics.increment(prefix(channel) + "failed");
+        leaveTrace(send.previousTrace);
+    }
+
+    @Override
+    public Message<?> beforeHandle(Message<?> message, MessageChannel channel, MessageHandler handler) {
+        Long enqueued = message.getHeaders().get(ENQUEUED_HEADER, Long.class);
+        if (enqueued != null)
+            metrics.timer(prefix(channel) + "wait").record(System.nanoTime() - enqueued, TimeUnit.NANOSECONDS);
+        handled.get().push(new Scope(enterTrace(message)));
+        return message;
+    }
+
+    @Override
+    public void afterMessageHandled(Message<?> message, MessageChannel channel, MessageHandler handler, Exception ex) {
+        leaveTrace(handled.get().pop().previousTrace);
+    }
+
+    /**
+     * Puts the trace id of a message into the logging context
+     * @return the trace id that was in the logging context before, may be null
+     */
+    private static String enterTrace(Message<?> message) {
+        String previous = MDC.get(PipelineMetrics.TRACE_HEADER);
+        String traceId = message.getHeaders().get(PipelineMetrics.TRACE_HEADER, String.class);
+        if (traceId != null)
+            MDC.put(PipelineMetrics.TRACE_HEADER, traceId);
+        return previous;
+    }
+
+    private static void leaveTrace(String previous) {
+        if (previous != null)
+            MDC.put(PipelineMetrics.TRACE_HEADER, previous);
+        else
+            MDC.remove(PipelineMetrics.TRACE_HEADER);
+    }
+
+    private static String prefix(MessageChannel channel) {
+        String name = channel instanceof NamedComponent ? ((NamedComponent) channel).getComponentName() : null;
+        return "ci.channel." + (name != null ? name : channel.toString()) + ".";
+    }
+}
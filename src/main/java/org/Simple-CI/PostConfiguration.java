@@ -6,6 +6,7 @@ import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.HttpClient;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.HttpMethod;
@@ -15,14 +16,18 @@ import org.springframework.integration.config.EnableIntegration;
 import org.springframework.integration.dsl.IntegrationFlow;
 import org.springframework.integration.dsl.IntegrationFlows;
 import org.springframework.integration.dsl.MessageChannels;
+import org.springframework.integration.dsl.Pollers;
 import org.springframework.integration.http.dsl.Http;
 import org.springframework.integration.router.HeaderValueRouter;
 import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.Message;
 import org.springframework.messaging.MessageChannel;
 import org.springframework.messaging.SubscribableChannel;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.ws.transport.http.HttpComponentsMessageSender;
 
+import java.util.concurrent.ThreadPoolExecutor;
+
 /**
  * This is the spring configuration class responsible for handling POST requests from github.
  * For this project we have used spring integration to implement a business flow that treats every build request sent
@@ -35,6 +40,24 @@ public class PostConfiguration {
     @Autowired
     private GitHubHandler gitHubHandler;
 
+    @Autowired
+    private WebhookQueue webhookQueue;
+
+    @Autowired
+    private BuildQueue buildQueue;
+
+    @Value("${ci.webhook.pollMillis:50}")
+    private long webhookPollMillis;
+
+    @Value("${ci.build.workers:4}")
+    private int buildWorkers;
+
+    @Value("${ci.publish.threads:0}")
+    private int publishThreads;
+
+    @Value("${ci.publish.queueCapacity:100}")
+    private int publishQueueCapacity;
+
     /**
      *
      * A simple direct channel which is responsible for delivering messages to the endpoint it is attached to
@@ -114,9 +137,8 @@ public class PostConfiguration {
     /**
      *
      * An executor channel which is supposed to control parallel messages that are sent to it as threads.
-     * This channel wraps the paralleling message in another thread wrapper, which are all synchronized. Therefore,
-     * they form a blocking queue and no message can be passed into the endpoint function until the previous message
-     * gets out of the system, or is wrapped in a non synchronizing thread.
+     * This channel hands every message to the build worker pool. At most ci.build.workers builds run at the same
+     * time, every build in its own workspace, the rest wait in the queue of the pool.
      */
     @Bean
     public MessageChannel gitHubQueueBuilderChannel(){
@@ -137,23 +159,69 @@ public class PostConfiguration {
     /**
      *
      * A task executor which is responsible for wrapping messages in parallel threads.
+     * The work on these threads is short, the webhook is already parsed and builds only queue a worker ticket,
+     * so there are ci.publish.threads of them (the number of CPUs by default). When they are busy and
+     * ci.publish.queueCapacity messages wait, the webhook consumer routes the message itself and polls no further
+     * webhooks meanwhile, they stay in the webhookQueue.
      */
     @Bean
     public ThreadPoolTaskExecutor threadExecutor() {
-
-        ThreadPoolTaskExecutor pool = new ThreadPoolTaskExecutor();
-        pool.setCorePoolSize(102);
-        return pool;
+        return publishPool(threads(publishThreads), publishQueueCapacity);
     }
     /**
      *
-     * A task executor which is responsible for wrapping messages in synchronized threads.
+     * A task executor which is responsible for running builds on ci.build.workers worker threads.
+     * Its queue holds the worker tickets of the buildQueue, which never hands out more tickets than builds wait.
+     * Waiting builds can exceed ci.build.maxQueued by the messages the publish pool held when the queue became full,
+     * the capacity covers them so a ticket is never rejected.
      */
     @Bean
     public ThreadPoolTaskExecutor threadQueue() {
+        int maxQueued = buildQueue.getMaxQueued();
+        int capacity = maxQueued > 0
+                ? maxQueued + threads(publishThreads) + publishQueueCapacity + 1
+                : Integer.MAX_VALUE;
+        return buildWorkerPool(threads(buildWorkers), capacity);
+    }
 
+    /**
+     * Number of threads of a pool
+     * @param configured configured number, 0 or less for the number of CPUs
+     * @return number of threads, at least 1
+     */
+    static int threads(int configured) {
+        return configured > 0 ? configured : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Creates the publish pool, a fixed number of threads with a bounded queue. A task that does not fit runs
+     * on the thread that submits it, which slows down the submitter instead of dropping the message.
+     * @param threads number of threads
+     * @param queueCapacity number of messages that may wait for a thread
+     * @return uninitialized publish pool
+     */
+    static ThreadPoolTaskExecutor publishPool(int threads, int queueCapacity) {
         ThreadPoolTaskExecutor pool = new ThreadPoolTaskExecutor();
-        pool.setQueueCapacity(100);
+        pool.setCorePoolSize(Math.max(1, threads));
+        pool.setMaxPoolSize(Math.max(1, threads));
+        pool.setQueueCapacity(queueCapacity);
+        pool.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        pool.setThreadNamePrefix("publish-");
+        return pool;
+    }
+
+    /**
+     * Creates the build worker pool, a fixed number of threads sharing one build queue.
+     * @param workers number of builds that may run at the same time
+     * @param queueCapacity number of worker tickets that may wait for a worker
+     * @return uninitialized build worker pool
+     */
+    static ThreadPoolTaskExecutor buildWorkerPool(int workers, int queueCapacity) {
+        ThreadPoolTaskExecutor pool = new ThreadPoolTaskExecutor();
+        pool.setCorePoolSize(Math.max(1, workers));
+        pool.setMaxPoolSize(Math.max(1, workers));
+        pool.setQueueCapacity(queueCapacity);
+        pool.setThreadNamePrefix("build-worker-");
         return pool;
     }
     /**
@@ -170,6 +238,19 @@ public class PostConfiguration {
         router.setChannelMapping("false", "notBuildBridge");
         return router;
     }
+    /**
+     *
+     * A router channel that directs the messages of the build queue depending on their header contents.
+     * buildQueueRoute = notify in message header: route to gitHubNotifyChannel
+     * buildQueueRoute = build in message header: route to gitHubQueueBuilderChannel (a worker ticket)
+     */
+    @Bean
+    public HeaderValueRouter routeBuildQueue() {
+        HeaderValueRouter router = new HeaderValueRouter(BuildQueue.ROUTE_HEADER);
+        router.setChannelMapping("notify", "gitHubNotifyChannel");
+        router.setChannelMapping("build", "gitHubQueueBuilderChannel");
+        return router;
+    }
     /**
      * This is the third flow which is connected to the gitHubPublishRequest channel as one of the subscribers.
      * This function is simply responsible for subscribing the routeOnSpawn router channel to
@@ -183,19 +264,15 @@ public class PostConfiguration {
     }
     /**
      * This is the fourth flow which is connected to the preBuildBridge channel as one of the subscribers.
-     * This function is responsible for multiplying the message and send it to gitHubNotifyChannel, and after that,
-     * gitHubQueueBuilderChannel. This channel is basically supposed to direct the flow to build function while
-     * at the same time, invoke the notification client.
+     * This function is responsible for handing the build to the buildQueue, which coalesces builds of the same
+     * branch and commit. The resulting messages are routed by routeBuildQueue: pending and final notifications
+     * go to gitHubNotifyChannel, a worker ticket for a queued build goes to gitHubQueueBuilderChannel.
      */
     @Bean
     public IntegrationFlow preBuildFlow() {
         return IntegrationFlows.from(preBuildBridge())
-                .enrichHeaders(h -> h.defaultOverwrite(true).header("notifyType", "build pending"))
-                .routeToRecipients(r -> r
-                        .applySequence(true)
-                        .ignoreSendFailures(true)
-                        .recipient(gitHubNotifyChannel())
-                        .recipient(gitHubQueueBuilderChannel()))
+                .split(buildQueue, "submit")
+                .route(routeBuildQueue())
                 .get();
     }
     /**
@@ -212,32 +289,71 @@ public class PostConfiguration {
     }
     /**
      * <p>This is the second flow which is connected at the other side of the requestBridge channel endpoint.
-     * This function directly gets feeding by gitHubInbound flow and is responsible for the first step of request
-     * processing.</p>
+     * This function directly gets feeding by gitHubInbound flow and only stores the payload, so the request
+     * is answered without waiting for parsing or routing.</p>
      * <ol>
      *     <li>Receives messages sent to requestBridge channel</li>
-     *     <li>Sends the entire message to be handled by gitHubHandler class's getJSON function</li>
-     *     <li>Sends the resulting message from aforementioned function's processing to gitHubPublishRequest's channel
-     *     </li>
+     *     <li>Appends the payload to the durable webhookQueue</li>
+     *     <li>Replies 202 to github, or 503 if the payload could not be stored</li>
      * </ol>
      */
     @Bean
     public IntegrationFlow gitHubHandlerFlow() {
         return IntegrationFlows.from(requestBridge())
-                .handle(gitHubHandler, "getJSON")
-                .channel(gitHubPublishRequest())
+                .handle(webhookQueue, "enqueue")
+                .get();
+    }
+
+    /**
+     * <p>This flow consumes the payloads stored by gitHubHandlerFlow, in the order they were received.</p>
+     * <ol>
+     *     <li>Polls the next payload from webhookQueue</li>
+     *     <li>Sends the entire message to be handled by gitHubHandler class's getJSON function</li>
+     *     <li>Sends the resulting message to gitHubPublishRequest's channel. A payload that spawns no build is
+     *     acknowledged right away, so it is not processed again after a restart. The payload of a build is
+     *     acknowledged by the buildQueue once a worker took the build, so queued builds survive a restart.</li>
+     *     <li>A payload that could not be parsed or published is moved to the dead letter file of the
+     *     webhookQueue, so it does not hold back the payloads behind it.</li>
+     * </ol>
+     */
+    @Bean
+    public IntegrationFlow webhookConsumerFlow() {
+        return IntegrationFlows.from(webhookQueue, e -> e.poller(Pollers.fixedDelay(webhookPollMillis)
+                        .maxMessagesPerPoll(100)))
+                .<String>handle((payload, headers) -> {
+                    consumeWebhook(MessageBuilder.withPayload(payload).copyHeaders(headers).build());
+                    return null;
+                })
                 .get();
     }
 
+    /**
+     * Parses and publishes one payload polled from the webhookQueue, see webhookConsumerFlow.
+     * @param msg polled message with the raw payload
+     */
+    void consumeWebhook(Message<String> msg) {
+        Message<?> request;
+        try {
+            request = gitHubHandler.getJSON(msg);
+            gitHubPublishRequest().send(request);
+        } catch (RuntimeException e) {
+            webhookQueue.deadLetter(msg, e);
+            return;
+        }
+        if (!"true".equals(request.getHeaders().get("spawnBuild")))
+            webhookQueue.acknowledge(request);
+    }
+
     /**
      * This is the sixth flow which is connected to the gitHubQueueBuilderChannel channel as one of the subscribers.
-     * This function is responsible for redirecting the message to gitHubNotifyChannel, while alerting them that
-     * this message is not related to build, this flow entire works in serialized mode in the critical section flow
-     * (After the queue)
+     * This function is responsible for taking the oldest waiting build from the buildQueue for a worker ticket and
+     * redirecting it to gitHubNotifyChannel and the builder, this flow runs on one of the build workers
+     * (After the queue). A ticket whose build was superseded finds no build and ends here.
      */
     @Bean
     public IntegrationFlow gitHubCriticalSectionFlow() {
         return IntegrationFlows.from(gitHubQueueBuilderChannel())
+                .handle(buildQueue, "take")
                 .enrichHeaders(h -> h.defaultOverwrite(true).header("notifyType", "build start"))
                 .routeToRecipients(r -> r
                         .applySequence(true)
@@ -249,13 +365,18 @@ public class PostConfiguration {
     /**
      * This is the seventh flow which is connected to the buildStatusChannel channel as one of the subscribers.
      * This function is responsible for redirecting the message to gitHubNotifyChannel, while alerting them that
-     * this message is not related to post build,
+     * this message is not related to post build. The buildQueue adds the final messages of the builds of the
+     * same commit that wait for this result, and worker tickets for builds that waited for a repository below
+     * its cap, which are routed to gitHubQueueBuilderChannel like in routeBuildQueue.
      */
     @Bean
     public IntegrationFlow finalBuildNotifyFlow() {
         return IntegrationFlows.from(buildStatusChannel())
                 .enrichHeaders(h -> h.defaultOverwrite(true).header("notifyType", "build final"))
-                .channel(gitHubNotifyChannel())
+                .split(buildQueue, "complete")
+                .route(Message.class, msg -> msg.getHeaders().get(BuildQueue.ROUTE_HEADER),
+                        r -> r.channelMapping("build", "gitHubQueueBuilderChannel")
+                                .defaultOutputChannel(gitHubNotifyChannel()))
                 .get();
     }
     /**
@@ -265,10 +386,8 @@ public class PostConfiguration {
      * <ol>
      *     <li>Receives requests to / url</li>
      *     <li>Extracts the request's POST payload</li>
-     *     <li>Checks whether the request is a JSON</li>
-     *     <li>Sets reply channel to gitHubPublishRequest(so anything that is piped to this channel is sent as
-     *     reply to the received request</li>
-     *     <li>Sets request channel to requestBridge(so requests are pumped into this channel after they are processed
+     *     <li>Sets request channel to requestBridge(so requests are pumped into this channel, the reply of
+     *     gitHubHandlerFlow is sent back as answer to the request)
      *     </li>
      * </ol>
      */
@@ -277,7 +396,6 @@ public class PostConfiguration {
         return IntegrationFlows.from(Http.inboundGateway("/")
                 .requestMapping(m -> m.methods(HttpMethod.POST))
                 .requestPayloadType(String.class)
-                .replyChannel(gitHubPublishRequest())
                 .requestChannel(requestBridge()))
                 .get();
     }
@@ -0,0 +1,426 @@
+package org.Simple-CI;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Local cache of bare mirrors, one per GitHub repository.
+ * Mirrors are fetched incrementally and builds get a working tree that borrows the objects of the mirror
+ * through git alternates, so a build never downloads or copies the full history.
+ * Mirrors that are not in use are evicted least recently used first when the cache grows above its size cap.
+ * An evicted mirror is renamed into the evicted folder of the cache and deleted by the {@link WorkspaceReaper}
+ * afterwards, so checkouts of other repositories do not wait for it.
+ */
+@Component
+public class RepoMirrorCache {
+
+    private static final String EVICTED_FOLDER = ".evicted";
+
+    private final Logger log = LoggerFactory.getLogger(RepoMirrorCache.class);
+    private final File mirrorRoot;
+    private final long maxBytes;
+    private final Map<String, Mirror> mirrors = new HashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bytesFetched = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private WorkspaceReaper reaper;
+
+    /**
+     * A bare mirror on disk and its bookkeeping.
+     */
+    private static class Mirror {
+        final File dir;
+        final ReentrantLock lock = new ReentrantLock();
+        int users;
+        long lastUsed;
+        long size;
+
+        Mirror(File dir) {
+            this.dir = dir;
+        }
+    }
+
+    /**
+     * Create a mirror cache and register the mirrors already on disk.
+     * @param folderName folder where the mirrors live
+     * @param maxBytes size cap of the folder, mirrors not in use are evicted above it
+     */
+    public RepoMirrorCache(@Value("${ci.mirror.folder:./mirrors}") String folderName,
+                           @Value("${ci.mirror.maxBytes:10737418240}") long maxBytes) {
+        this.mirrorRoot = new File(folderName);
+        this.maxBytes = maxBytes;
+        if (!mirrorRoot.isDirectory())
+            mirrorRoot.mkdirs();
+        File[] owners = mirrorRoot.listFiles(File::isDirectory);
+        if (owners == null)
+            return;
+        for (File owner : owners) {
+            // mirrors evicted before a restart
+            if (owner.getName().equals(EVICTED_FOLDER)) {
+                deleteDir(owner);
+                continue;
+            }
+            File[] repos = owner.listFiles((dir, name) -> name.endsWith(".git"));
+            if (repos == null)
+                continue;
+            for (File repo : repos) {
+                String name = repo.getName();
+                Mirror mirror = new Mirror(repo);
+                mirror.lastUsed = repo.lastModified();
+                mirror.size = sizeOf(repo);
+                mirrors.put(owner.getName() + "/" + name.substring(0, name.length() - 4), mirror);
+            }
+        }
+    }
+
+    /**
+     * Creates a working tree for a commit in gitPath, backed by the mirror of the repository.
+     * The mirror is cloned on first use and only fetched when it does not contain the commit yet.
+     * Callers must call {@link #release(String)} when they are done with the working tree.
+     * @param repoFullName full name of the repository, the cache key
+     * @param repoGitURI URI of the repository
+     * @param sha commit to check out, HEAD of the working tree is detached at it
+     * @param gitPath working tree folder, must be empty
+     * @param cp credentials for the fetch, may be null
+     * @return the working tree repository
+     * @throws GitAPIException on git api errors
+     * @throws IOException on file system error
+     */
+    public Git checkout(String repoFullName, String repoGitURI, String sha, File gitPath, CredentialsProvider cp)
+            throws GitAPIException, IOException {
+        fetch(repoFullName, repoGitURI, sha, cp);
+        return worktree(repoFullName, sha, gitPath);
+    }
+
+    /**
+     * Makes sure the mirror of the repository contains a commit, without creating a working tree.
+     * The mirror is cloned on first use and only fetched when it does not contain the commit yet.
+     * Callers must call {@link #release(String)} when they are done with the mirror.
+     * @param repoFullName full name of the repository, the cache key
+     * @param repoGitURI URI of the repository
+     * @param sha commit to fetch
+     * @param cp credentials for the fetch, may be null
+     * @return id of the git tree of the commit, null if the commit is not in the repository
+     * @throws GitAPIException on git api errors
+     * @throws IOException on file system error
+     */
+    public String fetch(String repoFullName, String repoGitURI, String sha, CredentialsProvider cp)
+            throws GitAPIException, IOException {
+        Mirror mirror = acquire(repoFullName);
+        mirror.lock.lock();
+        try {
+            update(mirror, repoGitURI, sha, cp);
+            try (Git git = Git.open(mirror.dir)) {
+                ObjectId tree = git.getRepository().resolve(sha + "^{tree}");
+                return tree == null ? null : tree.name();
+            } catch (MissingObjectException | RuntimeException e) {
+                return null;
+            }
+        } finally {
+            mirror.lock.unlock();
+        }
+    }
+
+    /**
+     * Creates a working tree for a commit in gitPath, backed by the mirror of the repository.
+     * The commit must have been fetched with {@link #fetch(String, String, String, CredentialsProvider)}.
+     * @param repoFullName full name of the repository
+     * @param sha commit to check out, HEAD of the working tree is detached at it
+     * @param gitPath working tree folder, must be empty
+     * @return the working tree repository
+     * @throws GitAPIException on git api errors
+     * @throws IOException on file system error
+     */
+    public Git worktree(String repoFullName, String sha, File gitPath) throws GitAPIException, IOException {
+        Mirror mirror;
+        synchronized (this) {
+            mirror = mirrors.get(repoFullName);
+        }
+        if (mirror == null)
+            throw new IllegalStateException("No mirror of " + repoFullName + ", fetch it first");
+
+        Git.init().setDirectory(gitPath.getCanonicalFile()).call().close();
+        File alternates = new File(gitPath, ".git" + File.separator + "objects" + File.separator + "info" +
+                File.separator + "alternates");
+        alternates.getParentFile().mkdirs();
+        String objects = new File(mirror.dir, "objects").getCanonicalPath();
+        Files.write(alternates.toPath(), (objects + "\n").getBytes(StandardCharsets.UTF_8));
+
+        Git git = Git.open(gitPath.getCanonicalFile());
+        ObjectId commit = git.getRepository().resolve(sha);
+        if (commit != null) {
+            RefUpdate head = git.getRepository().updateRef("HEAD", true);
+            head.setNewObjectId(commit);
+            head.forceUpdate();
+        }
+        return git;
+    }
+
+    /**
+     * Marks the mirror of a repository as no longer used by a build and evicts mirrors if the cache is too big.
+     * @param repoFullName full name of the repository
+     */
+    public void release(String repoFullName) {
+        synchronized (this) {
+            Mirror mirror = mirrors.get(repoFullName);
+            if (mirror != null && mirror.users > 0)
+                mirror.users--;
+        }
+        evict();
+    }
+
+    /**
+     * Clones the mirror if it does not exist, else fetches new objects unless the commit is already there.
+     */
+    private void update(Mirror mirror, String repoGitURI, String sha, CredentialsProvider cp)
+            throws GitAPIException, IOException {
+        if (!new File(mirror.dir, "objects").isDirectory()) {
+            misses.incrementAndGet();
+            log.info("Mirror miss, clone " + repoGitURI + " into " + mirror.dir);
+            mirror.dir.mkdirs();
+            Git.cloneRepository()
+                    .setURI(repoGitURI)
+                    .setDirectory(mirror.dir.getCanonicalFile())
+                    .setBare(true)
+                    .setCloneAllBranches(true)
+                    .setCredentialsProvider(cp)
+                    .call()
+                    .close();
+            long size = sizeOf(mirror.dir);
+            bytesFetched.addAndGet(size);
+            setSize(mirror, size);
+            return;
+        }
+        hits.incrementAndGet();
+        try (Git git = Git.open(mirror.dir)) {
+            if (contains(git.getRepository(), sha))
+                return;
+            log.info("Mirror hit, fetch " + repoGitURI + " into " + mirror.dir);
+            Map<String, Long> before = packs(mirror.dir);
+            git.fetch()
+                    .setRemote("origin")
+                    .setRemoveDeletedRefs(true)
+                    .setCredentialsProvider(cp)
+                    .call();
+            // the fetched objects arrive as a new pack
+            for (Map.Entry<String, Long> pack : packs(mirror.dir).entrySet())
+                if (!before.containsKey(pack.getKey()))
+                    bytesFetched.addAndGet(pack.getValue());
+            setSize(mirror, sizeOf(mirror.dir));
+        }
+    }
+
+    private static boolean contains(Repository repository, String sha) throws IOException {
+        try {
+            ObjectId id = repository.resolve(sha);
+            return id != null && repository.getObjectDatabase().has(id);
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private synchronized Mirror acquire(String repoFullName) {
+        Mirror mirror = mirrors.get(repoFullName);
+        if (mirror == null) {
+            mirror = new Mirror(new File(mirrorRoot, sanitize(repoFullName) + ".git"));
+            mirrors.put(repoFullName, mirror);
+        }
+        mirror.users++;
+        mirror.lastUsed = System.currentTimeMillis();
+        return mirror;
+    }
+
+    private synchronized void setSize(Mirror mirror, long size) {
+        mirror.size = size;
+    }
+
+    /**
+     * Removes mirrors that are not in use, least recently used first, until the cache fits in maxBytes.
+     * The mirrors are only renamed while the cache is locked, they are deleted after it is unlocked.
+     */
+    void evict() {
+        List<File> removed = new ArrayList<>();
+        synchronized (this) {
+            long total = 0;
+            for (Mirror mirror : mirrors.values())
+                total += mirror.size;
+            if (total <= maxBytes)
+                return;
+            List<Map.Entry<String, Mirror>> candidates = new ArrayList<>(mirrors.entrySet());
+            candidates.sort(Comparator.comparingLong(e -> e.getValue().lastUsed));
+            for (Map.Entry<String, Mirror> entry : candidates) {
+                if (total <= maxBytes)
+                    break;
+                Mirror mirror = entry.getValue();
+                if (mirror.users > 0 || !mirror.lock.tryLock())
+                    continue;
+                try {
+                    File target = moveAside(mirror.dir);
+                    if (target == null)
+                        continue;
+                    log.info("Evict mirror " + mirror.dir);
+                    removed.add(target);
+                    mirrors.remove(entry.getKey());
+                    total -= mirror.size;
+                    evicted.incrementAndGet();
+                } finally {
+                    mirror.lock.unlock();
+                }
+            }
+        }
+        for (File dir : removed) {
+            if (reaper != null)
+                reaper.reap(dir);
+            else
+                deleteDir(dir);
+        }
+    }
+
+    /**
+     * Renames a mirror into the evicted folder, which frees its name for a new mirror of the repository at once.
+     * @return the renamed folder, null if it could not be renamed
+     */
+    private File moveAside(File dir) {
+        File evictedRoot = new File(mirrorRoot, EVICTED_FOLDER);
+        evictedRoot.mkdirs();
+        File target = new File(evictedRoot, dir.getParentFile().getName() + "_" + dir.getName() + "-" + System.nanoTime());
+        try {
+            Files.move(dir.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            return target;
+        } catch (IOException e) {
+            log.error("Could not evict mirror " + dir + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Setter for the reaper that deletes evicted mirrors, they are deleted on the thread that evicts them without one
+     * @param reaper workspace reaper
+     */
+    @Autowired(required = false)
+    void setReaper(WorkspaceReaper reaper) {
+        this.reaper = reaper;
+    }
+
+    /**
+     * Getter for the number of mirrors evicted since startup
+     * @return mirrors evicted
+     */
+    public long getEvicted() {
+        return evicted.get();
+    }
+
+    /**
+     * Getter for the number of builds that found a mirror of their repository
+     * @return cache hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Getter for the number of builds that had to clone a new mirror
+     * @return cache misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Getter for the share of builds that found a mirror of their repository
+     * @return hit rate between 0 and 1, 0 if no build used the cache
+     */
+    public double getHitRate() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+
+    /**
+     * Getter for the number of bytes written into the mirrors by clones, and of the packs received by fetches
+     * @return bytes fetched
+     */
+    public long getBytesFetched() {
+        return bytesFetched.get();
+    }
+
+    /**
+     * Getter for the size of all mirrors on disk
+     * @return cache size in bytes
+     */
+    public synchronized long getSize() {
+        long total = 0;
+        for (Mirror mirror : mirrors.values())
+            total += mirror.size;
+        return total;
+    }
+
+    /**
+     * Maps a repository full name to a relative folder name, owner/repo.
+     */
+    private static String sanitize(String repoFullName) {
+        String name = repoFullName.replaceAll("[^A-Za-z0-9._/-]", "_").replace("..", "_");
+        return name.contains("/") ? name : "_/" + name;
+    }
+
+    /**
+     * Sizes of the pack files of a mirror by name
+     */
+    private static Map<String, Long> packs(File dir) {
+        Map<String, Long> packs = new HashMap<>();
+        File[] files = new File(dir, "objects" + File.separator + "pack").listFiles((d, name) -> name.endsWith(".pack"));
+        if (files != null)
+            for (File file : files)
+                packs.put(file.getName(), file.length());
+        return packs;
+    }
+
+    private static long sizeOf(File dir) {
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            return paths.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+        } catch (IOException | RuntimeException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Recursively remove files and folders in path. rm -r file
+     * @param file file or folder to delete
+     */
+    private static void deleteDir(File file) {
+        File[] contents = file.listFiles();
+        if (contents != null) {
+            for (File f : contents) {
+                if (!Files.isSymbolicLink(f.toPath())) {
+                    deleteDir(f);
+                }
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,140 @@
+package org.Simple-CI;
+
+import org.eclipse.jgit.api.Git;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Checks out exactly one commit with the git command line: a depth 1 fetch of the commit, and optionally a
+ * sparse checkout of some paths. JGit can neither fetch shallow nor check out sparse, so the git executable is used.
+ * Repositories with sparse paths in their server spec are always checked out this way, others only if shallow
+ * checkouts are preferred over the {@link RepoMirrorCache}, which downloads the history once and keeps it.
+ * Builds fall back to the mirror or a full clone when git is not installed or the fetch fails, for example
+ * when the server does not allow fetching a commit by its sha.
+ */
+@Component
+public class ShallowClone {
+
+    private final Logger log = LoggerFactory.getLogger(ShallowClone.class);
+    private final boolean preferred;
+    private final String git;
+    private volatile boolean gitMissing;
+
+    /**
+     * Create the shallow clone settings.
+     * @param preferred check out all repositories shallow, not only the ones with sparse paths
+     * @param git git executable
+     */
+    public ShallowClone(@Value("${ci.clone.shallow:false}") boolean preferred,
+                        @Value("${ci.clone.git:git}") String git) {
+        this.preferred = preferred;
+        this.git = git;
+    }
+
+    /**
+     * Checks if all repositories are checked out shallow
+     * @return true if shallow checkouts are preferred over the mirror cache
+     */
+    public boolean isPreferred() {
+        return preferred;
+    }
+
+    /**
+     * Checks out a commit into an empty folder.
+     * @param repoGitURI URI of the repository
+     * @param sha commit to check out, HEAD is detached at it
+     * @param gitPath empty folder to check out into
+     * @param sparsePaths paths to check out, relative to the repository root, all if empty
+     * @param token GitHub token for private repositories, may be null
+     * @param buildLog build log, gets the git commands and their output
+     * @param handle handle of the running build, the git processes are processes of the build
+     * @return the checked out repository, null if git is missing or failed and gitPath must be emptied for a full clone
+     * @throws IOException on file system error
+     * @throws InterruptedException if the build thread was interrupted
+     */
+    public Git checkout(String repoGitURI, String sha, File gitPath, List<String> sparsePaths, String token,
+                        BuildLogStore.LogWriter buildLog, BuildProcesses.Handle handle)
+            throws IOException, InterruptedException {
+        if (gitMissing)
+            return null;
+        if (!run(gitPath, buildLog, handle, null, "init", "-q"))
+            return null;
+        if (!sparsePaths.isEmpty()) {
+            if (!run(gitPath, buildLog, handle, null, "config", "core.sparseCheckout", "true"))
+                return null;
+            List<String> patterns = new ArrayList<>();
+            patterns.add("/" + BuildPipeline.SPEC_FILE);
+            for (String path : sparsePaths)
+                patterns.add("/" + (path.startsWith("/") ? path.substring(1) : path));
+            File sparseFile = new File(gitPath, ".git" + File.separator + "info" + File.separator + "sparse-checkout");
+            sparseFile.getParentFile().mkdirs();
+            Files.write(sparseFile.toPath(), patterns, StandardCharsets.UTF_8);
+            buildLog.append("sparse checkout of " + String.join(" ", sparsePaths));
+        }
+        if (!run(gitPath, buildLog, handle, token, "fetch", "--depth", "1", "--no-tags", repoGitURI, sha))
+            return null;
+        if (!run(gitPath, buildLog, handle, null, "checkout", "-q", sha))
+            return null;
+        return Git.open(gitPath);
+    }
+
+    /**
+     * Runs git in gitPath and streams its output into the build log
+     * @param token GitHub token sent as authorization header through the environment, may be null
+     * @return true if git exited with 0
+     */
+    private boolean run(File gitPath, BuildLogStore.LogWriter buildLog, BuildProcesses.Handle handle, String token,
+                        String... args) throws InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(git);
+        command.addAll(Arrays.asList(args));
+        buildLog.append("git " + String.join(" ", args));
+        ProcessBuilder processBuilder = new ProcessBuilder(command)
+                .directory(gitPath)
+                .redirectErrorStream(true);
+        processBuilder.environment().put("GIT_TERMINAL_PROMPT", "0");
+        if (token != null) {
+            // the header is not on the command line, where other users could see it
+            String basic = Base64.getEncoder().encodeToString(("x-access-token:" + token).getBytes(StandardCharsets.UTF_8));
+            processBuilder.environment().put("GIT_CONFIG_COUNT", "1");
+            processBuilder.environment().put("GIT_CONFIG_KEY_0", "http.extraHeader");
+            processBuilder.environment().put("GIT_CONFIG_VALUE_0", "Authorization: Basic " + basic);
+        }
+        Process p;
+        try {
+            p = processBuilder.start();
+        } catch (IOException e) {
+            gitMissing = true;
+            log.warn("Could not run " + git + ", builds use full clones: " + e);
+            buildLog.append("git not available: " + e.getMessage());
+            return false;
+        }
+        handle.start(p);
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                handle.touch();
+                buildLog.append(line);
+            }
+        } catch (IOException e) {
+            // killing the process closes its output
+        }
+        p.waitFor();
+        if (p.exitValue() != 0)
+            buildLog.append("git " + args[0] + " failed with exit code " + p.exitValue());
+        return p.exitValue() == 0;
+    }
+}
@@ -0,0 +1,90 @@
+package org.Simple-CI;
+
+import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+/**
+ * This is a spring controller class responsible for reporting the statistics of the CI server as JSON
+ */
+@Controller
+public class StatsController {
+
+    @Autowired
+    private RepoMirrorCache mirrorCache;
+
+    @Autowired
+    private GitHubStatusNotifier notifier;
+
+    @Autowired
+    private WebhookQueue webhookQueue;
+
+    @Autowired
+    private BuildQueue buildQueue;
+
+    @Autowired
+    private BuildPipeline pipeline;
+
+    @Autowired
+    private BuildResultCache resultCache;
+
+    @Autowired
+    private WorkspaceReaper reaper;
+
+    /**
+     * This function is responsible for handling requests sent to /stats url of the webserver
+     * @return JSON object with the statistics of the caches and queues
+     */
+    @GetMapping(value = "/stats", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public String stats() {
+        JSONObject mirror = new JSONObject()
+                .put("hits", mirrorCache.getHits())
+                .put("misses", mirrorCache.getMisses())
+                .put("hitRate", mirrorCache.getHitRate())
+                .put("bytesFetched", mirrorCache.getBytesFetched())
+                .put("size", mirrorCache.getSize());
+        JSONObject notify = new JSONObject()
+                .put("queueDepth", notifier.getQueueDepth())
+                .put("sent", notifier.getSent())
+                .put("coalesced", notifier.getCoalesced())
+                .put("dropped", notifier.getDropped())
+                .put("failed", notifier.getFailed());
+        JSONObject webhooks = new JSONObject()
+                .put("received", webhookQueue.getReceived())
+                .put("processed", webhookQueue.getProcessed())
+                .put("rejected", webhookQueue.getRejected())
+                .put("pendingBytes", webhookQueue.getPendingBytes());
+        JSONObject builds = new JSONObject()
+                .put("queueDepth", buildQueue.getQueueDepth())
+                .put("full", buildQueue.isFull())
+                .put("submitted", buildQueue.getSubmitted())
+                .put("superseded", buildQueue.getSuperseded())
+                .put("reused", buildQueue.getReused());
+        JSONObject stages = new JSONObject()
+                .put("run", pipeline.getStagesRun())
+                .put("skipped", pipeline.getStagesSkipped());
+        JSONObject results = new JSONObject()
+                .put("hits", resultCache.getHits())
+                .put("misses", resultCache.getMisses())
+                .put("size", resultCache.getSize());
+        JSONObject workspaces = new JSONObject()
+                .put("pending", reaper.getPending())
+                .put("pendingBytes", reaper.getPendingBytes())
+                .put("reaped", reaper.getReaped())
+                .put("reapedInline", reaper.getReapedInline())
+                .put("bytesFreed", reaper.getBytesFreed());
+        return new JSONObject()
+                .put("mirrorCache", mirror)
+                .put("buildQueue", builds)
+                .put("stages", stages)
+                .put("resultCache", results)
+                .put("workspaces", workspaces)
+                .put("notifier", notify)
+                .put("webhooks", webhooks)
+                .toString();
+    }
+}
@@ -0,0 +1,334 @@
+package org.Simple-CI;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.integration.core.MessageSource;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.Message;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Durable queue of received webhook payloads.
+ * The inbound gateway only appends the raw payload to the queue file and answers, parsing and routing happen
+ * when the payload is polled from the queue. Every payload is framed as length, crc32 and UTF-8 bytes.
+ * The offset of the first payload that is not acknowledged yet is kept in a separate file, so payloads that
+ * were received but not processed before a restart are delivered again. Payloads are acknowledged in any order,
+ * a payload that spawns a build only once a worker took the build, see {@link BuildQueue}. After a restart
+ * the payloads behind the first one that was not acknowledged are delivered again too, the build queue
+ * reuses the results of commits that were built already. A payload that could not be processed is moved to a dead
+ * letter file, so it does not hold back the payloads behind it.
+ * While the {@link BuildQueue} is full, payloads are not polled and stay on disk, unless the overflow policy
+ * coalesces builds. With overflow policy reject, new payloads are answered with 429 while it is full.
+ */
+@Component
+public class WebhookQueue implements MessageSource<String> {
+
+    /**
+     * Header holding the queue offset after a polled payload, used to acknowledge it.
+     */
+    public static final String OFFSET_HEADER = "webhookOffset";
+    private static final int FRAME_HEADER_BYTES = 8;
+    private static final int MAX_PAYLOAD_BYTES = 64 << 20;
+
+    private final Logger log = LoggerFactory.getLogger(WebhookQueue.class);
+    private final File queueFile;
+    private final File offsetFile;
+    private final File deadLetterFile;
+    private final boolean fsync;
+    private final RandomAccessFile file;
+    private long writePosition;
+    private long readPosition;
+    private long committed;
+    // polled payloads that are not acknowledged yet, end offset to start offset
+    private final TreeMap<Long, Long> outstanding = new TreeMap<>();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong deadLettered = new AtomicLong();
+    private BuildQueue buildQueue;
+
+    /**
+     * Create a webhook queue, payloads left over from a previous run are delivered again.
+     * @param folderName folder of the queue file and its offset file
+     * @param fsync force every payload to disk before it is answered
+     * @throws IOException if the queue file could not be opened
+     */
+    public WebhookQueue(@Value("${ci.webhook.folder:./webhooks}") String folderName,
+                        @Value("${ci.webhook.fsync:true}") boolean fsync) throws IOException {
+        File folder = new File(folderName);
+        if (!folder.isDirectory())
+            folder.mkdirs();
+        this.queueFile = new File(folder, "queue.bin");
+        this.offsetFile = new File(folder, "queue.offset");
+        this.deadLetterFile = new File(folder, "dead-letter.txt");
+        this.fsync = fsync;
+        this.file = new RandomAccessFile(queueFile, "rw");
+        this.committed = Math.min(readOffset(), file.length());
+        this.readPosition = committed;
+        this.writePosition = recover(committed);
+        if (writePosition > committed)
+            log.info("Webhook queue holds " + (writePosition - committed) + " bytes from a previous run");
+    }
+
+    /**
+     * Appends a payload to the queue, used by the inbound gateway.
+     * @param msg message with the raw webhook payload
+     * @return reply with status 202 if the payload is queued, 429 if it is rejected because the build queue
+     * is full, 503 if it could not be stored
+     */
+    public Message<String> enqueue(Message<String> msg) {
+        HttpStatus status = HttpStatus.ACCEPTED;
+        try {
+            if (isRejecting()) {
+                rejected.incrementAndGet();
+                status = HttpStatus.TOO_MANY_REQUESTS;
+            } else {
+                append(msg.getPayload());
+            }
+        } catch (IOException e) {
+            log.error("Could not queue webhook: " + e);
+            status = HttpStatus.SERVICE_UNAVAILABLE;
+        }
+        return MessageBuilder.withPayload("")
+                .copyHeadersIfAbsent(msg.getHeaders())
+                .setHeader("http_statusCode", status)
+                .build();
+    }
+
+    /**
+     * Appends a payload to the queue.
+     * @param payload raw webhook payload
+     * @throws IOException if the payload could not be written
+     */
+    public synchronized void append(String payload) throws IOException {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        byte[] frame = new byte[FRAME_HEADER_BYTES + bytes.length];
+        putInt(frame, 0, bytes.length);
+        putInt(frame, 4, (int) crc.getValue());
+        System.arraycopy(bytes, 0, frame, FRAME_HEADER_BYTES, bytes.length);
+        file.seek(writePosition);
+        file.write(frame);
+        if (fsync)
+            file.getChannel().force(false);
+        writePosition += frame.length;
+        received.incrementAndGet();
+    }
+
+    /**
+     * Takes the next payload from the queue without acknowledging it.
+     * @return message with the payload and header {@link #OFFSET_HEADER}, null if the queue is empty or the
+     * payloads are held back because the build queue is full
+     */
+    @Override
+    public Message<String> receive() {
+        // the build queue acknowledges payloads while it is locked, so it is never asked while this is locked
+        if (isHeldBack())
+            return null;
+        synchronized (this) {
+            if (readPosition >= writePosition)
+                return null;
+            try {
+                long start = readPosition;
+                file.seek(readPosition);
+                int length = file.readInt();
+                file.readInt();
+                byte[] bytes = new byte[length];
+                file.readFully(bytes);
+                readPosition += FRAME_HEADER_BYTES + length;
+                outstanding.put(readPosition, start);
+                return MessageBuilder.withPayload(new String(bytes, StandardCharsets.UTF_8))
+                        .setHeader(OFFSET_HEADER, readPosition)
+                        .build();
+            } catch (IOException e) {
+                log.error("Could not read webhook queue: " + e);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Marks a polled payload as processed. Payloads up to the first polled payload that is not acknowledged
+     * are not delivered again after a restart. The queue file is emptied once every payload in it is processed.
+     * @param msg polled message, or a message derived from it that kept header {@link #OFFSET_HEADER}
+     */
+    public synchronized void acknowledge(Message<?> msg) {
+        Long offset = msg.getHeaders().get(OFFSET_HEADER, Long.class);
+        if (offset == null || outstanding.remove(offset) == null)
+            return;
+        processed.incrementAndGet();
+        long first = outstanding.isEmpty() ? readPosition : outstanding.firstEntry().getValue();
+        if (first <= committed)
+            return;
+        committed = first;
+        try {
+            if (committed == writePosition) {
+                file.setLength(0);
+                writePosition = readPosition = committed = 0;
+            }
+            writeOffset(committed);
+        } catch (IOException e) {
+            log.error("Could not acknowledge webhook: " + e);
+        }
+    }
+
+    /**
+     * Acknowledges a polled payload that could not be processed, so it does not hold back the payloads behind it.
+     * The payload is appended to the dead letter file next to the queue together with the reason.
+     * @param msg polled message with the raw payload
+     * @param cause why the payload could not be processed
+     */
+    public void deadLetter(Message<String> msg, Exception cause) {
+        log.error("Could not process webhook, moved to " + deadLetterFile + ": " + cause);
+        deadLettered.incrementAndGet();
+        synchronized (this) {
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(deadLetterFile, true),
+                    StandardCharsets.UTF_8)) {
+                out.write("# " + new Date() + " " + cause + "\n" + msg.getPayload() + "\n");
+            } catch (IOException e) {
+                log.error("Could not write dead letter file: " + e);
+            }
+        }
+        acknowledge(msg);
+    }
+
+    /**
+     * Setter for the build queue whose overflow policy applies to the webhooks
+     * @param buildQueue build queue
+     */
+    @Autowired(required = false)
+    void setBuildQueue(BuildQueue buildQueue) {
+        this.buildQueue = buildQueue;
+    }
+
+    private boolean isHeldBack() {
+        return buildQueue != null && buildQueue.getOverflow() != BuildQueue.Overflow.coalesce
+                && buildQueue.isFull();
+    }
+
+    private boolean isRejecting() {
+        return buildQueue != null && buildQueue.getOverflow() == BuildQueue.Overflow.reject
+                && buildQueue.isFull();
+    }
+
+    /**
+     * Getter for the number of payloads waiting to be processed
+     * @return bytes between the acknowledged offset and the end of the queue
+     */
+    public synchronized long getPendingBytes() {
+        return writePosition - committed;
+    }
+
+    /**
+     * Getter for the number of payloads received since startup
+     * @return payloads received
+     */
+    public long getReceived() {
+        return received.get();
+    }
+
+    /**
+     * Getter for the number of payloads answered with 429 since startup
+     * @return payloads rejected
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Getter for the number of payloads moved to the dead letter file since startup
+     * @return payloads that could not be processed
+     */
+    public long getDeadLettered() {
+        return deadLettered.get();
+    }
+
+    /**
+     * Getter for the number of payloads acknowledged since startup
+     * @return payloads processed
+     */
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    /**
+     * Closes the queue file.
+     */
+    @PreDestroy
+    public synchronized void close() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            log.error(e.toString());
+        }
+    }
+
+    /**
+     * Walks the frames after the committed offset and cuts off a frame that was only partly written
+     * when the server stopped.
+     * @return end of the last complete frame
+     */
+    private long recover(long from) throws IOException {
+        long position = from;
+        long length = file.length();
+        while (position + FRAME_HEADER_BYTES <= length) {
+            file.seek(position);
+            int size = file.readInt();
+            int checksum = file.readInt();
+            if (size < 0 || size > MAX_PAYLOAD_BYTES || position + FRAME_HEADER_BYTES + size > length)
+                break;
+            byte[] bytes = new byte[size];
+            file.readFully(bytes);
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            if ((int) crc.getValue() != checksum)
+                break;
+            position += FRAME_HEADER_BYTES + size;
+        }
+        if (position < length) {
+            log.warn("Webhook queue has a torn frame at " + position + ", truncating " + (length - position) + " bytes");
+            file.setLength(position);
+        }
+        return position;
+    }
+
+    private long readOffset() {
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(offsetFile.toPath()), StandardCharsets.UTF_8).trim());
+        } catch (IOException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void writeOffset(long offset) throws IOException {
+        File tmp = new File(offsetFile.getPath() + ".tmp");
+        Files.write(tmp.toPath(), Long.toString(offset).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), offsetFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void putInt(byte[] buffer, int index, int value) {
+        buffer[index] = (byte) (value >>> 24);
+        buffer[index + 1] = (byte) (value >>> 16);
+        buffer[index + 2] = (byte) (value >>> 8);
+        buffer[index + 3] = (byte) value;
+    }
+}
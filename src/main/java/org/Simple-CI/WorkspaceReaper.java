@@ -0,0 +1,230 @@
+package org.Simple-CI;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Removes build workspaces in the background. A workspace is renamed into the trash folder of the workspace root,
+ * which frees its name at once, and its subtrees are then deleted in parallel by the reaper threads, so build
+ * workers go back to the queue without waiting for huge build and node_modules trees to be deleted.
+ * When the estimated size of the workspaces waiting for deletion exceeds maxPendingBytes, workspaces are deleted
+ * on the calling thread instead, which slows the builds down until the reaper catches up. The size of a workspace
+ * is estimated as the average deleted workspace, or as workspaceBytes until the first one is deleted.
+ * Leftovers of a previous run in the trash folder are deleted at startup.
+ */
+@Component
+public class WorkspaceReaper {
+
+    private final Logger log = LoggerFactory.getLogger(WorkspaceReaper.class);
+    private final File trash;
+    private final long maxPendingBytes;
+    private final long workspaceBytes;
+    private final ExecutorService reapers;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong reaped = new AtomicLong();
+    private final AtomicLong bytesFreed = new AtomicLong();
+    private final AtomicLong reapedInline = new AtomicLong();
+    private final AtomicLong trashed = new AtomicLong();
+
+    /**
+     * Create the reaper of the workspaces in user.dir/repo.
+     * @param threads number of reaper threads
+     * @param maxPendingBytes estimated size of the workspaces waiting for deletion above which they are deleted inline
+     * @param workspaceBytes estimated size of a workspace until the first one is deleted
+     */
+    @Autowired
+    public WorkspaceReaper(@Value("${ci.reaper.threads:2}") int threads,
+                           @Value("${ci.reaper.maxPendingBytes:21474836480}") long maxPendingBytes,
+                           @Value("${ci.reaper.workspaceBytes:1073741824}") long workspaceBytes) {
+        this(new File(System.getProperty("user.dir"), "repo"), threads, maxPendingBytes, workspaceBytes);
+    }
+
+    WorkspaceReaper(File workspaceRoot, int threads, long maxPendingBytes, long workspaceBytes) {
+        this(workspaceRoot, Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "workspace-reaper");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }), maxPendingBytes, workspaceBytes);
+    }
+
+    WorkspaceReaper(File workspaceRoot, ExecutorService reapers, long maxPendingBytes, long workspaceBytes) {
+        this.trash = new File(workspaceRoot, ".trash");
+        this.maxPendingBytes = maxPendingBytes;
+        this.workspaceBytes = workspaceBytes;
+        this.reapers = reapers;
+        trash.mkdirs();
+        File[] leftovers = trash.listFiles();
+        if (leftovers != null && leftovers.length > 0) {
+            log.info("Deleting " + leftovers.length + " workspaces left in " + trash);
+            for (File leftover : leftovers)
+                submit(leftover);
+        }
+    }
+
+    /**
+     * Removes a workspace. It is gone from its place when this returns, unless it could not be moved to the trash
+     * folder, then it is deleted in place in the background.
+     * @param workspace workspace folder
+     */
+    public void reap(File workspace) {
+        if (!workspace.exists())
+            return;
+        if (getPendingBytes() > maxPendingBytes) {
+            reapedInline.incrementAndGet();
+            deleted(deleteTree(workspace.toPath()));
+            return;
+        }
+        File target = new File(trash, workspace.getName() + "-" + trashed.incrementAndGet() + "-" + System.nanoTime());
+        try {
+            Files.move(workspace.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // the trash is on another file system
+            target = workspace;
+        }
+        submit(target);
+    }
+
+    /**
+     * Deletes a folder with one reaper task per child, the folder itself is deleted when all children are gone
+     */
+    private void submit(File folder) {
+        pending.incrementAndGet();
+        File[] children = folder.isDirectory() ? folder.listFiles() : null;
+        List<CompletableFuture<Long>> parts = new ArrayList<>();
+        if (children != null)
+            for (File child : children)
+                parts.add(CompletableFuture.supplyAsync(() -> deleteTree(child.toPath()), reapers));
+        CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).whenCompleteAsync((ignored, error) -> {
+            long bytes = deleteTree(folder.toPath());
+            for (CompletableFuture<Long> part : parts)
+                bytes += part.getNow(0L);
+            deleted(bytes);
+            pending.decrementAndGet();
+        }, reapers);
+    }
+
+    private void deleted(long bytes) {
+        bytesFreed.addAndGet(bytes);
+        reaped.incrementAndGet();
+    }
+
+    /**
+     * Deletes a file tree without following symbolic links, rm -r
+     * @param root file or folder
+     * @return bytes deleted
+     */
+    static long deleteTree(Path root) {
+        AtomicLong bytes = new AtomicLong();
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    bytes.addAndGet(attrs.size());
+                    Files.deleteIfExists(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                    Files.deleteIfExists(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            LoggerFactory.getLogger(WorkspaceReaper.class).warn("Could not delete all of " + root + ": " + e);
+        }
+        return bytes.get();
+    }
+
+    private long averageBytes() {
+        long count = reaped.get();
+        return count == 0 ? workspaceBytes : bytesFreed.get() / count;
+    }
+
+    /**
+     * Waits until all workspaces are deleted, used by tests
+     * @param timeoutMillis maximum time to wait
+     * @return true if no workspace is waiting for deletion
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (pending.get() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        return pending.get() == 0;
+    }
+
+    /**
+     * Getter for the number of workspaces waiting for deletion
+     * @return pending workspaces
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * Getter for the estimated size of the workspaces waiting for deletion, from the average deleted workspace or,
+     * until the first one is deleted, from the configured workspace size
+     * @return estimated pending bytes
+     */
+    public long getPendingBytes() {
+        return pending.get() * averageBytes();
+    }
+
+    /**
+     * Getter for the number of deleted workspaces
+     * @return workspaces deleted
+     */
+    public long getReaped() {
+        return reaped.get();
+    }
+
+    /**
+     * Getter for the number of workspaces deleted on the calling thread because too much was pending
+     * @return workspaces deleted inline
+     */
+    public long getReapedInline() {
+        return reapedInline.get();
+    }
+
+    /**
+     * Getter for the bytes freed by deleting workspaces
+     * @return bytes freed
+     */
+    public long getBytesFreed() {
+        return bytesFreed.get();
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        reapers.shutdown();
+        reapers.awaitTermination(10, TimeUnit.SECONDS);
+    }
+}
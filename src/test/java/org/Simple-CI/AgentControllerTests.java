@@ -0,0 +1,190 @@
+package org.Simple-CI;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test suite for {@link AgentController}, with {@link BuildAgent}s on the {@link HttpAgentTransport} to the server
+ * on localhost
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "ci.agents.enabled=true", "ci.agents.token=secret", "ci.agents.leaseWaitMillis=100", "management.port=-1"})
+public class AgentControllerTests {
+
+    private final TemporaryFolder testRootFolder = new TemporaryFolder();
+    private final List<BuildAgent> agents = new ArrayList<>();
+    private final List<Process> agentProcesses = new ArrayList<>();
+    private final List<String> buildIds = new ArrayList<>();
+    private final ExecutorService workers = Executors.newCachedThreadPool();
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private BuildCoordinator coordinator;
+
+    @Before
+    public void setUp() throws IOException {
+        testRootFolder.create();
+    }
+
+    @After
+    public void tearDown() {
+        for (BuildAgent agent : agents)
+            agent.close();
+        for (Process process : agentProcesses) {
+            process.destroyForcibly();
+            try {
+                process.waitFor(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        workers.shutdownNow();
+        for (String buildId : buildIds)
+            CiApplication.CIDB.getLogStore().delete(buildId);
+        testRootFolder.delete();
+    }
+
+    private void startAgent(String agentId) throws IOException {
+        BuildLogStore logs = new BuildLogStore(testRootFolder.newFolder(agentId), 1000, false);
+        BuildProcesses processes = new BuildProcesses(60000, 60000, 1000);
+        BuildAgent agent = new BuildAgent(agentId, new HttpAgentTransport("http://localhost:" + port, "secret"),
+                2, 50, logs, processes, msg -> {
+                    BuildData buildData = (BuildData) msg.getHeaders().get("buildData");
+                    try (BuildLogStore.LogWriter writer = logs.openWriter(buildData.getBuildId())) {
+                        writer.append("gradlew build on " + agentId);
+                        Thread.sleep(100);
+                    } catch (IOException | InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    buildData.setBuildStatus(BuildStatus.failure);
+                    buildData.setMessage("Build Failure");
+                    return MessageBuilder.fromMessage(msg).setHeader("url", "").build();
+                });
+        agents.add(agent);
+        agent.start();
+    }
+
+    /**
+     * Test that agents on localhost lease builds, stream their logs and report their results over HTTP
+     */
+    @Test
+    public void runBuildsOnAgents() throws Exception {
+        startAgent("http-0");
+        startAgent("http-1");
+        List<BuildData> builds = new ArrayList<>();
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            BuildData buildData = new BuildData("owner/http-agents", new Date(3000 + i),
+                    String.format("c0ffee%034x", i));
+            builds.add(buildData);
+            buildIds.add(buildData.getBuildId());
+            results.add(workers.submit(() -> coordinator.run(buildData, "master", null)));
+        }
+
+        for (int i = 0; i < 4; i++) {
+            results.get(i).get(10, TimeUnit.SECONDS);
+            assertEquals(BuildStatus.failure, builds.get(i).getBuildStatus());
+            assertEquals("Build Failure", builds.get(i).getMessage());
+            List<String> lines = CiApplication.CIDB.getLogStore().read(builds.get(i).getBuildId());
+            assertTrue(lines.get(lines.size() - 1).startsWith("gradlew build on http-"));
+        }
+        // the agents count a build when the answer to its result arrived
+        long deadline = System.currentTimeMillis() + 5000;
+        while (completed() < 4 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(4, completed());
+    }
+
+    /**
+     * Starts {@link BuildAgent#main(String[])} in a JVM of its own, in its own working directory
+     */
+    private void startAgentProcess(String agentId) throws IOException {
+        File workDir = testRootFolder.newFolder(agentId);
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                BuildAgent.class.getName(), "http://localhost:" + port, agentId, "1")
+                .directory(workDir)
+                .redirectErrorStream(true)
+                .redirectOutput(new File(workDir, "agent.out"));
+        builder.environment().put("CI_AGENT_TOKEN", "secret");
+        agentProcesses.add(builder.start());
+    }
+
+    /**
+     * Test that agents in JVMs of their own on localhost lease builds, run them with a {@link Builder} and report
+     * their logs and results over HTTP. The repositories do not exist, so the builds end with an error.
+     */
+    @Test
+    public void runBuildsOnAgentProcesses() throws Exception {
+        startAgentProcess("jvm-0");
+        startAgentProcess("jvm-1");
+        List<BuildData> builds = new ArrayList<>();
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            BuildData buildData = new BuildData("owner/jvm-agents-" + i, new Date(4000 + i),
+                    String.format("c0ffee%034x", i));
+            builds.add(buildData);
+            buildIds.add(buildData.getBuildId());
+            results.add(workers.submit(() -> coordinator.run(buildData, "master", null)));
+        }
+
+        for (int i = 0; i < 2; i++) {
+            results.get(i).get(120, TimeUnit.SECONDS);
+            BuildData build = builds.get(i);
+            assertEquals(BuildStatus.error, build.getBuildStatus());
+            assertNotNull(build.getDateFinish());
+            List<String> lines = CiApplication.CIDB.getLogStore().read(build.getBuildId());
+            assertTrue(lines.stream().anyMatch(line -> line.startsWith("Leased by build agent jvm-")));
+            // shipped by the agent process, which checks out from its mirror cache
+            assertTrue(lines.stream().anyMatch(line ->
+                    line.startsWith("git fetch https://github.com/owner/jvm-agents-")));
+        }
+        assertTrue(new File(testRootFolder.getRoot(), "jvm-0/mirrors").isDirectory());
+    }
+
+    private long completed() {
+        long completed = 0;
+        for (BuildAgent agent : agents)
+            completed += agent.getCompleted();
+        return completed;
+    }
+
+    /**
+     * Test that agents without the token are turned away
+     */
+    @Test
+    public void rejectWrongToken() throws Exception {
+        try (AgentTransport transport = new HttpAgentTransport("http://localhost:" + port, "wrong")) {
+            transport.lease("intruder");
+            fail("lease without the token");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("403"));
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package org.Simple-CI;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.Message;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test suite for {@link BuildCoordinator} with {@link BuildAgent}s on the {@link LocalAgentTransport}
+ */
+public class BuildCoordinatorTest {
+    private final TemporaryFolder testRootFolder = new TemporaryFolder();
+    private BuildCoordinator coordinator;
+    private BuildLogStore logStore;
+    private BuildProcesses processes;
+    private final List<BuildAgent> agents = new ArrayList<>();
+    private final ExecutorService workers = Executors.newCachedThreadPool();
+    private final Set<String> agentsUsed = Collections.synchronizedSet(new HashSet<>());
+    private int builds;
+
+    @Before
+    public void setUp() throws IOException {
+        testRootFolder.create();
+        logStore = new BuildLogStore(testRootFolder.newFolder("logs"), 1000, false);
+        processes = new BuildProcesses(60000, 60000, 1000);
+        coordinator = coordinator(2);
+    }
+
+    @After
+    public void tearDown() {
+        for (BuildAgent agent : agents)
+            agent.close();
+        workers.shutdownNow();
+        coordinator.shutdown();
+        processes.shutdown();
+        testRootFolder.delete();
+    }
+
+    private BuildCoordinator coordinator(int maxAttempts) {
+        BuildCoordinator coordinator = new BuildCoordinator(true, "", 300, 50, maxAttempts);
+        coordinator.setLogStore(logStore);
+        coordinator.setProcesses(processes);
+        return coordinator;
+    }
+
+    /**
+     * Starts an agent whose builds run the given build function on its own log store and processes
+     */
+    private BuildAgent agent(String agentId, Builds builds) throws IOException {
+        BuildLogStore agentLogs = new BuildLogStore(testRootFolder.newFolder(agentId), 1000, false);
+        BuildProcesses agentProcesses = new BuildProcesses(60000, 60000, 1000);
+        BuildAgent agent = new BuildAgent(agentId, new LocalAgentTransport(coordinator, 50), 1, 20,
+                agentLogs, agentProcesses, builds.runner(agentId, agentLogs, agentProcesses));
+        agents.add(agent);
+        agent.start();
+        return agent;
+    }
+
+    private interface Builds {
+        Function<Message<String>, Message<String>> runner(String agentId, BuildLogStore logs, BuildProcesses processes);
+    }
+
+    /**
+     * Builds that print two lines, wait a while and pass, or stop with the reason they were cancelled for
+     */
+    private Builds sleeping(long millis) {
+        return (agentId, logs, agentProcesses) -> msg -> {
+            BuildData buildData = (BuildData) msg.getHeaders().get("buildData");
+            agentsUsed.add(agentId);
+            try (BuildProcesses.Handle handle = agentProcesses.register(buildData.getBuildId());
+                 BuildLogStore.LogWriter writer = logs.openWriter(buildData.getBuildId())) {
+                writer.append("building " + msg.getHeaders().get("branch") + " on " + agentId);
+                long deadline = System.currentTimeMillis() + millis;
+                while (System.currentTimeMillis() < deadline && handle.getReason() == null)
+                    Thread.sleep(5);
+                writer.append("done");
+                buildData.setTiming("run", millis);
+                if (handle.getReason() != null) {
+                    buildData.setBuildStatus(BuildStatus.error);
+                    buildData.setMessage(handle.getReason());
+                } else {
+                    buildData.setBuildStatus(BuildStatus.success);
+                    buildData.setMessage("Build Success");
+                }
+            } catch (IOException | InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return MessageBuilder.withPayload("").copyHeaders(msg.getHeaders())
+                    .setHeader("url", "https://scans.example.com/" + agentId).build();
+        };
+    }
+
+    private BuildData newBuild() {
+        return new BuildData("owner/agents", new Date(1000 + builds), String.format("%040x", ++builds));
+    }
+
+    private Future<String> submit(BuildData buildData) {
+        return workers.submit(() -> coordinator.run(buildData, "feature", "0123456789abcdef"));
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertTrue(condition.getAsBoolean());
+    }
+
+    /**
+     * Test that several agents share the builds, and that the log, result and timings of every build reach the
+     * coordinator
+     */
+    @Test
+    public void testAgentsRunBuilds() throws Exception {
+        for (int i = 0; i < 3; i++)
+            agent("agent-" + i, sleeping(100));
+        List<BuildData> buildData = new ArrayList<>();
+        List<Future<String>> urls = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            buildData.add(newBuild());
+            urls.add(submit(buildData.get(i)));
+        }
+
+        for (int i = 0; i < 6; i++) {
+            String url = urls.get(i).get(5, TimeUnit.SECONDS);
+            BuildData build = buildData.get(i);
+            assertTrue(url.startsWith("https://scans.example.com/agent-"));
+            assertEquals(BuildStatus.success, build.getBuildStatus());
+            assertEquals("Build Success", build.getMessage());
+            assertEquals(Long.valueOf(100), build.getTimings().get("run"));
+            assertNotNull(build.getDateStart());
+            assertNotNull(build.getDateFinish());
+            List<String> lines = logStore.read(build.getBuildId());
+            assertEquals("Waiting for a build agent", lines.get(0));
+            assertTrue(lines.get(1).startsWith("Leased by build agent agent-"));
+            assertTrue(lines.get(2).startsWith("building feature on agent-"));
+            assertEquals("done", lines.get(lines.size() - 1));
+            assertFalse(logStore.isRunning(build.getBuildId()));
+        }
+        assertTrue(agentsUsed.size() > 1);
+        assertEquals(0, coordinator.getWaiting());
+        assertEquals(0, coordinator.getLeased());
+        assertEquals(3, coordinator.getAgentCount());
+    }
+
+    /**
+     * Test that blank lines of the output of an agent, also at the end of a heartbeat, reach the log
+     */
+    @Test
+    public void testBlankLines() throws Exception {
+        agent("agent-0", (agentId, logs, agentProcesses) -> msg -> {
+            BuildData buildData = (BuildData) msg.getHeaders().get("buildData");
+            try (BuildLogStore.LogWriter writer = logs.openWriter(buildData.getBuildId())) {
+                writer.append("compile");
+                writer.append("");
+                writer.append("");
+                // the lines above are sent with a heartbeat of their own
+                Thread.sleep(200);
+                writer.append("");
+                writer.append("test");
+                buildData.setBuildStatus(BuildStatus.success);
+            } catch (IOException | InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return MessageBuilder.withPayload("").copyHeaders(msg.getHeaders()).build();
+        });
+        BuildData buildData = newBuild();
+        submit(buildData).get(5, TimeUnit.SECONDS);
+
+        List<String> lines = logStore.read(buildData.getBuildId());
+        int compile = lines.indexOf("compile");
+        assertEquals(Arrays.asList("compile", "", "", "", "test"), lines.subList(compile, compile + 5));
+    }
+
+    /**
+     * Test that the build of an agent that sends no heartbeats is leased again, and that the lost agent can no
+     * longer report it
+     */
+    @Test
+    public void testLostAgent() throws Exception {
+        BuildData buildData = newBuild();
+        Future<String> url = submit(buildData);
+        AgentTransport lostAgent = new LocalAgentTransport(coordinator, 1000);
+        JSONObject job = lostAgent.lease("lost");
+        assertNotNull(job);
+        assertEquals(buildData.getSha(), job.getString("sha"));
+        assertEquals("feature", job.getString("branch"));
+
+        agent("agent-0", sleeping(10));
+        url.get(5, TimeUnit.SECONDS);
+
+        assertEquals(BuildStatus.success, buildData.getBuildStatus());
+        String log = String.join("\n", logStore.read(buildData.getBuildId()));
+        assertTrue(log.contains("Build agent lost sent no heartbeat for 300 ms"));
+        assertTrue(log.contains("Leased by build agent agent-0, attempt 2"));
+        assertTrue(lostAgent.heartbeat(job.getString("lease"), "late").optBoolean("lost"));
+        assertFalse(lostAgent.complete(job.getString("lease"), new JSONObject().put("status", "failure")));
+        assertFalse(log.contains("late"));
+    }
+
+    /**
+     * Test that a build fails when its agents are lost maxAttempts times
+     */
+    @Test
+    public void testMaxAttempts() throws Exception {
+        coordinator.shutdown();
+        coordinator = coordinator(1);
+        BuildData buildData = newBuild();
+        Future<String> url = submit(buildData);
+        assertNotNull(new LocalAgentTransport(coordinator, 1000).lease("lost"));
+
+        url.get(5, TimeUnit.SECONDS);
+
+        assertEquals(BuildStatus.error, buildData.getBuildStatus());
+        assertEquals("Build agent lost", buildData.getMessage());
+    }
+
+    /**
+     * Test that cancelling a build reaches its agent with a heartbeat, and that a build cancelled before an agent
+     * leased it fails right away
+     */
+    @Test
+    public void testCancel() throws Exception {
+        BuildData waiting = newBuild();
+        Future<String> waitingUrl = submit(waiting);
+        waitFor(() -> coordinator.getWaiting() == 1);
+        assertTrue(processes.cancel(waiting.getBuildId()));
+        waitingUrl.get(5, TimeUnit.SECONDS);
+        assertEquals(BuildStatus.error, waiting.getBuildStatus());
+        assertEquals("Build cancelled", waiting.getMessage());
+
+        agent("agent-0", sleeping(60000));
+        BuildData running = newBuild();
+        Future<String> runningUrl = submit(running);
+        waitFor(() -> coordinator.getLeased() == 1);
+        assertTrue(processes.cancel(running.getBuildId()));
+        runningUrl.get(5, TimeUnit.SECONDS);
+        assertEquals(BuildStatus.error, running.getBuildStatus());
+        assertEquals("Build cancelled", running.getMessage());
+        assertTrue(logStore.read(running.getBuildId()).contains("done"));
+    }
+}
@@ -78,6 +78,32 @@ public class BuildDataTest {
         assertNotEquals(buildData.getBuildLog(), buildLog);
     }
 
+    @Test
+    public void buildLogLoaderTest() {
+        // test that the loader replaces the in-memory build log
+        buildData.setBuildLog(new ArrayList<>(BUILDLOG));
+        buildData.setBuildLogLoader(() -> Arrays.asList("Loaded"));
+        assertEquals(Arrays.asList("Loaded"), buildData.getBuildLog());
+        // and that setting a build log replaces the loader
+        buildData.setBuildLog(new ArrayList<>(BUILDLOG));
+        assertEquals(BUILDLOG, buildData.getBuildLog());
+    }
+
+    @Test
+    public void timingsTest() {
+        // test that timings keep their order and take part in equals
+        BuildData other = new BuildData(repoFullName,dateCreated,sha);
+        assertEquals(other, buildData);
+        buildData.setTiming("clone", 1200);
+        buildData.setTiming("configure", 3000);
+        assertEquals(Arrays.asList("clone", "configure"), new ArrayList<>(buildData.getTimings().keySet()));
+        assertNotEquals(other, buildData);
+        other.setTiming("clone", 1200);
+        other.setTiming("configure", 3000);
+        assertEquals(other, buildData);
+        assertTrue(buildData.toString().contains("\"timings\""));
+    }
+
     @Test
     public void buildStatusTest() {
         // test buildStatus getter and setter
@@ -141,6 +167,22 @@ public class BuildDataTest {
         assertNotEquals(buildData1, buildData);
     }
 
+    @Test
+    public void equalsDoesNotLoadLog() {
+        // test that equals does not load a log that is loaded on demand
+        int[] loads = new int[1];
+        buildData.setBuildLogLoader(() -> {
+            loads[0]++;
+            return BUILDLOG;
+        });
+        BuildData buildData1 = new BuildData(repoFullName,dateCreated,sha);
+        buildData1.setBuildLog(BUILDLOG);
+        assertEquals(buildData, buildData1);
+        assertEquals(buildData1, buildData);
+        assertTrue(Collections.singletonList(buildData1).contains(buildData));
+        assertEquals(0, loads[0]);
+    }
+
     @Test
     public void loggerTest() {
         // test logger functionality
@@ -0,0 +1,131 @@
+package org.Simple-CI;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test suite for {@link BuildLogController}
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest
+@AutoConfigureMockMvc
+public class BuildLogControllerTests {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Test
+    public void getLogFromOffset() throws Exception {
+        String id = "75bb896e1bf493c700d29fd5c0ffeae84682d6ab-1";
+        BuildLogStore.LogWriter writer = CiApplication.CIDB.getLogStore().openWriter(id);
+        writer.append("Line1");
+        writer.append("Line2");
+        mockMvc.perform(get("/builds/log").param("id", id).param("offset", "6"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("X-Log-Offset", "12"))
+                .andExpect(header().string("X-Build-Running", "true"))
+                .andExpect(content().string("Line2\n"));
+        writer.close();
+        CiApplication.CIDB.getLogStore().delete(id);
+    }
+
+    @Test
+    public void getUnknownLog() throws Exception {
+        mockMvc.perform(get("/builds/log").param("id", "../application")).andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void stalledTailDoesNotDelayOthers() throws Exception {
+        BuildLogStore logStore = CiApplication.CIDB.getLogStore();
+        String stalledId = "75bb896e1bf493c700d29fd5c0ffeae84682d6ab-2";
+        String otherId = "75bb896e1bf493c700d29fd5c0ffeae84682d6ab-3";
+        for (String id : new String[]{stalledId, otherId}) {
+            BuildLogStore.LogWriter writer = logStore.openWriter(id);
+            writer.append("Line1");
+            writer.close();
+        }
+        CountDownLatch stalled = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch received = new CountDownLatch(2);
+        BuildLogController controller = new BuildLogController(2);
+        try {
+            // a client that does not read, its send blocks until released
+            controller.tail(logStore, stalledId, 0, new SseEmitter(0L) {
+                @Override
+                public void send(SseEventBuilder builder) throws IOException {
+                    stalled.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+            });
+            assertTrue(stalled.await(10, TimeUnit.SECONDS));
+            // the log and end events reach the other client meanwhile
+            controller.tail(logStore, otherId, 0, new SseEmitter(0L) {
+                @Override
+                public void send(SseEventBuilder builder) {
+                    received.countDown();
+                }
+            });
+            assertTrue(received.await(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            controller.shutdown();
+            logStore.delete(stalledId);
+            logStore.delete(otherId);
+        }
+    }
+
+    @Test
+    public void tailKeepsBlankLines() throws Exception {
+        BuildLogStore logStore = CiApplication.CIDB.getLogStore();
+        String id = "75bb896e1bf493c700d29fd5c0ffeae84682d6ab-4";
+        BuildLogStore.LogWriter writer = logStore.openWriter(id);
+        writer.append("Line1");
+        writer.append("");
+        writer.append("");
+        writer.close();
+        StringBuffer events = new StringBuffer();
+        CountDownLatch ended = new CountDownLatch(1);
+        BuildLogController controller = new BuildLogController(1);
+        try {
+            controller.tail(logStore, id, 0, new SseEmitter(0L) {
+                @Override
+                public void send(SseEventBuilder builder) {
+                    for (ResponseBodyEmitter.DataWithMediaType data : builder.build())
+                        events.append(data.getData());
+                }
+
+                @Override
+                public void complete() {
+                    ended.countDown();
+                }
+            });
+            assertTrue(ended.await(10, TimeUnit.SECONDS));
+            assertTrue(events.toString(), events.toString().contains("data:Line1\ndata:\ndata:\n\n"));
+        } finally {
+            controller.shutdown();
+            logStore.delete(id);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package org.Simple-CI;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test suite for {@link BuildLogStore}
+ */
+public class BuildLogStoreTest {
+    private final TemporaryFolder testRootFolder = new TemporaryFolder();
+    private BuildLogStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        testRootFolder.create();
+        store = new BuildLogStore(testRootFolder.newFolder("logs"), 4);
+    }
+
+    @After
+    public void tearDown() {
+        testRootFolder.delete();
+    }
+
+    /**
+     * Test that a written log is read back
+     */
+    @Test
+    public void testWriteRead() throws IOException {
+        store.write("a", Arrays.asList("Line1", "Line2"));
+        assertTrue(store.exists("a"));
+        assertEquals(Arrays.asList("Line1", "Line2"), store.read("a"));
+        assertEquals(Collections.emptyList(), store.read("missing"));
+    }
+
+    /**
+     * Test that the cache never holds more lines than its bound, evicting least recently used logs
+     */
+    @Test
+    public void testCacheBound() throws IOException {
+        store.write("a", Arrays.asList("1", "2"));
+        store.write("b", Arrays.asList("1", "2"));
+        store.write("c", Arrays.asList("1", "2", "3"));
+        store.read("a");
+        store.read("b");
+        assertEquals(4, store.getCachedLines());
+        store.read("c");
+        assertEquals(3, store.getCachedLines());
+        store.write("c", Arrays.asList("1"));
+        assertEquals(0, store.getCachedLines());
+        assertEquals(Arrays.asList("1"), store.read("c"));
+    }
+
+    /**
+     * Test that a deleted log is gone from disk and cache
+     */
+    @Test
+    public void testDelete() throws IOException {
+        store.write("a", Arrays.asList("Line1"));
+        store.read("a");
+        store.delete("a");
+        assertFalse(store.exists("a"));
+        assertEquals(0, store.getCachedLines());
+    }
+
+    /**
+     * Test that a running build streams its log and that readers can tail it by byte offset
+     */
+    @Test
+    public void testStreamAndTail() throws IOException {
+        BuildLogStore.LogWriter writer = store.openWriter("a");
+        assertTrue(store.isRunning("a"));
+        writer.append("Line1");
+        byte[] first = store.readFrom("a", 0, 1024);
+        assertEquals("Line1\n", new String(first, StandardCharsets.UTF_8));
+        writer.append("Line2");
+        byte[] second = store.readFrom("a", first.length, 1024);
+        assertEquals("Line2\n", new String(second, StandardCharsets.UTF_8));
+        assertEquals(0, store.readFrom("a", first.length + second.length, 1024).length);
+        // running logs are not cached, they still grow
+        store.read("a");
+        assertEquals(0, store.getCachedLines());
+        writer.close();
+        assertFalse(store.isRunning("a"));
+        assertEquals(Arrays.asList("Line1", "Line2"), store.read("a"));
+    }
+
+    /**
+     * Test that only whole lines are returned when the chunk size cuts a line
+     */
+    @Test
+    public void testReadFromWholeLines() throws IOException {
+        store.write("a", Arrays.asList("Line1", "Line2"));
+        assertEquals("Line1\n", new String(store.readFrom("a", 0, 8), StandardCharsets.UTF_8));
+        assertEquals("Lin", new String(store.readFrom("a", 0, 3), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Test that the log of a finished build is compressed and still read by line and by byte offset
+     */
+    @Test
+    public void testCompressOnClose() throws IOException {
+        BuildLogStore.LogWriter writer = store.openWriter("a");
+        writer.append("Line1");
+        writer.append("Line2");
+        long size = store.size("a");
+        writer.close();
+        assertFalse(store.getLogFile("a").exists());
+        assertTrue(store.exists("a"));
+        assertEquals(size, store.size("a"));
+        assertEquals(2, store.lineCount("a"));
+        assertEquals("Line2\n", new String(store.readFrom("a", 6, 1024), StandardCharsets.UTF_8));
+        assertEquals(Arrays.asList("Line1", "Line2"), store.read("a"));
+        store.delete("a");
+        assertFalse(store.exists("a"));
+    }
+
+    /**
+     * Test that line ranges over many chunks are read, including a last line without newline
+     */
+    @Test
+    public void testLineRanges() throws IOException {
+        List<String> log = new ArrayList<>();
+        for (int i = 0; i < 50000; i++)
+            log.add("> Task :compileJava line " + i);
+        store.write("a", log);
+        assertEquals(50000, store.lineCount("a"));
+        assertEquals(log.subList(0, 3), store.readLines("a", 0, 3));
+        assertEquals(log.subList(20000, 23000), store.readLines("a", 20000, 3000));
+        assertEquals(log.subList(49999, 50000), store.readLines("a", 49999, 10));
+        assertEquals(Collections.emptyList(), store.readLines("a", 60000, 10));
+        long offset = store.size("a") - 4096;
+        String tail = new String(store.readFrom("a", offset, 8192), StandardCharsets.UTF_8);
+        assertTrue(tail.endsWith("line 49999\n"));
+
+        File file = testRootFolder.newFile("partial");
+        try (CompressedLog.Writer writer = new CompressedLog.Writer(file)) {
+            byte[] bytes = "first\nlast".getBytes(StandardCharsets.UTF_8);
+            writer.write(bytes, 0, bytes.length);
+        }
+        assertEquals(Arrays.asList("first", "last"), CompressedLog.open(file).readAll());
+    }
+
+    /**
+     * Test that a gradle log takes a fraction of its size on disk
+     */
+    @Test
+    public void testCompressionRatio() throws IOException {
+        List<String> log = new ArrayList<>();
+        for (int i = 0; i < 20000; i++)
+            log.add(i % 3 == 0 ? "> Task :module" + (i % 20) + ":compileJava UP-TO-DATE"
+                    : "\tat org.example.Class" + (i % 100) + ".method(Class.java:" + (i % 1000) + ")");
+        store.write("a", log);
+        assertTrue(store.storedSize("a") * 5 < store.size("a"));
+    }
+
+    /**
+     * Test that plain text logs of a store that did not compress are still read
+     */
+    @Test
+    public void testPlainLogs() throws IOException {
+        BuildLogStore plain = new BuildLogStore(testRootFolder.getRoot().toPath().resolve("logs").toFile(), 4, false);
+        plain.write("a", Arrays.asList("Line1", "Line2"));
+        assertTrue(plain.getLogFile("a").isFile());
+        assertEquals(Arrays.asList("Line2"), store.readLines("a", 1, 5));
+        assertEquals(2, store.lineCount("a"));
+        store.write("a", Arrays.asList("Line3"));
+        assertFalse(plain.getLogFile("a").exists());
+        assertEquals(Arrays.asList("Line3"), plain.read("a"));
+    }
+}
@@ -0,0 +1,244 @@
+package org.Simple-CI;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+/**
+ * Test suite for {@link BuildPipeline} and {@link BuildSpec}
+ */
+public class BuildPipelineTest {
+    private final TemporaryFolder testRootFolder = new TemporaryFolder();
+    private File workspace;
+    private File specFolder;
+    private BuildLogStore logStore;
+    private BuildProcesses processes;
+    private BuildPipeline pipeline;
+    private int builds;
+
+    @Before
+    public void setUp() throws IOException {
+        testRootFolder.create();
+        workspace = testRootFolder.newFolder("workspace");
+        specFolder = testRootFolder.newFolder("specs");
+        logStore = new BuildLogStore(testRootFolder.newFolder("logs"), 1000);
+        processes = new BuildProcesses(0, 0, 1000);
+        pipeline = new BuildPipeline(specFolder.getPath(), false, 10);
+    }
+
+    @After
+    public void tearDown() {
+        pipeline.shutdown();
+        processes.shutdown();
+        testRootFolder.delete();
+    }
+
+    /**
+     * Runs a spec as the build of a new BuildData
+     * @return the build, its log is in the log store
+     */
+    private BuildData run(String spec, String treeId, boolean expectSuccess) throws Exception {
+        BuildData buildData = new BuildData("owner/repo", new Date(++builds), String.format("%040x", builds));
+        BuildProcesses.Handle handle = processes.register(buildData.getBuildId());
+        try (BuildLogStore.LogWriter buildLog = logStore.openWriter(buildData.getBuildId())) {
+            BuildPipeline.Result result = pipeline.run(buildData, BuildSpec.parse(spec), workspace, treeId, buildLog, handle);
+            assertEquals(expectSuccess, result.isSuccess());
+        }
+        handle.close();
+        return buildData;
+    }
+
+    /**
+     * Test that a spec is read with string and list commands
+     */
+    @Test
+    public void testParse() {
+        BuildSpec spec = BuildSpec.parse("{\"stages\": [" +
+                "{\"name\": \"compile\", \"cache\": true, \"steps\": [{\"name\": \"assemble\", \"command\": \"./gradlew  assemble\"}]}," +
+                "{\"name\": \"test\", \"steps\": [" +
+                "{\"name\": \"unit\", \"command\": [\"./gradlew\", \"test\"]}," +
+                "{\"name\": \"it\", \"command\": [\"./gradlew\", \"integrationTest\"]}]}]}");
+
+        assertEquals(2, spec.getStages().size());
+        BuildSpec.Stage compile = spec.getStages().get(0);
+        assertEquals("compile", compile.getName());
+        assertTrue(compile.isCacheable());
+        assertEquals(Arrays.asList("./gradlew", "assemble"), compile.getSteps().get(0).getCommand());
+        BuildSpec.Stage test = spec.getStages().get(1);
+        assertFalse(test.isCacheable());
+        assertEquals("it", test.getSteps().get(1).getName());
+        assertEquals(Arrays.asList("./gradlew", "integrationTest"), test.getSteps().get(1).getCommand());
+    }
+
+    /**
+     * Test that invalid specs are rejected
+     */
+    @Test
+    public void testParseInvalid() {
+        List<String> invalid = Arrays.asList(
+                "not json",
+                "{\"stages\": []}",
+                "{\"stages\": [{\"name\": \"a\", \"steps\": []}]}",
+                "{\"stages\": [{\"name\": \"a\", \"steps\": [{\"name\": \"s\", \"command\": \" \"}]}]}",
+                "{\"stages\": [{\"name\": \"a\", \"steps\": [{\"name\": \"s\", \"command\": \"x\"}, {\"name\": \"s\", \"command\": \"y\"}]}]}");
+        for (String spec : invalid) {
+            try {
+                BuildSpec.parse(spec);
+                throw new AssertionError("accepted " + spec);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Test that the repository spec wins over the server spec, which wins over the default spec
+     */
+    @Test
+    public void testLoadSpec() throws IOException {
+        assertEquals(Arrays.asList("./gradlew", "build", "-s"),
+                pipeline.loadSpec(workspace, "owner/repo").getStages().get(0).getSteps().get(0).getCommand());
+        assertTrue(BuildSpec.defaultSpec(true).getStages().get(0).getSteps().get(0).getCommand().contains("--scan"));
+
+        new File(specFolder, "owner").mkdirs();
+        Files.write(new File(specFolder, "owner/repo.json").toPath(),
+                "{\"sparse\": [\"src\"], \"stages\": [{\"name\": \"server\", \"steps\": [{\"name\": \"s\", \"command\": \"true\"}]}]}"
+                        .getBytes(StandardCharsets.UTF_8));
+        assertEquals("server", pipeline.loadSpec(workspace, "owner/repo").getStages().get(0).getName());
+        assertEquals(Collections.singletonList("src"), pipeline.sparsePaths("owner/repo"));
+        assertTrue(pipeline.sparsePaths("other/repo").isEmpty());
+
+        Files.write(new File(workspace, BuildPipeline.SPEC_FILE).toPath(),
+                "{\"stages\": [{\"name\": \"repo\", \"steps\": [{\"name\": \"s\", \"command\": \"true\"}]}]}"
+                        .getBytes(StandardCharsets.UTF_8));
+        assertEquals("repo", pipeline.loadSpec(workspace, "owner/repo").getStages().get(0).getName());
+    }
+
+    /**
+     * Test that the steps of a stage run in parallel and each gets its timing
+     */
+    @Test
+    public void testParallelSteps() throws Exception {
+        assumeFalse(System.getProperty("os.name").startsWith("Windows"));
+        long start = System.nanoTime();
+        BuildData buildData = run("{\"stages\": [{\"name\": \"test\", \"steps\": [" +
+                "{\"name\": \"a\", \"command\": [\"sh\", \"-c\", \"sleep 1; echo done a\"]}," +
+                "{\"name\": \"b\", \"command\": [\"sh\", \"-c\", \"sleep 1; echo done b\"]}," +
+                "{\"name\": \"c\", \"command\": [\"sh\", \"-c\", \"sleep 1; echo done c\"]}]}]}", null, true);
+        long elapsed = (System.nanoTime() - start) / 1000000;
+
+        assertTrue("took " + elapsed + "ms", elapsed < 2500);
+        assertTrue(buildData.getTimings().get("step.test.a") >= 1000);
+        assertTrue(buildData.getTimings().containsKey("step.test.c"));
+        assertTrue(buildData.getTimings().containsKey("stage.test"));
+        List<String> log = logStore.read(buildData.getBuildId());
+        assertTrue(log.contains("[b] done b"));
+        assertTrue(log.contains("Exit: true"));
+    }
+
+    /**
+     * Test that a failing step fails its stage and the later stages are not run
+     */
+    @Test
+    public void testFailingStage() throws Exception {
+        assumeFalse(System.getProperty("os.name").startsWith("Windows"));
+        BuildData buildData = run("{\"stages\": [" +
+                "{\"name\": \"test\", \"steps\": [{\"name\": \"ok\", \"command\": \"true\"}, {\"name\": \"bad\", \"command\": \"false\"}]}," +
+                "{\"name\": \"deploy\", \"steps\": [{\"name\": \"s\", \"command\": \"true\"}]}]}", null, false);
+
+        assertFalse(buildData.getTimings().containsKey("stage.deploy"));
+        List<String> log = logStore.read(buildData.getBuildId());
+        assertTrue(log.contains("[bad] Exit: false"));
+        assertTrue(log.contains("Stage deploy skipped"));
+    }
+
+    /**
+     * Test that a failing step kills the steps running next to it, so the build does not wait for them
+     */
+    @Test
+    public void testFailingStepStopsSiblings() throws Exception {
+        assumeFalse(System.getProperty("os.name").startsWith("Windows"));
+        File late = new File(workspace, "late");
+        long start = System.nanoTime();
+        BuildData buildData = run("{\"stages\": [{\"name\": \"test\", \"steps\": [" +
+                "{\"name\": \"bad\", \"command\": [\"sh\", \"-c\", \"sleep 0.2; exit 1\"]}," +
+                "{\"name\": \"slow\", \"command\": [\"sh\", \"-c\", \"sleep 30; touch late\"]}]}]}", null, false);
+        long elapsed = (System.nanoTime() - start) / 1000000;
+
+        assertTrue("took " + elapsed + "ms", elapsed < 10000);
+        assertFalse(late.exists());
+        List<String> log = logStore.read(buildData.getBuildId());
+        assertTrue(log.contains("[bad] Exit: false"));
+        assertTrue(log.contains("[bad] Stopping the steps next to it"));
+        assertTrue(log.contains("[slow] Exit: false"));
+    }
+
+    /**
+     * Test that the other steps of a stage are stopped when a step cannot be started
+     */
+    @Test
+    public void testStepNotStarted() throws Exception {
+        assumeFalse(System.getProperty("os.name").startsWith("Windows"));
+        BuildData buildData = new BuildData("owner/repo", new Date(++builds), String.format("%040x", ++builds));
+        File late = new File(workspace, "late");
+        String spec = "{\"stages\": [{\"name\": \"test\", \"steps\": [" +
+                "{\"name\": \"missing\", \"command\": \"./no-such-executable\"}," +
+                "{\"name\": \"slow\", \"command\": [\"sh\", \"-c\", \"sleep 2; touch late\"]}]}]}";
+        long start = System.nanoTime();
+        try (BuildProcesses.Handle handle = processes.register(buildData.getBuildId());
+             BuildLogStore.LogWriter buildLog = logStore.openWriter(buildData.getBuildId())) {
+            pipeline.run(buildData, BuildSpec.parse(spec), workspace, null, buildLog, handle);
+            throw new AssertionError("missing executable started");
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue((System.nanoTime() - start) / 1000000 < 2000);
+        Thread.sleep(2500);
+        assertFalse(late.exists());
+    }
+
+    /**
+     * Test that a cacheable stage that passed on the same tree is skipped, a failed stage or another tree runs again,
+     * and that stages are not cached unless marked
+     */
+    @Test
+    public void testStageCache() throws Exception {
+        assumeFalse(System.getProperty("os.name").startsWith("Windows"));
+        String spec = "{\"stages\": [" +
+                "{\"name\": \"compile\", \"cache\": true, \"steps\": [{\"name\": \"s\", \"command\": \"true\"}]}," +
+                "{\"name\": \"test\", \"cache\": true, \"steps\": [{\"name\": \"s\", \"command\": [\"sh\", \"-c\", \"test -f flaky\"]}]}]}";
+        run(spec, "tree1", false);
+        assertEquals(2, pipeline.getStagesRun());
+
+        Files.write(new File(workspace, "flaky").toPath(), new byte[0]);
+        BuildData second = run(spec, "tree1", true);
+        assertEquals(1, pipeline.getStagesSkipped());
+        assertFalse(second.getTimings().containsKey("stage.compile"));
+        assertTrue(second.getTimings().containsKey("stage.test"));
+
+        run(spec, "tree1", true);
+        assertEquals(3, pipeline.getStagesSkipped());
+        run(spec, "tree2", true);
+        assertEquals(3, pipeline.getStagesSkipped());
+        assertEquals(5, pipeline.getStagesRun());
+
+        run(spec.replace("\"cache\": true, ", ""), "tree1", true);
+        assertEquals(3, pipeline.getStagesSkipped());
+        assertEquals(7, pipeline.getStagesRun());
+    }
+}
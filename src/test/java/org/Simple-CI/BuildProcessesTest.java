@@ -0,0 +1,119 @@
+package org.Simple-CI;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+/**
+ * Test suite for {@link BuildProcesses}
+ */
+public class BuildProcessesTest {
+    private BuildProcesses processes;
+
+    @Before
+    public void setUp() {
+        assumeFalse(System.getProperty("os.name").startsWith("Windows"));
+    }
+
+    @After
+    public void tearDown() {
+        if (processes != null)
+            processes.shutdown();
+    }
+
+    /**
+     * Starts a shell that prints a line and then hangs in a child process, like a stuck test suite
+     */
+    private static Process hangingBuild() throws IOException {
+        return new ProcessBuilder("sh", "-c", "echo started; sleep 60 & wait")
+                .redirectErrorStream(true)
+                .start();
+    }
+
+    /**
+     * Reads the output of a process until it ends, the way the builder does
+     * @return the time it took in milliseconds
+     */
+    private static long drain(Process p, BuildProcesses.Handle handle) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+            while (in.readLine() != null)
+                handle.touch();
+        } catch (IOException e) {
+            // killing the process closes its output
+            assertTrue(handle.getReason() != null);
+        }
+        assertTrue(p.waitFor(10, TimeUnit.SECONDS));
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * Test that a build printing nothing is killed with its child processes after the idle timeout
+     */
+    @Test
+    public void testIdleTimeout() throws Exception {
+        processes = new BuildProcesses(0, 500, 50);
+        BuildProcesses.Handle handle = processes.register("a-1");
+        Process p = hangingBuild();
+        handle.start(p);
+
+        long elapsed = drain(p, handle);
+        assertTrue("took " + elapsed + "ms", elapsed < 5000);
+        assertTrue(handle.getReason().startsWith("Build printed nothing"));
+        handle.close();
+        assertFalse(processes.isRunning("a-1"));
+    }
+
+    /**
+     * Test that a build is killed after the wall-clock timeout even if it keeps printing
+     */
+    @Test
+    public void testWallClockTimeout() throws Exception {
+        processes = new BuildProcesses(700, 0, 50);
+        BuildProcesses.Handle handle = processes.register("a-2");
+        Process p = new ProcessBuilder("sh", "-c", "while true; do echo tick; sleep 0.1; done")
+                .redirectErrorStream(true)
+                .start();
+        handle.start(p);
+
+        long elapsed = drain(p, handle);
+        assertTrue("took " + elapsed + "ms", elapsed < 5000);
+        assertTrue(handle.getReason().startsWith("Build timed out"));
+    }
+
+    /**
+     * Test that a running build is cancelled and a cancelled build that has no process yet never starts one
+     */
+    @Test
+    public void testCancel() throws Exception {
+        processes = new BuildProcesses(0, 0, 50);
+        BuildProcesses.Handle handle = processes.register("a-3");
+        Process p = hangingBuild();
+        handle.start(p);
+        assertNull(handle.getReason());
+
+        assertTrue(processes.cancel("a-3"));
+        assertFalse(processes.cancel("a-3"));
+        drain(p, handle);
+        assertEquals("Build cancelled", handle.getReason());
+        handle.close();
+        assertFalse(processes.cancel("a-3"));
+
+        BuildProcesses.Handle early = processes.register("a-4");
+        assertTrue(processes.cancel("a-4"));
+        Process late = hangingBuild();
+        early.start(late);
+        assertTrue(late.waitFor(10, TimeUnit.SECONDS));
+    }
+}
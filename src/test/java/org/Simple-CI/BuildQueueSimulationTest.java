@@ -0,0 +1,260 @@
+package org.Simple-CI;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.Message;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Simulation of the build scheduling of {@link BuildQueue} with synthetic build durations on a virtual clock.
+ * One busy repository queues a long pull request build for each of its 24 branches, four small repositories push
+ * short builds to their default branch every 15 minutes. The queue wait percentiles per repository are printed for
+ * a plain FIFO queue, for the fair share queue and for the fair share queue with the busy repository capped at two
+ * builds.
+ */
+public class BuildQueueSimulationTest {
+    private static final int WORKERS = 4;
+    private static final long MINUTE = 60;
+    private static final String BUSY = "busy/monorepo";
+    private static final String[] SMALL = {"small/a", "small/b", "small/c", "small/d"};
+
+    private final TemporaryFolder testRootFolder = new TemporaryFolder();
+    private CIDataBase db;
+
+    @Before
+    public void setUp() throws IOException {
+        testRootFolder.create();
+        db = new CIDataBase(testRootFolder.newFolder("database").getPath());
+    }
+
+    @After
+    public void tearDown() {
+        testRootFolder.delete();
+    }
+
+    /**
+     * A synthetic build, times in seconds of the virtual clock
+     */
+    private static class Build {
+        final String repo;
+        final String branch;
+        final String sha;
+        final BuildQueue.Priority priority;
+        final long submitted;
+        final long duration;
+
+        Build(String repo, String branch, String sha, BuildQueue.Priority priority, long submitted, long duration) {
+            this.repo = repo;
+            this.branch = branch;
+            this.sha = sha;
+            this.priority = priority;
+            this.submitted = submitted;
+            this.duration = duration;
+        }
+    }
+
+    private interface Scheduler {
+        void submit(Build build);
+
+        Build take();
+
+        void complete(Build build);
+
+        long getSuperseded();
+    }
+
+    /**
+     * The single FIFO queue the builds went through before, a push supersedes the waiting build of its branch
+     */
+    private static class FifoScheduler implements Scheduler {
+        private final Deque<Build> queue = new ArrayDeque<>();
+        private long superseded;
+
+        public void submit(Build build) {
+            if (queue.removeIf(b -> b.repo.equals(build.repo) && b.branch.equals(build.branch)))
+                superseded++;
+            queue.add(build);
+        }
+
+        public Build take() {
+            return queue.poll();
+        }
+
+        public void complete(Build build) {
+        }
+
+        public long getSuperseded() {
+            return superseded;
+        }
+    }
+
+    /**
+     * Feeds the builds through a {@link BuildQueue}
+     */
+    private static class QueueScheduler implements Scheduler {
+        private final BuildQueue queue;
+        private final Map<String, Build> builds = new HashMap<>();
+        private final Map<String, Message<?>> taken = new HashMap<>();
+
+        QueueScheduler(BuildQueue queue) {
+            this.queue = queue;
+        }
+
+        public void submit(Build build) {
+            builds.put(build.sha, build);
+            queue.submit(MessageBuilder.withPayload("")
+                    .setHeader("buildData", new BuildData(build.repo, new Date(), build.sha))
+                    .setHeader("branch", build.branch)
+                    .setHeader(BuildQueue.PRIORITY_HEADER, build.priority)
+                    .build());
+        }
+
+        public Build take() {
+            Message<?> msg = queue.take(null);
+            if (msg == null)
+                return null;
+            String sha = ((BuildData) msg.getHeaders().get("buildData")).getSha();
+            taken.put(sha, msg);
+            return builds.get(sha);
+        }
+
+        public void complete(Build build) {
+            queue.complete(taken.remove(build.sha));
+        }
+
+        public long getSuperseded() {
+            return queue.getSuperseded();
+        }
+    }
+
+    private static List<Build> workload() {
+        List<Build> builds = new ArrayList<>();
+        int sha = 0;
+        for (int i = 0; i < 24; i++)
+            builds.add(new Build(BUSY, "pull/" + i, String.format("%040x", ++sha),
+                    BuildQueue.Priority.pullRequest, 0, 30 * MINUTE));
+        for (int push = 0; push < 8; push++)
+            for (int r = 0; r < SMALL.length; r++)
+                builds.add(new Build(SMALL[r], "master", String.format("%040x", ++sha),
+                        BuildQueue.Priority.defaultBranch, MINUTE + push * 15 * MINUTE + r * 10, 3 * MINUTE));
+        builds.sort((a, b) -> Long.compare(a.submitted, b.submitted));
+        return builds;
+    }
+
+    /**
+     * Runs the workload on WORKERS workers
+     * @return queue waits in seconds per repository
+     */
+    private static Map<String, List<Long>> simulate(Scheduler scheduler, List<Build> arrivals) {
+        Map<String, List<Long>> waits = new TreeMap<>();
+        PriorityQueue<long[]> running = new PriorityQueue<>((a, b) -> Long.compare(a[0], b[0]));
+        Map<Long, Build> runningBuilds = new HashMap<>();
+        long ids = 0;
+        int free = WORKERS;
+        int next = 0;
+        while (next < arrivals.size() || !running.isEmpty()) {
+            long nextArrival = next < arrivals.size() ? arrivals.get(next).submitted : Long.MAX_VALUE;
+            long now;
+            if (!running.isEmpty() && running.peek()[0] <= nextArrival) {
+                long[] done = running.poll();
+                now = done[0];
+                scheduler.complete(runningBuilds.remove(done[1]));
+                free++;
+            } else {
+                now = nextArrival;
+                scheduler.submit(arrivals.get(next++));
+            }
+            while (free > 0) {
+                Build build = scheduler.take();
+                if (build == null)
+                    break;
+                free--;
+                waits.computeIfAbsent(build.repo, k -> new ArrayList<>()).add(now - build.submitted);
+                runningBuilds.put(ids, build);
+                running.add(new long[]{now + build.duration, ids++});
+            }
+        }
+        return waits;
+    }
+
+    private static double percentileMinutes(List<Long> waits, double quantile) {
+        List<Long> sorted = new ArrayList<>(waits);
+        Collections.sort(sorted);
+        int rank = (int) Math.ceil(quantile * sorted.size());
+        return sorted.get(Math.max(0, rank - 1)) / (double) MINUTE;
+    }
+
+    private static List<Long> smallRepoWaits(Map<String, List<Long>> waits) {
+        List<Long> all = new ArrayList<>();
+        for (String repo : SMALL)
+            all.addAll(waits.get(repo));
+        return all;
+    }
+
+    private static void report(String name, Map<String, List<Long>> waits) {
+        System.out.println(name);
+        System.out.println(String.format("  %-15s %6s %8s %8s %8s", "repository", "builds", "p50 min", "p95 min", "max min"));
+        for (Map.Entry<String, List<Long>> entry : waits.entrySet())
+            System.out.println(String.format("  %-15s %6d %8.1f %8.1f %8.1f", entry.getKey(), entry.getValue().size(),
+                    percentileMinutes(entry.getValue(), 0.5), percentileMinutes(entry.getValue(), 0.95),
+                    percentileMinutes(entry.getValue(), 1)));
+    }
+
+    /**
+     * Test that the small repositories no longer wait for the builds of the busy repository, and that every build
+     * runs unless a later push to its branch superseded it
+     */
+    @Test
+    public void testFairShareSimulation() {
+        List<Build> arrivals = workload();
+        Scheduler fifo = new FifoScheduler();
+        Map<String, List<Long>> fifoWaits = simulate(fifo, arrivals);
+
+        BuildQueue fairQueue = new BuildQueue(0, BuildQueue.Overflow.spill, 0, "");
+        fairQueue.setDatabase(db);
+        Scheduler fair = new QueueScheduler(fairQueue);
+        Map<String, List<Long>> fairWaits = simulate(fair, arrivals);
+
+        BuildQueue cappedQueue = new BuildQueue(0, BuildQueue.Overflow.spill, 0, BUSY + "=2");
+        cappedQueue.setDatabase(db);
+        Scheduler capped = new QueueScheduler(cappedQueue);
+        Map<String, List<Long>> cappedWaits = simulate(capped, arrivals);
+
+        report("FIFO", fifoWaits);
+        report("fair share", fairWaits);
+        report("fair share, " + BUSY + " capped at 2", cappedWaits);
+
+        assertEquals(32, smallRepoWaits(fifoWaits).size() + fifo.getSuperseded());
+        assertEquals(32, smallRepoWaits(fairWaits).size() + fair.getSuperseded());
+        assertEquals(32, smallRepoWaits(cappedWaits).size());
+        assertEquals(0, capped.getSuperseded());
+        for (Map<String, List<Long>> waits : Arrays.asList(fifoWaits, fairWaits, cappedWaits))
+            assertEquals(24, waits.get(BUSY).size());
+        double fifoP95 = percentileMinutes(smallRepoWaits(fifoWaits), 0.95);
+        double fairP95 = percentileMinutes(smallRepoWaits(fairWaits), 0.95);
+        double cappedP95 = percentileMinutes(smallRepoWaits(cappedWaits), 0.95);
+        // behind the busy repository in FIFO order, the small repositories wait for more than an hour
+        assertTrue(fifoP95 > 60);
+        assertTrue(fairP95 <= fifoP95 / 2);
+        // two workers stay free for the small repositories, they wait for one short build at most
+        assertTrue(cappedP95 <= 3);
+    }
+}
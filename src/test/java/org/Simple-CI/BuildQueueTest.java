@@ -0,0 +1,395 @@
+package org.Simple-CI;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.Message;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test suite for {@link BuildQueue}
+ */
+public class BuildQueueTest {
+    private final TemporaryFolder testRootFolder = new TemporaryFolder();
+    private CIDataBase db;
+    private BuildQueue queue;
+
+    @Before
+    public void setUp() throws IOException {
+        testRootFolder.create();
+        db = new CIDataBase(testRootFolder.newFolder("database").getPath());
+        queue = new BuildQueue();
+        queue.setDatabase(db);
+    }
+
+    @After
+    public void tearDown() {
+        testRootFolder.delete();
+    }
+
+    private static String sha(int i) {
+        return String.format("%040x", i);
+    }
+
+    private static Message<String> push(String repo, String branch, String sha) {
+        return MessageBuilder.withPayload("")
+                .setHeader("buildData", new BuildData(repo, new Date(), sha))
+                .setHeader("branch", branch)
+                .build();
+    }
+
+    private static long count(List<Message<?>> out, String route, String notifyType) {
+        return out.stream()
+                .filter(m -> route.equals(m.getHeaders().get(BuildQueue.ROUTE_HEADER)))
+                .filter(m -> notifyType == null || notifyType.equals(m.getHeaders().get("notifyType")))
+                .count();
+    }
+
+    private static BuildData buildData(Message<?> msg) {
+        return (BuildData) msg.getHeaders().get("buildData");
+    }
+
+    /**
+     * Test that a new build is notified as pending and gets a worker ticket
+     */
+    @Test
+    public void testSubmit() {
+        List<Message<?>> out = queue.submit(push("owner/repo", "master", sha(1)));
+        assertEquals(1, count(out, "notify", "build pending"));
+        assertEquals(1, count(out, "build", null));
+        assertEquals(1, queue.getQueueDepth());
+    }
+
+    /**
+     * Test that rapid pushes to one branch leave only the newest head in the queue
+     */
+    @Test
+    public void testSupersede() {
+        long tickets = 0;
+        for (int i = 1; i <= 4; i++)
+            tickets += count(queue.submit(push("owner/repo", "master", sha(i))), "build", null);
+        List<Message<?>> out = queue.submit(push("owner/repo", "master", sha(5)));
+        tickets += count(out, "build", null);
+
+        assertEquals(1, count(out, "notify", "build final"));
+        Message<?> superseded = out.get(0);
+        assertEquals(sha(4), buildData(superseded).getSha());
+        assertEquals(BuildStatus.error, buildData(superseded).getBuildStatus());
+        assertEquals(1, queue.getQueueDepth());
+        assertEquals(4, queue.getSuperseded());
+
+        // one ticket was handed out for the one build left to take, a stray ticket finds no build
+        assertEquals(1, tickets);
+        assertEquals(sha(5), buildData(queue.take(null)).getSha());
+        for (int i = 0; i < 4; i++)
+            assertNull(queue.take(null));
+    }
+
+    /**
+     * Test that a ticket is handed out again once the tickets handed out before are taken
+     */
+    @Test
+    public void testTicketsFollowWaitingBuilds() {
+        assertEquals(1, count(queue.submit(push("owner/repo", "master", sha(1))), "build", null));
+        assertEquals(1, count(queue.submit(push("owner/repo", "feature", sha(2))), "build", null));
+        queue.take(null);
+        assertEquals(0, count(queue.submit(push("owner/repo", "feature", sha(3))), "build", null));
+        assertEquals(1, count(queue.submit(push("owner/repo", "other", sha(4))), "build", null));
+        assertEquals(2, queue.getQueueDepth());
+    }
+
+    /**
+     * Test that the queue is full at maxQueued waiting builds and that spilling keeps accepting builds
+     */
+    @Test
+    public void testFull() {
+        queue = new BuildQueue(2, BuildQueue.Overflow.spill);
+        queue.setDatabase(db);
+        queue.submit(push("owner/repo", "master", sha(1)));
+        assertFalse(queue.isFull());
+        queue.submit(push("owner/repo", "feature", sha(2)));
+        assertTrue(queue.isFull());
+
+        queue.submit(push("other/repo", "master", sha(3)));
+        assertEquals(3, queue.getQueueDepth());
+        assertEquals(0, queue.getSuperseded());
+        queue.take(null);
+        queue.take(null);
+        assertFalse(queue.isFull());
+    }
+
+    /**
+     * Test that a full coalescing queue supersedes the oldest waiting build of the repository, else the oldest one
+     */
+    @Test
+    public void testCoalesceWhenFull() {
+        queue = new BuildQueue(2, BuildQueue.Overflow.coalesce);
+        queue.setDatabase(db);
+        queue.submit(push("owner/repo", "master", sha(1)));
+        queue.submit(push("other/repo", "master", sha(2)));
+
+        List<Message<?>> out = queue.submit(push("other/repo", "feature", sha(3)));
+        assertEquals(1, count(out, "notify", "build final"));
+        assertEquals(sha(2), buildData(out.get(0)).getSha());
+        assertEquals(0, count(out, "build", null));
+        assertEquals(2, queue.getQueueDepth());
+
+        out = queue.submit(push("third/repo", "master", sha(4)));
+        assertEquals(sha(1), buildData(out.get(0)).getSha());
+        assertEquals(BuildStatus.error, buildData(out.get(0)).getBuildStatus());
+        assertEquals(2, queue.getQueueDepth());
+        assertEquals(2, queue.getSuperseded());
+
+        assertEquals(sha(3), buildData(queue.take(null)).getSha());
+        assertEquals(sha(4), buildData(queue.take(null)).getSha());
+    }
+
+    /**
+     * Test that other branches and repositories are not superseded
+     */
+    @Test
+    public void testNoSupersedeAcrossBranches() {
+        queue.submit(push("owner/repo", "master", sha(1)));
+        queue.submit(push("owner/repo", "feature", sha(2)));
+        queue.submit(push("fork/repo", "master", sha(3)));
+        assertEquals(3, queue.getQueueDepth());
+        assertEquals(0, queue.getSuperseded());
+    }
+
+    /**
+     * Test that a commit queued twice, for a push and a pull request, is built once and both get the result
+     */
+    @Test
+    public void testSameShaQueued() {
+        queue.submit(push("owner/repo", "feature", sha(1)));
+        List<Message<?>> out = queue.submit(push("owner/repo", "pull/1", sha(1)));
+        assertEquals(1, count(out, "notify", "build pending"));
+        assertEquals(0, count(out, "build", null));
+        assertEquals(1, queue.getQueueDepth());
+
+        Message<?> build = queue.take(null);
+        buildData(build).setBuildStatus(BuildStatus.success);
+        buildData(build).setMessage("Build Success");
+        List<Message<?>> done = queue.complete(build);
+
+        assertEquals(2, done.size());
+        assertSame(build, done.get(0));
+        assertEquals(BuildStatus.success, buildData(done.get(1)).getBuildStatus());
+        assertEquals("pull/1", done.get(1).getHeaders().get("branch"));
+        assertEquals(1, queue.getReused());
+    }
+
+    /**
+     * Test that a commit submitted while it is being built waits for that build
+     */
+    @Test
+    public void testSameShaInFlight() {
+        queue.submit(push("owner/repo", "master", sha(1)));
+        Message<?> build = queue.take(null);
+        List<Message<?>> out = queue.submit(push("other/repo", "master", sha(1)));
+        assertEquals(0, count(out, "build", null));
+
+        buildData(build).setBuildStatus(BuildStatus.failure);
+        List<Message<?>> done = queue.complete(build);
+        assertEquals(2, done.size());
+        assertEquals("other/repo", buildData(done.get(1)).getRepoFullName());
+        assertEquals(BuildStatus.failure, buildData(done.get(1)).getBuildStatus());
+
+        // the commit is no longer in flight
+        assertEquals(1, count(queue.submit(push("owner/repo", "master", sha(1))), "build", null));
+    }
+
+    /**
+     * Test that a commit already in the database is not built again, unless its build ended with an error
+     */
+    @Test
+    public void testReuseFinished() throws IOException {
+        BuildData built = new BuildData("owner/repo", new Date(), sha(1));
+        built.setBuildStatus(BuildStatus.success);
+        built.setMessage("Build Success");
+        db.writeBuild(built);
+        BuildData errored = new BuildData("owner/repo", new Date(), sha(2));
+        errored.setBuildStatus(BuildStatus.error);
+        db.writeBuild(errored);
+
+        List<Message<?>> out = queue.submit(push("owner/repo", "release", sha(1)));
+        assertEquals(1, out.size());
+        assertEquals("build final", out.get(0).getHeaders().get("notifyType"));
+        assertEquals(BuildStatus.success, buildData(out.get(0)).getBuildStatus());
+        assertEquals(0, queue.getQueueDepth());
+
+        assertEquals(1, count(queue.submit(push("owner/repo", "release", sha(2))), "build", null));
+    }
+
+    /**
+     * Test that a commit whose build failed gets a new build when it is pushed again
+     */
+    @Test
+    public void testRebuildFailed() throws IOException {
+        BuildData failed = new BuildData("owner/repo", new Date(), sha(1));
+        failed.setBuildStatus(BuildStatus.failure);
+        failed.setMessage("Build Failure");
+        db.writeBuild(failed);
+
+        List<Message<?>> out = queue.submit(push("owner/repo", "master", sha(1)));
+        assertEquals(0, count(out, "notify", "build final"));
+        assertEquals(1, count(out, "build", null));
+        Message<?> build = queue.take(null);
+        assertEquals(sha(1), buildData(build).getSha());
+        assertEquals(0, queue.getReused());
+    }
+
+    /**
+     * Test that a build of the same commit on another branch takes over when the queued build is superseded
+     */
+    @Test
+    public void testSupersedeKeepsOtherBranch() {
+        queue.submit(push("owner/repo", "master", sha(1)));
+        queue.submit(push("owner/repo", "pull/1", sha(1)));
+        List<Message<?>> out = queue.submit(push("owner/repo", "master", sha(2)));
+
+        assertEquals(1, count(out, "notify", "build final"));
+        assertEquals(2, queue.getQueueDepth());
+        assertEquals(sha(1), buildData(queue.take(null)).getSha());
+        assertEquals(sha(2), buildData(queue.take(null)).getSha());
+    }
+
+    /**
+     * Test that a cancelled queued build is reported as error and its ticket finds no build
+     */
+    @Test
+    public void testCancelQueued() {
+        Message<String> msg = push("owner/repo", "master", sha(1));
+        queue.submit(msg);
+        List<Message<?>> out = queue.cancel(buildData(msg).getBuildId());
+
+        assertEquals(1, out.size());
+        assertEquals(BuildStatus.error, buildData(out.get(0)).getBuildStatus());
+        assertEquals(0, queue.getQueueDepth());
+        assertNull(queue.take(null));
+        assertEquals(0, queue.cancel(buildData(msg).getBuildId()).size());
+    }
+
+    private static Message<String> push(String repo, String branch, String sha, BuildQueue.Priority priority) {
+        return MessageBuilder.fromMessage(push(repo, branch, sha))
+                .setHeader(BuildQueue.PRIORITY_HEADER, priority)
+                .build();
+    }
+
+    /**
+     * Test that a push to the default branch starts before older pushes and pull requests
+     */
+    @Test
+    public void testPriority() {
+        queue.submit(push("owner/repo", "pull/1", sha(1), BuildQueue.Priority.pullRequest));
+        queue.submit(push("owner/repo", "feature", sha(2)));
+        queue.submit(push("owner/repo", "master", sha(3), BuildQueue.Priority.defaultBranch));
+
+        assertEquals(sha(3), buildData(queue.take(null)).getSha());
+        assertEquals(sha(2), buildData(queue.take(null)).getSha());
+        assertEquals(sha(1), buildData(queue.take(null)).getSha());
+    }
+
+    /**
+     * Test that a repository with fewer running builds goes first, and that repositories take turns
+     */
+    @Test
+    public void testFairShare() {
+        for (int i = 1; i <= 3; i++)
+            queue.submit(push("busy/repo", "branch" + i, sha(i)));
+        queue.submit(push("quiet/repo", "master", sha(10)));
+        queue.submit(push("other/repo", "master", sha(11)));
+
+        assertEquals(sha(1), buildData(queue.take(null)).getSha());
+        assertEquals(sha(10), buildData(queue.take(null)).getSha());
+        assertEquals(sha(11), buildData(queue.take(null)).getSha());
+        assertEquals(sha(2), buildData(queue.take(null)).getSha());
+        assertEquals(2, queue.getRunning("busy/repo"));
+    }
+
+    /**
+     * Test that a repository at its cap waits, and that its tickets are handed out again when a build finishes
+     */
+    @Test
+    public void testRepoCap() {
+        queue = new BuildQueue(0, BuildQueue.Overflow.spill, 2, "solo/repo=1");
+        queue.setDatabase(db);
+        queue.submit(push("solo/repo", "a", sha(1)));
+        queue.submit(push("solo/repo", "b", sha(2)));
+        queue.submit(push("many/repo", "a", sha(3)));
+        queue.submit(push("many/repo", "b", sha(4)));
+        queue.submit(push("many/repo", "c", sha(5)));
+
+        Message<?> solo = queue.take(null);
+        assertEquals(sha(1), buildData(solo).getSha());
+        assertEquals(sha(3), buildData(queue.take(null)).getSha());
+        assertEquals(sha(4), buildData(queue.take(null)).getSha());
+        // both repositories are at their cap
+        assertNull(queue.take(null));
+        assertNull(queue.take(null));
+        assertEquals(2, queue.getQueueDepth());
+
+        List<Message<?>> done = queue.complete(solo);
+        assertEquals(0, queue.getRunning("solo/repo"));
+        assertEquals(2, count(done, "build", null));
+        assertEquals(sha(2), buildData(queue.take(null)).getSha());
+    }
+
+    /**
+     * Test that a build whose runner throws still completes, so its commit and repository slot are released
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testRunnerThrows() {
+        queue = new BuildQueue(0, BuildQueue.Overflow.spill, 0, "solo/repo=1");
+        queue.setDatabase(db);
+        queue.submit(push("solo/repo", "master", sha(1)));
+        queue.submit(push("solo/repo", "pull/1", sha(1)));
+        queue.submit(push("solo/repo", "feature", sha(2)));
+        Message<?> taken = queue.take(null);
+        assertEquals(sha(1), buildData(taken).getSha());
+        assertNull(queue.take(null));
+
+        BuildCoordinator coordinator = new BuildCoordinator(true, "", 1000, 10, 1) {
+            @Override
+            public String run(BuildData buildData, String branch, String traceId) {
+                throw new IllegalStateException("runner failed");
+            }
+        };
+        try {
+            Builder builder = new Builder();
+            builder.setCoordinator(coordinator);
+            Message<String> built = builder.build((Message<String>) taken);
+            assertEquals(BuildStatus.error, buildData(built).getBuildStatus());
+            assertEquals("IllegalStateException. See log", buildData(built).getMessage());
+
+            List<Message<?>> done = queue.complete(built);
+            assertEquals(0, queue.getRunning("solo/repo"));
+            assertEquals(BuildStatus.error, buildData(done.get(1)).getBuildStatus());
+            assertEquals("pull/1", done.get(1).getHeaders().get("branch"));
+            assertEquals(1, count(done, "build", null));
+            assertEquals(sha(2), buildData(queue.take(null)).getSha());
+        } finally {
+            coordinator.shutdown();
+        }
+    }
+
+    /**
+     * Test that malformed repository caps are rejected
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedRepoCaps() {
+        new BuildQueue(0, BuildQueue.Overflow.spill, 0, "owner/repo=1,owner/other");
+    }
+}
@@ -0,0 +1,150 @@
+package org.Simple-CI;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+/**
+ * Test suite for {@link BuildResultCache}
+ */
+public class BuildResultCacheTest {
+    private static final String SPEC = "{\"stages\": [{\"name\": \"check\", \"steps\": " +
+            "[{\"name\": \"s\", \"command\": [\"sh\", \"-c\", \"echo checked; test ! -f broken.txt\"]}]}]}";
+    private final TemporaryFolder testRootFolder = new TemporaryFolder();
+    private File cacheFolder;
+    private int builds;
+
+    @Before
+    public void setUp() throws IOException {
+        testRootFolder.create();
+        cacheFolder = testRootFolder.newFolder("result-cache");
+    }
+
+    @After
+    public void tearDown() {
+        testRootFolder.delete();
+    }
+
+    private BuildData finished(BuildStatus status) {
+        BuildData buildData = new BuildData("owner/repo", new Date(++builds), String.format("%040x", builds));
+        buildData.setBuildStatus(status);
+        buildData.setMessage(status == BuildStatus.success ? "Build Success" : "Build Failure");
+        return buildData;
+    }
+
+    /**
+     * Test that results are found by tree and spec, and that failures and errors are not stored
+     */
+    @Test
+    public void testPutGet() {
+        BuildResultCache cache = new BuildResultCache(cacheFolder.getPath(), 10);
+        BuildData success = finished(BuildStatus.success);
+        cache.put("tree1", "spec1", success, "https://gradle.com/s/abc");
+        cache.put("tree2", "spec1", finished(BuildStatus.error), "");
+        cache.put("tree3", "spec1", finished(BuildStatus.failure), "");
+
+        BuildResultCache.Entry entry = cache.get("tree1", "spec1");
+        assertEquals(success.getBuildId(), entry.getBuildId());
+        assertEquals(BuildStatus.success, entry.getStatus());
+        assertEquals("https://gradle.com/s/abc", entry.getUrl());
+        assertNull(cache.get("tree1", "spec2"));
+        assertNull(cache.get("tree2", "spec1"));
+        assertNull(cache.get("tree3", "spec1"));
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+    }
+
+    /**
+     * Test that the results survive a restart and that only the most recently used are kept
+     */
+    @Test
+    public void testReload() {
+        BuildResultCache cache = new BuildResultCache(cacheFolder.getPath(), 2);
+        BuildData success = finished(BuildStatus.success);
+        cache.put("tree1", "spec", finished(BuildStatus.success), "");
+        cache.put("tree2", "spec", success, "");
+        cache.put("tree3", "spec", finished(BuildStatus.success), "");
+        assertEquals(2, cache.getSize());
+
+        BuildResultCache reloaded = new BuildResultCache(cacheFolder.getPath(), 2);
+        assertEquals(2, reloaded.getSize());
+        assertNull(reloaded.get("tree1", "spec"));
+        assertEquals(success.getBuildId(), reloaded.get("tree2", "spec").getBuildId());
+        assertEquals("Build Success", reloaded.get("tree2", "spec").getMessage());
+    }
+
+    private static String commit(Git source, String fileName, String content) throws IOException, GitAPIException {
+        File file = new File(source.getRepository().getWorkTree(), fileName);
+        if (content == null) {
+            source.rm().addFilepattern(fileName).call();
+        } else {
+            Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+            source.add().addFilepattern(fileName).call();
+        }
+        return source.commit().setMessage(fileName).call().getName();
+    }
+
+    private static void buildAndTest(Builder builder, BuildData buildData, String repoGitURI, File gitPath) throws Exception {
+        Method method = Builder.class.getDeclaredMethod("buildAndTest", BuildData.class, String.class, String.class, String.class, String.class, File.class);
+        method.setAccessible(true);
+        method.invoke(builder, buildData, "master", buildData.getSha(), buildData.getRepoFullName(), repoGitURI, gitPath);
+    }
+
+    /**
+     * Test that a revert to a built tree reuses the result and log of that build without checking it out
+     */
+    @Test
+    public void testBuilderReusesTree() throws Exception {
+        assumeFalse(System.getProperty("os.name").startsWith("Windows"));
+        BuildLogStore logStore = new BuildLogStore(testRootFolder.newFolder("logs"), 1000);
+        BuildResultCache cache = new BuildResultCache(cacheFolder.getPath(), 10);
+        Builder builder = new Builder();
+        builder.setLogStore(logStore);
+        builder.setResultCache(cache);
+        builder.setMirrorCache(new RepoMirrorCache(testRootFolder.newFolder("mirrors").getPath(), Long.MAX_VALUE));
+        builder.setPipeline(new BuildPipeline(testRootFolder.newFolder("specs").getPath(), false, 0));
+        builder.setReaper(new WorkspaceReaper(testRootFolder.getRoot(), 1, Long.MAX_VALUE, 0));
+
+        String uri;
+        String[] shas = new String[3];
+        try (Git source = Git.init().setDirectory(testRootFolder.newFolder("source")).call()) {
+            uri = source.getRepository().getDirectory().getAbsolutePath();
+            commit(source, BuildPipeline.SPEC_FILE, SPEC);
+            shas[0] = commit(source, "a.txt", "a");
+            shas[1] = commit(source, "broken.txt", "b");
+            shas[2] = commit(source, "broken.txt", null);
+        }
+
+        BuildData[] built = new BuildData[3];
+        for (int i = 0; i < 3; i++) {
+            built[i] = new BuildData("owner/repo", new Date(1000 + i), shas[i]);
+            buildAndTest(builder, built[i], uri, new File(testRootFolder.getRoot(), "ws" + i));
+        }
+
+        assertEquals(BuildStatus.success, built[0].getBuildStatus());
+        assertEquals(BuildStatus.failure, built[1].getBuildStatus());
+        assertEquals(BuildStatus.success, built[2].getBuildStatus());
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        List<String> log = logStore.read(built[2].getBuildId());
+        assertTrue(log.contains("checked"));
+        assertTrue(log.stream().anyMatch(line -> line.endsWith("was built by " + built[0].getBuildId() + ", reusing its result")));
+        assertTrue(log.stream().noneMatch(line -> line.equals("git reset --hard " + shas[2])));
+    }
+}
@@ -20,6 +20,7 @@ import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -248,6 +249,21 @@ public class BuilderTest {
         assertEquals(BuildStatus.failure, buildData.getBuildStatus());
     }
 
+    /**
+     * Test that every build gets its own workspace, also for builds of the same commit
+     */
+    @Test
+    public void testWorkspacePerBuild() {
+        BuildData first = new BuildData(REMOTE_REPO_FULL_NAME, new Date(1000), SUCCEEDCOMMITID);
+        BuildData second = new BuildData(REMOTE_REPO_FULL_NAME, new Date(2000), SUCCEEDCOMMITID);
+        File firstWorkspace = builder.getWorkspace(first);
+        File secondWorkspace = builder.getWorkspace(second);
+
+        assertNotEquals(firstWorkspace, secondWorkspace);
+        assertEquals(firstWorkspace.getParentFile(), secondWorkspace.getParentFile());
+        assertEquals(first.getBuildId(), firstWorkspace.getName());
+    }
+
     /**
      * Wrapper for private method
      */
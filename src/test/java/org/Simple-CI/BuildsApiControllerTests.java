@@ -0,0 +1,112 @@
+package org.Simple-CI;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Test suite for {@link BuildsApiController}
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest
+@AutoConfigureMockMvc
+public class BuildsApiControllerTests {
+
+    private static final String sha = "c0ffee0000000000000000000000000000000019";
+    private static final String id = sha + "-2000";
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Before
+    public void setUp() throws Exception {
+        BuildData buildData = new BuildData("owner/api", new Date(2000), sha);
+        buildData.setBranch("master");
+        buildData.setBuildStatus(BuildStatus.failure);
+        buildData.setMessage("Build \"failed\"\nsee log");
+        buildData.setTiming("clone", 12);
+        buildData.setBuildLog(Arrays.asList("Line0", "Line1", "Line2", "Line3"));
+        CiApplication.CIDB.writeBuild(buildData);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        CiApplication.CIDB.removeBuildData(sha);
+    }
+
+    /**
+     * Test that a build is returned without its log unless asked for
+     */
+    @Test
+    public void getBuild() throws Exception {
+        mockMvc.perform(get("/api/builds/" + id))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.id").value(id))
+                .andExpect(jsonPath("$.branch").value("master"))
+                .andExpect(jsonPath("$.buildStatus").value("failure"))
+                .andExpect(jsonPath("$.message").value("Build \"failed\"\nsee log"))
+                .andExpect(jsonPath("$.dateCreated").value(2000))
+                .andExpect(jsonPath("$.timings.clone").value(12))
+                .andExpect(jsonPath("$.dateStart").doesNotExist())
+                .andExpect(jsonPath("$.buildLog").doesNotExist());
+        mockMvc.perform(get("/api/builds/" + id).param("log", "true"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.buildLog.length()").value(4));
+        mockMvc.perform(get("/api/builds/" + sha + "-1")).andExpect(status().isNotFound());
+    }
+
+    /**
+     * Test that a list is answered with 304 until a build is added
+     */
+    @Test
+    public void getBuildsNotModified() throws Exception {
+        String etag = mockMvc.perform(get("/api/builds").param("sha", sha))
+                .andExpect(status().isOk())
+                .andExpect(header().exists("Last-Modified"))
+                .andExpect(jsonPath("$.builds[0].id").value(id))
+                .andReturn().getResponse().getHeader("ETag");
+        mockMvc.perform(get("/api/builds").param("sha", sha).header("If-None-Match", etag))
+                .andExpect(status().isNotModified());
+
+        CiApplication.CIDB.writeBuild(new BuildData("owner/api", new Date(3000), sha));
+        mockMvc.perform(get("/api/builds").param("sha", sha).header("If-None-Match", etag))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.builds.length()").value(2));
+    }
+
+    /**
+     * Test reading a range of log lines, and that an unchanged log is answered with 304
+     */
+    @Test
+    public void getLogRange() throws Exception {
+        String etag = mockMvc.perform(get("/api/builds/" + id + "/log").param("from", "1").param("count", "2"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.from").value(1))
+                .andExpect(jsonPath("$.total").value(4))
+                .andExpect(jsonPath("$.running").value(false))
+                .andExpect(jsonPath("$.lines[0]").value("Line1"))
+                .andExpect(jsonPath("$.lines.length()").value(2))
+                .andReturn().getResponse().getHeader("ETag");
+        mockMvc.perform(get("/api/builds/" + id + "/log").param("from", "1").param("count", "2")
+                .header("If-None-Match", etag))
+                .andExpect(status().isNotModified());
+        mockMvc.perform(get("/api/builds/" + id + "/log").param("from", "10"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.lines.length()").value(0));
+        mockMvc.perform(get("/api/builds/application/log")).andExpect(status().isNotFound());
+    }
+}
@@ -3,6 +3,7 @@ package org.Simple-CI;
 import static org.mockito.ArgumentMatchers.contains;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 import org.junit.Test;
@@ -15,6 +16,8 @@ import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 
+import java.util.Date;
+
 /**
  * Test suite for {@link BuildsController}
  */
@@ -30,4 +33,29 @@ public class BuildsControllerTests {
     public void getHello() throws Exception {
         mockMvc.perform(get("/builds")).andExpect(status().isOk());
     }
+
+    @Test
+    public void getBuildsPage() throws Exception {
+        String sha = "c0ffee0000000000000000000000000000000018";
+        for (int i = 0; i < 3; i++) {
+            BuildData buildData = new BuildData("owner/paged", new Date(1000L + i), sha);
+            buildData.setBranch("master");
+            buildData.setBuildStatus(BuildStatus.success);
+            CiApplication.CIDB.writeBuild(buildData);
+        }
+        mockMvc.perform(get("/api/builds").param("repo", "owner/paged").param("limit", "2"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.builds.length()").value(2))
+                .andExpect(jsonPath("$.builds[0].id").value(sha + "-1002"))
+                .andExpect(jsonPath("$.builds[0].branch").value("master"))
+                .andExpect(jsonPath("$.next").value(sha + "-1001"));
+        mockMvc.perform(get("/api/builds").param("repo", "owner/paged").param("after", sha + "-1001"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.builds.length()").value(1))
+                .andExpect(jsonPath("$.next").doesNotExist());
+        mockMvc.perform(get("/builds").param("repo", "owner/paged").param("after", sha + "-1002"))
+                .andExpect(status().isOk());
+        mockMvc.perform(get("/api/builds").param("status", "unknown")).andExpect(status().isBadRequest());
+        CiApplication.CIDB.removeBuildData(sha);
+    }
 }
@@ -1,12 +1,15 @@
 package org.Simple-CI;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.contains;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 import org.junit.After;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
@@ -18,10 +21,24 @@ import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Test suite for {@link CIDataBase}
@@ -160,4 +177,606 @@ public class CIDataBaseTest {
             assert false;
         }
     }
+    /*
+    Tests the repository and creation time indexes.
+     */
+    @Test
+    public void DatabaseIndexTest() throws IOException {
+        TemporaryFolder folder = new TemporaryFolder();
+        folder.create();
+        CIDataBase cdb = new CIDataBase(folder.getRoot().getPath());
+        for (int i = 0; i < 10; i++) {
+            BuildData bd = new BuildData(i % 2 == 0 ? repoFullName : "xmas92/other", new Date(1000L * i), syntheticSha(i));
+            cdb.addToIndex(bd);
+        }
+        assertEquals(5, cdb.readAllBuildsForRepo(repoFullName).size());
+        assertEquals(0, cdb.readAllBuildsForRepo("nobody/nothing").size());
+        assertEquals(3, cdb.getBuildsBetween(new Date(2000), new Date(5000)).size());
+        ArrayList<BuildData> latest = cdb.getLatestBuilds(null, 3);
+        assertEquals(3, latest.size());
+        assertEquals(new Date(9000), latest.get(0).getDateCreated());
+        assertEquals(new Date(7000), latest.get(2).getDateCreated());
+        ArrayList<BuildData> older = cdb.getLatestBuilds(latest.get(2).getDateCreated(), 100);
+        assertEquals(7, older.size());
+        assertEquals(new Date(6000), older.get(0).getDateCreated());
+        folder.delete();
+    }
+
+    /*
+    Tests paging through builds newest first with filters, and that the branch is kept in the database.
+     */
+    @Test
+    public void DatabaseQueryTest() throws IOException {
+        TemporaryFolder folder = new TemporaryFolder();
+        folder.create();
+        CIDataBase cdb = new CIDataBase(folder.getRoot().getPath());
+        for (int i = 0; i < 30; i++) {
+            // two builds created at the same time, ordered by sha
+            BuildData bd = new BuildData(i % 3 == 0 ? repoFullName : "xmas92/other", new Date(1000L * (i / 2)),
+                    syntheticSha(i));
+            bd.setBranch(i % 2 == 0 ? "master" : "feature");
+            bd.setBuildStatus(i % 5 == 0 ? BuildStatus.failure : BuildStatus.success);
+            cdb.writeBuild(bd);
+        }
+
+        List<String> ids = new ArrayList<>();
+        String cursor = null;
+        do {
+            BuildQuery.Page page = cdb.query(new BuildQuery().after(cursor).limit(7));
+            assertTrue(page.getBuilds().size() <= 7);
+            for (BuildData bd : page.getBuilds())
+                ids.add(bd.getBuildId());
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        assertEquals(30, ids.size());
+        assertEquals(syntheticSha(29) + "-14000", ids.get(0));
+        assertEquals(syntheticSha(28) + "-14000", ids.get(1));
+        assertEquals(syntheticSha(0) + "-0", ids.get(29));
+
+        BuildQuery.Page failures = cdb.query(new BuildQuery().repo(repoFullName).status(BuildStatus.failure));
+        assertEquals(2, failures.getBuilds().size());
+        assertEquals(syntheticSha(15), failures.getBuilds().get(0).getSha());
+        assertEquals(null, failures.getNextCursor());
+
+        BuildQuery.Page feature = cdb.query(new BuildQuery().branch("feature")
+                .between(new Date(2000), new Date(5000)).limit(2));
+        assertEquals(2, feature.getBuilds().size());
+        assertEquals(syntheticSha(9), feature.getBuilds().get(0).getSha());
+        feature = cdb.query(new BuildQuery().branch("feature").between(new Date(2000), new Date(5000))
+                .after(feature.getNextCursor()));
+        assertEquals(1, feature.getBuilds().size());
+        assertEquals(syntheticSha(5), feature.getBuilds().get(0).getSha());
+
+        assertEquals(1, cdb.query(new BuildQuery().sha(syntheticSha(12)).branch("master")).getBuilds().size());
+        assertEquals(0, cdb.query(new BuildQuery().sha(syntheticSha(12)).branch("feature")).getBuilds().size());
+        assertEquals(0, cdb.query(new BuildQuery().repo("nobody/nothing")).getBuilds().size());
+
+        // the branch survives a restart, from the records and from the snapshot
+        cdb.snapshot();
+        CIDataBase cdb2 = new CIDataBase(folder.getRoot().getPath());
+        assertEquals(15, cdb2.query(new BuildQuery().branch("master").limit(100)).getBuilds().size());
+        cdb.removeBuildData(syntheticSha(29));
+        assertEquals(syntheticSha(28), cdb.query(new BuildQuery().limit(1)).getBuilds().get(0).getSha());
+        assertEquals(14, cdb.query(new BuildQuery().branch("feature").limit(100)).getBuilds().size());
+        folder.delete();
+    }
+
+    private static String syntheticSha(int i) {
+        return String.format("%040x", i);
+    }
+
+    /*
+    Tests the lookups by sha, by creation time and by repository on a history of many commits and repositories.
+    Their latency is measured by CIDataBaseQueryBenchmark.
+     */
+    @Test
+    public void DatabaseIndexLookupTest() throws IOException {
+        TemporaryFolder folder = new TemporaryFolder();
+        folder.create();
+        CIDataBase cdb = new CIDataBase(folder.getRoot().getPath());
+        for (int i = 0; i < 4000; i++) {
+            // four builds per commit, a hundred repositories
+            cdb.addToIndex(new BuildData("owner/repo" + (i % 100), new Date(i), syntheticSha(i / 4)));
+        }
+        assertEquals(4, cdb.readAllBuild(syntheticSha(123)).size());
+        assertEquals(0, cdb.readAllBuild(syntheticSha(1000)).size());
+        assertEquals(40, cdb.readAllBuildsForRepo("owner/repo7").size());
+
+        ArrayList<BuildData> latest = cdb.getLatestBuilds(new Date(2000), 50);
+        assertEquals(50, latest.size());
+        assertEquals(new Date(1999), latest.get(0).getDateCreated());
+        assertEquals(new Date(1950), latest.get(49).getDateCreated());
+
+        List<BuildData> repo = cdb.query(new BuildQuery().repo("owner/repo7").limit(50)).getBuilds();
+        assertEquals(40, repo.size());
+        assertEquals(new Date(3907), repo.get(0).getDateCreated());
+        assertEquals(new Date(7), repo.get(39).getDateCreated());
+
+        // the history handed out is a copy, removals leave the order of the remaining builds
+        cdb.getAllBuilds().clear();
+        cdb.getAllBuilds(10).clear();
+        assertEquals(4000, cdb.getAllBuilds().size());
+        cdb.removeBuildData(syntheticSha(0));
+        List<BuildData> first = cdb.getAllBuilds(2);
+        assertEquals(new Date(4), first.get(0).getDateCreated());
+        assertEquals(new Date(5), first.get(1).getDateCreated());
+        assertEquals(39, cdb.readAllBuildsForRepo("owner/repo0").size());
+        assertEquals(3996, cdb.getAllBuilds().size());
+        folder.delete();
+    }
+    /*
+    Tests that logs are kept out of memory and loaded on demand, also after reopening the database.
+     */
+    @Test
+    public void DatabaseLazyLogTest() throws IOException {
+        TemporaryFolder folder = new TemporaryFolder();
+        folder.create();
+        CIDataBase cdb = new CIDataBase(folder.getRoot().getPath(), 2);
+        BuildData buildData = new BuildData(repoFullName,dateCreated,sha);
+        buildData.setDateStart(dateCreated);
+        buildData.setDateFinish(dateCreated);
+        List<String> buildLog = Arrays.asList("Line1", "Line2", "Line3");
+        buildData.setBuildStatus(BuildStatus.success);
+        buildData.setMessage("multi\nline \\ message");
+        buildData.setBuildLog(buildLog);
+        cdb.writeBuild(buildData);
+
+        assertEquals(buildLog, buildData.getBuildLog());
+        // three lines do not fit in a cache of two lines
+        assertEquals(0, cdb.getLogStore().getCachedLines());
+
+        CIDataBase cdb2 = new CIDataBase(folder.getRoot().getPath());
+        BuildData read = cdb2.readAllBuild(sha).get(0);
+        assertEquals(0, cdb2.getLogStore().getCachedLines());
+        assertEquals(buildData, read);
+        assertEquals(buildLog, read.getBuildLog());
+        assertEquals(3, cdb2.getLogStore().getCachedLines());
+        folder.delete();
+    }
+    /*
+    Tests that records of the first database format, with inline logs, are still read.
+     */
+    @Test
+    public void DatabaseLegacyFormatTest() throws IOException {
+        TemporaryFolder folder = new TemporaryFolder();
+        folder.create();
+        List<String> legacy = Arrays.asList(repoFullName, "" + dateCreated.getTime(), sha,
+                "" + dateCreated.getTime(), "" + dateCreated.getTime(), "2", "Line1", "Line2", "failure", "Hejsan");
+        java.nio.file.Files.write(new File(folder.getRoot(), sha).toPath(), legacy);
+
+        CIDataBase cdb = new CIDataBase(folder.getRoot().getPath());
+        BuildData read = cdb.readAllBuild(sha).get(0);
+        assertEquals(BuildStatus.failure, read.getBuildStatus());
+        assertEquals("Hejsan", read.getMessage());
+        assertEquals(Arrays.asList("Line1", "Line2"), read.getBuildLog());
+        assertTrue(cdb.getLogStore().exists(read.getBuildId()));
+
+        // the build was moved to the journal
+        assertTrue(!new File(folder.getRoot(), sha).exists());
+        BuildData reopened = new CIDataBase(folder.getRoot().getPath()).readAllBuild(sha).get(0);
+        assertEquals(read, reopened);
+        assertEquals(Arrays.asList("Line1", "Line2"), reopened.getBuildLog());
+        folder.delete();
+    }
+    /*
+    Tests that a database file of the former format with a truncated record in the middle is kept aside, so the
+    builds after the record are not lost, and that the builds before it are moved to the journal.
+     */
+    @Test
+    public void DatabaseLegacyTornRecordTest() throws IOException {
+        TemporaryFolder folder = new TemporaryFolder();
+        folder.create();
+        List<String> legacy = Arrays.asList(
+                "#build", "repoFullName=" + repoFullName, "dateCreated=1000", "sha=" + sha, "#end",
+                "#build", "repoFullName=" + repoFullName, "dateCre",
+                "#build", "repoFullName=" + repoFullName, "dateCreated=3000", "sha=" + sha, "#end");
+        File file = new File(folder.getRoot(), sha);
+        java.nio.file.Files.write(file.toPath(), legacy);
+
+        CIDataBase cdb = new CIDataBase(folder.getRoot().getPath());
+        assertEquals(1, cdb.readAllBuild(sha).size());
+        assertEquals(1000, cdb.readAllBuild(sha).get(0).getDateCreated().getTime());
+        assertTrue(!file.exists());
+        File aside = new File(folder.getRoot(), sha + ".unmigrated");
+        assertEquals(legacy, java.nio.file.Files.readAllLines(aside.toPath()));
+
+        // the file kept aside is not migrated again
+        CIDataBase reopened = new CIDataBase(folder.getRoot().getPath());
+        assertEquals(1, reopened.readAllBuild(sha).size());
+        assertTrue(aside.exists());
+        folder.delete();
+    }
+    /*
+    Tests that a database started from a snapshot has the same builds, including builds written after the snapshot.
+     */
+    @Test
+    public void DatabaseSnapshotTest() throws IOException {
+        TemporaryFolder folder = new TemporaryFolder();
+        folder.create();
+        CIDataBase cdb = new CIDataBase(folder.getRoot().getPath());
+        BuildData buildData = new BuildData(repoFullName,dateCreated,sha);
+        buildData.setDateStart(dateCreated);
+        buildData.setDateFinish(dateCreated);
+        buildData.setBuildStatus(BuildStatus.success);
+        buildData.setMessage("Hejsan");
+        buildData.setBuildLog(Arrays.asList("Line1"));
+        buildData.setTiming("clone", 1200);
+        buildData.setTiming("execution", 34000);
+        cdb.writeBuild(buildData);
+        assertTrue(cdb.snapshot());
+        BuildData buildData2 = new BuildData(repoFullName,new Date(dateCreated.getTime() + 1),sha);
+        buildData2.setBuildStatus(BuildStatus.pending);
+        buildData2.setTiming("clone", 800);
+        buildData2.setBuildLog(Arrays.asList("Line2"));
+        cdb.writeBuild(buildData2);
+
+        CIDataBase cdb2 = new CIDataBase(folder.getRoot().getPath());
+        ArrayList<BuildData> bd = cdb2.readAllBuild(sha);
+        assertEquals(2, bd.size());
+        assertTrue(bd.contains(buildData));
+        assertTrue(bd.contains(buildData2));
+        assertEquals(Arrays.asList("Line2"), bd.get(bd.indexOf(buildData2)).getBuildLog());
+        assertEquals(Long.valueOf(34000), bd.get(bd.indexOf(buildData)).getTimings().get("execution"));
+
+        // removed builds are not resurrected by the snapshot
+        cdb2.removeBuildData(sha);
+        assertEquals(0, new CIDataBase(folder.getRoot().getPath()).readAllBuild(sha).size());
+        folder.delete();
+    }
+    /*
+    Tests that a record torn by a crash, or with a wrong checksum, is cut off and that the builds before it survive.
+     */
+    @Test
+    public void DatabaseTornRecordTest() throws IOException {
+        TemporaryFolder folder = new TemporaryFolder();
+        folder.create();
+        CIDataBase cdb = new CIDataBase(folder.getRoot().getPath());
+        for (int i = 0; i < 3; i++)
+            cdb.writeBuild(new BuildData(repoFullName, new Date(1000L * i), syntheticSha(i)));
+        File journal = new File(folder.getRoot(), "journal.0");
+        long length = journal.length();
+
+        // a record whose frame promises more bytes than were written
+        try (RandomAccessFile raf = new RandomAccessFile(journal, "rw")) {
+            raf.seek(length);
+            raf.writeInt(1000);
+            raf.writeInt(42);
+            raf.write("#build\nrepoFull".getBytes("UTF-8"));
+        }
+        CIDataBase reopened = new CIDataBase(folder.getRoot().getPath());
+        assertEquals(3, reopened.getAllBuilds().size());
+        assertEquals(length, journal.length());
+        reopened.writeBuild(new BuildData(repoFullName, new Date(3000), syntheticSha(3)));
+        assertEquals(4, new CIDataBase(folder.getRoot().getPath()).getAllBuilds().size());
+
+        // a flipped bit in the last record
+        try (RandomAccessFile raf = new RandomAccessFile(journal, "rw")) {
+            raf.seek(journal.length() - 3);
+            int b = raf.read();
+            raf.seek(journal.length() - 3);
+            raf.write(b ^ 1);
+        }
+        new File(folder.getRoot(), "snapshot.bin").delete();
+        CIDataBase corrupt = new CIDataBase(folder.getRoot().getPath());
+        assertEquals(3, corrupt.getAllBuilds().size());
+        assertEquals(0, corrupt.readAllBuild(syntheticSha(3)).size());
+        assertEquals(length, journal.length());
+        folder.delete();
+    }
+    /*
+    Tests that a record written partly is cut off again, and that the journal rejects records once that fails too.
+     */
+    @Test
+    public void DatabaseFailedAppendTest() throws IOException {
+        TemporaryFolder folder = new TemporaryFolder();
+        folder.create();
+        File file = new File(folder.getRoot(), "journal.0");
+        BuildJournal.open(file, 0, record -> { }).close();
+        FailingChannel channel = new FailingChannel(FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND));
+        BuildJournal journal = new BuildJournal(file, channel);
+        journal.append("first".getBytes(StandardCharsets.UTF_8));
+        long length = file.length();
+
+        channel.failWrites = true;
+        try {
+            journal.append("second".getBytes(StandardCharsets.UTF_8));
+            fail("the write failed");
+        } catch (IOException expected) {
+            // the partial record is cut off
+        }
+        assertEquals(length, file.length());
+        channel.failWrites = false;
+        journal.append("third".getBytes(StandardCharsets.UTF_8));
+
+        channel.failWrites = true;
+        channel.failTruncate = true;
+        try {
+            journal.append("fourth".getBytes(StandardCharsets.UTF_8));
+            fail("the write failed");
+        } catch (IOException expected) {
+            // the partial record stays
+        }
+        channel.failWrites = false;
+        channel.failTruncate = false;
+        try {
+            journal.append("fifth".getBytes(StandardCharsets.UTF_8));
+            fail("the journal failed");
+        } catch (IOException expected) {
+            // nothing is appended behind the partial record
+        }
+        journal.close();
+
+        List<String> replayed = new ArrayList<>();
+        BuildJournal.open(file, 0, record -> replayed.add(new String(record, StandardCharsets.UTF_8))).close();
+        assertEquals(Arrays.asList("first", "third"), replayed);
+        folder.delete();
+    }
+
+    /*
+    File channel that writes only half of a buffer and then fails, and that can fail to truncate.
+     */
+    private static class FailingChannel extends FileChannel {
+        private final FileChannel channel;
+        volatile boolean failWrites;
+        volatile boolean failTruncate;
+
+        FailingChannel(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (!failWrites)
+                return channel.write(src);
+            ByteBuffer half = src.duplicate();
+            half.limit(half.position() + half.remaining() / 2);
+            src.position(src.position() + channel.write(half));
+            throw new IOException("No space left on device");
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            if (failTruncate)
+                throw new IOException("Input/output error");
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            channel.force(metaData);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return channel.read(dsts, offset, length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return channel.write(srcs, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return channel.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return channel.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return channel.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return channel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return channel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return channel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+    }
+    /*
+    Tests that concurrent writers share fsyncs, and that every build they wrote is in the journal.
+     */
+    @Test
+    public void DatabaseGroupCommitTest() throws Exception {
+        TemporaryFolder folder = new TemporaryFolder();
+        folder.create();
+        CIDataBase cdb = new CIDataBase(folder.getRoot().getPath());
+        final int writers = 8;
+        final int buildsPerWriter = 25;
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        List<Future<?>> done = new ArrayList<>();
+        long syncsBefore = cdb.getJournal().getSyncs();
+        for (int w = 0; w < writers; w++) {
+            final int writer = w;
+            done.add(executor.submit(() -> {
+                for (int i = 0; i < buildsPerWriter; i++) {
+                    BuildData bd = new BuildData(repoFullName, new Date(1000L * i), syntheticSha(writer));
+                    bd.setBuildStatus(BuildStatus.success);
+                    assertTrue(cdb.writeBuild(bd));
+                }
+                return null;
+            }));
+        }
+        for (Future<?> f : done)
+            f.get();
+        executor.shutdown();
+        long syncs = cdb.getJournal().getSyncs() - syncsBefore;
+        assertTrue(syncs < writers * buildsPerWriter);
+        cdb.awaitMaintenance();
+        assertEquals(writers * buildsPerWriter, new CIDataBase(folder.getRoot().getPath()).getAllBuilds().size());
+        folder.delete();
+    }
+    /*
+    Tests that the journal is compacted once most of its records belong to removed builds, and that removed builds
+    stay removed.
+     */
+    @Test
+    public void DatabaseCompactionTest() throws Exception {
+        TemporaryFolder folder = new TemporaryFolder();
+        folder.create();
+        CIDataBase cdb = new CIDataBase(folder.getRoot().getPath());
+        for (int i = 0; i < 150; i++)
+            cdb.writeBuild(new BuildData(repoFullName, new Date(1000L * i), syntheticSha(i)));
+        for (int i = 0; i < 120; i++)
+            cdb.removeBuildData(syntheticSha(i));
+        // the journal is compacted on the maintenance thread
+        cdb.awaitMaintenance();
+
+        assertTrue(!new File(folder.getRoot(), "journal.0").exists());
+        assertTrue(cdb.getJournal().getFile().exists());
+        // 30 builds and the removals since the last compaction
+        assertTrue(cdb.getJournalRecords() < 150);
+        CIDataBase reopened = new CIDataBase(folder.getRoot().getPath());
+        assertEquals(30, reopened.getAllBuilds().size());
+        assertEquals(0, reopened.readAllBuild(syntheticSha(119)).size());
+        assertEquals(1, reopened.readAllBuild(syntheticSha(120)).size());
+
+        assertTrue(reopened.compact());
+        assertEquals(30, reopened.getJournalRecords());
+        new File(folder.getRoot(), "snapshot.bin").delete();
+        assertEquals(30, new CIDataBase(folder.getRoot().getPath()).getAllBuilds().size());
+        folder.delete();
+    }
+    /*
+    Tests that builds and removals written while the journal is compacted end up in the compacted journal.
+     */
+    @Test
+    public void DatabaseCompactionWhileWritingTest() throws Exception {
+        TemporaryFolder folder = new TemporaryFolder();
+        folder.create();
+        CIDataBase cdb = new CIDataBase(folder.getRoot().getPath());
+        for (int i = 0; i < 100; i++)
+            cdb.writeBuild(new BuildData(repoFullName, new Date(1000L * i), syntheticSha(i)));
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        Future<?> written = writer.submit(() -> {
+            for (int i = 100; i < 300; i++) {
+                cdb.writeBuild(new BuildData(repoFullName, new Date(1000L * i), syntheticSha(i)));
+                if (i % 10 == 0)
+                    cdb.removeBuildData(syntheticSha(i - 100));
+            }
+            return null;
+        });
+        while (!written.isDone())
+            assertTrue(cdb.compact());
+        written.get();
+        writer.shutdown();
+        assertTrue(cdb.compact());
+        cdb.awaitMaintenance();
+
+        new File(folder.getRoot(), "snapshot.bin").delete();
+        CIDataBase reopened = new CIDataBase(folder.getRoot().getPath());
+        assertEquals(280, reopened.getAllBuilds().size());
+        assertEquals(0, reopened.readAllBuild(syntheticSha(190)).size());
+        assertEquals(1, reopened.readAllBuild(syntheticSha(299)).size());
+        folder.delete();
+    }
+    /*
+    Tests that builds written while the journal is compacted survive a crash before the compacted journal replaces
+    the journal. The crash is simulated by copying the database folder at that point and opening the copy.
+     */
+    @Test
+    public void DatabaseCrashDuringCompactionTest() throws Exception {
+        TemporaryFolder folder = new TemporaryFolder();
+        folder.create();
+        TemporaryFolder crashed = new TemporaryFolder();
+        crashed.create();
+        CIDataBase cdb = new CIDataBase(folder.getRoot().getPath());
+        for (int i = 0; i < 100; i++)
+            cdb.writeBuild(new BuildData(repoFullName, new Date(1000L * i), syntheticSha(i)));
+        for (int i = 0; i < 50; i++)
+            cdb.removeBuildData(syntheticSha(i));
+        cdb.awaitMaintenance();
+        cdb.beforeCompactionSwap = () -> {
+            try {
+                for (int i = 100; i < 110; i++)
+                    assertTrue(cdb.writeBuild(new BuildData(repoFullName, new Date(1000L * i), syntheticSha(i))));
+                for (File file : folder.getRoot().listFiles(File::isFile))
+                    Files.copy(file.toPath(), new File(crashed.getRoot(), file.getName()).toPath());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+        assertTrue(cdb.compact());
+
+        CIDataBase recovered = new CIDataBase(crashed.getRoot().getPath());
+        assertEquals(60, recovered.getAllBuilds().size());
+        assertEquals(1, recovered.readAllBuild(syntheticSha(109)).size());
+        assertEquals(0, recovered.readAllBuild(syntheticSha(49)).size());
+        new File(folder.getRoot(), "snapshot.bin").delete();
+        assertEquals(60, new CIDataBase(folder.getRoot().getPath()).getAllBuilds().size());
+        crashed.delete();
+        folder.delete();
+    }
+    /*
+    Tests that snapshots are written on the maintenance thread while builds are written, and that a database opened
+    from the snapshot and the records after it has every build. The startup time is measured by
+    CIDataBaseStartupBenchmark.
+     */
+    @Test
+    public void DatabaseBackgroundSnapshotTest() throws Exception {
+        TemporaryFolder folder = new TemporaryFolder();
+        folder.create();
+        CIDataBase cdb = new CIDataBase(folder.getRoot().getPath());
+        File snapshot = new File(folder.getRoot(), "snapshot.bin");
+        for (int i = 0; i < 250; i++)
+            assertTrue(cdb.writeBuild(new BuildData(repoFullName, new Date(1000L * i), syntheticSha(i))));
+        cdb.awaitMaintenance();
+        assertTrue(snapshot.isFile());
+        List<BuildSnapshot.Entry> entries = BuildSnapshot.read(snapshot);
+        assertEquals(1, entries.size());
+        // taken after the first 100 writes, the records after it are replayed
+        assertTrue(entries.get(0).builds.size() >= 100);
+        assertTrue(entries.get(0).length <= cdb.getJournal().size());
+
+        CIDataBase reopened = new CIDataBase(folder.getRoot().getPath());
+        assertEquals(250, reopened.getAllBuilds().size());
+        assertEquals(1, reopened.readAllBuild(syntheticSha(249)).size());
+        folder.delete();
+    }
 }
@@ -0,0 +1,62 @@
+package org.Simple-CI;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test suite for {@link GitHubEvent}
+ */
+public class GitHubEventTest {
+
+    /**
+     * Test that the push fields are read and fields of the same name in nested objects are ignored
+     */
+    @Test
+    public void testPush() {
+        GitHubEvent event = GitHubEvent.parse("{" +
+                "\"ref\":\"refs/heads/master\"," +
+                "\"before\":\"0000000000000000000000000000000000000000\"," +
+                "\"commits\":[{\"id\":\"1\",\"ref\":\"nested\",\"added\":[\"a\",\"b\"],\"author\":{\"name\":\"x\"}}]," +
+                "\"after\":\"aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa\"," +
+                "\"repository\":{\"id\":1,\"owner\":{\"full_name\":\"nested\"},\"full_name\":\"owner/repo\"," +
+                "\"topics\":[],\"default_branch\":\"master\"}," +
+                "\"pusher\":{\"name\":\"user\"}}");
+
+        assertTrue(event.isPush());
+        assertFalse(event.isPullRequest());
+        assertEquals("refs/heads/master", event.getRef());
+        assertEquals("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa", event.getAfter());
+        assertEquals("owner/repo", event.getRepoFullName());
+        assertEquals("master", event.getDefaultBranch());
+    }
+
+    /**
+     * Test that the head of a pull request is read from a payload with unquoted names and single quotes
+     */
+    @Test
+    public void testPullRequest() {
+        GitHubEvent event = GitHubEvent.parse("{action: 'opened', number: 5, pull_request: {" +
+                "base: {ref: 'master', sha: 'bbbb', repo: {full_name: 'base/repo'}}," +
+                "head: {label: 'x', ref: 'feature', sha: 'aaaa', repo: {full_name: 'head/repo'}}," +
+                "labels: [{name: 'l'}]}}");
+
+        assertTrue(event.isPullRequest());
+        assertEquals("opened", event.getAction());
+        assertEquals("feature", event.getHeadRef());
+        assertEquals("aaaa", event.getHeadSha());
+        assertEquals("head/repo", event.getHeadRepoFullName());
+        assertNull(event.getRepoFullName());
+    }
+
+    /**
+     * Test that a payload that is not JSON is rejected
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformed() {
+        GitHubEvent.parse("{\"ref\": ");
+    }
+}
@@ -4,6 +4,7 @@ import org.json.JSONTokener;
 import org.junit.Test;
 import org.junit.Before;
 import org.junit.After;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import org.springframework.integration.support.MessageBuilder;
@@ -130,4 +131,23 @@ public class GitHubHandlerTest {
 
         assertTrue(actualValue.equals(expectedValue));
     }
+
+    /**
+     * Test that a push to the default branch is built before other pushes and pull requests
+     */
+    @Test
+    public void testGetJSONPriority() {
+        Message<String> push = MessageBuilder.withPayload(
+                "{pusher: 'test', after: 'aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa'," +
+                        " repository: {full_name: 'owner/repo', default_branch: 'main'}, ref: 'refs/heads/main'}"
+        ).build();
+        Message<String> pullRequest = MessageBuilder.withPayload(
+                "{action: 'opened', pull_request: {head: {ref: 'main'," +
+                        " sha: 'aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa', repo: {full_name: 'fork/repo'}}}}"
+        ).build();
+
+        assertEquals(BuildQueue.Priority.defaultBranch, ghh.getJSON(push).getHeaders().get(BuildQueue.PRIORITY_HEADER));
+        assertEquals(BuildQueue.Priority.pullRequest,
+                ghh.getJSON(pullRequest).getHeaders().get(BuildQueue.PRIORITY_HEADER));
+    }
 }
@@ -0,0 +1,198 @@
+package org.Simple-CI;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test suite for {@link GitHubStatusNotifier} against a local stub of the GitHub statuses api
+ */
+public class GitHubStatusNotifierTest {
+    private static final String REPO = "xmas92/test-project";
+    private static final String SHA_A = "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa";
+    private static final String SHA_B = "bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb";
+    private HttpServer server;
+    private final List<String> received = new CopyOnWriteArrayList<>();
+    private final AtomicInteger failuresLeft = new AtomicInteger();
+    private volatile CountDownLatch gate = new CountDownLatch(0);
+    // counted down when a post reaches the stub, before it waits for the gate
+    private final CountDownLatch arrived = new CountDownLatch(1);
+    // bodies without a state, the handler runs on a thread of the server where assertions fail nothing
+    private final List<String> malformed = new CopyOnWriteArrayList<>();
+    private GitHubStatusNotifier notifier;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/repos/", exchange -> {
+            arrived.countDown();
+            try {
+                gate.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            try (InputStream in = exchange.getRequestBody()) {
+                String body = new Scanner(in, "UTF-8").useDelimiter("\\A").next();
+                Matcher state = Pattern.compile("\"state\":\"(\\w+)\"").matcher(body);
+                if (!state.find()) {
+                    malformed.add(body);
+                    exchange.sendResponseHeaders(400, -1);
+                    exchange.close();
+                    return;
+                }
+                String path = exchange.getRequestURI().getPath();
+                String sha = path.substring(path.lastIndexOf('/') + 1);
+                int code = failuresLeft.getAndDecrement() > 0 ? 502 : 201;
+                received.add(sha + " " + state.group(1) + " " + code);
+                exchange.sendResponseHeaders(code, -1);
+            }
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        if (notifier != null)
+            notifier.close();
+        server.stop(0);
+        assertTrue("posted without a state: " + malformed, malformed.isEmpty());
+    }
+
+    private GitHubStatusNotifier notifier(int queueCapacity) {
+        return new GitHubStatusNotifier("http://127.0.0.1:" + server.getAddress().getPort(), "token",
+                queueCapacity, 1, 3, 10);
+    }
+
+    private void awaitReceived(int count) throws InterruptedException {
+        await(() -> received.size() >= count);
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+    }
+
+    /**
+     * Test that queued statuses of a commit are coalesced and a pending status never overtakes the final one
+     */
+    @Test
+    public void testCoalescing() throws InterruptedException {
+        gate = new CountDownLatch(1);
+        notifier = notifier(100);
+        // the only worker blocks on the first post, the rest stays queued
+        notifier.enqueue(new GitHubStatusNotifier.Status(REPO, SHA_A, BuildStatus.pending, "", "Build pending"));
+        assertTrue(arrived.await(5, TimeUnit.SECONDS));
+        assertTrue(notifier.enqueue(new GitHubStatusNotifier.Status(REPO, SHA_B, BuildStatus.pending, "", "Build pending")));
+        assertTrue(notifier.enqueue(new GitHubStatusNotifier.Status(REPO, SHA_B, BuildStatus.success, "", "Build Success")));
+        assertFalse(notifier.enqueue(new GitHubStatusNotifier.Status(REPO, SHA_B, BuildStatus.pending, "", "Build started")));
+        assertEquals(1, notifier.getQueueDepth());
+        gate.countDown();
+
+        awaitReceived(2);
+        await(() -> notifier.getSent() == 2);
+        assertEquals(2, received.size());
+        assertEquals(SHA_A + " pending 201", received.get(0));
+        assertEquals(SHA_B + " success 201", received.get(1));
+        assertEquals(2, notifier.getCoalesced());
+        assertEquals(2, notifier.getSent());
+    }
+
+    /**
+     * Test that a failed post is retried with backoff until GitHub accepts it
+     */
+    @Test
+    public void testRetry() throws InterruptedException {
+        failuresLeft.set(2);
+        notifier = notifier(100);
+        notifier.enqueue(new GitHubStatusNotifier.Status(REPO, SHA_A, BuildStatus.failure, "", "Build Failure"));
+
+        awaitReceived(3);
+        await(() -> notifier.getSent() == 1);
+        assertEquals(3, received.size());
+        assertEquals(SHA_A + " failure 502", received.get(0));
+        assertEquals(SHA_A + " failure 201", received.get(2));
+        assertEquals(1, notifier.getSent());
+        assertEquals(0, notifier.getFailed());
+    }
+
+    /**
+     * Test that a retry of a pending status is dropped when the final status was posted during its backoff
+     */
+    @Test
+    public void testStaleRetry() throws InterruptedException {
+        failuresLeft.set(1);
+        notifier = new GitHubStatusNotifier("http://127.0.0.1:" + server.getAddress().getPort(), "token",
+                100, 1, 3, 300);
+        notifier.enqueue(new GitHubStatusNotifier.Status(REPO, SHA_A, BuildStatus.pending, "", "Build pending"));
+        awaitReceived(1);
+        assertTrue(notifier.enqueue(new GitHubStatusNotifier.Status(REPO, SHA_A, BuildStatus.success, "", "Build Success")));
+        awaitReceived(2);
+        // the retry of the pending status is dropped once its backoff is over
+        await(() -> notifier.getCoalesced() == 1);
+
+        assertEquals(2, received.size());
+        assertEquals(SHA_A + " pending 502", received.get(0));
+        assertEquals(SHA_A + " success 201", received.get(1));
+        assertEquals(1, notifier.getSent());
+        assertEquals(1, notifier.getCoalesced());
+        assertEquals(0, notifier.getQueueDepth());
+    }
+
+    /**
+     * Test that a full queue drops pending statuses to make room for final ones
+     */
+    @Test
+    public void testBoundedQueue() throws InterruptedException {
+        gate = new CountDownLatch(1);
+        notifier = notifier(1);
+        notifier.enqueue(new GitHubStatusNotifier.Status(REPO, "1", BuildStatus.pending, "", ""));
+        assertTrue(arrived.await(5, TimeUnit.SECONDS));
+        assertTrue(notifier.enqueue(new GitHubStatusNotifier.Status(REPO, SHA_A, BuildStatus.pending, "", "")));
+        assertFalse(notifier.enqueue(new GitHubStatusNotifier.Status(REPO, SHA_B, BuildStatus.pending, "", "")));
+        assertTrue(notifier.enqueue(new GitHubStatusNotifier.Status(REPO, SHA_B, BuildStatus.success, "", "")));
+        assertEquals(2, notifier.getDropped());
+        gate.countDown();
+
+        awaitReceived(2);
+        assertEquals(SHA_B + " success 201", received.get(1));
+    }
+
+    /**
+     * Test that a status that cannot be posted at all counts as failed and the worker posts the next ones
+     */
+    @Test
+    public void testMalformedStatus() throws InterruptedException {
+        notifier = notifier(100);
+        // not a valid URI, the post is rejected before it is sent
+        notifier.enqueue(new GitHubStatusNotifier.Status("xmas92/test project", SHA_A, BuildStatus.pending, "", ""));
+        notifier.enqueue(new GitHubStatusNotifier.Status("xmas92/test project", SHA_B, BuildStatus.pending, "", ""));
+        await(() -> notifier.getFailed() == 2);
+        notifier.enqueue(new GitHubStatusNotifier.Status(REPO, SHA_A, BuildStatus.success, "", "Build Success"));
+
+        awaitReceived(1);
+        await(() -> notifier.getSent() == 1);
+        assertEquals(SHA_A + " success 201", received.get(0));
+        assertEquals(2, notifier.getFailed());
+        assertEquals(1, notifier.getSent());
+    }
+}
@@ -0,0 +1,73 @@
+package org.Simple-CI;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test suite for {@link GradleSettings}
+ */
+public class GradleSettingsTest {
+    private final TemporaryFolder testRootFolder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws IOException {
+        testRootFolder.create();
+    }
+
+    @After
+    public void tearDown() {
+        testRootFolder.delete();
+    }
+
+    /**
+     * Test that the daemon settings are written into the shared user home and builds are pointed at it
+     */
+    @Test
+    public void testSharedUserHome() throws IOException {
+        File home = new File(testRootFolder.getRoot(), "gradle-home");
+        GradleSettings settings = new GradleSettings(home.getPath(), true, "-Xmx1g -XX:+UseParallelGC", 10);
+
+        List<String> properties = Files.readAllLines(new File(home, "gradle.properties").toPath(), StandardCharsets.UTF_8);
+        assertTrue(properties.contains("org.gradle.daemon=true"));
+        assertTrue(properties.contains("org.gradle.daemon.idletimeout=600000"));
+        assertTrue(properties.contains("org.gradle.jvmargs=-Xmx1g -XX:+UseParallelGC"));
+        assertEquals(Arrays.asList("--daemon"), settings.arguments());
+
+        ProcessBuilder processBuilder = new ProcessBuilder("gradlew");
+        settings.apply(processBuilder);
+        assertEquals(home.getAbsolutePath(), processBuilder.environment().get("GRADLE_USER_HOME"));
+    }
+
+    /**
+     * Test that the project keeps its own JVM arguments and the gradle default user home can be kept
+     */
+    @Test
+    public void testDefaults() throws IOException {
+        File home = new File(testRootFolder.getRoot(), "gradle-home");
+        GradleSettings settings = new GradleSettings(home.getPath(), false, "", 30);
+        List<String> properties = Files.readAllLines(new File(home, "gradle.properties").toPath(), StandardCharsets.UTF_8);
+        assertFalse(properties.stream().anyMatch(p -> p.startsWith("org.gradle.jvmargs")));
+        assertEquals(Arrays.asList("--no-daemon"), settings.arguments());
+
+        GradleSettings gradleDefault = new GradleSettings("", true, "", 30);
+        assertNull(gradleDefault.getUserHome());
+        ProcessBuilder processBuilder = new ProcessBuilder("gradlew");
+        processBuilder.environment().remove("GRADLE_USER_HOME");
+        gradleDefault.apply(processBuilder);
+        assertNull(processBuilder.environment().get("GRADLE_USER_HOME"));
+    }
+}
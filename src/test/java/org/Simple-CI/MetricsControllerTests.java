@@ -0,0 +1,66 @@
+package org.Simple-CI;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.RequestPostProcessor;
+
+/**
+ * Test suite for {@link MetricsController}
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest
+@AutoConfigureMockMvc
+public class MetricsControllerTests {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private MessageChannel notBuildBridge;
+
+    /**
+     * Test that the metrics are served on the management port only, with the metrics of the channels
+     */
+    @Test
+    public void getMetrics() throws Exception {
+        notBuildBridge.send(MessageBuilder.withPayload("").build());
+
+        mockMvc.perform(get("/metrics").with(request -> {
+                    request.setLocalPort(8081);
+                    return request;
+                }))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.gauges['ci.buildQueue.depth']").value(0))
+                .andExpect(jsonPath("$.counters['ci.channel.notBuildBridge.sent']").exists())
+                .andExpect(jsonPath("$.timers['ci.channel.gitHubNotifyChannel.send'].count").exists());
+        mockMvc.perform(get("/metrics")).andExpect(status().isNotFound());
+    }
+
+    /**
+     * Test that the management port serves nothing but the metrics
+     */
+    @Test
+    public void managementPortServesOnlyMetrics() throws Exception {
+        RequestPostProcessor managementPort = request -> {
+            request.setLocalPort(8081);
+            return request;
+        };
+        mockMvc.perform(post("/").content("{}").with(managementPort)).andExpect(status().isNotFound());
+        mockMvc.perform(post("/builds/cancel").param("id", "x").with(managementPort))
+                .andExpect(status().isNotFound());
+        mockMvc.perform(get("/builds").with(managementPort)).andExpect(status().isNotFound());
+        mockMvc.perform(get("/metrics").with(managementPort)).andExpect(status().isOk());
+    }
+}
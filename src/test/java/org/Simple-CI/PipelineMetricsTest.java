@@ -0,0 +1,143 @@
+package org.Simple-CI;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.MDC;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.integration.channel.DirectChannel;
+import org.springframework.integration.channel.ExecutorChannel;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.Message;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test suite for {@link PipelineMetrics} and {@link PipelineTracing}
+ */
+public class PipelineMetricsTest {
+    private PipelineMetrics metrics;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        metrics = new PipelineMetrics();
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static Message<String> traced(String payload, String traceId) {
+        return MessageBuilder.withPayload(payload).setHeader(PipelineMetrics.TRACE_HEADER, traceId).build();
+    }
+
+    /**
+     * Test the count, total, maximum and percentiles of a timer
+     */
+    @Test
+    public void testTimer() {
+        PipelineMetrics.Timer timer = metrics.timer("ci.test");
+        for (int i = 1; i <= 100; i++)
+            timer.record(i, TimeUnit.MILLISECONDS);
+        timer.record(-5, TimeUnit.MILLISECONDS);
+
+        assertEquals(101, timer.getCount());
+        assertEquals(5050.0, timer.getTotal(TimeUnit.MILLISECONDS), 0.001);
+        assertEquals(100.0, timer.getMax(TimeUnit.MILLISECONDS), 0.001);
+        assertEquals(50.0, timer.getPercentile(0.5, TimeUnit.MILLISECONDS), 0.001);
+        assertEquals(100.0, timer.getPercentile(0.99, TimeUnit.MILLISECONDS), 0.001);
+        assertEquals(0.0, metrics.timer("ci.empty").getPercentile(0.5, TimeUnit.MILLISECONDS), 0.001);
+
+        timer.record(3, TimeUnit.HOURS);
+        assertEquals(TimeUnit.HOURS.toMillis(3), timer.getPercentile(1, TimeUnit.MILLISECONDS), 0.001);
+    }
+
+    /**
+     * Test that counters and gauges are reported with the timers
+     */
+    @Test
+    public void testToJson() throws Exception {
+        metrics.increment("ci.count");
+        metrics.increment("ci.count");
+        metrics.gauge("ci.depth", () -> 7);
+        metrics.timer("ci.time").record(2, TimeUnit.SECONDS);
+
+        assertEquals(2, metrics.count("ci.count"));
+        assertEquals(0, metrics.count("ci.none"));
+        assertEquals(2, metrics.toJson().getJSONObject("counters").getLong("ci.count"));
+        assertEquals(7, metrics.toJson().getJSONObject("gauges").getInt("ci.depth"));
+        assertEquals(2000.0, metrics.toJson().getJSONObject("timers").getJSONObject("ci.time")
+                .getDouble("maxMillis"), 0.001);
+    }
+
+    /**
+     * Test that sends to a direct channel are counted and timed, and that the trace id is in the logging
+     * context only while the message is handled
+     */
+    @Test
+    public void testDirectChannel() {
+        DirectChannel channel = new DirectChannel();
+        channel.setBeanName("direct");
+        channel.addInterceptor(new PipelineTracing(metrics));
+        List<String> traces = new ArrayList<>();
+        channel.subscribe(msg -> traces.add(MDC.get(PipelineMetrics.TRACE_HEADER)));
+
+        channel.send(traced("a", "0123456789abcdef"));
+        channel.send(MessageBuilder.withPayload("b").build());
+
+        assertEquals("0123456789abcdef", traces.get(0));
+        assertNull(traces.get(1));
+        assertNull(MDC.get(PipelineMetrics.TRACE_HEADER));
+        assertEquals(2, metrics.count("ci.channel.direct.sent"));
+        assertEquals(0, metrics.count("ci.channel.direct.failed"));
+        assertEquals(2, metrics.timer("ci.channel.direct.send").getCount());
+    }
+
+    /**
+     * Test that the time messages wait for the thread of an executor channel is recorded, and that the trace id
+     * is in the logging context of the thread handling the message
+     */
+    @Test
+    public void testExecutorChannel() throws InterruptedException {
+        ExecutorChannel channel = new ExecutorChannel(executor);
+        channel.setBeanName("executor");
+        channel.addInterceptor(new PipelineTracing(metrics));
+        channel.setBeanFactory(new DefaultListableBeanFactory());
+        channel.afterPropertiesSet();
+        List<String> traces = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch handled = new CountDownLatch(2);
+        channel.subscribe(msg -> {
+            traces.add(MDC.get(PipelineMetrics.TRACE_HEADER));
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            handled.countDown();
+        });
+
+        channel.send(traced("a", "a"));
+        channel.send(traced("b", "b"));
+        assertTrue(handled.await(5, TimeUnit.SECONDS));
+
+        assertEquals("a", traces.get(0));
+        assertEquals("b", traces.get(1));
+        PipelineMetrics.Timer wait = metrics.timer("ci.channel.executor.wait");
+        assertEquals(2, wait.getCount());
+        // the second message waited for the first one
+        assertTrue(wait.getMax(TimeUnit.MILLISECONDS) >= 90);
+    }
+}
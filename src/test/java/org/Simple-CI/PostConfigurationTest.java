@@ -0,0 +1,178 @@
+package org.Simple-CI;
+
+import org.junit.Test;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test suite for {@link PostConfiguration}
+ */
+public class PostConfigurationTest {
+    private static final int BATCH_SIZE = 8;
+    private static final long BUILD_MILLIS = 200;
+
+    /**
+     * Test that the build worker pool runs a fixed number of builds and queues up to its capacity of tickets
+     */
+    @Test
+    public void testBuildWorkerPool() throws InterruptedException {
+        ThreadPoolTaskExecutor pool = PostConfiguration.buildWorkerPool(2, 1);
+        pool.initialize();
+        assertEquals(2, pool.getCorePoolSize());
+        assertEquals(2, pool.getMaxPoolSize());
+        assertEquals(1, pool.getThreadPoolExecutor().getQueue().remainingCapacity());
+        assertEquals("build-worker-", pool.getThreadNamePrefix());
+
+        CountDownLatch release = new CountDownLatch(1);
+        Runnable build = () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        pool.execute(build);
+        pool.execute(build);
+        pool.execute(build);
+        assertEquals(1, pool.getThreadPoolExecutor().getQueue().size());
+        // a build never runs on the thread that hands out the ticket
+        try {
+            pool.execute(build);
+            fail("the queue is full");
+        } catch (TaskRejectedException expected) {
+            // rejected
+        } finally {
+            release.countDown();
+            pool.shutdown();
+        }
+        assertTrue(pool.getThreadPoolExecutor().awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Runs a batch of queued builds on a worker pool and returns the number of builds that ran at the same time.
+     * Each build is simulated by a task that holds its worker until all workers are busy, so the count does not
+     * depend on timing.
+     */
+    private int runBatch(int workers) throws InterruptedException {
+        ThreadPoolTaskExecutor pool = PostConfiguration.buildWorkerPool(workers, 100);
+        pool.initialize();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger overlapping = new AtomicInteger();
+        CountDownLatch allBusy = new CountDownLatch(workers);
+        CountDownLatch done = new CountDownLatch(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            pool.execute(() -> {
+                overlapping.accumulateAndGet(running.incrementAndGet(), Math::max);
+                allBusy.countDown();
+                try {
+                    allBusy.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                done.countDown();
+            });
+        }
+        try {
+            assertTrue(allBusy.await(10, TimeUnit.SECONDS));
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdown();
+        }
+        return overlapping.get();
+    }
+
+    /**
+     * Test that a batch of queued builds runs on as many workers at once as the pool has
+     */
+    @Test
+    public void testThroughputScalesWithWorkers() throws InterruptedException {
+        assertEquals(1, runBatch(1));
+        assertEquals(2, runBatch(2));
+        assertEquals(4, runBatch(4));
+    }
+
+    /**
+     * Runs a batch of queued builds that each take BUILD_MILLIS on a worker pool
+     * @return wall-clock time of the batch in milliseconds
+     */
+    private long timeBatch(int workers) throws InterruptedException {
+        ThreadPoolTaskExecutor pool = PostConfiguration.buildWorkerPool(workers, 100);
+        pool.initialize();
+        CountDownLatch done = new CountDownLatch(BATCH_SIZE);
+        long start = System.nanoTime();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            pool.execute(() -> {
+                try {
+                    Thread.sleep(BUILD_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            });
+        }
+        try {
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdown();
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * Test that the wall-clock time of a batch of queued builds drops as workers are added. The bounds are loose,
+     * one worker needs BATCH_SIZE build times and four workers a quarter of that.
+     */
+    @Test
+    public void testBatchTimeDropsWithWorkers() throws InterruptedException {
+        long one = timeBatch(1);
+        long four = timeBatch(4);
+        assertTrue("one worker took " + one + " ms", one >= BATCH_SIZE * BUILD_MILLIS);
+        assertTrue("four workers took " + four + " ms, one took " + one + " ms", four < one / 2);
+    }
+
+    /**
+     * Test that a pool is never created without workers
+     */
+    @Test
+    public void testAtLeastOneWorker() {
+        ThreadPoolTaskExecutor pool = PostConfiguration.buildWorkerPool(0, 100);
+        assertEquals(1, pool.getCorePoolSize());
+        assertEquals(1, pool.getMaxPoolSize());
+    }
+
+    /**
+     * Test that a message that does not fit into the publish pool is handled by the sender instead of dropped
+     */
+    @Test
+    public void testPublishPoolBackpressure() throws InterruptedException {
+        ThreadPoolTaskExecutor pool = PostConfiguration.publishPool(1, 1);
+        pool.initialize();
+        CountDownLatch release = new CountDownLatch(1);
+        Runnable blocked = () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        pool.execute(blocked);
+        pool.execute(blocked);
+        AtomicReference<Thread> ranOn = new AtomicReference<>();
+        pool.execute(() -> ranOn.set(Thread.currentThread()));
+        release.countDown();
+        pool.shutdown();
+
+        assertEquals(Thread.currentThread(), ranOn.get());
+        assertEquals(1, pool.getMaxPoolSize());
+    }
+}
@@ -0,0 +1,177 @@
+package org.Simple-CI;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test suite for {@link RepoMirrorCache}
+ */
+public class RepoMirrorCacheTest {
+    private static final String REPO_FULL_NAME = "xmas92/test-project";
+    private final TemporaryFolder testRootFolder = new TemporaryFolder();
+    private Git source;
+    private File mirrors;
+
+    @Before
+    public void setUp() throws IOException, GitAPIException {
+        testRootFolder.create();
+        source = Git.init().setDirectory(testRootFolder.newFolder("source")).call();
+        mirrors = testRootFolder.newFolder("mirrors");
+    }
+
+    @After
+    public void tearDown() {
+        source.close();
+        testRootFolder.delete();
+    }
+
+    private String commit(String fileName, String content) throws IOException, GitAPIException {
+        File file = new File(source.getRepository().getWorkTree(), fileName);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        source.add().addFilepattern(fileName).call();
+        RevCommit commit = source.commit().setMessage(fileName).call();
+        return commit.getName();
+    }
+
+    private String sourceURI() {
+        return source.getRepository().getDirectory().getAbsolutePath();
+    }
+
+    private File checkout(RepoMirrorCache cache, String sha, String folder) throws IOException, GitAPIException {
+        File workTree = testRootFolder.newFolder(folder);
+        try (Git git = cache.checkout(REPO_FULL_NAME, sourceURI(), sha, workTree, null)) {
+            git.reset().setMode(org.eclipse.jgit.api.ResetCommand.ResetType.HARD).setRef(sha).call();
+        }
+        return workTree;
+    }
+
+    /**
+     * Test that the first build clones the mirror and the next builds reuse it
+     */
+    @Test
+    public void testMissThenHit() throws IOException, GitAPIException {
+        String sha = commit("a.txt", "a");
+        RepoMirrorCache cache = new RepoMirrorCache(mirrors.getPath(), Long.MAX_VALUE);
+
+        File first = checkout(cache, sha, "first");
+        cache.release(REPO_FULL_NAME);
+        long fetched = cache.getBytesFetched();
+        File second = checkout(cache, sha, "second");
+        cache.release(REPO_FULL_NAME);
+
+        assertTrue(new File(first, "a.txt").isFile());
+        assertTrue(new File(second, "a.txt").isFile());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertEquals(0.5, cache.getHitRate(), 0.0);
+        assertTrue(fetched > 0);
+        assertEquals(fetched, cache.getBytesFetched());
+    }
+
+    /**
+     * Test that a new commit is fetched incrementally into the existing mirror
+     */
+    @Test
+    public void testIncrementalFetch() throws IOException, GitAPIException {
+        String sha1 = commit("a.txt", "a");
+        RepoMirrorCache cache = new RepoMirrorCache(mirrors.getPath(), Long.MAX_VALUE);
+        checkout(cache, sha1, "first");
+        cache.release(REPO_FULL_NAME);
+        long fetched = cache.getBytesFetched();
+
+        String sha2 = commit("b.txt", "b");
+        File second = checkout(cache, sha2, "second");
+        cache.release(REPO_FULL_NAME);
+
+        assertTrue(new File(second, "b.txt").isFile());
+        assertTrue(cache.getBytesFetched() > fetched);
+        assertEquals(1, cache.getMisses());
+    }
+
+    /**
+     * Test that mirrors on disk survive a restart of the cache
+     */
+    @Test
+    public void testMirrorsReloaded() throws IOException, GitAPIException {
+        String sha = commit("a.txt", "a");
+        RepoMirrorCache cache = new RepoMirrorCache(mirrors.getPath(), Long.MAX_VALUE);
+        checkout(cache, sha, "first");
+        cache.release(REPO_FULL_NAME);
+
+        RepoMirrorCache restarted = new RepoMirrorCache(mirrors.getPath(), Long.MAX_VALUE);
+        assertEquals(cache.getSize(), restarted.getSize());
+        checkout(restarted, sha, "second");
+        assertEquals(1, restarted.getHits());
+    }
+
+    /**
+     * Test that mirrors not in use are evicted when the cache is above its size cap
+     */
+    @Test
+    public void testEviction() throws IOException, GitAPIException {
+        String sha = commit("a.txt", "a");
+        RepoMirrorCache cache = new RepoMirrorCache(mirrors.getPath(), 1);
+        checkout(cache, sha, "first");
+        File mirror = new File(mirrors, REPO_FULL_NAME + ".git");
+        assertTrue(mirror.isDirectory());
+
+        // in use, must not be evicted
+        cache.evict();
+        assertTrue(mirror.isDirectory());
+
+        cache.release(REPO_FULL_NAME);
+        assertFalse(mirror.exists());
+        assertEquals(0, cache.getSize());
+    }
+
+    /**
+     * Test that an evicted mirror is handed to the reaper, so the cache is usable while it is being deleted
+     */
+    @Test
+    public void testEvictionInBackground() throws Exception {
+        String sha = commit("a.txt", "a");
+        ExecutorService reapers = Executors.newSingleThreadExecutor();
+        WorkspaceReaper reaper = new WorkspaceReaper(testRootFolder.newFolder("workspaces"), reapers, Long.MAX_VALUE, 0);
+        CountDownLatch busy = new CountDownLatch(1);
+        reapers.submit(() -> {
+            busy.await();
+            return null;
+        });
+        RepoMirrorCache cache = new RepoMirrorCache(mirrors.getPath(), 1);
+        cache.setReaper(reaper);
+        checkout(cache, sha, "first");
+        File mirror = new File(mirrors, REPO_FULL_NAME + ".git");
+
+        cache.release(REPO_FULL_NAME);
+        assertFalse(mirror.exists());
+        assertEquals(1, cache.getEvicted());
+        assertEquals(1, reaper.getPending());
+
+        // the reaper is still busy, a new mirror of the repository can be cloned meanwhile
+        checkout(cache, sha, "second");
+        assertTrue(mirror.isDirectory());
+        assertEquals(2, cache.getMisses());
+
+        busy.countDown();
+        assertTrue(reaper.awaitIdle(10000));
+        assertEquals(1, reaper.getReaped());
+        reaper.shutdown();
+    }
+}
@@ -0,0 +1,142 @@
+package org.Simple-CI;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Test suite for {@link ShallowClone}
+ */
+public class ShallowCloneTest {
+    private final TemporaryFolder testRootFolder = new TemporaryFolder();
+    private Git source;
+    private BuildLogStore logStore;
+    private BuildProcesses processes;
+    private int builds;
+
+    @Before
+    public void setUp() throws IOException, GitAPIException, InterruptedException {
+        assumeTrue(gitInstalled());
+        testRootFolder.create();
+        source = Git.init().setDirectory(testRootFolder.newFolder("source")).call();
+        logStore = new BuildLogStore(testRootFolder.newFolder("logs"), 1000);
+        processes = new BuildProcesses(0, 0, 1000);
+    }
+
+    @After
+    public void tearDown() {
+        if (source == null)
+            return;
+        source.close();
+        processes.shutdown();
+        testRootFolder.delete();
+    }
+
+    private static boolean gitInstalled() throws InterruptedException {
+        try {
+            return new ProcessBuilder("git", "--version").start().waitFor() == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private String commit(String fileName, String content) throws IOException, GitAPIException {
+        File file = new File(source.getRepository().getWorkTree(), fileName);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        source.add().addFilepattern(fileName).call();
+        return source.commit().setMessage(fileName).call().getName();
+    }
+
+    private String sourceURI() {
+        return "file://" + source.getRepository().getWorkTree().getAbsolutePath();
+    }
+
+    /**
+     * Checks out a commit the way the builder does
+     * @return the log of the checkout
+     */
+    private List<String> checkout(String sha, File gitPath, List<String> sparsePaths, boolean expectSuccess) throws Exception {
+        ShallowClone shallowClone = new ShallowClone(true, "git");
+        BuildData buildData = new BuildData("owner/repo", new Date(++builds), sha);
+        BuildProcesses.Handle handle = processes.register(buildData.getBuildId());
+        gitPath.mkdirs();
+        try (BuildLogStore.LogWriter buildLog = logStore.openWriter(buildData.getBuildId())) {
+            Git git = shallowClone.checkout(sourceURI(), sha, gitPath, sparsePaths, null, buildLog, handle);
+            if (expectSuccess) {
+                assertEquals(sha, git.getRepository().resolve("HEAD").getName());
+                git.close();
+            } else {
+                assertNull(git);
+            }
+        }
+        handle.close();
+        return logStore.read(buildData.getBuildId());
+    }
+
+    /**
+     * Test that only the built commit is fetched, not its history
+     */
+    @Test
+    public void testShallow() throws Exception {
+        commit("a.txt", "a");
+        commit("b.txt", "b");
+        String sha = commit("c.txt", "c");
+        commit("d.txt", "d");
+        File gitPath = new File(testRootFolder.getRoot(), "shallow");
+        checkout(sha, gitPath, Collections.emptyList(), true);
+
+        assertTrue(new File(gitPath, "a.txt").isFile());
+        assertTrue(new File(gitPath, "c.txt").isFile());
+        assertFalse(new File(gitPath, "d.txt").exists());
+        List<String> shallow = Files.readAllLines(new File(gitPath, ".git/shallow").toPath());
+        assertEquals(Collections.singletonList(sha), shallow);
+    }
+
+    /**
+     * Test that a sparse checkout only writes the listed paths and the build spec
+     */
+    @Test
+    public void testSparse() throws Exception {
+        commit(BuildPipeline.SPEC_FILE, "{}");
+        commit("module-a/src/A.java", "class A {}");
+        commit("module-b/src/B.java", "class B {}");
+        String sha = commit("build.gradle", "");
+        File gitPath = new File(testRootFolder.getRoot(), "sparse");
+        checkout(sha, gitPath, Arrays.asList("module-a", "/build.gradle"), true);
+
+        assertTrue(new File(gitPath, "module-a/src/A.java").isFile());
+        assertTrue(new File(gitPath, "build.gradle").isFile());
+        assertTrue(new File(gitPath, BuildPipeline.SPEC_FILE).isFile());
+        assertFalse(new File(gitPath, "module-b").exists());
+    }
+
+    /**
+     * Test that a commit the server does not have fails, so the builder falls back to a full clone
+     */
+    @Test
+    public void testUnknownCommit() throws Exception {
+        commit("a.txt", "a");
+        List<String> log = checkout(String.format("%040x", 1), new File(testRootFolder.getRoot(), "unknown"),
+                Collections.emptyList(), false);
+        assertTrue(log.contains("git fetch failed with exit code 128"));
+    }
+}
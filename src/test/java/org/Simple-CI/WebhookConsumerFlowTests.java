@@ -0,0 +1,49 @@
+package org.Simple-CI;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.io.File;
+
+/**
+ * Test suite for the webhookConsumerFlow of {@link PostConfiguration}
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = "ci.webhook.folder=./build/webhooks-consumer-test")
+public class WebhookConsumerFlowTests {
+
+    @Autowired
+    private WebhookQueue webhookQueue;
+
+    /**
+     * Test that payloads that cannot be parsed are moved to the dead letter file and do not hold back the payload
+     * behind them, so the queue file is emptied
+     */
+    @Test
+    public void malformedPayloadIsDeadLettered() throws Exception {
+        long deadLettered = webhookQueue.getDeadLettered();
+        long processed = webhookQueue.getProcessed();
+        webhookQueue.append("{pusher: 'test', after: ");
+        // a ref without refs/heads/
+        webhookQueue.append("{pusher: 'test', after: '" + String.format("%040x", 1) + "'," +
+                " repository: {full_name: 'owner/repo', default_branch: 'main'}, ref: 'main'}");
+        // a deleted branch, which spawns no build
+        webhookQueue.append("{pusher: 'test', after: '0000000000000000000000000000000000000000'," +
+                " repository: {full_name: 'owner/repo', default_branch: 'main'}, ref: 'refs/heads/old'}");
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (webhookQueue.getProcessed() - processed < 3 && System.currentTimeMillis() < deadline)
+            Thread.sleep(20);
+        assertEquals(3, webhookQueue.getProcessed() - processed);
+        assertEquals(2, webhookQueue.getDeadLettered() - deadLettered);
+        assertEquals(0, webhookQueue.getPendingBytes());
+        assertEquals(0, new File("./build/webhooks-consumer-test", "queue.bin").length());
+        assertTrue(new File("./build/webhooks-consumer-test", "dead-letter.txt").length() > 0);
+    }
+}
@@ -0,0 +1,199 @@
+package org.Simple-CI;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.http.HttpStatus;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test suite for {@link WebhookQueue}
+ */
+public class WebhookQueueTest {
+    private final TemporaryFolder testRootFolder = new TemporaryFolder();
+    private File folder;
+    private WebhookQueue queue;
+
+    @Before
+    public void setUp() throws IOException {
+        testRootFolder.create();
+        folder = testRootFolder.newFolder("webhooks");
+        queue = new WebhookQueue(folder.getPath(), true);
+    }
+
+    @After
+    public void tearDown() {
+        queue.close();
+        testRootFolder.delete();
+    }
+
+    /**
+     * Test that the gateway reply is 202 and payloads are polled in the order they were received
+     */
+    @Test
+    public void testEnqueueReceive() {
+        Message<String> reply = queue.enqueue(MessageBuilder.withPayload("{\"a\":1}").build());
+        assertEquals(HttpStatus.ACCEPTED, reply.getHeaders().get("http_statusCode"));
+        queue.enqueue(MessageBuilder.withPayload("{\"b\":\"å\"}").build());
+
+        assertEquals("{\"a\":1}", queue.receive().getPayload());
+        assertEquals("{\"b\":\"å\"}", queue.receive().getPayload());
+        assertNull(queue.receive());
+        assertEquals(2, queue.getReceived());
+    }
+
+    /**
+     * Test that payloads that were not acknowledged are delivered again after a restart
+     */
+    @Test
+    public void testRedeliveryAfterRestart() throws IOException {
+        queue.append("first");
+        queue.append("second");
+        queue.append("third");
+        queue.acknowledge(queue.receive());
+        queue.receive();
+        queue.close();
+
+        queue = new WebhookQueue(folder.getPath(), true);
+        assertEquals("second", queue.receive().getPayload());
+        assertEquals("third", queue.receive().getPayload());
+        assertNull(queue.receive());
+    }
+
+    /**
+     * Test that the queue file is emptied once everything is acknowledged
+     */
+    @Test
+    public void testCompaction() throws IOException {
+        queue.append("first");
+        queue.append("second");
+        Message<String> first = queue.receive();
+        Message<String> last = queue.receive();
+        assertTrue(queue.getPendingBytes() > 0);
+        queue.acknowledge(last);
+        // the first payload is not processed yet
+        assertTrue(queue.getPendingBytes() > 0);
+        queue.acknowledge(first);
+        assertEquals(0, queue.getPendingBytes());
+        assertEquals(0, new File(folder, "queue.bin").length());
+
+        queue.append("third");
+        queue.close();
+        queue = new WebhookQueue(folder.getPath(), true);
+        assertEquals("third", queue.receive().getPayload());
+    }
+
+    /**
+     * Test that a payload only partly written before a crash is dropped and the queue stays usable
+     */
+    @Test
+    public void testTornFrame() throws IOException {
+        queue.append("complete");
+        queue.close();
+        try (RandomAccessFile file = new RandomAccessFile(new File(folder, "queue.bin"), "rw")) {
+            file.seek(file.length());
+            file.writeInt(100);
+            file.writeInt(0);
+            file.write("par".getBytes());
+        }
+
+        queue = new WebhookQueue(folder.getPath(), true);
+        assertEquals("complete", queue.receive().getPayload());
+        assertNull(queue.receive());
+        queue.append("next");
+        assertEquals("next", queue.receive().getPayload());
+    }
+
+    private BuildQueue fullBuildQueue(BuildQueue.Overflow overflow) throws IOException {
+        BuildQueue buildQueue = new BuildQueue(1, overflow);
+        buildQueue.setDatabase(new CIDataBase(testRootFolder.newFolder("database-" + overflow).getPath()));
+        buildQueue.submit(MessageBuilder.withPayload("")
+                .setHeader("buildData", new BuildData("owner/repo", new Date(), String.format("%040x", 1)))
+                .setHeader("branch", "master")
+                .build());
+        return buildQueue;
+    }
+
+    /**
+     * Test that payloads stay in the queue while the build queue is full, unless builds are coalesced
+     */
+    @Test
+    public void testHeldBackWhileFull() throws IOException {
+        BuildQueue buildQueue = fullBuildQueue(BuildQueue.Overflow.spill);
+        queue.setBuildQueue(buildQueue);
+        Message<String> reply = queue.enqueue(MessageBuilder.withPayload("spilled").build());
+        assertEquals(HttpStatus.ACCEPTED, reply.getHeaders().get("http_statusCode"));
+        assertNull(queue.receive());
+
+        buildQueue.take(null);
+        assertEquals("spilled", queue.receive().getPayload());
+
+        queue.setBuildQueue(fullBuildQueue(BuildQueue.Overflow.coalesce));
+        queue.append("coalesced");
+        assertEquals("coalesced", queue.receive().getPayload());
+    }
+
+    /**
+     * Test that payloads are answered with 429 and not stored while the build queue is full
+     */
+    @Test
+    public void testRejectWhileFull() throws IOException {
+        queue.setBuildQueue(fullBuildQueue(BuildQueue.Overflow.reject));
+        Message<String> reply = queue.enqueue(MessageBuilder.withPayload("rejected").build());
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS, reply.getHeaders().get("http_statusCode"));
+        assertEquals(1, queue.getRejected());
+        assertEquals(0, queue.getReceived());
+        assertEquals(0, queue.getPendingBytes());
+    }
+
+    private static Message<String> push(String sha, String branch) {
+        return MessageBuilder.withPayload("{pusher: 'test', after: '" + sha + "'," +
+                " repository: {full_name: 'owner/repo', default_branch: 'main'}, ref: 'refs/heads/" + branch + "'}")
+                .build();
+    }
+
+    /**
+     * Test that a webhook whose build waited in the build queue is built after a restart, and that webhooks
+     * are acknowledged in any order once their builds were taken by a worker
+     */
+    @Test
+    public void testQueuedBuildSurvivesRestart() throws IOException {
+        GitHubHandler handler = new GitHubHandler();
+        CIDataBase database = new CIDataBase(testRootFolder.newFolder("database").getPath());
+        String shaA = String.format("%040x", 1);
+        String shaB = String.format("%040x", 2);
+        queue.append(push(shaA, "a").getPayload());
+        queue.append(push(shaB, "b").getPayload());
+        BuildQueue buildQueue = new BuildQueue(0, BuildQueue.Overflow.spill, 0, "");
+        buildQueue.setDatabase(database);
+        buildQueue.setWebhookQueue(queue);
+        buildQueue.submit(handler.getJSON(queue.receive()));
+        buildQueue.submit(handler.getJSON(queue.receive()));
+        // build of a is taken, build of b still waits when the server stops
+        assertEquals(shaA, ((BuildData) buildQueue.take(null).getHeaders().get("buildData")).getSha());
+        assertTrue(queue.getPendingBytes() > 0);
+        queue.close();
+
+        queue = new WebhookQueue(folder.getPath(), true);
+        buildQueue = new BuildQueue(0, BuildQueue.Overflow.spill, 0, "");
+        buildQueue.setDatabase(database);
+        buildQueue.setWebhookQueue(queue);
+        buildQueue.submit(handler.getJSON(queue.receive()));
+        assertNull(queue.receive());
+        Message<?> build = buildQueue.take(null);
+        assertEquals(shaB, ((BuildData) build.getHeaders().get("buildData")).getSha());
+        assertEquals("b", build.getHeaders().get("branch"));
+        assertEquals(0, queue.getPendingBytes());
+    }
+}
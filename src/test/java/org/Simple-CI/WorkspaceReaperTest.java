@@ -0,0 +1,146 @@
+package org.Simple-CI;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test suite for {@link WorkspaceReaper}
+ */
+public class WorkspaceReaperTest {
+    private final TemporaryFolder testRootFolder = new TemporaryFolder();
+    private File root;
+    private WorkspaceReaper reaper;
+
+    @Before
+    public void setUp() throws IOException {
+        testRootFolder.create();
+        root = testRootFolder.newFolder("repo");
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (reaper != null)
+            reaper.shutdown();
+        testRootFolder.delete();
+    }
+
+    /**
+     * Creates a workspace with a few folders of files
+     * @return the workspace
+     */
+    private File workspace(String name, int files) throws IOException {
+        File workspace = new File(root, name);
+        for (int i = 0; i < files; i++) {
+            File file = new File(workspace, "dir" + (i % 4) + File.separator + "file" + i);
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), new byte[100]);
+        }
+        return workspace;
+    }
+
+    /**
+     * Test that a workspace is gone from its place at once and deleted from the trash in the background
+     */
+    @Test
+    public void testReap() throws Exception {
+        reaper = new WorkspaceReaper(root, 2, Long.MAX_VALUE, 0);
+        File workspace = workspace("build-1", 40);
+        reaper.reap(workspace);
+        assertFalse(workspace.exists());
+
+        assertTrue(reaper.awaitIdle(10000));
+        assertEquals(1, reaper.getReaped());
+        assertEquals(4000, reaper.getBytesFreed());
+        assertEquals(0, new File(root, ".trash").list().length);
+        // a workspace with the same name can be created right away
+        assertTrue(workspace("build-1", 1).isDirectory());
+    }
+
+    /**
+     * Test that workspaces are deleted on the calling thread when too much is pending
+     */
+    @Test
+    public void testPendingLimit() throws Exception {
+        ExecutorService reapers = Executors.newSingleThreadExecutor();
+        reaper = new WorkspaceReaper(root, reapers, 0, 0);
+        reaper.reap(workspace("build-1", 4));
+        assertTrue(reaper.awaitIdle(10000));
+        assertEquals(0, reaper.getReapedInline());
+
+        // while the reaper thread is busy the second workspace stays pending
+        CountDownLatch busy = new CountDownLatch(1);
+        reapers.submit(() -> {
+            busy.await();
+            return null;
+        });
+        reaper.reap(workspace("build-2", 4));
+        assertEquals(1, reaper.getPending());
+        assertEquals(400, reaper.getPendingBytes());
+
+        File third = workspace("build-3", 4);
+        reaper.reap(third);
+        assertFalse(third.exists());
+        assertEquals(1, reaper.getReapedInline());
+        assertEquals(2, reaper.getReaped());
+
+        busy.countDown();
+        assertTrue(reaper.awaitIdle(10000));
+        assertEquals(3, reaper.getReaped());
+    }
+
+    /**
+     * Test that the pending limit holds before the first workspace is deleted, from the configured workspace size
+     */
+    @Test
+    public void testPendingLimitBeforeFirstDeletion() throws Exception {
+        ExecutorService reapers = Executors.newSingleThreadExecutor();
+        reaper = new WorkspaceReaper(root, reapers, 1000, 600);
+        CountDownLatch busy = new CountDownLatch(1);
+        reapers.submit(() -> {
+            busy.await();
+            return null;
+        });
+        reaper.reap(workspace("build-1", 4));
+        reaper.reap(workspace("build-2", 4));
+        assertEquals(2, reaper.getPending());
+        assertEquals(1200, reaper.getPendingBytes());
+
+        File third = workspace("build-3", 4);
+        reaper.reap(third);
+        assertFalse(third.exists());
+        assertEquals(1, reaper.getReapedInline());
+
+        busy.countDown();
+        assertTrue(reaper.awaitIdle(10000));
+        assertEquals(3, reaper.getReaped());
+    }
+
+    /**
+     * Test that workspaces left in the trash by a previous run are deleted at startup
+     */
+    @Test
+    public void testLeftovers() throws Exception {
+        File trash = new File(root, ".trash");
+        File leftover = new File(trash, "build-0");
+        assertTrue(new File(leftover, "dir").mkdirs());
+        Files.write(new File(leftover, "dir/file").toPath(), new byte[10]);
+
+        reaper = new WorkspaceReaper(root, 1, Long.MAX_VALUE, 0);
+        assertTrue(reaper.awaitIdle(10000));
+        assertFalse(leftover.exists());
+        assertEquals(10, reaper.getBytesFreed());
+    }
+}